@@ -0,0 +1,167 @@
+package org.clapper.util.classutil.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import org.clapper.util.classutil.AndClassFilter;
+import org.clapper.util.classutil.ClassFilter;
+import org.clapper.util.classutil.ClassFinder;
+import org.clapper.util.classutil.ClassIndexCache;
+import org.clapper.util.classutil.ClassInfo;
+import org.clapper.util.classutil.NotClassFilter;
+import org.clapper.util.classutil.OrClassFilter;
+import org.clapper.util.classutil.RegexClassFilter;
+import org.clapper.util.classutil.SubclassClassFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures the cost of the class filters. The {@link ClassFinder} has
+ * an index cache that's warmed up before the measurement starts, so a
+ * scan decodes the cached classes rather than parsing class files, and
+ * the rest of the scan is the filter. The <tt>none</tt> case, which
+ * scans with no filter, is the baseline; the cost of a filter is its
+ * score's difference from the baseline. The
+ * {@link ScanCounters#classes} counter reports the rate at which classes
+ * are tested.</p>
+ *
+ * <p>The filters:</p>
+ *
+ * <ul>
+ *   <li><tt>subclass</tt>: a {@link SubclassClassFilter} for the root
+ *       class of one inheritance chain
+ *   <li><tt>interface</tt>: a <tt>SubclassClassFilter</tt> for the root
+ *       of the interface hierarchy, which every class implements
+ *   <li><tt>regex</tt>: a {@link RegexClassFilter} that matches one
+ *       class in ten
+ *   <li><tt>and</tt>, <tt>or</tt>, <tt>not</tt>: the
+ *       {@link AndClassFilter}, {@link OrClassFilter} and
+ *       {@link NotClassFilter} combinators, over the filters above
+ * </ul>
+ *
+ * <p>The first call to a hierarchy-based filter, in each scan, indexes
+ * the type hierarchy of the scanned classes; that's included in the
+ * filter's cost, since every scan pays it.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class FilterBenchmark
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final String REGEX = "^synth\\.p[0-9]*\\.C[0-9]*5$";
+
+    /*----------------------------------------------------------------------*\
+                             Public Data Items
+    \*----------------------------------------------------------------------*/
+
+    @Param({"10000"})
+    public int classes;
+
+    @Param({"none", "subclass", "interface", "regex", "and", "or", "not"})
+    public String filter;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private ClassFinder    finder;
+    private ClassFilter    classFilter;
+    private URLClassLoader loader;
+    private int            total;
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ClassNotFoundException
+    {
+        File jar = SyntheticJar.create (classes);
+
+        finder = new ClassFinder();
+        finder.setIndexCache (new ClassIndexCache());
+        finder.add (jar);
+        total = finder.findClasses (new ArrayList<ClassInfo>());
+
+        // SubclassClassFilter wants Class objects, so load the roots of
+        // the hierarchy from the jar. Neither has a static initializer.
+
+        loader = new URLClassLoader (new URL[] {jar.toURI().toURL()}, null);
+        classFilter = makeFilter (filter);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        loader.close();
+    }
+
+    @Benchmark
+    public List<ClassInfo> scan (ScanCounters counters)
+    {
+        List<ClassInfo> result = new ArrayList<ClassInfo>();
+        finder.findClasses (result, classFilter);
+        counters.classes += total;
+        return result;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private ClassFilter makeFilter (String name)
+        throws ClassNotFoundException
+    {
+        ClassFilter subclass =
+            new SubclassClassFilter
+                (loader.loadClass (SyntheticJar.ROOT_CLASS));
+        ClassFilter iface =
+            new SubclassClassFilter
+                (loader.loadClass (SyntheticJar.ROOT_INTERFACE));
+        ClassFilter regex = new RegexClassFilter (REGEX);
+
+        if (name.equals ("none"))
+            return null;
+        if (name.equals ("subclass"))
+            return subclass;
+        if (name.equals ("interface"))
+            return iface;
+        if (name.equals ("regex"))
+            return regex;
+        if (name.equals ("and"))
+            return new AndClassFilter (regex, iface);
+        if (name.equals ("or"))
+            return new OrClassFilter (regex, subclass);
+        if (name.equals ("not"))
+            return new NotClassFilter (regex);
+
+        throw new IllegalArgumentException ("Unknown filter: " + name);
+    }
+}
@@ -0,0 +1,114 @@
+package org.clapper.util.classutil.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.net.URI;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * <p>Locates the JDK's own classes, as a jar file the {@link
+ * org.clapper.util.classutil.ClassFinder ClassFinder} can scan. Through
+ * Java 8, that's <tt>rt.jar</tt>, which is used as is. From Java 9 on, the
+ * classes live in modules, in the <tt>jrt:</tt> file system, which the
+ * <tt>ClassFinder</tt> can't read; the class files of the
+ * <tt>java.base</tt> module are copied to a temporary jar instead. The
+ * copy is made once per JVM, when the benchmark is set up, so it isn't
+ * part of what's measured.</p>
+ */
+final class JdkJar
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final String MODULE = "/modules/java.base";
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    private JdkJar()
+    {
+        // Cannot be instantiated.
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get a jar file containing the JDK's classes.
+     *
+     * @return the jar file
+     *
+     * @throws IOException if the classes can't be found or copied
+     */
+    static File find() throws IOException
+    {
+        File rtJar = new File (System.getProperty ("java.home"),
+                               "lib" + File.separator + "rt.jar");
+        if (rtJar.isFile())
+            return rtJar;
+
+        FileSystem jrt;
+        try
+        {
+            jrt = FileSystems.getFileSystem (URI.create ("jrt:/"));
+        }
+
+        catch (FileSystemNotFoundException ex)
+        {
+            throw new IOException ("Can't find rt.jar or the jrt: file " +
+                                   "system in \"" +
+                                   System.getProperty ("java.home") + "\"");
+        }
+
+        final Path root = jrt.getPath (MODULE);
+        File jar = File.createTempFile ("jdk", ".jar");
+        jar.deleteOnExit();
+
+        final JarOutputStream out =
+            new JarOutputStream (new FileOutputStream (jar));
+        try
+        {
+            Files.walkFileTree (root, new SimpleFileVisitor<Path>()
+            {
+                public FileVisitResult visitFile (Path                path,
+                                                  BasicFileAttributes attrs)
+                    throws IOException
+                {
+                    String name = root.relativize (path).toString();
+                    if (name.endsWith (".class") &&
+                        (! name.equals ("module-info.class")))
+                    {
+                        out.putNextEntry (new JarEntry (name));
+                        out.write (Files.readAllBytes (path));
+                        out.closeEntry();
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        finally
+        {
+            out.close();
+        }
+
+        return jar;
+    }
+}
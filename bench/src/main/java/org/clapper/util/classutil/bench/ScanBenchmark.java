@@ -0,0 +1,125 @@
+package org.clapper.util.classutil.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import org.clapper.util.classutil.ClassFinder;
+import org.clapper.util.classutil.ClassInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures how fast a {@link ClassFinder} scans a jar file, with no
+ * index cache and no filter, so that the cost is reading and parsing the
+ * class files. Each operation is one complete scan; the
+ * {@link ScanCounters#classes} counter reports the scan rate in classes
+ * per second. Run with <tt>-prof gc</tt> to see the allocation per
+ * scan.</p>
+ *
+ * <p>{@link #scanSynthetic} scans a generated jar (see
+ * {@link SyntheticJar}) of <tt>classes</tt> classes; {@link #scanJdk}
+ * scans the JDK's own classes (see {@link JdkJar}).</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ScanBenchmark
+{
+    /*----------------------------------------------------------------------*\
+                             Public Data Items
+    \*----------------------------------------------------------------------*/
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"FULL", "HEADER"})
+    public ClassFinder.ParseDepth parseDepth;
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Benchmark
+    public List<ClassInfo> scanSynthetic (SyntheticJarState jar,
+                                          ScanCounters      counters)
+    {
+        return scan (jar.file, counters);
+    }
+
+    @Benchmark
+    public List<ClassInfo> scanJdk (JdkJarState jar, ScanCounters counters)
+    {
+        return scan (jar.file, counters);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private List<ClassInfo> scan (File file, ScanCounters counters)
+    {
+        ClassFinder finder = new ClassFinder (threads);
+        finder.setParseDepth (parseDepth);
+        finder.add (file);
+
+        List<ClassInfo> result = new ArrayList<ClassInfo>();
+        counters.classes += finder.findClasses (result);
+        return result;
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A generated jar of a given number of classes.
+     */
+    @State(Scope.Benchmark)
+    public static class SyntheticJarState
+    {
+        @Param({"1000", "10000", "50000"})
+        public int classes;
+
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException
+        {
+            file = SyntheticJar.create (classes);
+        }
+    }
+
+    /**
+     * The JDK's classes.
+     */
+    @State(Scope.Benchmark)
+    public static class JdkJarState
+    {
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException
+        {
+            file = JdkJar.find();
+        }
+    }
+}
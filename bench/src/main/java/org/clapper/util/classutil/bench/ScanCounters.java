@@ -0,0 +1,36 @@
+package org.clapper.util.classutil.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the classes handled by a benchmark. JMH reports each public
+ * field as a rate alongside the benchmark's own score, so a benchmark
+ * whose operation is "scan a jar" also reports classes per second.
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class ScanCounters
+{
+    /*----------------------------------------------------------------------*\
+                            Public Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Classes handled during the current iteration
+     */
+    public long classes;
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        classes = 0;
+    }
+}
@@ -0,0 +1,200 @@
+package org.clapper.util.classutil.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * <p>Generates jar files of synthetic classes for the benchmarks, so that
+ * the size of the scan can be controlled independently of whatever
+ * happens to be on the build machine.</p>
+ *
+ * <p>Each jar contains {@link #INTERFACES} interfaces,
+ * <tt>synth.I0</tt> through <tt>synth.I9</tt>, each of which extends the
+ * one before it, followed by the requested number of classes, spread over
+ * packages of {@link #CLASSES_PER_PACKAGE} classes each. The classes form
+ * inheritance chains of {@link #CHAIN_LENGTH}: class <i>n</i> extends
+ * class <i>n-1</i>, unless <i>n</i> is a multiple of the chain length, in
+ * which case it extends <tt>java.lang.Object</tt>. Class <i>n</i> also
+ * implements interface <i>n</i> modulo {@link #INTERFACES}, so every
+ * class implements <tt>synth.I0</tt>, at varying depths. Each class has a
+ * handful of fields and methods, roughly like a small hand-written
+ * class.</p>
+ */
+final class SyntheticJar
+{
+    /*----------------------------------------------------------------------*\
+                            Package-visible Constants
+    \*----------------------------------------------------------------------*/
+
+    static final int INTERFACES          = 10;
+    static final int CHAIN_LENGTH        = 10;
+    static final int CLASSES_PER_PACKAGE = 100;
+
+    /**
+     * The root of the interface hierarchy, and the root class of the
+     * first chain.
+     */
+    static final String ROOT_INTERFACE = "synth.I0";
+    static final String ROOT_CLASS     = "synth.p0.C0";
+
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int FIELDS  = 4;
+    private static final int METHODS = 6;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    private SyntheticJar()
+    {
+        // Cannot be instantiated.
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a jar of synthetic classes, in a temporary file that's
+     * deleted when the JVM exits.
+     *
+     * @param classes  the number of classes, not counting the interfaces
+     *
+     * @return the jar file
+     *
+     * @throws IOException on error
+     */
+    static File create (int classes) throws IOException
+    {
+        File jar = File.createTempFile ("synthetic", ".jar");
+        jar.deleteOnExit();
+
+        JarOutputStream out = new JarOutputStream (new FileOutputStream (jar));
+        try
+        {
+            for (int i = 0; i < INTERFACES; i++)
+            {
+                String name = interfaceName (i);
+                String[] supers = null;
+                if (i > 0)
+                    supers = new String[] {interfaceName (i - 1)};
+                write (out, name, makeInterface (name, supers));
+            }
+
+            for (int n = 0; n < classes; n++)
+            {
+                String name = className (n);
+                String superName = ((n % CHAIN_LENGTH) == 0)
+                                       ? "java/lang/Object"
+                                       : className (n - 1);
+                write (out, name,
+                       makeClass (name, superName,
+                                  interfaceName (n % INTERFACES)));
+            }
+        }
+
+        finally
+        {
+            out.close();
+        }
+
+        return jar;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static String interfaceName (int i)
+    {
+        return "synth/I" + i;
+    }
+
+    private static String className (int n)
+    {
+        return "synth/p" + (n / CLASSES_PER_PACKAGE) + "/C" + n;
+    }
+
+    private static void write (JarOutputStream out, String name, byte[] bytes)
+        throws IOException
+    {
+        out.putNextEntry (new JarEntry (name + ".class"));
+        out.write (bytes);
+        out.closeEntry();
+    }
+
+    private static byte[] makeInterface (String name, String[] supers)
+    {
+        ClassWriter cw = new ClassWriter (0);
+        cw.visit (Opcodes.V1_6,
+                  Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT |
+                  Opcodes.ACC_INTERFACE,
+                  name, null, "java/lang/Object", supers);
+
+        MethodVisitor mv = cw.visitMethod (Opcodes.ACC_PUBLIC |
+                                           Opcodes.ACC_ABSTRACT,
+                                           "run", "()V", null, null);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] makeClass (String name,
+                                     String superName,
+                                     String iface)
+    {
+        ClassWriter cw = new ClassWriter (ClassWriter.COMPUTE_MAXS);
+        cw.visit (Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER,
+                  name, null, superName, new String[] {iface});
+
+        for (int i = 0; i < FIELDS; i++)
+        {
+            cw.visitField (Opcodes.ACC_PRIVATE, "field" + i,
+                           ((i % 2) == 0) ? "I" : "Ljava/lang/String;",
+                           null, null).visitEnd();
+        }
+
+        MethodVisitor mv = cw.visitMethod (Opcodes.ACC_PUBLIC, "<init>",
+                                           "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn (Opcodes.ALOAD, 0);
+        mv.visitMethodInsn (Opcodes.INVOKESPECIAL, superName, "<init>", "()V");
+        mv.visitInsn (Opcodes.RETURN);
+        mv.visitMaxs (0, 0);
+        mv.visitEnd();
+
+        addEmptyMethod (cw, "run", "()V");
+        for (int i = 0; i < METHODS; i++)
+        {
+            addEmptyMethod (cw, "method" + i,
+                            "(ILjava/lang/String;)V");
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void addEmptyMethod (ClassWriter cw,
+                                        String      name,
+                                        String      desc)
+    {
+        MethodVisitor mv = cw.visitMethod (Opcodes.ACC_PUBLIC, name, desc,
+                                           null, null);
+        mv.visitCode();
+        mv.visitInsn (Opcodes.RETURN);
+        mv.visitMaxs (0, 0);
+        mv.visitEnd();
+    }
+}
@@ -0,0 +1,101 @@
+package org.clapper.util.classutil;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Inherited;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p><tt>AnnotationClassFilter</tt> is a {@link ClassFilter} that matches
+ * classes that are annotated with a given annotation. Unlike a test based
+ * on <tt>java.lang.Class.isAnnotationPresent()</tt>, it never loads the
+ * classes it tests (and so never runs their static initializers): it uses
+ * the annotations recorded in each {@link ClassInfo} when the
+ * {@link ClassFinder} parsed the class file.</p>
+ *
+ * <p>If the filter is constructed from an annotation class that is itself
+ * annotated with <tt>java.lang.annotation.Inherited</tt>, a class also
+ * matches if one of its superclasses is annotated, as with
+ * <tt>isAnnotationPresent()</tt>. Only superclasses the
+ * <tt>ClassFinder</tt> found are considered. An annotation specified by
+ * name is never treated as inherited, since that would require loading
+ * the annotation class.</p>
+ *
+ * <p>Note that a <tt>ClassFinder</tt> whose parse depth is
+ * {@link ClassFinder.ParseDepth#HEADER} defers reading annotations, along
+ * with fields and methods, so using this filter with such a finder reads
+ * each class file twice. Use {@link ClassFinder.ParseDepth#FULL}
+ * instead.</p>
+ */
+public class AnnotationClassFilter implements ClassFilter
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private String  annotationName;
+    private boolean inherited;
+
+    /*----------------------------------------------------------------------*\
+                            Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Construct a new <tt>AnnotationClassFilter</tt> that will accept
+     * only classes annotated with the specified annotation.
+     *
+     * @param annotationClass  the annotation class
+     */
+    public AnnotationClassFilter (Class<? extends Annotation> annotationClass)
+    {
+        this.annotationName = annotationClass.getName();
+        this.inherited = annotationClass.isAnnotationPresent (Inherited.class);
+    }
+
+    /**
+     * Construct a new <tt>AnnotationClassFilter</tt> that will accept
+     * only classes annotated with the named annotation. Only annotations
+     * on the class itself are considered.
+     *
+     * @param annotationName  the annotation's class name (e.g.,
+     *                        "javax.annotation.Generated")
+     */
+    public AnnotationClassFilter (String annotationName)
+    {
+        this.annotationName = annotationName;
+        this.inherited = false;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Perform the acceptance test on a class.
+     *
+     * @param classInfo   the {@link ClassInfo} object to test
+     * @param classFinder the invoking {@link ClassFinder} object
+     *
+     * @return <tt>true</tt> if the class is annotated,
+     *         <tt>false</tt> if it isn't
+     */
+    public boolean accept (ClassInfo classInfo, ClassFinder classFinder)
+    {
+        if (classInfo.getAnnotations().contains (annotationName))
+            return true;
+
+        if (! inherited)
+            return false;
+
+        Map<String,ClassInfo> superClasses = new HashMap<String,ClassInfo>();
+        classFinder.findAllSuperClasses (classInfo, superClasses);
+        for (ClassInfo superClass : superClasses.values())
+        {
+            if (superClass.getAnnotations().contains (annotationName))
+                return true;
+        }
+
+        return false;
+    }
+}
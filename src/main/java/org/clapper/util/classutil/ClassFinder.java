@@ -7,19 +7,19 @@ import java.io.InputStream;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.jar.Attributes;
 
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
 import org.clapper.util.logging.Logger;
 
 import org.clapper.util.io.AndFileFilter;
@@ -27,7 +27,7 @@ import org.clapper.util.io.FileOnlyFilter;
 import org.clapper.util.io.FileFilterMatchType;
 import org.clapper.util.io.RegexFileFilter;
 import org.clapper.util.io.RecursiveFileFinder;
-import org.objectweb.asm.ClassVisitor;
+import org.clapper.util.io.ZipReader;
 import org.objectweb.asm.ClassReader;
 
 /**
@@ -97,10 +97,75 @@ import org.objectweb.asm.ClassReader;
  * <a href="http://asm.objectweb.org"><i>asm.objectweb.org</i></a>
  * for details on ASM.</p>
  *
+ * <p>By default, <tt>findClasses()</tt> reads and parses the class files
+ * on the calling thread, one search location at a time. A
+ * <tt>ClassFinder</tt> can also be configured (via its constructor, or
+ * {@link #setThreads setThreads()}) to use a fork-join pool. In that case,
+ * the jars, zip files and directories are scanned concurrently, and large
+ * jars and directories are split into batches of class files that are
+ * parsed concurrently. The results are merged in search order, so the
+ * {@link ClassFilter} sees exactly the same classes as it would in a
+ * sequential scan. The filter itself is always invoked on the calling
+ * thread.</p>
+ *
+ * <p><tt>findClasses()</tt> holds every class it parses in memory until
+ * the scan is done, since filters such as {@link SubclassClassFilter}
+ * need to look at other classes. When that's too expensive (for
+ * instance, when scanning a large classpath with little memory), use
+ * {@link #findClasses(ClassFilter,ClassHandler)} instead. It filters each
+ * class as soon as it's parsed, passes the matching ones to a
+ * {@link ClassHandler}, which can stop the scan at any point, and retains
+ * nothing.</p>
+ *
  * <p><b>WARNING: This class is not thread-safe.</b></p>
  */
 public class ClassFinder
 {
+    /*----------------------------------------------------------------------*\
+                             Public Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * How much of each class file to parse.
+     */
+    public enum ParseDepth
+    {
+        /**
+         * Parse the entire class file, including the fields, methods and
+         * annotations.
+         */
+        FULL,
+
+        /**
+         * Parse only the class file's header: the class name, superclass,
+         * interfaces and modifiers. Each {@link ClassInfo} reads its
+         * fields, methods and annotations from the class file the first
+         * time {@link ClassInfo#getFields}, {@link ClassInfo#getMethods}
+         * or {@link ClassInfo#getAnnotations} is called. Filters that
+         * don't look at them, such as {@link SubclassClassFilter} and
+         * {@link InterfaceOnlyClassFilter}, never pay for parsing them;
+         * an {@link AnnotationClassFilter}, on the other hand, is better
+         * served by a full parse.
+         */
+        HEADER
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Number of class files parsed by each task, in a parallel scan.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Initial size of the per-thread class file buffer, and the largest
+     * one kept for reuse, in bytes.
+     */
+    private static final int INITIAL_CLASS_BUF_SIZE = 16 * 1024;
+    private static final int MAX_RETAINED_CLASS_BUF_SIZE = 1024 * 1024;
+
     /*----------------------------------------------------------------------*\
                             Private Data Items
     \*----------------------------------------------------------------------*/
@@ -122,6 +187,47 @@ public class ClassFinder
      */
     private static final Logger log = new Logger (ClassFinder.class);
 
+    /**
+     * Number of threads to use. 1 means "scan on the calling thread."
+     */
+    private int threads = 1;
+
+    /**
+     * Cache of parsed jar and zip files, or null.
+     */
+    private ClassIndexCache indexCache = null;
+
+    /**
+     * How much of each class file to parse.
+     */
+    private ParseDepth parseDepth = ParseDepth.FULL;
+
+    /**
+     * Index of the type hierarchy of the found classes. Built on first
+     * use, and discarded whenever foundClasses is cleared.
+     */
+    private ClassHierarchy hierarchy = null;
+
+    /**
+     * Strings shared by the classes found by the current scan. A new
+     * pool is used for each scan, so the strings of one scan's classes
+     * can be garbage-collected with them.
+     */
+    private StringPool stringPool = null;
+
+    /**
+     * Per-thread buffer into which class files in jar and zip files are
+     * read, so that a scan doesn't allocate a buffer per class.
+     */
+    private static final ThreadLocal<byte[]> classBuffers =
+        new ThreadLocal<byte[]>()
+        {
+            protected byte[] initialValue()
+            {
+                return new byte[INITIAL_CLASS_BUF_SIZE];
+            }
+        };
+
     /*----------------------------------------------------------------------*\
                                 Constructor
     \*----------------------------------------------------------------------*/
@@ -135,10 +241,101 @@ public class ClassFinder
         // Nothing to do
     }
 
+    /**
+     * Create a new <tt>ClassFinder</tt> that will search for classes
+     * using the specified number of threads.
+     *
+     * @param threads  the number of threads. A value of 1 scans on the
+     *                 calling thread.
+     *
+     * @see #setThreads
+     */
+    public ClassFinder (int threads)
+    {
+        setThreads (threads);
+    }
+
     /*----------------------------------------------------------------------*\
                               Public Methods
     \*----------------------------------------------------------------------*/
 
+    /**
+     * Get the number of threads used to scan for classes.
+     *
+     * @return the number of threads
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads used to scan for classes. A value of 1
+     * (the default) scans on the calling thread. A typical value for a
+     * large class path is
+     * <tt>Runtime.getRuntime().availableProcessors()</tt>.
+     *
+     * @param threads  the number of threads, which must be positive
+     */
+    public void setThreads (int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException ("Thread count must be " +
+                                                "positive, not " + threads);
+        }
+
+        this.threads = threads;
+    }
+
+    /**
+     * Get how much of each class file is parsed.
+     *
+     * @return the parse depth
+     */
+    public ParseDepth getParseDepth()
+    {
+        return parseDepth;
+    }
+
+    /**
+     * Set how much of each class file is parsed. The default is
+     * {@link ParseDepth#FULL}. {@link ParseDepth#HEADER} is considerably
+     * faster when the filter doesn't need the fields and methods of every
+     * class.
+     *
+     * @param parseDepth  the parse depth
+     */
+    public void setParseDepth (ParseDepth parseDepth)
+    {
+        this.parseDepth = parseDepth;
+    }
+
+    /**
+     * Get the cache of parsed jar and zip files, if any.
+     *
+     * @return the cache, or null
+     */
+    public ClassIndexCache getIndexCache()
+    {
+        return indexCache;
+    }
+
+    /**
+     * Set the cache of parsed jar and zip files. When a cache is set,
+     * <tt>findClasses()</tt> takes the classes in unchanged jar and zip
+     * files from the cache, rather than parsing them, and it stores the
+     * classes of any jar or zip file it does parse in the cache. The
+     * cache can then be saved to disk (see {@link ClassIndexCache#save})
+     * and loaded the next time the application starts.
+     *
+     * @param cache  the cache, or null for none
+     */
+    public void setIndexCache (ClassIndexCache cache)
+    {
+        this.indexCache = cache;
+    }
+
     /**
      * Add the contents of the system classpath for classes.
      */
@@ -247,6 +444,7 @@ public class ClassFinder
     {
         placesToSearch.clear();
         foundClasses.clear();
+        hierarchy = null;
     }
 
     /**
@@ -277,20 +475,29 @@ public class ClassFinder
         int total = 0;
 
         foundClasses.clear();
+        hierarchy = null;
+        stringPool = new StringPool();
 
         // Load all the classes first.
 
-        for (File file : placesToSearch.values())
+        if (threads > 1)
+            loadClassesInParallel();
+
+        else
         {
-            String name = file.getPath();
+            for (File file : placesToSearch.values())
+            {
+                String name = file.getPath();
 
-            log.info ("Finding classes in " + name);
-            if (isJar (name))
-                processJar (name, foundClasses);
-            else if (isZip (name))
-                processZip (name, foundClasses);
-            else
-                processDirectory (file, foundClasses);
+                log.info ("Finding classes in " + name);
+                if (loadCachedClasses (file, foundClasses))
+                    continue;
+
+                if (isJar (name) || isZip (name))
+                    processZip (name, foundClasses);
+                else
+                    processDirectory (file, foundClasses);
+            }
         }
 
         log.info ("Loaded " + foundClasses.size() + " classes.");
@@ -299,26 +506,77 @@ public class ClassFinder
 
         for (ClassInfo classInfo : foundClasses.values())
         {
-            String className = classInfo.getClassName();
-            String locationName = classInfo.getClassLocation().getPath();
-            log.debug ("Looking at " + locationName + " (" + className + ")");
-
-            if ((filter == null) || (filter.accept (classInfo, this)))
+            if (accept (classInfo, filter))
             {
-                log.debug ("Filter accepted " + className);
                 total++;
                 classes.add (classInfo);
             }
+        }
 
+        log.info ("Returning " + total + " total classes");
+        foundClasses.clear();
+        hierarchy = null;
+        stringPool = null;
+        return total;
+    }
+
+    /**
+     * Search all classes in the search areas, passing those that pass the
+     * specified filter to a handler as soon as they're parsed. Unlike
+     * {@link #findClasses(Collection,ClassFilter)}, this method doesn't
+     * hold on to the classes it parses, so its memory use doesn't grow
+     * with the size of the search areas, and it stops as soon as the
+     * handler says it has seen enough.
+     *
+     * <p>Since the other classes aren't retained, the methods that look
+     * at them, such as {@link #findAllSuperClasses} and
+     * {@link #isSubclassOf}, find nothing during a streaming scan, so
+     * filters that rely on them (e.g., {@link SubclassClassFilter}) don't
+     * match anything. Filters that look only at the class itself (e.g.,
+     * {@link RegexClassFilter} and {@link AnnotationClassFilter} for a
+     * non-inherited annotation) work as usual. Other differences from
+     * <tt>findClasses(Collection,ClassFilter)</tt>:</p>
+     *
+     * <ul>
+     *   <li>A class that's in more than one search area is passed to the
+     *       handler once for each area.
+     *   <li>The scan always runs on the calling thread, regardless of
+     *       {@link #setThreads setThreads()}.
+     *   <li>Classes are taken from the index cache, if one is set, but the
+     *       cache isn't updated, since that would require retaining each
+     *       jar's classes.
+     * </ul>
+     *
+     * @param filter   the filter, or null for no filter
+     * @param handler  the handler for the classes that pass the filter
+     *
+     * @return the number of classes passed to the handler
+     */
+    public int findClasses (ClassFilter filter, ClassHandler handler)
+    {
+        foundClasses.clear();
+        hierarchy = null;
+
+        ClassStream stream = new ClassStream (filter, handler);
+        for (File file : placesToSearch.values())
+        {
+            String name = file.getPath();
+
+            log.info ("Finding classes in " + name);
+            if (isJar (name) || isZip (name))
+                streamZip (file, stream);
             else
+                streamDirectory (file, stream);
+
+            if (stream.stopped)
             {
-                log.debug ("Filter rejected " + className);
+                log.info ("Handler stopped the scan");
+                break;
             }
         }
 
-        log.info ("Returning " + total + " total classes");
-        foundClasses.clear();
-        return total;
+        log.info ("Returned " + stream.total + " total classes");
+        return stream.total;
     }
 
     /**
@@ -337,21 +595,7 @@ public class ClassFinder
     public int findAllSuperClasses (ClassInfo             classInfo,
                                     Map<String,ClassInfo> superClasses)
     {
-        int total = 0;
-
-        String superClassName = classInfo.getSuperClassName();
-        if (superClassName != null)
-        {
-            ClassInfo superClassInfo = foundClasses.get (superClassName);
-            if (superClassInfo != null)
-            {
-                superClasses.put (superClassName, superClassInfo);
-                total++;
-                total += findAllSuperClasses (superClassInfo, superClasses);
-            }
-        }
-
-        return total;
+        return getHierarchy().findAllSuperClasses (classInfo, superClasses);
     }
 
     /**
@@ -370,83 +614,198 @@ public class ClassFinder
     public int findAllInterfaces (ClassInfo             classInfo,
                                   Map<String,ClassInfo> interfaces)
     {
-        int total = 0;
-        String superClassName = classInfo.getSuperClassName();
-        if (superClassName != null)
-        {
-            ClassInfo superClassInfo = foundClasses.get (superClassName);
-            if (superClassInfo != null)
-            {
-                total += findAllInterfaces (superClassInfo, interfaces);
-            }
-        }
+        return getHierarchy().findAllInterfaces (classInfo, interfaces);
+    }
 
-        String[] interfaceNames = classInfo.getInterfaces();
-        if (interfaces != null)
-        {
-            for (String interfaceName : interfaceNames)
-            {
-                ClassInfo intfClassInfo = foundClasses.get (interfaceName);
-                if (intfClassInfo != null)
-                {
-                    interfaces.put (interfaceName, intfClassInfo);
-                    total++;
-                    total += findAllInterfaces (intfClassInfo, interfaces);
-                }
-            }
-        }
+    /**
+     * Intended to be called only from a {@link ClassFilter} object's
+     * {@link ClassFilter#accept accept()} method, this method finds all
+     * the currently-loaded classes that extend the given class or
+     * implement the given interface, directly or indirectly. It's the
+     * inverse of {@link #findAllSuperClasses} and
+     * {@link #findAllInterfaces}.
+     *
+     * @param className   the name of the class or interface
+     * @param subclasses  where to store the {@link ClassInfo} objects for
+     *                    the subclasses and implementations. The map is
+     *                    indexed by class name
+     *
+     * @return the number of subclasses and implementations found
+     */
+    public int findAllSubclasses (String                className,
+                                  Map<String,ClassInfo> subclasses)
+    {
+        return getHierarchy().findAllSubtypes (className, subclasses);
+    }
 
-        return total;
+    /**
+     * Intended to be called only from a {@link ClassFilter} object's
+     * {@link ClassFilter#accept accept()} method, this method determines
+     * whether a class extends another class, directly or indirectly. It's
+     * equivalent to checking whether the map filled in by
+     * {@link #findAllSuperClasses} contains the superclass, but it's much
+     * faster.
+     *
+     * @param classInfo       the {@link ClassInfo} object for the class
+     * @param superClassName  the name of the superclass
+     *
+     * @return <tt>true</tt> if the class extends the named class,
+     *         <tt>false</tt> if not
+     */
+    public boolean isSubclassOf (ClassInfo classInfo, String superClassName)
+    {
+        return getHierarchy().isSubclassOf (classInfo, superClassName);
+    }
+
+    /**
+     * Intended to be called only from a {@link ClassFilter} object's
+     * {@link ClassFilter#accept accept()} method, this method determines
+     * whether a class implements an interface, directly or indirectly.
+     * It's equivalent to checking whether the map filled in by
+     * {@link #findAllInterfaces} contains the interface, but it's much
+     * faster.
+     *
+     * @param classInfo      the {@link ClassInfo} object for the class
+     * @param interfaceName  the name of the interface
+     *
+     * @return <tt>true</tt> if the class implements the named interface,
+     *         <tt>false</tt> if not
+     */
+    public boolean implementsInterface (ClassInfo classInfo,
+                                        String    interfaceName)
+    {
+        return getHierarchy().implementsInterface (classInfo, interfaceName);
     }
 
     /*----------------------------------------------------------------------*\
                               Private Methods
     \*----------------------------------------------------------------------*/
 
-    private void processJar (String                jarName,
+    /**
+     * Load the classes in a jar or zip file. The file is memory-mapped and
+     * indexed by a {@link ZipReader}, and each class file is read straight
+     * into a reused buffer, rather than via a stream.
+     */
+    private void processZip (String                zipName,
                              Map<String,ClassInfo> foundClasses)
     {
-        JarFile jar = null;
+        ZipReader zip = null;
+
         try
         {
-            jar = new JarFile (jarName);
-            File jarFile = new File (jarName);
-            processOpenZip (jar, jarFile,
-                            new ClassInfoClassVisitor (foundClasses, jarFile));
+            zip = new ZipReader (zipName);
+            File zipFile = new File (zipName);
+            processOpenZip (zip, zipFile, foundClasses);
         }
 
         catch (IOException ex)
         {
-            log.error ("Can't open jar file \"" + jarName + "\"", ex);
+            log.error ("Can't open jar file \"" + zipName + "\"", ex);
         }
 
         finally
         {
             try
             {
-                if (jar != null) jar.close();
+                if (zip != null) zip.close();
             }
 
             catch (IOException ex)
             {
-                log.error ("Can't close " + jarName, ex);
+                log.error ("Can't close " + zipName, ex);
             }
 
-            jar = null;
+            zip = null;
         }
     }
 
-    private void processZip (String                zipName,
-                             Map<String,ClassInfo> foundClasses)
+    private void processOpenZip (ZipReader             zip,
+                                 File                  zipFile,
+                                 Map<String,ClassInfo> foundClasses)
     {
-        ZipFile zip = null;
+        Map<String,ClassInfo> classes = foundClasses;
+        if (indexCache != null)
+            classes = new LinkedHashMap<String,ClassInfo>();
+
+        ClassInfoClassVisitor classVisitor =
+            new ClassInfoClassVisitor (classes, zipFile, stringPool);
+        for (String entryName : findClassEntries (zip))
+            loadZipEntry (zip, zipFile, entryName, classVisitor);
+
+        if (indexCache != null)
+        {
+            indexCache.store (zipFile, zip, classes.values());
+            foundClasses.putAll (classes);
+        }
+    }
+
+    /**
+     * Take the classes in a jar or zip file from the index cache, if
+     * there is one, and if the file hasn't changed.
+     *
+     * @param location      the search location
+     * @param foundClasses  where to put the classes
+     *
+     * @return <tt>true</tt> if the classes came from the cache,
+     *         <tt>false</tt> if the location has to be scanned
+     */
+    private boolean loadCachedClasses (File                  location,
+                                       Map<String,ClassInfo> foundClasses)
+    {
+        String name = location.getPath();
+        if ((indexCache == null) || ((! isJar (name)) && (! isZip (name))))
+            return false;
+
+        List<ClassInfo> cached = indexCache.lookup (location, stringPool);
+        if (cached == null)
+            return false;
+
+        log.debug ("Loaded " + cached.size() + " classes in " + name +
+                   " from the index cache");
+        for (ClassInfo classInfo : cached)
+            foundClasses.put (classInfo.getClassName(), classInfo);
+
+        return true;
+    }
+
+    /**
+     * Stream the classes in a jar or zip file, from the index cache if
+     * possible.
+     *
+     * @param zipFile  the jar or zip file
+     * @param stream   the stream
+     */
+    private void streamZip (File zipFile, ClassStream stream)
+    {
+        List<ClassInfo> cached = null;
+        if (indexCache != null)
+            cached = indexCache.lookup (zipFile);
+
+        if (cached != null)
+        {
+            for (ClassInfo classInfo : cached)
+            {
+                if (! stream.deliver (classInfo))
+                    break;
+            }
+
+            return;
+        }
+
+        String zipName = zipFile.getPath();
+        ZipReader zip = null;
 
         try
         {
-            zip = new ZipFile (zipName);
-            File zipFile = new File (zipName);
-            processOpenZip (zip, zipFile,
-                            new ClassInfoClassVisitor (foundClasses, zipFile));
+            zip = new ZipReader (zipFile);
+            ClassInfoClassVisitor classVisitor =
+                new ClassInfoClassVisitor (stream.parsed, zipFile);
+            for (String entryName : findClassEntries (zip))
+            {
+                loadZipEntry (zip, zipFile, entryName, classVisitor);
+                if (! stream.deliverParsed())
+                    break;
+            }
         }
 
         catch (IOException ex)
@@ -465,98 +824,207 @@ public class ClassFinder
             {
                 log.error ("Can't close " + zipName, ex);
             }
+        }
+    }
 
-            zip = null;
+    private void streamDirectory (File dir, ClassStream stream)
+    {
+        ClassInfoClassVisitor classVisitor =
+            new ClassInfoClassVisitor (stream.parsed, dir);
+
+        for (File f : findClassFiles (dir))
+        {
+            loadClassFile (f, classVisitor);
+            if (! stream.deliverParsed())
+                break;
         }
     }
 
-    private void processOpenZip (ZipFile      zip,
-                                 File         zipFile,
-                                 ClassVisitor classVisitor)
+    /**
+     * Apply a filter to a class.
+     *
+     * @param classInfo  the class
+     * @param filter     the filter, or null to accept all classes
+     *
+     * @return whether the filter accepted the class
+     */
+    private boolean accept (ClassInfo classInfo, ClassFilter filter)
     {
-        String zipName = zipFile.getPath();
-        for (Enumeration<? extends ZipEntry> e = zip.entries();
-             e.hasMoreElements(); )
+        String className = classInfo.getClassName();
+        String locationName = classInfo.getClassLocation().getPath();
+        log.debug ("Looking at " + locationName + " (" + className + ")");
+
+        if ((filter == null) || (filter.accept (classInfo, this)))
         {
-            ZipEntry entry = e.nextElement();
+            log.debug ("Filter accepted " + className);
+            return true;
+        }
+
+        log.debug ("Filter rejected " + className);
+        return false;
+    }
 
-            if ((! entry.isDirectory()) &&
-                (entry.getName().toLowerCase().endsWith (".class")))
+    private void processDirectory (File                  dir,
+                                   Map<String,ClassInfo> foundClasses)
+    {
+        ClassInfoClassVisitor classVisitor =
+            new ClassInfoClassVisitor (foundClasses, dir, stringPool);
+
+        for (File f : findClassFiles (dir))
+            loadClassFile (f, classVisitor);
+    }
+
+    /**
+     * Load all the classes in all the search locations, on a fork-join
+     * pool. Each location's classes are gathered separately, then merged
+     * into <tt>foundClasses</tt> in search order, so that the result is
+     * the same as that of a sequential scan.
+     */
+    private void loadClassesInParallel()
+    {
+        final List<LocationTask> tasks = new ArrayList<LocationTask>();
+        for (File file : placesToSearch.values())
+            tasks.add (new LocationTask (file));
+
+        ForkJoinPool pool = new ForkJoinPool (threads);
+        try
+        {
+            pool.invoke (new RecursiveAction()
             {
-                try
-                {
-                    log.debug ("Loading " + zipName + "(" + entry.getName() +
-                               ")");
-                    loadClassData (zip.getInputStream (entry), classVisitor);
-                }
+                private static final long serialVersionUID = 1L;
 
-                catch (IOException ex)
+                protected void compute()
                 {
-                    log.error ("Can't open \"" + entry.getName() +
-                               "\" in zip file \"" + zipName + "\": ",
-                               ex);
+                    invokeAll (tasks);
                 }
+            });
+        }
 
-                catch (ClassUtilException ex)
-                {
-                    log.error ("Can't open \"" + entry.getName() +
-                               "\" in zip file \"" + zipName + "\": ",
-                               ex);
-                }
-            }
+        finally
+        {
+            pool.shutdown();
         }
+
+        for (LocationTask task : tasks)
+            foundClasses.putAll (task.getClasses());
     }
 
-    private void processDirectory (File                  dir,
-                                   Map<String,ClassInfo> foundClasses)
+    private List<String> findClassEntries (ZipReader zip)
+    {
+        List<String> entries = new ArrayList<String>();
+        for (String name : zip.getEntryNames())
+        {
+            // Directory entries end with "/", so they can't match.
+
+            if (name.toLowerCase().endsWith (".class"))
+                entries.add (name);
+        }
+
+        return entries;
+    }
+
+    private List<File> findClassFiles (File dir)
     {
         RecursiveFileFinder finder = new RecursiveFileFinder();
         RegexFileFilter nameFilter =
             new RegexFileFilter ("\\.class$", FileFilterMatchType.FILENAME);
         AndFileFilter fileFilter = new AndFileFilter (nameFilter,
                                                       new FileOnlyFilter());
-        Collection<File> files = new ArrayList<File>();
+        List<File> files = new ArrayList<File>();
         finder.findFiles (dir, fileFilter, files);
+        return files;
+    }
 
-        ClassVisitor classVisitor = new ClassInfoClassVisitor (foundClasses,
-                                                               dir);
+    private void loadZipEntry (ZipReader             zip,
+                               File                  zipFile,
+                               String                entryName,
+                               ClassInfoClassVisitor classVisitor)
+    {
+        String zipName = zipFile.getPath();
+        try
+        {
+            log.debug ("Loading " + zipName + "(" + entryName + ")");
+            byte[] buf = getClassBuffer (zip.getSize (entryName));
+            int len = zip.readEntry (entryName, buf, 0);
+            loadClassData (new ClassReader (buf, 0, len), classVisitor,
+                           entryName);
+        }
 
-        for (File f : files)
+        catch (IOException ex)
         {
-            String path = f.getPath();
-            log.debug ("Loading " + f.getPath());
-            InputStream is = null;
-            try
-            {
-                is = new FileInputStream(f);
-                loadClassData (is, classVisitor);
-            }
+            log.error ("Can't open \"" + entryName +
+                       "\" in zip file \"" + zipName + "\": ",
+                       ex);
+        }
 
-            catch (IOException ex)
-            {
-                log.error ("Can't open \"" + path + "\": ", ex);
-            }
+        catch (ClassUtilException ex)
+        {
+            log.error ("Can't open \"" + entryName +
+                       "\" in zip file \"" + zipName + "\": ",
+                       ex);
+        }
+    }
 
-            catch (ClassUtilException ex)
-            {
-                log.error ("Can't open \"" + path + "\": ", ex);
-            }
+    /**
+     * Get the calling thread's class file buffer, making sure it's big
+     * enough for a class file of a given size. (If the size won't fit in
+     * an array, the buffer is returned as is, and reading the class file
+     * will fail.)
+     *
+     * @param size  the size of the class file
+     *
+     * @return the buffer
+     */
+    private byte[] getClassBuffer (long size)
+    {
+        byte[] buf = classBuffers.get();
+        if ((size > buf.length) && (size < Integer.MAX_VALUE))
+        {
+            buf = new byte[(int) Math.max (size, buf.length * 2L)];
+            if (buf.length <= MAX_RETAINED_CLASS_BUF_SIZE)
+                classBuffers.set (buf);
+        }
+
+        return buf;
+    }
+
+    private void loadClassFile (File f, ClassInfoClassVisitor classVisitor)
+    {
+        String path = f.getPath();
+        log.debug ("Loading " + f.getPath());
+        InputStream is = null;
+        try
+        {
+            is = new FileInputStream(f);
+            File dir = classVisitor.getClassLocation();
+            loadClassData (is, classVisitor,
+                           dir.toPath().relativize (f.toPath()).toString());
+        }
+
+        catch (IOException ex)
+        {
+            log.error ("Can't open \"" + path + "\": ", ex);
+        }
+
+        catch (ClassUtilException ex)
+        {
+            log.error ("Can't open \"" + path + "\": ", ex);
+        }
 
-            finally
+        finally
+        {
+            if (is != null)
             {
-                if (is != null)
+                try
                 {
-                    try
-                    {
-                        is.close();
-                    }
+                    is.close();
+                }
 
-                    catch (IOException ex)
-                    {
-                        log.error("Can't close InputStream for \"" +
-                                  path + "\"",
-                                  ex);
-                    }
+                catch (IOException ex)
+                {
+                    log.error("Can't close InputStream for \"" +
+                              path + "\"",
+                              ex);
                 }
             }
         }
@@ -616,13 +1084,61 @@ public class ClassFinder
         }
     }
 
-    private void loadClassData (InputStream is, ClassVisitor classVisitor)
+    /**
+     * Parse a class file, to the configured depth.
+     *
+     * @param is            the class file's contents
+     * @param classVisitor  the visitor that records the class
+     * @param classFileName the name of the class file within its location
+     *                      (a zip entry name, or a path relative to the
+     *                      directory), so the fields and methods can be
+     *                      loaded later, if they aren't parsed now
+     *
+     * @throws ClassUtilException on error
+     */
+    private void loadClassData (InputStream           is,
+                                ClassInfoClassVisitor classVisitor,
+                                String                classFileName)
         throws ClassUtilException
     {
+        ClassReader cr;
         try
         {
-            ClassReader cr = new ClassReader (is);
-            cr.accept(classVisitor, ClassInfo.ASM_CR_ACCEPT_CRITERIA);
+            cr = new ClassReader (is);
+        }
+
+        catch (IOException ex)
+        {
+            throw new ClassUtilException (ClassUtil.BUNDLE_NAME,
+                                          "ClassFinder.cantReadClassStream",
+                                          "Unable to load class from open " +
+                                          "input stream",
+                                          ex);
+        }
+
+        loadClassData (cr, classVisitor, classFileName);
+    }
+
+    /**
+     * Parse a class file, to the configured depth.
+     *
+     * @param cr            a reader on the class file's contents
+     * @param classVisitor  the visitor that records the class
+     * @param classFileName the name of the class file within its location
+     *
+     * @throws ClassUtilException on error
+     */
+    private void loadClassData (ClassReader           cr,
+                                ClassInfoClassVisitor classVisitor,
+                                String                classFileName)
+        throws ClassUtilException
+    {
+        try
+        {
+            if (parseDepth == ParseDepth.HEADER)
+                classVisitor.visitHeader (cr, classFileName);
+            else
+                cr.accept(classVisitor, ClassInfo.ASM_CR_ACCEPT_CRITERIA);
         }
 
         catch (Exception ex)
@@ -635,6 +1151,13 @@ public class ClassFinder
         }
     }
 
+    private ClassHierarchy getHierarchy()
+    {
+        if (hierarchy == null)
+            hierarchy = new ClassHierarchy (foundClasses);
+        return hierarchy;
+    }
+
     private boolean isJar (String fileName)
     {
         return fileName.toLowerCase().endsWith (".jar");
@@ -644,4 +1167,213 @@ public class ClassFinder
     {
         return fileName.toLowerCase().endsWith (".zip");
     }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The state of a streaming scan: the filter and handler, and a small
+     * map into which each class file is parsed before it's handed off.
+     */
+    private class ClassStream
+    {
+        final ClassFilter  filter;
+        final ClassHandler handler;
+        int                total = 0;
+        boolean            stopped = false;
+
+        /**
+         * The class(es) parsed from the current class file. A class file
+         * defines one class, but the visitor needs a map.
+         */
+        final Map<String,ClassInfo> parsed =
+            new LinkedHashMap<String,ClassInfo>();
+
+        ClassStream (ClassFilter filter, ClassHandler handler)
+        {
+            this.filter = filter;
+            this.handler = handler;
+        }
+
+        /**
+         * Filter a class and, if it passes, hand it to the handler.
+         *
+         * @param classInfo  the class
+         *
+         * @return <tt>false</tt> if the scan should stop
+         */
+        boolean deliver (ClassInfo classInfo)
+        {
+            if (accept (classInfo, filter))
+            {
+                total++;
+                if (! handler.handleClass (classInfo))
+                    stopped = true;
+            }
+
+            return ! stopped;
+        }
+
+        /**
+         * Deliver, then forget, whatever was just parsed.
+         *
+         * @return <tt>false</tt> if the scan should stop
+         */
+        boolean deliverParsed()
+        {
+            for (ClassInfo classInfo : parsed.values())
+            {
+                if (! deliver (classInfo))
+                    break;
+            }
+
+            parsed.clear();
+            return ! stopped;
+        }
+    }
+
+    /**
+     * Scans one search location (a jar, a zip file or a directory) in a
+     * parallel scan, by splitting its class files into batches.
+     */
+    private class LocationTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final File            location;
+        final List<BatchTask> batches = new ArrayList<BatchTask>();
+
+        /**
+         * Classes taken from the index cache.
+         */
+        final Map<String,ClassInfo> cached =
+            new LinkedHashMap<String,ClassInfo>();
+
+        LocationTask (File location)
+        {
+            this.location = location;
+        }
+
+        /**
+         * Get all the classes found in this location, in order.
+         *
+         * @return the classes, indexed by name
+         */
+        Map<String,ClassInfo> getClasses()
+        {
+            Map<String,ClassInfo> classes =
+                new LinkedHashMap<String,ClassInfo> (cached);
+            for (BatchTask batch : batches)
+                classes.putAll (batch.classes);
+            return classes;
+        }
+
+        protected void compute()
+        {
+            String name = location.getPath();
+            log.info ("Finding classes in " + name);
+
+            if (loadCachedClasses (location, cached))
+                return;
+
+            if (isJar (name) || isZip (name))
+            {
+                ZipReader zip = null;
+                try
+                {
+                    zip = new ZipReader (name);
+                    List<String> entries = findClassEntries (zip);
+                    for (int i = 0; i < entries.size(); i += BATCH_SIZE)
+                    {
+                        int end = Math.min (i + BATCH_SIZE, entries.size());
+                        batches.add (new BatchTask (location, zip,
+                                                    entries.subList (i, end),
+                                                    null));
+                    }
+
+                    invokeAll (batches);
+
+                    if (indexCache != null)
+                        indexCache.store (location, zip, getClasses().values());
+                }
+
+                catch (IOException ex)
+                {
+                    log.error ("Can't open jar file \"" + name + "\"", ex);
+                }
+
+                finally
+                {
+                    try
+                    {
+                        if (zip != null) zip.close();
+                    }
+
+                    catch (IOException ex)
+                    {
+                        log.error ("Can't close " + name, ex);
+                    }
+                }
+            }
+
+            else
+            {
+                List<File> files = findClassFiles (location);
+                for (int i = 0; i < files.size(); i += BATCH_SIZE)
+                {
+                    int end = Math.min (i + BATCH_SIZE, files.size());
+                    batches.add (new BatchTask (location, null, null,
+                                                files.subList (i, end)));
+                }
+
+                invokeAll (batches);
+            }
+        }
+    }
+
+    /**
+     * Parses a batch of class files, from either a zip file or a
+     * directory, into its own map.
+     */
+    private class BatchTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final File         location;
+        final ZipReader    zip;
+        final List<String> entries;
+        final List<File>   files;
+
+        final Map<String,ClassInfo> classes =
+            new LinkedHashMap<String,ClassInfo>();
+
+        BatchTask (File         location,
+                   ZipReader    zip,
+                   List<String> entries,
+                   List<File>   files)
+        {
+            this.location = location;
+            this.zip      = zip;
+            this.entries  = entries;
+            this.files    = files;
+        }
+
+        protected void compute()
+        {
+            ClassInfoClassVisitor classVisitor =
+                new ClassInfoClassVisitor (classes, location, stringPool);
+            if (zip != null)
+            {
+                for (String entryName : entries)
+                    loadZipEntry (zip, location, entryName, classVisitor);
+            }
+
+            else
+            {
+                for (File f : files)
+                    loadClassFile (f, classVisitor);
+            }
+        }
+    }
 }
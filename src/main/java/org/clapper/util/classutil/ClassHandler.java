@@ -0,0 +1,23 @@
+package org.clapper.util.classutil;
+
+/**
+ * Instances of classes that implement this interface receive the classes
+ * found by a streaming {@link ClassFinder} scan (see
+ * {@link ClassFinder#findClasses(ClassFilter,ClassHandler)}), one at a
+ * time, as they're parsed.
+ *
+ * @see ClassFinder
+ */
+public interface ClassHandler
+{
+    /**
+     * Handle a class that passed the scan's filter. The handler can stop
+     * the scan, e.g., once it has found as many classes as it needs.
+     *
+     * @param classInfo  the loaded information about the class
+     *
+     * @return <tt>true</tt> to continue the scan, <tt>false</tt> to stop
+     *         it
+     */
+    public boolean handleClass (ClassInfo classInfo);
+}
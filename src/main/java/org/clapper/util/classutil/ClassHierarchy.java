@@ -0,0 +1,366 @@
+package org.clapper.util.classutil;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>An index of the type hierarchy of the classes loaded by a
+ * {@link ClassFinder}. Each class name is interned to an integer, and the
+ * transitive superclasses and interfaces of every class are computed
+ * once, as sorted arrays of those integers. Asking whether a class
+ * extends or implements another is then a binary search, and the
+ * transitive subtypes of a class are a direct lookup.</p>
+ *
+ * <p>Like {@link ClassFinder#findAllSuperClasses} and
+ * {@link ClassFinder#findAllInterfaces}, the index only follows links to
+ * classes that were actually loaded: if a class's superclass wasn't
+ * found, neither it nor its ancestors are considered.</p>
+ *
+ * @see ClassFinder
+ */
+final class ClassHierarchy
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int[] NONE = new int[0];
+
+    /*
+     * States of a class's closure computation, for cycle detection.
+     * (Valid class files can't form a cycle, but classes with the same
+     * name from different jars can.)
+     */
+    private static final byte UNVISITED   = 0;
+    private static final byte IN_PROGRESS = 1;
+    private static final byte DONE        = 2;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final Map<String,Integer> ids;
+    private final ClassInfo[]         classes;
+
+    /**
+     * Direct superclass of each class, or -1
+     */
+    private final int[] superClass;
+
+    /**
+     * Direct interfaces of each class
+     */
+    private final int[][] interfaces;
+
+    /**
+     * Transitive superclasses and interfaces of each class, sorted
+     */
+    private final int[][] allSuperClasses;
+    private final int[][] allInterfaces;
+    private final byte[]  state;
+
+    /**
+     * Transitive subtypes of each class, built on first use
+     */
+    private int[][] subtypes = null;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Build the index.
+     *
+     * @param foundClasses  the loaded classes, indexed by name
+     */
+    ClassHierarchy (Map<String,ClassInfo> foundClasses)
+    {
+        int n = foundClasses.size();
+        ids = new HashMap<String,Integer> (((n * 4) / 3) + 1);
+        classes = new ClassInfo[n];
+
+        int i = 0;
+        for (Map.Entry<String,ClassInfo> entry : foundClasses.entrySet())
+        {
+            ids.put (entry.getKey(), i);
+            classes[i++] = entry.getValue();
+        }
+
+        superClass = new int[n];
+        interfaces = new int[n][];
+        for (i = 0; i < n; i++)
+        {
+            superClass[i] = id (classes[i].getSuperClassName());
+            interfaces[i] = ids (classes[i].getInterfaces());
+        }
+
+        allSuperClasses = new int[n][];
+        allInterfaces = new int[n][];
+        state = new byte[n];
+        for (i = 0; i < n; i++)
+            computeClosure (i);
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the loaded superclasses of a class.
+     *
+     * @param classInfo  the class
+     * @param result     where to store them, indexed by name
+     *
+     * @return the number of superclasses
+     */
+    int findAllSuperClasses (ClassInfo             classInfo,
+                             Map<String,ClassInfo> result)
+    {
+        return addAll (superClassesOf (classInfo), result);
+    }
+
+    /**
+     * Get the loaded interfaces a class implements, directly or
+     * indirectly.
+     *
+     * @param classInfo  the class
+     * @param result     where to store them, indexed by name
+     *
+     * @return the number of interfaces
+     */
+    int findAllInterfaces (ClassInfo             classInfo,
+                           Map<String,ClassInfo> result)
+    {
+        return addAll (interfacesOf (classInfo), result);
+    }
+
+    /**
+     * Get the loaded classes that extend or implement a class, directly
+     * or indirectly.
+     *
+     * @param className  the name of the class or interface
+     * @param result     where to store them, indexed by name
+     *
+     * @return the number of subtypes
+     */
+    int findAllSubtypes (String className, Map<String,ClassInfo> result)
+    {
+        int id = id (className);
+        if (id < 0)
+            return 0;
+
+        if (subtypes == null)
+            subtypes = invert();
+
+        return addAll (subtypes[id], result);
+    }
+
+    /**
+     * Determine whether a class has a loaded superclass of a given name.
+     *
+     * @param classInfo  the class
+     * @param className  the superclass name
+     *
+     * @return <tt>true</tt> or <tt>false</tt>
+     */
+    boolean isSubclassOf (ClassInfo classInfo, String className)
+    {
+        int id = id (className);
+        return (id >= 0) &&
+               (Arrays.binarySearch (superClassesOf (classInfo), id) >= 0);
+    }
+
+    /**
+     * Determine whether a class implements a loaded interface of a given
+     * name, directly or indirectly.
+     *
+     * @param classInfo  the class
+     * @param className  the interface name
+     *
+     * @return <tt>true</tt> or <tt>false</tt>
+     */
+    boolean implementsInterface (ClassInfo classInfo, String className)
+    {
+        int id = id (className);
+        return (id >= 0) &&
+               (Arrays.binarySearch (interfacesOf (classInfo), id) >= 0);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private int id (String className)
+    {
+        if (className == null)
+            return -1;
+
+        Integer id = ids.get (className);
+        return (id == null) ? -1 : id;
+    }
+
+    private int[] ids (String[] classNames)
+    {
+        if ((classNames == null) || (classNames.length == 0))
+            return NONE;
+
+        int[] result = new int[classNames.length];
+        int n = 0;
+        for (String name : classNames)
+        {
+            int id = id (name);
+            if (id >= 0)
+                result[n++] = id;
+        }
+
+        return (n == result.length) ? result : Arrays.copyOf (result, n);
+    }
+
+    /**
+     * Get the superclasses of a class. If the class is the one that was
+     * indexed under its name, the precomputed closure is used; otherwise
+     * (e.g., it's a same-named class from a different location), the
+     * closure is assembled from its direct superclass.
+     */
+    private int[] superClassesOf (ClassInfo classInfo)
+    {
+        int self = id (classInfo.getClassName());
+        if ((self >= 0) && (classes[self] == classInfo))
+            return allSuperClasses[self];
+
+        int sup = id (classInfo.getSuperClassName());
+        return (sup < 0) ? NONE : union (new int[] {sup},
+                                         allSuperClasses[sup]);
+    }
+
+    private int[] interfacesOf (ClassInfo classInfo)
+    {
+        int self = id (classInfo.getClassName());
+        if ((self >= 0) && (classes[self] == classInfo))
+            return allInterfaces[self];
+
+        return interfaceClosure (id (classInfo.getSuperClassName()),
+                                 ids (classInfo.getInterfaces()));
+    }
+
+    private void computeClosure (int c)
+    {
+        if (state[c] != UNVISITED)
+            return;
+
+        state[c] = IN_PROGRESS;
+
+        int sup = superClass[c];
+        if (sup >= 0)
+            computeClosure (sup);
+        for (int i : interfaces[c])
+            computeClosure (i);
+
+        if ((sup >= 0) && (state[sup] == DONE))
+            allSuperClasses[c] = union (new int[] {sup}, allSuperClasses[sup]);
+        else
+            allSuperClasses[c] = NONE;
+
+        allInterfaces[c] = interfaceClosure (sup, interfaces[c]);
+        state[c] = DONE;
+    }
+
+    /**
+     * Assemble the interface closure of a class from its direct
+     * superclass and interfaces, whose closures must be computed.
+     * Anything that's part of a cycle is ignored.
+     */
+    private int[] interfaceClosure (int sup, int[] direct)
+    {
+        int[] result = NONE;
+        if ((sup >= 0) && (state[sup] == DONE))
+            result = allInterfaces[sup];
+
+        for (int i : direct)
+        {
+            if (state[i] == DONE)
+                result = union (union (result, new int[] {i}),
+                                allInterfaces[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Build the subtype table, by inverting the supertype closures.
+     */
+    private int[][] invert()
+    {
+        int n = classes.length;
+        int[] counts = new int[n];
+        for (int c = 0; c < n; c++)
+        {
+            for (int s : allSuperClasses[c])
+                counts[s]++;
+            for (int s : allInterfaces[c])
+                counts[s]++;
+        }
+
+        int[][] result = new int[n][];
+        for (int s = 0; s < n; s++)
+            result[s] = (counts[s] == 0) ? NONE : new int[counts[s]];
+
+        Arrays.fill (counts, 0);
+        for (int c = 0; c < n; c++)
+        {
+            for (int s : allSuperClasses[c])
+                result[s][counts[s]++] = c;
+            for (int s : allInterfaces[c])
+                result[s][counts[s]++] = c;
+        }
+
+        return result;
+    }
+
+    private int addAll (int[] members, Map<String,ClassInfo> result)
+    {
+        for (int id : members)
+        {
+            ClassInfo classInfo = classes[id];
+            result.put (classInfo.getClassName(), classInfo);
+        }
+
+        return members.length;
+    }
+
+    /**
+     * Merge two sorted, duplicate-free arrays.
+     */
+    private static int[] union (int[] a, int[] b)
+    {
+        if (b.length == 0)
+            return a;
+        if (a.length == 0)
+            return b;
+
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while ((i < a.length) && (j < b.length))
+        {
+            if (a[i] < b[j])
+                result[n++] = a[i++];
+            else if (a[i] > b[j])
+                result[n++] = b[j++];
+            else
+            {
+                result[n++] = a[i++];
+                j++;
+            }
+        }
+
+        while (i < a.length)
+            result[n++] = a[i++];
+        while (j < b.length)
+            result[n++] = b[j++];
+
+        return (n == result.length) ? result : Arrays.copyOf (result, n);
+    }
+}
@@ -0,0 +1,643 @@
+package org.clapper.util.classutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.clapper.util.io.ZipReader;
+import org.clapper.util.logging.Logger;
+
+/**
+ * <p>A <tt>ClassIndexCache</tt> holds the {@link ClassInfo} records a
+ * {@link ClassFinder} parsed from jar and zip files, so that unchanged
+ * files don't have to be parsed again. Attach a cache to a
+ * <tt>ClassFinder</tt> with {@link ClassFinder#setIndexCache}; save it to
+ * disk with {@link #save} when the finder is done, and load it with
+ * {@link #load} the next time the application starts.</p>
+ *
+ * <p>Each cached jar or zip file is keyed by its absolute path and
+ * validated by its size, its last-modified time, and a checksum of its
+ * central directory (which contains the name, size and CRC of every
+ * entry). If the size and time match, the cached records are used as is.
+ * If only the time differs (for instance, because the file was copied
+ * again), the checksum is computed and compared; only the central
+ * directory is read for that, not the class files. Otherwise, the file is
+ * parsed again and its records are replaced. Directories aren't
+ * cached.</p>
+ *
+ * <p>The records contain everything a <tt>ClassInfo</tt> holds: the
+ * class name, superclass, interfaces and modifiers, and its fields,
+ * methods and annotations. If the classes were parsed with
+ * {@link ClassFinder.ParseDepth#HEADER}, and their members haven't been
+ * requested, only the headers are cached, and the fields, methods and
+ * annotations of the cached classes are still loaded on demand. Each
+ * lookup returns new <tt>ClassInfo</tt> objects. A
+ * <tt>ClassIndexCache</tt> can be used by several threads at once, as a
+ * parallel <tt>ClassFinder</tt> scan requires.</p>
+ *
+ * @see ClassFinder
+ */
+public class ClassIndexCache
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int CACHE_MAGIC   = 0x4a434958;
+    private static final int CACHE_VERSION = 3;
+
+    /*
+     * Type tags for constant field values.
+     */
+    private static final byte VALUE_NONE    = 0;
+    private static final byte VALUE_INTEGER = 1;
+    private static final byte VALUE_LONG    = 2;
+    private static final byte VALUE_FLOAT   = 3;
+    private static final byte VALUE_DOUBLE  = 4;
+    private static final byte VALUE_STRING  = 5;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Cached entries, by absolute path.
+     */
+    private final Map<String,Entry> entries =
+        new ConcurrentHashMap<String,Entry>();
+
+    /**
+     * For logging
+     */
+    private static final Logger log = new Logger (ClassIndexCache.class);
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new, empty <tt>ClassIndexCache</tt>.
+     */
+    public ClassIndexCache()
+    {
+        // Nothing to do
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the number of jar and zip files in the cache.
+     *
+     * @return the number of cached files
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Remove everything from the cache.
+     */
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Load a cache saved by {@link #save}, replacing the current
+     * contents.
+     *
+     * @param file  the cache file
+     *
+     * @throws IOException  on I/O error, or if the file isn't a class
+     *                      index cache
+     */
+    public void load (File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream (new FileInputStream (file)));
+
+        try
+        {
+            if ((in.readInt() != CACHE_MAGIC) ||
+                (in.readInt() != CACHE_VERSION))
+            {
+                throw new IOException ("File \"" + file.getPath() +
+                                       "\" is not a class index cache.");
+            }
+
+            int total = in.readInt();
+            Map<String,Entry> loaded = new ConcurrentHashMap<String,Entry>();
+            for (int i = 0; i < total; i++)
+            {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                long checksum = in.readLong();
+                byte[] records = new byte[in.readInt()];
+                in.readFully (records);
+                loaded.put (path, new Entry (size, mtime, checksum, records));
+            }
+
+            entries.clear();
+            entries.putAll (loaded);
+        }
+
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the cache to a file. Entries for jar and zip files that no
+     * longer exist are dropped. The cache is written to a temporary file,
+     * which then replaces the target, so a reader never sees a partially
+     * written cache.
+     *
+     * @param file  the cache file
+     *
+     * @throws IOException  on I/O error
+     */
+    public void save (File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile (file.getName(), ".tmp", dir);
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream
+                (new BufferedOutputStream (new FileOutputStream (temp)));
+
+            try
+            {
+                List<Map.Entry<String,Entry>> toSave =
+                    new ArrayList<Map.Entry<String,Entry>>();
+                for (Map.Entry<String,Entry> e : entries.entrySet())
+                {
+                    if (new File (e.getKey()).exists())
+                        toSave.add (e);
+                }
+
+                out.writeInt (CACHE_MAGIC);
+                out.writeInt (CACHE_VERSION);
+                out.writeInt (toSave.size());
+
+                for (Map.Entry<String,Entry> e : toSave)
+                {
+                    Entry entry = e.getValue();
+                    out.writeUTF (e.getKey());
+                    out.writeLong (entry.size);
+                    out.writeLong (entry.mtime);
+                    out.writeLong (entry.checksum);
+                    out.writeInt (entry.records.length);
+                    out.write (entry.records);
+                }
+            }
+
+            finally
+            {
+                out.close();
+            }
+
+            Files.move (temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the cached classes for a jar or zip file, if the file hasn't
+     * changed since they were stored.
+     *
+     * @param location  the jar or zip file
+     *
+     * @return the classes, in the order in which they were stored, or
+     *         null if the file isn't cached or has changed
+     */
+    List<ClassInfo> lookup (File location)
+    {
+        return lookup (location, null);
+    }
+
+    /**
+     * Get the cached classes for a jar or zip file, if the file hasn't
+     * changed since they were stored, taking their strings from a pool.
+     *
+     * @param location  the jar or zip file
+     * @param pool      the scan's string pool, or null
+     *
+     * @return the classes, in the order in which they were stored, or
+     *         null if the file isn't cached or has changed
+     */
+    List<ClassInfo> lookup (File location, StringPool pool)
+    {
+        String path = location.getAbsolutePath();
+        Entry entry = entries.get (path);
+        if (entry == null)
+            return null;
+
+        long size = location.length();
+        long mtime = location.lastModified();
+        if (size != entry.size)
+            return null;
+
+        if (mtime != entry.mtime)
+        {
+            ZipReader zip = null;
+            try
+            {
+                zip = new ZipReader (location);
+                if (checksum (zip) != entry.checksum)
+                    return null;
+            }
+
+            catch (IOException ex)
+            {
+                return null;
+            }
+
+            finally
+            {
+                close (zip);
+            }
+
+            entry = new Entry (size, mtime, entry.checksum, entry.records);
+            entries.put (path, entry);
+        }
+
+        try
+        {
+            return decode (entry.records, location, pool);
+        }
+
+        catch (IOException ex)
+        {
+            log.error ("Bad class index cache entry for \"" + path + "\"",
+                       ex);
+            entries.remove (path);
+            return null;
+        }
+    }
+
+    /**
+     * Store the classes parsed from a jar or zip file.
+     *
+     * @param location  the jar or zip file
+     * @param zip       the open zip file, for the checksum
+     * @param classes   the classes parsed from it
+     */
+    void store (File location, ZipReader zip, Collection<ClassInfo> classes)
+    {
+        try
+        {
+            entries.put (location.getAbsolutePath(),
+                         new Entry (location.length(),
+                                    location.lastModified(),
+                                    checksum (zip),
+                                    encode (classes)));
+        }
+
+        catch (IOException ex)
+        {
+            log.error ("Can't cache classes from \"" + location.getPath() +
+                       "\"",
+                       ex);
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compute a checksum of a zip file's central directory.
+     *
+     * @param zip  the open zip file
+     *
+     * @return the checksum
+     *
+     * @throws IOException  on error
+     */
+    private static long checksum (ZipReader zip) throws IOException
+    {
+        CRC32 crc = new CRC32();
+
+        for (String name : zip.getEntryNames())
+        {
+            ZipEntry entry = zip.getEntry (name);
+            crc.update (entry.getName().getBytes ("UTF-8"));
+            crc.update (longBytes (entry.getCrc()));
+            crc.update (longBytes (entry.getSize()));
+            crc.update (longBytes (entry.getCompressedSize()));
+        }
+
+        return crc.getValue();
+    }
+
+    private static byte[] longBytes (long n)
+    {
+        byte[] b = new byte[8];
+        for (int i = 7; i >= 0; i--)
+        {
+            b[i] = (byte) n;
+            n >>>= 8;
+        }
+
+        return b;
+    }
+
+    private static void close (ZipReader zip)
+    {
+        try
+        {
+            if (zip != null)
+                zip.close();
+        }
+
+        catch (IOException ex)
+        {
+            log.error ("Can't close " + zip.getFile().getPath(), ex);
+        }
+    }
+
+    private static byte[] encode (Collection<ClassInfo> classes)
+        throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream (buf);
+
+        out.writeInt (classes.size());
+        for (ClassInfo classInfo : classes)
+        {
+            writeString (out, classInfo.getClassName());
+            writeString (out, classInfo.getSuperClassName());
+            writeStrings (out, classInfo.getInterfaces());
+            out.writeInt (classInfo.getModifier());
+
+            // Don't force deferred fields, methods and annotations to be
+            // loaded.
+
+            String memberSource = classInfo.getMemberSource();
+            writeString (out, memberSource);
+            if (memberSource != null)
+                continue;
+
+            out.writeInt (classInfo.getFields().size());
+            for (FieldInfo field : classInfo.getFields())
+            {
+                out.writeInt (field.getAccess());
+                writeString (out, field.getName());
+                writeString (out, field.getDescription());
+                writeString (out, field.getSignature());
+                writeValue (out, field.getValue());
+            }
+
+            out.writeInt (classInfo.getMethods().size());
+            for (MethodInfo method : classInfo.getMethods())
+            {
+                out.writeInt (method.getAccess());
+                writeString (out, method.getName());
+                writeString (out, method.getDescription());
+                writeString (out, method.getSignature());
+                writeStrings (out, method.getExceptions());
+            }
+
+            Set<String> annotations = classInfo.getAnnotations();
+            writeStrings (out,
+                          annotations.toArray (new String[annotations.size()]));
+        }
+
+        out.close();
+        return buf.toByteArray();
+    }
+
+    private static List<ClassInfo> decode (byte[]     records,
+                                           File       location,
+                                           StringPool pool)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream
+            (new ByteArrayInputStream (records));
+
+        int total = in.readInt();
+        List<ClassInfo> result = new ArrayList<ClassInfo> (total);
+        for (int i = 0; i < total; i++)
+        {
+            // The modifier bits are the same as the ASM access bits, so
+            // the modifier can be passed back to the constructor as is.
+
+            String name = readString (in);
+            String superClassName = readString (in);
+            String[] interfaces = readStrings (in);
+            int modifier = in.readInt();
+            ClassInfo classInfo = new ClassInfo (name, superClassName,
+                                                 interfaces, modifier,
+                                                 location, pool);
+            result.add (classInfo);
+
+            String memberSource = readString (in);
+            if (memberSource != null)
+            {
+                classInfo.setMemberSource (memberSource);
+                continue;
+            }
+
+            int totalFields = in.readInt();
+            for (int j = 0; j < totalFields; j++)
+            {
+                int access = in.readInt();
+                classInfo.visitField (access,
+                                      readString (in),
+                                      readString (in),
+                                      readString (in),
+                                      readValue (in));
+            }
+
+            int totalMethods = in.readInt();
+            for (int j = 0; j < totalMethods; j++)
+            {
+                int access = in.readInt();
+                classInfo.visitMethod (access,
+                                       readString (in),
+                                       readString (in),
+                                       readString (in),
+                                       readStrings (in));
+            }
+
+            for (String annotation : readStrings (in))
+                classInfo.addAnnotation (annotation);
+        }
+
+        return result;
+    }
+
+    /**
+     * Write a possibly null string of any length. (<tt>writeUTF()</tt>
+     * is limited to 64K, which a string constant can exceed.)
+     */
+    private static void writeString (DataOutputStream out, String s)
+        throws IOException
+    {
+        if (s == null)
+            out.writeInt (-1);
+
+        else
+        {
+            byte[] bytes = s.getBytes ("UTF-8");
+            out.writeInt (bytes.length);
+            out.write (bytes);
+        }
+    }
+
+    private static String readString (DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully (bytes);
+        return new String (bytes, "UTF-8");
+    }
+
+    private static void writeStrings (DataOutputStream out, String[] strings)
+        throws IOException
+    {
+        if (strings == null)
+            out.writeInt (-1);
+
+        else
+        {
+            out.writeInt (strings.length);
+            for (String s : strings)
+                writeString (out, s);
+        }
+    }
+
+    private static String[] readStrings (DataInputStream in)
+        throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+
+        String[] strings = new String[length];
+        for (int i = 0; i < length; i++)
+            strings[i] = readString (in);
+        return strings;
+    }
+
+    private static void writeValue (DataOutputStream out, Object value)
+        throws IOException
+    {
+        if (value instanceof Integer)
+        {
+            out.writeByte (VALUE_INTEGER);
+            out.writeInt ((Integer) value);
+        }
+
+        else if (value instanceof Long)
+        {
+            out.writeByte (VALUE_LONG);
+            out.writeLong ((Long) value);
+        }
+
+        else if (value instanceof Float)
+        {
+            out.writeByte (VALUE_FLOAT);
+            out.writeFloat ((Float) value);
+        }
+
+        else if (value instanceof Double)
+        {
+            out.writeByte (VALUE_DOUBLE);
+            out.writeDouble ((Double) value);
+        }
+
+        else if (value instanceof String)
+        {
+            out.writeByte (VALUE_STRING);
+            writeString (out, (String) value);
+        }
+
+        else
+        {
+            out.writeByte (VALUE_NONE);
+        }
+    }
+
+    private static Object readValue (DataInputStream in) throws IOException
+    {
+        switch (in.readByte())
+        {
+            case VALUE_INTEGER:
+                return in.readInt();
+            case VALUE_LONG:
+                return in.readLong();
+            case VALUE_FLOAT:
+                return in.readFloat();
+            case VALUE_DOUBLE:
+                return in.readDouble();
+            case VALUE_STRING:
+                return readString (in);
+            default:
+                return null;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The cached records for one jar or zip file, with the information
+     * needed to validate them.
+     */
+    private static class Entry
+    {
+        final long   size;
+        final long   mtime;
+        final long   checksum;
+        final byte[] records;
+
+        Entry (long size, long mtime, long checksum, byte[] records)
+        {
+            this.size     = size;
+            this.mtime    = mtime;
+            this.checksum = checksum;
+            this.records  = records;
+        }
+    }
+}
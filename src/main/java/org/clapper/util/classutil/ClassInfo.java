@@ -7,15 +7,25 @@ import java.io.InputStream;
 
 import java.lang.reflect.Modifier;
 
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.commons.EmptyVisitor;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
 
+import org.clapper.util.logging.Logger;
+
 /**
  * <p>Holds information about a loaded class in a way that doesn't rely on
  * the underlying API used to load the class information.</p>
@@ -24,6 +34,13 @@ import org.objectweb.asm.Opcodes;
  * library is not available, this package will not work. See
  * <a href="http://asm.objectweb.org"><i>asm.objectweb.org</i></a> for
  * details on ASM.</p>
+ *
+ * <p>A <tt>ClassInfo</tt> created by a {@link ClassFinder} whose parse
+ * depth is {@link ClassFinder.ParseDepth#HEADER} contains only the
+ * information in the class file's header: the class name, superclass,
+ * interfaces and modifiers. Its fields, methods and annotations are read
+ * from the class file the first time {@link #getFields},
+ * {@link #getMethods} or {@link #getAnnotations} is called.</p>
  */
 public class ClassInfo extends EmptyVisitor
 {
@@ -33,13 +50,32 @@ public class ClassInfo extends EmptyVisitor
                             Private Data Items
     \*----------------------------------------------------------------------*/
 
-    private int             modifier = 0;
-    private String          className = null;
-    private String          superClassName = null;
-    private String[]        implementedInterfaces = null;
-    private File            locationFound = null;
-    private Set<FieldInfo>  fields = new HashSet<FieldInfo>();
-    private Set<MethodInfo> methods = new HashSet<MethodInfo>();
+    private int                 modifier = 0;
+    private String              className = null;
+    private String              superClassName = null;
+    private String[]            implementedInterfaces = null;
+    private File                locationFound = null;
+    private Members<FieldInfo>  fields = new Members<FieldInfo>();
+    private Members<MethodInfo> methods = new Members<MethodInfo>();
+    private Members<String>     annotations = new Members<String>();
+
+    /**
+     * The scan's string pool, or null to store strings as is.
+     */
+    private StringPool pool = null;
+
+    /**
+     * Where to read the fields, methods and annotations from, if they
+     * haven't been read yet: the name of the zip entry, or the path of
+     * the class file relative to the directory, in
+     * {@link #locationFound}. Null once they've been read.
+     */
+    private String memberSource = null;
+
+    /**
+     * For logging
+     */
+    private static final Logger log = new Logger(ClassInfo.class);
 
     /*----------------------------------------------------------------------*\
                                 Constructor
@@ -111,6 +147,29 @@ public class ClassInfo extends EmptyVisitor
               int      asmAccessMask,
               File     location)
     {
+        this(name, superClassName, interfaces, asmAccessMask, location, null);
+    }
+
+    /**
+     * Create a new <tt>ClassInfo</tt> object whose strings, and those of
+     * its fields and methods, are taken from a string pool.
+     *
+     * @param name           the class name
+     * @param superClassName the parent class name, or null
+     * @param interfaces     the names of interfaces the class implements,
+     *                       or null
+     * @param asmAccessMask  ASM API's access mask for the class
+     * @param location       File (jar, zip) or directory where class was found
+     * @param pool           the scan's string pool, or null
+     */
+    ClassInfo(String     name,
+              String     superClassName,
+              String[]   interfaces,
+              int        asmAccessMask,
+              File       location,
+              StringPool pool)
+    {
+        this.pool = pool;
         setClassFields(name, superClassName, interfaces, asmAccessMask, location);
     }
 
@@ -180,25 +239,49 @@ public class ClassInfo extends EmptyVisitor
     }
 
     /**
-     * Get the set of fields in the class.
+     * Get the set of fields in the class. The set can't be modified.
      *
      * @return the set of fields, if any.
      */
-    public Set<FieldInfo> getFields()
+    public synchronized Set<FieldInfo> getFields()
     {
+        loadMembers();
+        fields.trim();
         return fields;
     }
 
     /**
-     * Get the set of methods in the class.
+     * Get the set of methods in the class. The set can't be modified.
      *
      * @return the set of methods, if any
      */
-    public Set<MethodInfo> getMethods()
+    public synchronized Set<MethodInfo> getMethods()
     {
+        loadMembers();
+        methods.trim();
         return methods;
     }
 
+    /**
+     * Get the names of the annotations on the class itself (not those on
+     * its fields or methods, and not those it inherits). Annotations with
+     * both <tt>RUNTIME</tt> and <tt>CLASS</tt> retention are included,
+     * since both are recorded in the class file. Unlike
+     * <tt>Class.isAnnotationPresent()</tt>, this method doesn't require
+     * loading the class.
+     *
+     * @return the set of annotation class names, if any. The set can't
+     *         be modified.
+     *
+     * @see AnnotationClassFilter
+     */
+    public synchronized Set<String> getAnnotations()
+    {
+        loadMembers();
+        annotations.trim();
+        return annotations;
+    }
+
     /**
      * Get a string representation of this object.
      *
@@ -287,11 +370,11 @@ public class ClassInfo extends EmptyVisitor
                                    String signature,
                                    Object value)
     {
-        fields.add(new FieldInfo(access,
-                                 name,
-                                 description,
-                                 signature,
-                                 value));
+        fields.append(new FieldInfo(access,
+                                    intern(name),
+                                    intern(description),
+                                    intern(signature),
+                                    value));
         return null;
     }
 
@@ -313,18 +396,150 @@ public class ClassInfo extends EmptyVisitor
                                      String signature,
                                      String[] exceptions)
     {
-        methods.add(new MethodInfo(access,
-                                   name,
-                                   description,
-                                   signature,
-                                   exceptions));
+        methods.append(new MethodInfo(access,
+                                      intern(name),
+                                      intern(description),
+                                      intern(signature),
+                                      intern(exceptions)));
+        return null;
+    }
+
+    /**
+     * "Visit" an annotation on the class.
+     *
+     * @param description  the annotation's type descriptor
+     * @param visible      whether the annotation is visible at runtime
+     *
+     * @return null.
+     */
+    @Override
+    public AnnotationVisitor visitAnnotation(String  description,
+                                             boolean visible)
+    {
+        // The descriptor of an annotation type is always "L<name>;".
+
+        addAnnotation(translateInternalClassName
+                          (description.substring(1,
+                                                 description.length() - 1)));
         return null;
     }
 
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Record an annotation on the class.
+     *
+     * @param annotationName  the annotation's class name
+     */
+    void addAnnotation(String annotationName)
+    {
+        annotations.append(intern(annotationName));
+    }
+
+    /**
+     * Get the string pool from which this object's strings are taken.
+     *
+     * @return the pool, or null
+     */
+    StringPool getStringPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Defer reading the fields, methods and annotations until they're
+     * requested.
+     *
+     * @param memberSource  the name of the class file within the
+     *                      location: a zip entry name, or a path relative
+     *                      to the directory
+     */
+    synchronized void setMemberSource(String memberSource)
+    {
+        this.memberSource = memberSource;
+    }
+
+    /**
+     * Get the name of the class file from which the fields, methods and
+     * annotations will be read, if they haven't been read yet.
+     *
+     * @return the class file name, or null if they have been read
+     */
+    synchronized String getMemberSource()
+    {
+        return memberSource;
+    }
+
     /*----------------------------------------------------------------------*\
                               Private Methods
     \*----------------------------------------------------------------------*/
 
+    /**
+     * Read the fields, methods and annotations from the class file, if
+     * that was deferred. On error, they're left empty.
+     */
+    private synchronized void loadMembers()
+    {
+        if (memberSource == null)
+            return;
+
+        String source = memberSource;
+        memberSource = null;
+
+        ZipFile zip = null;
+        InputStream is = null;
+        try
+        {
+            if (locationFound.isDirectory())
+                is = new FileInputStream(new File(locationFound, source));
+
+            else
+            {
+                zip = new ZipFile(locationFound);
+                ZipEntry entry = zip.getEntry(source);
+                if (entry == null)
+                {
+                    throw new IOException("No entry \"" + source +
+                                          "\" in zip file \"" +
+                                          locationFound.getPath() + "\"");
+                }
+
+                is = zip.getInputStream(entry);
+            }
+
+            ClassReader cr = new ClassReader(is);
+            cr.accept(new MemberVisitor(),
+                      ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG |
+                      ClassReader.SKIP_FRAMES);
+        }
+
+        catch (IOException ex)
+        {
+            log.error("Can't read fields and methods of " + className +
+                      " from \"" + locationFound.getPath() + "\"",
+                      ex);
+        }
+
+        finally
+        {
+            try
+            {
+                if (is != null)
+                    is.close();
+                if (zip != null)
+                    zip.close();
+            }
+
+            catch (IOException ex)
+            {
+                log.error("Can't close \"" + locationFound.getPath() + "\"",
+                          ex);
+            }
+        }
+    }
+
     /**
      * Translate an internal class/interface name to an external one.
      *
@@ -334,7 +549,17 @@ public class ClassInfo extends EmptyVisitor
      */
     private String translateInternalClassName(String internalName)
     {
-        return internalName.replaceAll("/", ".");
+        return intern(internalName.replace('/', '.'));
+    }
+
+    private String intern(String s)
+    {
+        return (pool == null) ? s : pool.intern(s);
+    }
+
+    private String[] intern(String[] array)
+    {
+        return (pool == null) ? array : pool.intern(array);
     }
 
     /**
@@ -364,12 +589,10 @@ public class ClassInfo extends EmptyVisitor
 
         if (interfaces != null)
         {
-            this.implementedInterfaces = new String[interfaces.length];
+            String[] names = new String[interfaces.length];
             for (int i = 0; i < interfaces.length; i++)
-            {
-                this.implementedInterfaces[i] =
-                    translateInternalClassName(interfaces[i]);
-            }
+                names[i] = translateInternalClassName(interfaces[i]);
+            this.implementedInterfaces = intern(names);
         }
 
         modifier = convertAccessMaskToModifierMask(asmAccessMask);
@@ -426,4 +649,140 @@ public class ClassInfo extends EmptyVisitor
 
         return modifier;
     }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Reads just the fields, methods and annotations of a class, when
+     * they're loaded on demand, the same way {@link ClassInfoClassVisitor}
+     * does.
+     */
+    private class MemberVisitor extends EmptyVisitor
+    {
+        @Override
+        public FieldVisitor visitField(int    access,
+                                       String name,
+                                       String description,
+                                       String signature,
+                                       Object value)
+        {
+            if (signature == null)
+                signature = description + " " + name;
+            return ClassInfo.this.visitField(access, name, description,
+                                             signature, value);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int      access,
+                                         String   name,
+                                         String   description,
+                                         String   signature,
+                                         String[] exceptions)
+        {
+            if (signature == null)
+                signature = name + description;
+            return ClassInfo.this.visitMethod(access, name, description,
+                                              signature, exceptions);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String  description,
+                                                 boolean visible)
+        {
+            return ClassInfo.this.visitAnnotation(description, visible);
+        }
+    }
+
+    /**
+     * An append-only, array-backed set, used for the fields, methods and
+     * annotations. It's much smaller than a <tt>HashSet</tt>: there's no
+     * per-element entry object, and the array is trimmed to size when
+     * the set is first read. As with a <tt>HashSet</tt>, duplicates (by
+     * <tt>equals()</tt>) are dropped; that happens when the array is
+     * trimmed. Lookups are linear, which is fine for the members of one
+     * class.
+     */
+    private static final class Members<T> extends AbstractSet<T>
+    {
+        private static final Object[] NONE = new Object[0];
+
+        private Object[] elements = NONE;
+        private int      size = 0;
+        private boolean  trimmed = true;
+
+        /**
+         * Add an element. (The set is read-only to everyone else;
+         * <tt>add()</tt> isn't supported.)
+         */
+        void append(T element)
+        {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, Math.max(4, size * 2));
+
+            elements[size++] = element;
+            trimmed = false;
+        }
+
+        /**
+         * Drop duplicates, and trim the array to size.
+         */
+        void trim()
+        {
+            if (trimmed)
+                return;
+
+            Object[] unique;
+            if (size > 1)
+            {
+                unique = new LinkedHashSet<Object>
+                    (Arrays.asList(elements).subList(0, size)).toArray();
+            }
+
+            else
+            {
+                unique = Arrays.copyOf(elements, size);
+            }
+
+            elements = (unique.length == 0) ? NONE : unique;
+            size = elements.length;
+            trimmed = true;
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        @Override
+        public Iterator<T> iterator()
+        {
+            return new Iterator<T>()
+            {
+                private final Object[] array = elements;
+                private final int      end = size;
+                private int            next = 0;
+
+                public boolean hasNext()
+                {
+                    return next < end;
+                }
+
+                @SuppressWarnings("unchecked")
+                public T next()
+                {
+                    if (next >= end)
+                        throw new NoSuchElementException();
+                    return (T) array[next++];
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package org.clapper.util.classutil;
 
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.commons.EmptyVisitor;
@@ -26,6 +28,7 @@ class ClassInfoClassVisitor extends EmptyVisitor
 
     private Map<String,ClassInfo> foundClasses;
     private File                  location;
+    private StringPool            pool;
     private ClassInfo             currentClass = null;
 
     /*----------------------------------------------------------------------*\
@@ -43,9 +46,28 @@ class ClassInfoClassVisitor extends EmptyVisitor
      *
      */
     ClassInfoClassVisitor(Map<String,ClassInfo> foundClasses, File location)
+    {
+        this(foundClasses, location, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param foundClasses  where to store the class information. The
+     *                      {@link ClassInfo} records are stored in the map,
+     *                      indexed by class name.
+     * @param location      file (jar, zip) or directory containing classes
+     *                      being processed by this visitor
+     * @param pool          the string pool shared by the scan's
+     *                      {@link ClassInfo} records, or null for none
+     */
+    ClassInfoClassVisitor(Map<String,ClassInfo> foundClasses,
+                          File                  location,
+                          StringPool            pool)
     {
         this.foundClasses = foundClasses;
         this.location = location;
+        this.pool = pool;
     }
 
     /*----------------------------------------------------------------------*\
@@ -75,7 +97,8 @@ class ClassInfoClassVisitor extends EmptyVisitor
                                             superName,
                                             interfaces,
                                             access,
-                                            location);
+                                            location,
+                                            pool);
         // Be sure to use the converted name from classInfo.getName(), not
         // the internal value in "name".
         foundClasses.put(classInfo.getClassName(), classInfo);
@@ -132,6 +155,43 @@ class ClassInfoClassVisitor extends EmptyVisitor
                                         signature, exceptions);
     }
 
+    /**
+     * "Visit" an annotation on the class.
+     *
+     * @param description  the annotation's type descriptor
+     * @param visible      whether the annotation is visible at runtime
+     *
+     * @return null.
+     */
+    @Override
+    public AnnotationVisitor visitAnnotation(String  description,
+                                             boolean visible)
+    {
+        assert (currentClass != null);
+        return currentClass.visitAnnotation(description, visible);
+    }
+
+    /**
+     * Record a class using just its header, deferring the fields, methods
+     * and annotations until they're requested.
+     *
+     * @param cr             the class reader for the class file
+     * @param classFileName  the name of the class file within the
+     *                       location (a zip entry name, or a path
+     *                       relative to the directory)
+     */
+    public void visitHeader(ClassReader cr, String classFileName)
+    {
+        visit(0,
+              cr.getAccess(),
+              cr.getClassName(),
+              null,
+              cr.getSuperName(),
+              cr.getInterfaces());
+        currentClass.setMemberSource(classFileName);
+        currentClass = null;
+    }
+
     /**
      * Get the location (the jar file, zip file or directory) containing
      * the classes processed by this visitor.
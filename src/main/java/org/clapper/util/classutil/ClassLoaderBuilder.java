@@ -2,21 +2,38 @@ package org.clapper.util.classutil;
 
 import java.io.File;
 
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.MalformedURLException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import org.clapper.util.logging.Logger;
 
 /**
- * A <tt>ClassLoaderBuilder</tt> is used to build an alternate class loader
- * that includes additional jar files, zip files and/or directories in its
- * load path. It's basically a convenient wrapper around
- * <tt>java.net.URLClassLoader</tt>.
+ * <p>A <tt>ClassLoaderBuilder</tt> is used to build an alternate class
+ * loader that includes additional jar files, zip files and/or directories
+ * in its load path. It's basically a convenient wrapper around
+ * <tt>java.net.URLClassLoader</tt>.</p>
+ *
+ * <p>A plain <tt>URLClassLoader</tt> searches its jars and directories
+ * in turn for every class and resource, so with hundreds of jars, most of
+ * its time goes into probing jars that don't have what it's looking for.
+ * If the builder is told to index the class loader (see
+ * {@link #setIndexed setIndexed()}), the class loader it creates first
+ * builds an index from each package to the jars and directories that
+ * contain it, and goes straight to those. The index can be built by
+ * several threads (see {@link #setThreads setThreads()}), and the
+ * index of the jar and zip files can be kept in a file, so that it's
+ * only rebuilt for the files that have changed (see
+ * {@link #setIndexFile setIndexFile()}). An indexed class loader doesn't
+ * verify the signatures of signed jars, and it doesn't follow
+ * "Class-Path" manifest attributes.</p>
  */
 public class ClassLoaderBuilder
 {
@@ -26,6 +43,13 @@ public class ClassLoaderBuilder
 
     private Collection<URL> urlList = new LinkedHashSet<URL>();
 
+    /**
+     * Whether to build an indexed class loader, and how.
+     */
+    private boolean indexed = false;
+    private int     threads = 1;
+    private File    indexFile = null;
+
     /**
      * For logging
      */
@@ -47,6 +71,93 @@ public class ClassLoaderBuilder
                               Public Methods
     \*----------------------------------------------------------------------*/
 
+    /**
+     * Determine whether the class loaders this builder creates are
+     * indexed.
+     *
+     * @return <tt>true</tt> if they're indexed, <tt>false</tt> if they're
+     *         plain <tt>URLClassLoader</tt> objects
+     *
+     * @see #setIndexed
+     */
+    public boolean isIndexed()
+    {
+        return indexed;
+    }
+
+    /**
+     * Set whether the class loaders this builder creates are indexed. An
+     * indexed class loader reads only the jars and directories that
+     * contain a class's package, instead of probing every one of them.
+     * The default is <tt>false</tt>.
+     *
+     * @param indexed  <tt>true</tt> to index the class loaders,
+     *                 <tt>false</tt> to create plain
+     *                 <tt>URLClassLoader</tt> objects
+     */
+    public void setIndexed (boolean indexed)
+    {
+        this.indexed = indexed;
+    }
+
+    /**
+     * Get the number of threads used to index a class loader.
+     *
+     * @return the number of threads
+     *
+     * @see #setThreads
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads used to index a class loader. A value of
+     * 1 (the default) indexes the jars and directories on the calling
+     * thread; a larger value indexes them concurrently.
+     *
+     * @param threads  the number of threads, which must be positive
+     *
+     * @throws IllegalArgumentException if <tt>threads</tt> is less than 1
+     */
+    public void setThreads (int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException ("Thread count must be " +
+                                                "positive, not " + threads);
+        }
+
+        this.threads = threads;
+    }
+
+    /**
+     * Get the file in which the index of the jar and zip files is kept.
+     *
+     * @return the file, or null
+     *
+     * @see #setIndexFile
+     */
+    public File getIndexFile()
+    {
+        return indexFile;
+    }
+
+    /**
+     * Set the file in which the index of the jar and zip files is kept.
+     * When an indexed class loader is created, the index of each jar and
+     * zip file whose size and last-modified time haven't changed is taken
+     * from the file; the others are indexed again, and the file is
+     * rewritten. Directories are always indexed again.
+     *
+     * @param indexFile  the file, or null for none
+     */
+    public void setIndexFile (File indexFile)
+    {
+        this.indexFile = indexFile;
+    }
+
     /**
      * Add a jar file, zip file or directory to the list of places the
      * not-yet-constructed class loader will search. If the directory or
@@ -193,8 +304,7 @@ public class ClassLoaderBuilder
     public ClassLoader createClassLoader()
         throws SecurityException
     {
-        return new URLClassLoader (urlList.toArray (new URL[urlList.size()]),
-                                   getClass().getClassLoader());
+        return createClassLoader (getClass().getClassLoader());
     }
 
     /**
@@ -213,7 +323,27 @@ public class ClassLoaderBuilder
     public ClassLoader createClassLoader (ClassLoader parentLoader)
         throws SecurityException
     {
-        return new URLClassLoader (urlList.toArray (new URL[urlList.size()]),
-                                                    parentLoader);
+        URL[] urls = urlList.toArray (new URL[urlList.size()]);
+        if (! indexed)
+            return new URLClassLoader (urls, parentLoader);
+
+        List<File> locations = new ArrayList<File>();
+        for (URL url : urls)
+        {
+            try
+            {
+                locations.add (new File (url.toURI()));
+            }
+
+            catch (URISyntaxException ex)
+            {
+                // Can't happen: the URLs were made from files.
+
+                throw new IllegalStateException (ex);
+            }
+        }
+
+        PackageIndex index = new PackageIndex (locations, threads, indexFile);
+        return new IndexedClassLoader (urls, index, parentLoader);
     }
 }
@@ -0,0 +1,486 @@
+package org.clapper.util.classutil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import java.util.jar.Manifest;
+
+import org.clapper.util.io.ZipReader;
+import org.clapper.util.logging.Logger;
+
+/**
+ * <p>A <tt>URLClassLoader</tt> that uses a {@link PackageIndex} to find
+ * classes and resources. A plain <tt>URLClassLoader</tt> probes each jar
+ * file and directory in its search path in turn, opening each jar as it
+ * goes, so a class in the last of 300 jars (or a class that isn't there
+ * at all) costs 300 probes. This loader looks up the class's package in
+ * the index, and reads only the locations that contain that package;
+ * usually, that's exactly one.</p>
+ *
+ * <p>Jar and zip files are read via {@link ZipReader}, and are opened on
+ * first use. Class files are read into a per-thread buffer, since
+ * <tt>defineClass()</tt> copies them anyway. Packages are defined from
+ * the jar's manifest, as <tt>URLClassLoader</tt> does. Unlike
+ * <tt>URLClassLoader</tt>, this loader does not verify the signatures
+ * of signed jars, and it does not follow "Class-Path" manifest
+ * attributes.</p>
+ *
+ * @see ClassLoaderBuilder
+ */
+final class IndexedClassLoader extends URLClassLoader
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int INITIAL_CLASS_BUF_SIZE = 16 * 1024;
+    private static final int MAX_RETAINED_CLASS_BUF_SIZE = 1024 * 1024;
+
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+    /**
+     * Characters, other than letters and digits, that may appear as is in
+     * the path of a URL. Anything else is percent-encoded.
+     */
+    private static final String URL_PATH_CHARS = "/-_.!~*'();:@&=+$,";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final PackageIndex index;
+    private final File[]       locations;
+    private final boolean[]    directories;
+    private final URL[]        urls;
+    private final CodeSource[] codeSources;
+
+    /**
+     * Open jar and zip files, by location ordinal; null until first used.
+     * Guarded by itself, as is <tt>closed</tt>.
+     */
+    private final ZipReader[] readers;
+    private boolean           closed = false;
+
+    /**
+     * Jar manifests, by location ordinal, once read. Guarded by
+     * <tt>readers</tt>.
+     */
+    private final Manifest[] manifests;
+    private final boolean[]  manifestsRead;
+
+    private static final ThreadLocal<byte[]> classBuffers =
+        new ThreadLocal<byte[]>()
+        {
+            protected byte[] initialValue()
+            {
+                return new byte[INITIAL_CLASS_BUF_SIZE];
+            }
+        };
+
+    /**
+     * For logging
+     */
+    private static final Logger log = new Logger (IndexedClassLoader.class);
+
+    static
+    {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new <tt>IndexedClassLoader</tt>.
+     *
+     * @param urls    the URLs of the locations in the index, in the same
+     *                order
+     * @param index   the index
+     * @param parent  the parent class loader
+     */
+    IndexedClassLoader (URL[] urls, PackageIndex index, ClassLoader parent)
+    {
+        super (urls, parent);
+
+        this.index = index;
+        this.locations = index.getLocations();
+        this.urls = urls.clone();
+
+        int n = locations.length;
+        this.directories = new boolean[n];
+        this.codeSources = new CodeSource[n];
+        for (int i = 0; i < n; i++)
+        {
+            directories[i] = locations[i].isDirectory();
+            codeSources[i] = new CodeSource (urls[i], (Certificate[]) null);
+        }
+
+        this.readers = new ZipReader[n];
+        this.manifests = new Manifest[n];
+        this.manifestsRead = new boolean[n];
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Close the loader, and the jar and zip files it opened.
+     *
+     * @throws IOException on error
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (readers)
+        {
+            closed = true;
+            for (int i = 0; i < readers.length; i++)
+            {
+                if (readers[i] != null)
+                {
+                    readers[i].close();
+                    readers[i] = null;
+                }
+            }
+        }
+
+        super.close();
+    }
+
+    /**
+     * Find a resource, in the first location that has it.
+     *
+     * @param name  the resource name
+     *
+     * @return a URL for the resource, or null if it isn't found
+     */
+    @Override
+    public URL findResource (String name)
+    {
+        for (int i : index.findLocations (name))
+        {
+            URL url = getResourceURL (i, name);
+            if (url != null)
+                return url;
+        }
+
+        return null;
+    }
+
+    /**
+     * Find all the locations that have a resource.
+     *
+     * @param name  the resource name
+     *
+     * @return URLs for the resource, in search order
+     *
+     * @throws IOException on error
+     */
+    @Override
+    public Enumeration<URL> findResources (String name) throws IOException
+    {
+        List<URL> result = new ArrayList<URL>();
+        for (int i : index.findLocations (name))
+        {
+            URL url = getResourceURL (i, name);
+            if (url != null)
+                result.add (url);
+        }
+
+        return Collections.enumeration (result);
+    }
+
+    /*----------------------------------------------------------------------*\
+                             Protected Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Find and define a class, reading it from the first location that
+     * has it.
+     *
+     * @param className  the class name
+     *
+     * @return the class
+     *
+     * @throws ClassNotFoundException no location has the class
+     */
+    @Override
+    protected Class<?> findClass (String className)
+        throws ClassNotFoundException
+    {
+        String name = className.replace ('.', '/') + ".class";
+        for (int i : index.findLocations (name))
+        {
+            try
+            {
+                byte[] buf = classBuffers.get();
+                int len = read (i, name, buf);
+                if (len > buf.length)
+                {
+                    buf = new byte[len];
+                    if (len <= MAX_RETAINED_CLASS_BUF_SIZE)
+                        classBuffers.set (buf);
+                    len = read (i, name, buf);
+                }
+
+                if (len < 0)
+                    continue;
+
+                // defineClass() copies the buffer before it loads the
+                // superclass, so a nested findClass() on this thread can't
+                // clobber it.
+
+                definePackageFor (className, i);
+                return defineClass (className, buf, 0, len, codeSources[i]);
+            }
+
+            catch (IOException ex)
+            {
+                throw new ClassNotFoundException (className, ex);
+            }
+        }
+
+        throw new ClassNotFoundException (className);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Read a resource from a location into a buffer.
+     *
+     * @param i     the location ordinal
+     * @param name  the resource name
+     * @param buf   the buffer
+     *
+     * @return the number of bytes read, -1 if the location doesn't have
+     *         the resource, or the size of the resource, without reading
+     *         it, if it doesn't fit in the buffer
+     *
+     * @throws IOException on error
+     */
+    private int read (int i, String name, byte[] buf) throws IOException
+    {
+        if (directories[i])
+        {
+            File f = new File (locations[i], name);
+            if (! f.isFile())
+                return -1;
+
+            long size = f.length();
+            if (size > buf.length)
+                return (int) Math.min (size, Integer.MAX_VALUE);
+
+            InputStream is = new FileInputStream (f);
+            try
+            {
+                int total = 0;
+                int n;
+                while ((total < buf.length) &&
+                       ((n = is.read (buf, total, buf.length - total)) > 0))
+                {
+                    total += n;
+                }
+
+                return total;
+            }
+
+            finally
+            {
+                is.close();
+            }
+        }
+
+        ZipReader zip = getReader (i);
+        long size = zip.getSize (name);
+        if (size < 0)
+            return -1;
+        if (size > buf.length)
+            return (int) Math.min (size, Integer.MAX_VALUE);
+
+        return zip.readEntry (name, buf, 0);
+    }
+
+    private URL getResourceURL (int i, String name)
+    {
+        try
+        {
+            if (directories[i])
+            {
+                File f = new File (locations[i], name);
+                return f.exists() ? f.toURI().toURL() : null;
+            }
+
+            if (! getReader (i).containsEntry (name))
+                return null;
+
+            return new URL ("jar:" + urls[i] + "!/" + encodePath (name));
+        }
+
+        catch (MalformedURLException ex)
+        {
+            log.error ("Can't make a URL for \"" + name + "\" in \"" +
+                       locations[i].getPath() + "\"",
+                       ex);
+            return null;
+        }
+
+        catch (IOException ex)
+        {
+            log.error ("Can't read \"" + locations[i].getPath() + "\"", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Percent-encode a resource name for use as the path of a URL, as
+     * <tt>URLClassLoader</tt> does. Otherwise, a "%" in the name would be
+     * decoded when the URL is opened, and anything after a "#" would be
+     * taken as a fragment.
+     */
+    private static String encodePath (String path)
+    {
+        int i = 0;
+        int len = path.length();
+        while ((i < len) && isURLPathChar (path.charAt (i)))
+            i++;
+
+        if (i == len)
+            return path;
+
+        StringBuilder buf = new StringBuilder (len + 16);
+        buf.append (path, 0, i);
+        byte[] bytes;
+        try
+        {
+            bytes = path.substring (i).getBytes ("UTF-8");
+        }
+
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new IllegalStateException (ex);
+        }
+
+        for (byte b : bytes)
+        {
+            char c = (char) (b & 0xff);
+            if (isURLPathChar (c))
+                buf.append (c);
+
+            else
+            {
+                buf.append ('%');
+                buf.append (HEX_DIGITS[(b >> 4) & 0xf]);
+                buf.append (HEX_DIGITS[b & 0xf]);
+            }
+        }
+
+        return buf.toString();
+    }
+
+    private static boolean isURLPathChar (char c)
+    {
+        return ((c >= 'a') && (c <= 'z')) ||
+               ((c >= 'A') && (c <= 'Z')) ||
+               ((c >= '0') && (c <= '9')) ||
+               (URL_PATH_CHARS.indexOf (c) >= 0);
+    }
+
+    /**
+     * Get the open reader for a jar or zip file, opening it if need be.
+     */
+    private ZipReader getReader (int i) throws IOException
+    {
+        synchronized (readers)
+        {
+            if (closed)
+                throw new IOException ("Class loader is closed.");
+
+            if (readers[i] == null)
+                readers[i] = new ZipReader (locations[i]);
+            return readers[i];
+        }
+    }
+
+    /**
+     * Define the package of a class, if it isn't defined yet, using the
+     * manifest of the class's jar file, if any.
+     */
+    private void definePackageFor (String className, int i)
+        throws IOException
+    {
+        int dot = className.lastIndexOf ('.');
+        if (dot < 0)
+            return;
+
+        String packageName = className.substring (0, dot);
+        if (getPackage (packageName) != null)
+            return;
+
+        Manifest manifest = getManifest (i);
+        try
+        {
+            if (manifest != null)
+                definePackage (packageName, manifest, urls[i]);
+            else
+                definePackage (packageName, null, null, null, null, null,
+                               null, null);
+        }
+
+        catch (IllegalArgumentException ex)
+        {
+            // Another thread defined it first.
+        }
+    }
+
+    private Manifest getManifest (int i) throws IOException
+    {
+        if (directories[i])
+            return null;
+
+        ZipReader zip = getReader (i);
+        synchronized (readers)
+        {
+            if (! manifestsRead[i])
+            {
+                InputStream is = zip.getInputStream (MANIFEST_NAME);
+                if (is != null)
+                {
+                    try
+                    {
+                        manifests[i] = new Manifest (is);
+                    }
+
+                    finally
+                    {
+                        is.close();
+                    }
+                }
+
+                manifestsRead[i] = true;
+            }
+
+            return manifests[i];
+        }
+    }
+}
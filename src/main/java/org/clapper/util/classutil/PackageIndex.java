@@ -0,0 +1,462 @@
+package org.clapper.util.classutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.clapper.util.io.ZipReader;
+import org.clapper.util.logging.Logger;
+
+/**
+ * <p>An index from resource directories ("packages") to the jar files,
+ * zip files and directories, in a class loader's search path, that
+ * contain them. An {@link IndexedClassLoader} uses the index to go
+ * straight to the locations that can contain a class or resource, rather
+ * than probing every location in turn.</p>
+ *
+ * <p>The package of a resource is everything before its last "/"
+ * (<tt>org/clapper/util</tt> for
+ * <tt>org/clapper/util/Foo.class</tt>), or the empty string for a
+ * resource at the root. Each location's packages are computed
+ * independently, so the locations can be indexed in parallel. The
+ * packages of each jar and zip file can also be saved to, and loaded
+ * from, a file, and are reused as long as the file's size and
+ * last-modified time are unchanged. Directories are always indexed
+ * afresh, since there's no cheap way to tell whether they've changed.</p>
+ *
+ * @see IndexedClassLoader
+ * @see ClassLoaderBuilder
+ */
+final class PackageIndex
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int INDEX_MAGIC   = 0x4a504b49;
+    private static final int INDEX_VERSION = 1;
+
+    private static final int[] NONE = new int[0];
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The locations, in search order.
+     */
+    private final File[] locations;
+
+    /**
+     * Each location's packages, indexed like the locations.
+     */
+    private final String[][] packages;
+
+    /**
+     * Package-to-locations map. The location ordinals are in search
+     * order.
+     */
+    private final Map<String,int[]> index;
+
+    /**
+     * For logging
+     */
+    private static final Logger log = new Logger (PackageIndex.class);
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Build the index.
+     *
+     * @param locations  the jar files, zip files and directories, in
+     *                   search order
+     * @param threads    the number of threads to use. 1 means "index on
+     *                   the calling thread."
+     * @param indexFile  file from which to load the packages of unchanged
+     *                   jar and zip files, and to which to save the index
+     *                   if anything changed, or null for none
+     */
+    PackageIndex (List<File> locations, int threads, File indexFile)
+    {
+        this.locations = locations.toArray (new File[locations.size()]);
+        this.packages = new String[this.locations.length][];
+
+        Map<String,SavedEntry> saved = new HashMap<String,SavedEntry>();
+        if ((indexFile != null) && indexFile.exists())
+        {
+            try
+            {
+                saved = load (indexFile);
+            }
+
+            catch (IOException ex)
+            {
+                log.error ("Can't load package index \"" +
+                           indexFile.getPath() + "\"",
+                           ex);
+            }
+        }
+
+        final List<IndexTask> tasks = new ArrayList<IndexTask>();
+        boolean changed = false;
+        for (int i = 0; i < this.locations.length; i++)
+        {
+            File location = this.locations[i];
+            SavedEntry entry = saved.get (location.getAbsolutePath());
+            if ((entry != null) &&
+                (entry.size == location.length()) &&
+                (entry.mtime == location.lastModified()))
+            {
+                packages[i] = entry.packages;
+            }
+
+            else
+            {
+                tasks.add (new IndexTask (i));
+                changed = changed || (! location.isDirectory());
+            }
+        }
+
+        if (threads > 1)
+        {
+            ForkJoinPool pool = new ForkJoinPool (threads);
+            try
+            {
+                pool.invoke (new RecursiveAction()
+                {
+                    private static final long serialVersionUID = 1L;
+
+                    protected void compute()
+                    {
+                        invokeAll (tasks);
+                    }
+                });
+            }
+
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+
+        else
+        {
+            for (IndexTask task : tasks)
+                task.compute();
+        }
+
+        index = invert();
+
+        if ((indexFile != null) && changed)
+        {
+            try
+            {
+                save (indexFile);
+            }
+
+            catch (IOException ex)
+            {
+                log.error ("Can't save package index \"" +
+                           indexFile.getPath() + "\"",
+                           ex);
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the indexed locations.
+     *
+     * @return the locations, in search order. The array must not be
+     *         modified.
+     */
+    File[] getLocations()
+    {
+        return locations;
+    }
+
+    /**
+     * Get the locations that can contain a resource.
+     *
+     * @param resourceName  the resource name (e.g.,
+     *                      <tt>org/clapper/util/Foo.class</tt>)
+     *
+     * @return the ordinals of the locations containing the resource's
+     *         package, in search order. The array must not be modified.
+     */
+    int[] findLocations (String resourceName)
+    {
+        int[] result = index.get (packageOf (resourceName));
+        return (result == null) ? NONE : result;
+    }
+
+    /**
+     * Get the package of a resource: everything before the last "/".
+     *
+     * @param resourceName  the resource name
+     *
+     * @return the package, which is empty for a resource at the root
+     */
+    static String packageOf (String resourceName)
+    {
+        int i = resourceName.lastIndexOf ('/');
+        return (i < 0) ? "" : resourceName.substring (0, i);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compute the packages of one location. An unreadable location has
+     * no packages.
+     */
+    private static String[] indexLocation (File location)
+    {
+        Set<String> result = new LinkedHashSet<String>();
+
+        if (location.isDirectory())
+            indexDirectory (location, "", result);
+
+        else
+        {
+            ZipReader zip = null;
+            try
+            {
+                zip = new ZipReader (location);
+                for (String name : zip.getEntryNames())
+                    result.add (packageOf (name));
+            }
+
+            catch (IOException ex)
+            {
+                log.error ("Can't index \"" + location.getPath() + "\"", ex);
+            }
+
+            finally
+            {
+                try
+                {
+                    if (zip != null)
+                        zip.close();
+                }
+
+                catch (IOException ex)
+                {
+                    log.error ("Can't close " + location.getPath(), ex);
+                }
+            }
+        }
+
+        return result.toArray (new String[result.size()]);
+    }
+
+    private static void indexDirectory (File        dir,
+                                        String      prefix,
+                                        Set<String> result)
+    {
+        // Every directory is a package, whether or not it contains
+        // files, so that a lookup for the directory itself finds it.
+
+        result.add (prefix);
+
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File f : files)
+        {
+            if (f.isDirectory())
+            {
+                String name = f.getName();
+                indexDirectory (f,
+                                (prefix.length() == 0) ? name
+                                                       : prefix + "/" + name,
+                                result);
+            }
+        }
+    }
+
+    /**
+     * Build the package-to-locations map from the per-location packages.
+     */
+    private Map<String,int[]> invert()
+    {
+        Map<String,int[]> result = new HashMap<String,int[]>();
+        for (int i = 0; i < packages.length; i++)
+        {
+            for (String pkg : packages[i])
+            {
+                int[] existing = result.get (pkg);
+                if (existing == null)
+                    result.put (pkg, new int[] {i});
+
+                else
+                {
+                    int[] merged = Arrays.copyOf (existing,
+                                                  existing.length + 1);
+                    merged[existing.length] = i;
+                    result.put (pkg, merged);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static Map<String,SavedEntry> load (File file) throws IOException
+    {
+        Map<String,SavedEntry> result = new HashMap<String,SavedEntry>();
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream (new FileInputStream (file)));
+
+        try
+        {
+            if ((in.readInt() != INDEX_MAGIC) ||
+                (in.readInt() != INDEX_VERSION))
+            {
+                throw new IOException ("File \"" + file.getPath() +
+                                       "\" is not a package index.");
+            }
+
+            int total = in.readInt();
+            for (int i = 0; i < total; i++)
+            {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String[] packages = new String[in.readInt()];
+                for (int j = 0; j < packages.length; j++)
+                    packages[j] = in.readUTF();
+
+                result.put (path, new SavedEntry (size, mtime, packages));
+            }
+        }
+
+        finally
+        {
+            in.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Save the packages of the jar and zip files. The index is written to
+     * a temporary file, which is then renamed, so a reader never sees a
+     * partial index.
+     */
+    private void save (File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile ("pkgindex", ".tmp", dir);
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream
+                (new BufferedOutputStream (new FileOutputStream (temp)));
+
+            try
+            {
+                List<Integer> saved = new ArrayList<Integer>();
+                for (int i = 0; i < locations.length; i++)
+                {
+                    if (locations[i].isFile())
+                        saved.add (i);
+                }
+
+                out.writeInt (INDEX_MAGIC);
+                out.writeInt (INDEX_VERSION);
+                out.writeInt (saved.size());
+                for (int i : saved)
+                {
+                    out.writeUTF (locations[i].getAbsolutePath());
+                    out.writeLong (locations[i].length());
+                    out.writeLong (locations[i].lastModified());
+                    out.writeInt (packages[i].length);
+                    for (String pkg : packages[i])
+                        out.writeUTF (pkg);
+                }
+            }
+
+            finally
+            {
+                out.close();
+            }
+
+            Files.move (temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Indexes one location.
+     */
+    private class IndexTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int location;
+
+        IndexTask (int location)
+        {
+            this.location = location;
+        }
+
+        protected void compute()
+        {
+            packages[location] = indexLocation (locations[location]);
+        }
+    }
+
+    /**
+     * The saved packages of a jar or zip file, with the information
+     * needed to validate them.
+     */
+    private static class SavedEntry
+    {
+        final long     size;
+        final long     mtime;
+        final String[] packages;
+
+        SavedEntry (long size, long mtime, String[] packages)
+        {
+            this.size     = size;
+            this.mtime    = mtime;
+            this.packages = packages;
+        }
+    }
+}
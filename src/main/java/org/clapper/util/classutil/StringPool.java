@@ -0,0 +1,89 @@
+package org.clapper.util.classutil;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A pool of canonical strings, shared by the {@link ClassInfo},
+ * {@link FieldInfo} and {@link MethodInfo} objects created by one
+ * {@link ClassFinder} scan. Class names, descriptors and signatures
+ * (<tt>java.lang.String</tt>, <tt>()V</tt>, and so on) repeat across
+ * thousands of classes; storing one copy of each, rather than one per
+ * class, considerably reduces the memory a scan retains.</p>
+ *
+ * <p>Unlike <tt>String.intern()</tt>, the pool is private to a scan, so
+ * its strings can be garbage-collected with the scan's results. It's
+ * safe for concurrent use by the threads of a parallel scan.</p>
+ */
+final class StringPool
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final String[] NO_STRINGS = new String[0];
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final ConcurrentHashMap<String,String> strings =
+        new ConcurrentHashMap<String,String>();
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the canonical copy of a string.
+     *
+     * @param s  the string, or null
+     *
+     * @return the pooled string equal to <tt>s</tt>, or null
+     */
+    String intern (String s)
+    {
+        if (s == null)
+            return null;
+
+        String pooled = strings.get (s);
+        if (pooled == null)
+        {
+            pooled = strings.putIfAbsent (s, s);
+            if (pooled == null)
+                pooled = s;
+        }
+
+        return pooled;
+    }
+
+    /**
+     * Replace the elements of an array with their canonical copies.
+     *
+     * @param array  the array, which is modified in place, or null
+     *
+     * @return the array (or a shared empty array, if it's empty), or null
+     */
+    String[] intern (String[] array)
+    {
+        if (array == null)
+            return null;
+
+        if (array.length == 0)
+            return NO_STRINGS;
+
+        for (int i = 0; i < array.length; i++)
+            array[i] = intern (array[i]);
+
+        return array;
+    }
+
+    /**
+     * Get the number of distinct strings in the pool.
+     *
+     * @return the number of strings
+     */
+    int size()
+    {
+        return strings.size();
+    }
+}
@@ -1,8 +1,5 @@
 package org.clapper.util.classutil;
 
-import java.util.Map;
-import java.util.HashMap;
-
 /**
  * <p><tt>SubclassClassFilter</tt> is a {@link ClassFilter} that matches
  * class names that (a) can be loaded and (b) extend a given subclass or
@@ -51,13 +48,10 @@ public class SubclassClassFilter implements ClassFilter
      */
     public boolean accept (ClassInfo classInfo, ClassFinder classFinder)
     {
-        Map<String,ClassInfo> superClasses = new HashMap<String,ClassInfo>();
-
         if (baseClass.isInterface())
-            classFinder.findAllInterfaces (classInfo, superClasses);
+            return classFinder.implementsInterface (classInfo,
+                                                    baseClass.getName());
         else
-            classFinder.findAllSuperClasses (classInfo, superClasses);
-
-        return superClasses.keySet().contains (baseClass.getName());
+            return classFinder.isSubclassOf (classInfo, baseClass.getName());
     }
 }
@@ -0,0 +1,455 @@
+package org.clapper.util.config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A <tt>ConfigKey</tt> is a precompiled handle to one typed
+ * configuration value: a section name, a variable name, a conversion and,
+ * for an optional value, a default. The first {@link #get get()} from a
+ * {@link Configuration} looks the variable up and converts it, exactly as
+ * the corresponding <tt>Configuration</tt> getter would; later calls
+ * return the cached result, without a map lookup, a string conversion or
+ * an exception, until the <tt>Configuration</tt> changes. Code that reads
+ * the same value over and over (e.g., once per request) can keep a
+ * <tt>ConfigKey</tt> in a static field:</p>
+ *
+ * <blockquote><pre>
+ * private static final ConfigKey&lt;Integer&gt; POOL_SIZE =
+ *     ConfigKey.forInteger ("database", "pool.size", 10);
+ * ...
+ * int poolSize = POOL_SIZE.get (config);
+ * </pre></blockquote>
+ *
+ * <p>A key caches the value from one <tt>Configuration</tt> at a time, so
+ * it works equally well with a single <tt>Configuration</tt> and with the
+ * successive snapshots of a {@link ReloadingConfiguration}. Errors, such
+ * as a missing required variable or a malformed number, aren't cached;
+ * they're reported on every call.</p>
+ *
+ * <p><tt>ConfigKey</tt> objects are immutable (apart from the cache), and
+ * are safe for use by multiple threads.</p>
+ *
+ * @param <T> the type of the value
+ *
+ * @see Configuration
+ */
+public final class ConfigKey<T>
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final String    sectionName;
+    private final String    variableName;
+    private final Lookup<T> lookup;
+
+    /**
+     * The most recently computed value, and where it came from
+     */
+    private volatile Binding<T> binding = null;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    private ConfigKey (String    sectionName,
+                       String    variableName,
+                       Lookup<T> lookup)
+    {
+        this.sectionName  = sectionName;
+        this.variableName = variableName;
+        this.lookup       = lookup;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a key for a required integer value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     *
+     * @return the key
+     *
+     * @see Configuration#getRequiredIntegerValue
+     */
+    public static ConfigKey<Integer> forInteger (String sectionName,
+                                                 String variableName)
+    {
+        return new ConfigKey<Integer>
+            (sectionName, variableName, new Lookup<Integer>()
+            {
+                Integer get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getRequiredIntegerValue (s, v);
+                }
+            });
+    }
+
+    /**
+     * Create a key for an optional integer value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     * @param defaultValue  default value if not found
+     *
+     * @return the key
+     *
+     * @see Configuration#getOptionalIntegerValue
+     */
+    public static ConfigKey<Integer> forInteger (String    sectionName,
+                                                 String    variableName,
+                                                 final int defaultValue)
+    {
+        return new ConfigKey<Integer>
+            (sectionName, variableName, new Lookup<Integer>()
+            {
+                Integer get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getOptionalIntegerValue (s, v,
+                                                           defaultValue);
+                }
+            });
+    }
+
+    /**
+     * Create a key for a required non-negative integer value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     *
+     * @return the key
+     *
+     * @see Configuration#getRequiredCardinalValue
+     */
+    public static ConfigKey<Integer> forCardinal (String sectionName,
+                                                  String variableName)
+    {
+        return new ConfigKey<Integer>
+            (sectionName, variableName, new Lookup<Integer>()
+            {
+                Integer get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getRequiredCardinalValue (s, v);
+                }
+            });
+    }
+
+    /**
+     * Create a key for an optional non-negative integer value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     * @param defaultValue  default value if not found. Must be
+     *                      non-negative.
+     *
+     * @return the key
+     *
+     * @see Configuration#getOptionalCardinalValue
+     */
+    public static ConfigKey<Integer> forCardinal (String    sectionName,
+                                                  String    variableName,
+                                                  final int defaultValue)
+    {
+        return new ConfigKey<Integer>
+            (sectionName, variableName, new Lookup<Integer>()
+            {
+                Integer get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getOptionalCardinalValue (s, v,
+                                                            defaultValue);
+                }
+            });
+    }
+
+    /**
+     * Create a key for a required floating point value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     *
+     * @return the key
+     *
+     * @see Configuration#getRequiredDoubleValue
+     */
+    public static ConfigKey<Double> forDouble (String sectionName,
+                                               String variableName)
+    {
+        return new ConfigKey<Double>
+            (sectionName, variableName, new Lookup<Double>()
+            {
+                Double get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getRequiredDoubleValue (s, v);
+                }
+            });
+    }
+
+    /**
+     * Create a key for an optional floating point value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     * @param defaultValue  default value if not found
+     *
+     * @return the key
+     *
+     * @see Configuration#getOptionalDoubleValue
+     */
+    public static ConfigKey<Double> forDouble (String       sectionName,
+                                               String       variableName,
+                                               final double defaultValue)
+    {
+        return new ConfigKey<Double>
+            (sectionName, variableName, new Lookup<Double>()
+            {
+                Double get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getOptionalDoubleValue (s, v,
+                                                          defaultValue);
+                }
+            });
+    }
+
+    /**
+     * Create a key for a required boolean value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     *
+     * @return the key
+     *
+     * @see Configuration#getRequiredBooleanValue
+     */
+    public static ConfigKey<Boolean> forBoolean (String sectionName,
+                                                 String variableName)
+    {
+        return new ConfigKey<Boolean>
+            (sectionName, variableName, new Lookup<Boolean>()
+            {
+                Boolean get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getRequiredBooleanValue (s, v);
+                }
+            });
+    }
+
+    /**
+     * Create a key for an optional boolean value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     * @param defaultValue  default value if not found
+     *
+     * @return the key
+     *
+     * @see Configuration#getOptionalBooleanValue
+     */
+    public static ConfigKey<Boolean> forBoolean (String        sectionName,
+                                                 String        variableName,
+                                                 final boolean defaultValue)
+    {
+        return new ConfigKey<Boolean>
+            (sectionName, variableName, new Lookup<Boolean>()
+            {
+                Boolean get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getOptionalBooleanValue (s, v,
+                                                           defaultValue);
+                }
+            });
+    }
+
+    /**
+     * Create a key for a required string value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     *
+     * @return the key
+     *
+     * @see Configuration#getRequiredStringValue
+     */
+    public static ConfigKey<String> forString (String sectionName,
+                                               String variableName)
+    {
+        return new ConfigKey<String>
+            (sectionName, variableName, new Lookup<String>()
+            {
+                String get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getRequiredStringValue (s, v);
+                }
+            });
+    }
+
+    /**
+     * Create a key for an optional string value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     * @param defaultValue  default value if not found
+     *
+     * @return the key
+     *
+     * @see Configuration#getOptionalStringValue
+     */
+    public static ConfigKey<String> forString (String       sectionName,
+                                               String       variableName,
+                                               final String defaultValue)
+    {
+        return new ConfigKey<String>
+            (sectionName, variableName, new Lookup<String>()
+            {
+                String get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    return config.getOptionalStringValue (s, v,
+                                                          defaultValue);
+                }
+            });
+    }
+
+    /**
+     * Create a key for the tokens of a required value.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     *
+     * @return the key. Its values are unmodifiable lists.
+     *
+     * @see Configuration#getConfigurationTokens
+     */
+    public static ConfigKey<List<String>> forTokens (String sectionName,
+                                                     String variableName)
+    {
+        return new ConfigKey<List<String>>
+            (sectionName, variableName, new Lookup<List<String>>()
+            {
+                List<String> get (Configuration config, String s, String v)
+                    throws ConfigurationException
+                {
+                    String[] tokens = config.getConfigurationTokens (s, v);
+                    return Collections.unmodifiableList
+                        (Arrays.asList (tokens));
+                }
+            });
+    }
+
+    /**
+     * Get the value from a configuration.
+     *
+     * @param config  the configuration
+     *
+     * @return the value
+     *
+     * @throws NoSuchSectionException  the section doesn't exist
+     * @throws NoSuchVariableException the value is required, and the
+     *                                 variable doesn't exist
+     * @throws ConfigurationException  the value can't be converted
+     */
+    public T get (Configuration config)
+        throws ConfigurationException
+    {
+        // Read the generation before looking up the value, so that a
+        // change made during the lookup invalidates the result.
+
+        int generation = config.getGeneration();
+        Binding<T> b = binding;
+        if ((b == null) ||
+            (b.config != config) ||
+            (b.generation != generation))
+        {
+            b = new Binding<T> (config,
+                                generation,
+                                lookup.get (config, sectionName, variableName));
+            binding = b;
+        }
+
+        else
+        {
+            // A cached value bypasses the getter, which would otherwise
+            // have counted the read.
+
+            config.recordAccess (sectionName, variableName);
+        }
+
+        return b.value;
+    }
+
+    /**
+     * Get the section name.
+     *
+     * @return the section name
+     */
+    public String getSectionName()
+    {
+        return sectionName;
+    }
+
+    /**
+     * Get the variable name.
+     *
+     * @return the variable name
+     */
+    public String getVariableName()
+    {
+        return variableName;
+    }
+
+    /**
+     * Get a printable representation of the key.
+     *
+     * @return the section and variable names
+     */
+    public String toString()
+    {
+        return sectionName + ":" + variableName;
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Looks up and converts a value.
+     */
+    private abstract static class Lookup<T>
+    {
+        abstract T get (Configuration config,
+                        String        sectionName,
+                        String        variableName)
+            throws ConfigurationException;
+    }
+
+    /**
+     * A value, and the configuration and generation it came from.
+     * Immutable, so that it can be replaced with a single volatile write.
+     */
+    private static class Binding<T>
+    {
+        final Configuration config;
+        final int           generation;
+        final T             value;
+
+        Binding (Configuration config, int generation, T value)
+        {
+            this.config     = config;
+            this.generation = generation;
+            this.value      = value;
+        }
+    }
+}
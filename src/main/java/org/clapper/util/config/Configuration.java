@@ -3,18 +3,30 @@ package org.clapper.util.config;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 
+import java.nio.charset.Charset;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 import org.clapper.util.logging.Logger;
 
 import org.clapper.util.text.TextUtil;
@@ -149,9 +161,13 @@ import org.clapper.util.io.FileUtil;
  *       {@link #setAbortOnUndefinedVariable}.
  * </ul>
  *
- * <p>If a variable reference specifies a section name, the referenced section
- * must precede the current section. It is not possible to substitute the value
- * of a variable in a section that occurs later in the file.</p>
+ * <p>A variable may refer to any variable in the file (or in the files it
+ * includes), whether it's defined before or after the reference. Variable
+ * references are expanded after the entire file has been read: each
+ * variable is expanded once, after the variables it refers to. A set of
+ * variables that refer to each other in a cycle (e.g., <tt>a</tt> refers
+ * to <tt>b</tt>, and <tt>b</tt> refers to <tt>a</tt>) can't be expanded,
+ * and causes the load to fail.</p>
  *
  * <p>The section names "system", "env", and "program" are reserved for
  * special "pseudosections."</p>
@@ -392,6 +408,43 @@ import org.clapper.util.io.FileUtil;
  * or a "!". This comment syntax is identical to the one supported by a
  * Java properties file. A blank line is a line containing no content, or
  * one containing only whitespace. Blank lines and comments are ignored.</p>
+ *
+ * <h3>Snapshots</h3>
+ *
+ * <p>A program that loads the same large configuration every time it
+ * starts can use {@link #load(File,String,File)} to keep a binary
+ * snapshot of the fully parsed and substituted configuration. The
+ * snapshot records a checksum of the configuration file and of each file
+ * it includes, along with the values of the <tt>system</tt>,
+ * <tt>program</tt> and <tt>env</tt> variables it refers to. As long as
+ * none of them has changed, the configuration is loaded straight from the
+ * snapshot, without parsing; otherwise, it's parsed as usual, and the
+ * snapshot is rewritten. (A configuration that refers to
+ * <tt>${program:now}</tt> is thus parsed afresh whenever the time has
+ * changed.)</p>
+ *
+ * <h3>Instrumentation</h3>
+ *
+ * <p>To find out which variables a program actually uses, enable
+ * instrumentation via {@link #setInstrumentation setInstrumentation()}.
+ * Every read of a variable through one of the getters is then counted,
+ * as is the time spent expanding variable references, and
+ * {@link #writeAccessReport writeAccessReport()} lists the counts, along
+ * with the variables that were never read. A variable that's read once
+ * per request, or not at all, shows up immediately.</p>
+ *
+ * <h3>Reloading</h3>
+ *
+ * <p>Reading a <tt>Configuration</tt> from multiple threads needs no
+ * locking, even while another thread modifies it via
+ * {@link #setVariable setVariable()} or {@link #addSection addSection()}:
+ * a reader sees each variable either before or after a change, never
+ * half-changed. A load, however, replaces all the data, one variable at a
+ * time, so a reader may see some mixture of the old and new data. To pick
+ * up changes to a configuration file in a running program, use a
+ * {@link ReloadingConfiguration}, which parses each new version of the
+ * file into a new, read-only <tt>Configuration</tt>, and then swaps it
+ * in.</p>
  */
 public class Configuration
     implements VariableDereferencer, VariableNameChecker
@@ -404,6 +457,7 @@ public class Configuration
     private static final char   SECTION_START              = '[';
     private static final char   SECTION_END                = ']';
     private static final String INCLUDE                    = "%include";
+    private static final String INCLUDE_DELIMITERS         = " \t\n\r\f";
     private static final int    MAX_INCLUDE_NESTING_LEVEL  = 50;
     private static final String SYSTEM_SECTION_NAME        = "system";
     private static final String PROGRAM_SECTION_NAME       = "program";
@@ -412,6 +466,11 @@ public class Configuration
     private static final int    PROGRAM_SECTION_ID         = 1;
     private static final int    ENV_SECTION_ID             = 2;
     private static final int    FIRST_CONFIG_SECTION_ID    = 3;
+    private static final char   VAR_START                  = '$';
+    private static final int    SNAPSHOT_MAGIC             = 0x4a434653;
+    private static final int    SNAPSHOT_VERSION           = 1;
+    private static final Charset SNAPSHOT_CHARSET =
+        Charset.forName ("UTF-8");
 
     /*----------------------------------------------------------------------*\
                                   Classes
@@ -436,7 +495,14 @@ public class Configuration
     {
         int            number = 0;
         LineType       type   = LineType.COMMENT;
-        XStringBuffer  buffer = new XStringBuffer();
+        char[]         chars  = new char[256];
+        int            length = 0;
+
+        /**
+         * Index of the first ":" or "=" in the line, or -1 if there isn't
+         * one. Only meaningful for a variable line.
+         */
+        int            separator = -1;
 
         Line()
         {
@@ -445,7 +511,217 @@ public class Configuration
 
         void newLine()
         {
-            buffer.setLength (0);
+            length = 0;
+            separator = -1;
+        }
+
+        void append (char c)
+        {
+            if (length == chars.length)
+                chars = Arrays.copyOf (chars, length * 2);
+
+            if ((separator < 0) && ((c == ':') || (c == '=')))
+                separator = length;
+
+            chars[length++] = c;
+        }
+
+        String substring (int start, int end)
+        {
+            return new String (chars, start, end - start);
+        }
+    }
+
+    /**
+     * Splits configuration input into logical lines. The lexer reads
+     * through its own buffer, and copies each line's characters straight
+     * into a Line, stripping leading white space, joining continued lines
+     * and noting the position of a variable's assignment operator as it
+     * goes. No String is created for a physical line.
+     */
+    private static class LineLexer
+    {
+        private final Reader in;
+        private final char[] buf = new char[8192];
+        private int          pos = 0;
+        private int          limit = 0;
+
+        /**
+         * Set when the last physical line ended with a carriage return, so
+         * that a newline immediately following it is skipped.
+         */
+        private boolean      skipLF = false;
+
+        LineLexer (Reader in)
+        {
+            this.in = in;
+        }
+
+        /**
+         * Read the next logical line of input.
+         *
+         * @param line where to store the line. The line number in this
+         *             object is incremented, the characters are replaced,
+         *             and the "type" field is set appropriately.
+         *
+         * @return <tt>true</tt> if a line was read, <tt>false</tt> for EOF.
+         *
+         * @throws ConfigurationException read error
+         */
+        boolean next (Line line)
+            throws ConfigurationException
+        {
+            boolean continued    = false;
+            boolean gotSomething = false;
+
+            line.newLine();
+            for (;;)
+            {
+                int start = line.length;
+
+                try
+                {
+                    if (! readPhysicalLine (line))
+                        break;
+                }
+
+                catch (IOException ex)
+                {
+                    throw new ConfigurationException (ex.toString());
+                }
+
+                gotSomething = true;
+                line.number++;
+
+                if (! continued)
+                    line.type = classify (line);
+
+                // Only variable definition lines may be continued. Drop
+                // the continuation mark, and keep going.
+
+                if ((line.type == LineType.VARIABLE) &&
+                    hasContinuationMark (line, start))
+                {
+                    continued = true;
+                    line.length--;
+                }
+
+                else
+                {
+                    break;
+                }
+            }
+
+            return gotSomething;
+        }
+
+        /**
+         * Append the next physical line, minus its leading white space and
+         * line terminator, to a logical line.
+         *
+         * @return <tt>false</tt> at EOF
+         */
+        private boolean readPhysicalLine (Line line)
+            throws IOException
+        {
+            boolean leading = true;
+            boolean gotSomething = false;
+
+            for (;;)
+            {
+                if ((pos == limit) && (! fill()))
+                    return gotSomething;
+
+                char c = buf[pos++];
+                if (skipLF)
+                {
+                    skipLF = false;
+                    if (c == '\n')
+                        continue;
+                }
+
+                gotSomething = true;
+                if (c == '\n')
+                    return true;
+
+                if (c == '\r')
+                {
+                    skipLF = true;
+                    return true;
+                }
+
+                if (leading && Character.isWhitespace (c))
+                    continue;
+
+                leading = false;
+                line.append (c);
+            }
+        }
+
+        private boolean fill()
+            throws IOException
+        {
+            int n = in.read (buf, 0, buf.length);
+            if (n <= 0)
+                return false;
+
+            pos = 0;
+            limit = n;
+            return true;
+        }
+
+        /**
+         * Determine what kind of line a logical line is, from its first
+         * physical line.
+         */
+        private static LineType classify (Line line)
+        {
+            if (line.length == 0)
+                return LineType.BLANK;
+
+            char first = line.chars[0];
+            if (COMMENT_CHARS.indexOf (first) != -1)
+                return LineType.COMMENT;
+
+            if (first == SECTION_START)
+                return LineType.SECTION;
+
+            // An include directive is "%include", followed by white space.
+
+            int n = INCLUDE.length();
+            if (line.length >= n)
+            {
+                int i = 0;
+                while ((i < n) && (line.chars[i] == INCLUDE.charAt (i)))
+                    i++;
+
+                if ((i == n) &&
+                    ((line.length == n) ||
+                     (INCLUDE_DELIMITERS.indexOf (line.chars[n]) != -1)))
+                {
+                    return LineType.INCLUDE;
+                }
+            }
+
+            return LineType.VARIABLE;
+        }
+
+        /**
+         * Determine whether a physical line ends with a continuation mark:
+         * an odd number of backslashes.
+         */
+        private static boolean hasContinuationMark (Line line, int start)
+        {
+            int total = 0;
+            for (int i = line.length - 1; i >= start; i--)
+            {
+                if (line.chars[i] != '\\')
+                    break;
+
+                total++;
+            }
+
+            return ((total % 2) == 1);
         }
     }
 
@@ -455,11 +731,13 @@ public class Configuration
     private class SubstitutionContext
     {
         Variable currentVariable;
+        VariableResolver resolver;
         int totalSubstitutions = 0;
 
-        SubstitutionContext (Variable v)
+        SubstitutionContext (Variable v, VariableResolver resolver)
         {
             currentVariable = v;
+            this.resolver = resolver;
         }
     }
 
@@ -491,10 +769,290 @@ public class Configuration
          */
         Set<String> openURLs = new HashSet<String>();
 
-        ParseContext()
+        /**
+         * The files/URLs read so far, in the order they were opened.
+         */
+        List<URL> sourceURLs = new ArrayList<URL>();
+
+        /**
+         * The checksums of the files/URLs read so far, indexed like
+         * <tt>sourceURLs</tt>.
+         */
+        List<Long> sourceChecksums = new ArrayList<Long>();
+
+        /**
+         * Fetches the included files/URLs.
+         */
+        IncludeLoader includes;
+
+        ParseContext (String encoding)
+        {
+            includes = new IncludeLoader (encoding,
+                                          MAX_INCLUDE_NESTING_LEVEL,
+                                          new IncludeLoader.Scanner()
+                                          {
+                                              public List<URL>
+                                              findIncludes (URL    url,
+                                                            String text)
+                                              {
+                                                  return Configuration
+                                                      .findIncludes (url,
+                                                                     text);
+                                              }
+                                          });
+        }
+    }
+
+    /**
+     * Expands the variable references in a freshly loaded configuration.
+     * The references form a graph, with an edge from each variable to
+     * each variable its value refers to. The resolver walks the graph
+     * depth-first, and expands each variable exactly once, after the
+     * variables it refers to, so that every reference is replaced by a
+     * value that's already fully expanded. A reference to a variable
+     * that's still being expanded closes a cycle, which is an error.
+     * With lazy substitution, the resolver outlives the load, and
+     * expands each variable when it's first read; it's then guarded by
+     * its own lock.
+     */
+    private class VariableResolver
+    {
+        /**
+         * The variables currently being expanded.
+         */
+        Set<Variable> resolving =
+            Collections.newSetFromMap (new IdentityHashMap<Variable,Boolean>());
+
+        /**
+         * The variables currently being expanded, outermost first. Used to
+         * report cycles.
+         */
+        List<Variable> path = new ArrayList<Variable>();
+
+        VariableResolver()
+        {
+            // Nothing to do
+        }
+
+        /**
+         * Expand every variable in the configuration.
+         *
+         * @throws ConfigurationException substitution error, or a cycle
+         */
+        void resolveAll()
+            throws ConfigurationException
+        {
+            try
+            {
+                for (Section section : sectionsInOrder)
+                {
+                    for (String name : section.getVariableNames())
+                        resolve (section.getVariable (name));
+                }
+            }
+
+            catch (VariableSubstitutionException ex)
+            {
+                throw new ConfigurationException (ex.getMessage());
+            }
+        }
+
+        /**
+         * Expand a variable, and (first) the variables it refers to, if
+         * they haven't been expanded already. The graph is walked with an
+         * explicit stack, so that long chains of references can't
+         * overflow the thread's stack. If the walk fails, the variables
+         * it was expanding are left unexpanded, so that a later attempt
+         * reports the same error.
+         *
+         * @param var the variable
+         *
+         * @throws VariableSubstitutionException substitution error, or a
+         *                                       cycle
+         * @throws ConfigurationException        some other error
+         */
+        void resolve (Variable var)
+            throws VariableSubstitutionException,
+                   ConfigurationException
+        {
+            if (! var.isSubstitutionPending())
+                return;
+
+            List<Visit> stack = new ArrayList<Visit>();
+            boolean finished = false;
+
+            try
+            {
+                stack.add (enter (var));
+                while (! stack.isEmpty())
+                {
+                    Visit visit = stack.get (stack.size() - 1);
+                    if (visit.next < visit.references.size())
+                    {
+                        Variable ref = visit.references.get (visit.next++);
+                        if (resolving.contains (ref))
+                            throw cycle (ref);
+                        if (ref.isSubstitutionPending())
+                            stack.add (enter (ref));
+                    }
+
+                    else
+                    {
+                        substituteVariables (visit.var, varSubstituter, this,
+                                             true);
+                        visit.var.setSubstitutionPending (false);
+                        resolving.remove (visit.var);
+                        path.remove (path.size() - 1);
+                        stack.remove (stack.size() - 1);
+                    }
+                }
+
+                finished = true;
+            }
+
+            finally
+            {
+                if (! finished)
+                {
+                    // This walk's variables are the last ones on the path.
+
+                    for (Visit visit : stack)
+                        resolving.remove (visit.var);
+                    path.subList (path.size() - stack.size(), path.size())
+                        .clear();
+                }
+            }
+        }
+
+        /**
+         * Start expanding a variable, by finding the variables its value
+         * refers to.
+         */
+        private Visit enter (Variable var)
+            throws VariableSubstitutionException,
+                   ConfigurationException
+        {
+            if (resolving.contains (var))
+                throw cycle (var);
+
+            List<Variable> references = findReferences (var);
+            resolving.add (var);
+            path.add (var);
+            return new Visit (var, references);
+        }
+
+        /**
+         * Find the configuration variables a variable's value refers to.
+         * References to pseudosections, and to variables that don't exist,
+         * have no dependencies, and are left for substituteVariables() to
+         * handle (or report).
+         */
+        private List<Variable> findReferences (Variable var)
+            throws VariableSubstitutionException,
+                   ConfigurationException
+        {
+            ReferenceCollector collector = new ReferenceCollector();
+            for (ValueSegment segment : var.getCookedSegments())
+            {
+                if (segment.isLiteral)
+                    continue;
+
+                String s = segment.segmentBuf.toString();
+                if (s.indexOf (VAR_START) >= 0)
+                {
+                    varSubstituter.substitute (s,
+                                               collector,
+                                               Configuration.this,
+                                               null);
+                }
+            }
+
+            List<Variable> result = new ArrayList<Variable>();
+            for (String name : collector.names)
+            {
+                Section section;
+                int i = name.indexOf (':');
+                if (i == -1)
+                    section = var.getSection();
+                else
+                    section = findReferencedSection (name.substring (0, i));
+
+                if ((section == null) || (! isConfigSection (section)))
+                    continue;
+
+                Variable ref = section.getVariable (name.substring (i + 1));
+                if ((ref != null) && (ref != var))
+                    result.add (ref);
+            }
+
+            return result;
+        }
+
+        /**
+         * Build the exception for a reference that closes a cycle.
+         */
+        private VariableSubstitutionException cycle (Variable var)
+        {
+            StringBuilder buf = new StringBuilder();
+            for (int i = path.indexOf (var); i < path.size(); i++)
+            {
+                Variable v = path.get (i);
+                buf.append (v.getSection().getName());
+                buf.append (':');
+                buf.append (v.getName());
+                buf.append (" -> ");
+            }
+
+            buf.append (var.getSection().getName());
+            buf.append (':');
+            buf.append (var.getName());
+
+            return new VariableSubstitutionException
+                            (Package.BUNDLE_NAME,
+                             "Configuration.referenceCycle",
+                             "Variable references form a cycle: {0}",
+                             new Object[] {buf.toString()});
+        }
+    }
+
+    /**
+     * A variable in the middle of being expanded by a VariableResolver.
+     */
+    private static class Visit
+    {
+        Variable       var;
+        List<Variable> references;
+        int            next = 0;
+
+        Visit (Variable var, List<Variable> references)
+        {
+            this.var = var;
+            this.references = references;
+        }
+    }
+
+    /**
+     * A dereferencer that collects the names of the variables referred to
+     * in a string, rather than substituting their values.
+     */
+    private static class ReferenceCollector implements VariableDereferencer
+    {
+        List<String> names = new ArrayList<String>();
+
+        ReferenceCollector()
         {
             // Nothing to do
         }
+
+        public String getVariableValue (String varName, Object context)
+        {
+            names.add (varName);
+
+            // Any non-empty value will do, so that the substituter doesn't
+            // fall back to a default value (or abort).
+
+            return varName;
+        }
     }
 
     /*----------------------------------------------------------------------*\
@@ -506,23 +1064,47 @@ public class Configuration
      */
     private URL configURL = null;
 
+    /**
+     * The URLs of the configuration file and the files it included, in
+     * the order they were read.
+     */
+    private List<URL> sourceURLs = new ArrayList<URL>();
+
+    /**
+     * The checksums of the sources, indexed like <tt>sourceURLs</tt>.
+     */
+    private List<Long> sourceChecksums = new ArrayList<Long>();
+
+    /**
+     * The values substituted from the pseudosections, by
+     * "section:variable" reference. A value is null if the variable
+     * didn't exist. Recorded so that a snapshot can tell whether the
+     * environment it was built in has changed.
+     */
+    private Map<String,String> pseudoReferences =
+        new LinkedHashMap<String,String>();
+
     /**
      * List of sections, in order encountered. Each element is a reference to
-     * a Section object.
+     * a Section object. Copy-on-write, since sections are rarely added,
+     * but often iterated over by readers that don't lock.
      */
-    private List<Section> sectionsInOrder = new ArrayList<Section>();
+    private final List<Section> sectionsInOrder =
+        new CopyOnWriteArrayList<Section>();
 
     /**
      * Sections by name. Each index is a string. Each value is a reference to
-     * a Section object.
+     * a Section object. A section is added here before it's added to
+     * sectionsInOrder, so that any section a reader finds there can be
+     * looked up.
      */
-    private Map<String, Section> sectionsByName =
-                                             new HashMap<String, Section>();
+    private final Map<String, Section> sectionsByName =
+        new ConcurrentHashMap<String, Section>();
 
     /**
      * Special section for System.properties
      */
-    private static Section systemSection;
+    private Section systemSection;
 
     /**
      * Special section for program properties
@@ -549,12 +1131,53 @@ public class Configuration
      */
     private boolean abortOnUndefinedVariable = true;
 
+    /**
+     * Whether to expand variable references when a variable is first
+     * read, rather than at load time
+     */
+    private boolean lazySubstitution = false;
+
+    /**
+     * With lazy substitution, the resolver that expands the variables as
+     * they're read, or null if there's nothing left to expand
+     */
+    private volatile VariableResolver lazyResolver = null;
+
+    /**
+     * Listeners to be told about changes when this object is reloaded
+     */
+    private final List<ConfigurationChangeListener> changeListeners =
+        new CopyOnWriteArrayList<ConfigurationChangeListener>();
+
+    /**
+     * Whether to count variable reads and time variable substitution
+     */
+    private volatile boolean instrumentation = false;
+
+    /**
+     * With instrumentation, the time spent expanding variable references
+     * since the last load, in nanoseconds
+     */
+    private final AtomicLong substitutionTime = new AtomicLong();
+
     /**
      * The substituter
      */
     private UnixShellVariableSubstituter varSubstituter =
         new UnixShellVariableSubstituter();
 
+    /**
+     * Whether this object may be modified. Snapshots published by a
+     * ReloadingConfiguration are read-only.
+     */
+    private boolean readOnly = false;
+
+    /**
+     * Incremented whenever the configuration data changes, so that a
+     * ConfigKey can tell whether its cached value is still current.
+     */
+    private volatile int generation = 0;
+
     /*----------------------------------------------------------------------*\
                                 Constructor
     \*----------------------------------------------------------------------*/
@@ -585,23 +1208,32 @@ public class Configuration
      * @see #getSectionNames
      * @see #setVariable
      */
-    public void addSection (String sectionName)
+    public synchronized void addSection (String sectionName)
         throws SectionExistsException
     {
-        if (sectionsByName.get (sectionName) != null)
+        checkWritable();
+        if (getSection (sectionName) != null)
             throw new SectionExistsException (sectionName);
 
         makeNewSection (sectionName);
+        generation++;
     }
 
     /**
      * Clear this object of all configuration data.
      */
-    public void clear()
+    public synchronized void clear()
     {
+        checkWritable();
         sectionsInOrder.clear();
         sectionsByName.clear();
+        sourceURLs = new ArrayList<URL>();
+        sourceChecksums = new ArrayList<Long>();
+        pseudoReferences = new LinkedHashMap<String,String>();
+        lazyResolver = null;
         configURL = null;
+        substitutionTime.set (0);
+        generation++;
     }
 
     /**
@@ -617,7 +1249,7 @@ public class Configuration
      */
     public final boolean containsSection (String sectionName)
     {
-        return (sectionsByName.get (sectionName) != null);
+        return (getSection (sectionName) != null);
     }
 
     /**
@@ -631,6 +1263,20 @@ public class Configuration
         return configURL;
     }
 
+    /**
+     * Get the URLs of the configuration file and of the files it
+     * included, directly or indirectly.
+     *
+     * @return the URLs, in the order they were read. The list is empty if
+     *         no configuration was loaded from a file or URL.
+     *
+     * @see #getConfigurationFileURL
+     */
+    public List<URL> getSourceURLs()
+    {
+        return Collections.unmodifiableList (sourceURLs);
+    }
+
     /**
      * Get the names of the sections in this object, in the order they were
      * parsed and/or added.
@@ -687,7 +1333,7 @@ public class Configuration
                                                 Collection<String> collection)
         throws NoSuchSectionException
     {
-        Section section = sectionsByName.get (sectionName);
+        Section section = getSection (sectionName);
         if (section == null)
             throw new NoSuchSectionException (sectionName);
 
@@ -748,34 +1394,36 @@ public class Configuration
      *
      * @throws NoSuchSectionException  the named section does not exist
      * @throws NoSuchVariableException the section has no such variable
+     * @throws IllegalStateException   with lazy substitution, the
+     *                                 variable's references can't be
+     *                                 expanded. (Use
+     *                                 {@link #getRequiredStringValue} to
+     *                                 get a <tt>ConfigurationException</tt>
+     *                                 instead.)
      *
      * @see #getConfigurationTokens
+     * @see #getRequiredStringValue
      */
     public String getConfigurationValue (String sectionName,
                                          String variableName)
         throws NoSuchSectionException,
                NoSuchVariableException
     {
-        Section section = sectionsByName.get (sectionName);
-        if (section == null)
-            throw new NoSuchSectionException (sectionName);
-
-        Variable variable = null;
+        Variable variable = getVariable (sectionName, variableName);
 
         try
         {
-            variable = section.getVariable (variableName);
+            return expand (variable).getCookedValue();
         }
 
         catch (ConfigurationException ex)
         {
+            // Only possible with lazy substitution, which this method's
+            // signature predates.
+
+            throw new IllegalStateException (ex.getMessage(), ex);
         }
-
-        if (variable == null)
-            throw new NoSuchVariableException (sectionName, variableName);
-
-        return variable.getCookedValue();
-    }
+    }
 
     /**
      * Get the raw value (i.e., without any substitutions) for a variable.
@@ -794,25 +1442,7 @@ public class Configuration
         throws NoSuchSectionException,
                NoSuchVariableException
     {
-        Section section = sectionsByName.get (sectionName);
-        if (section == null)
-            throw new NoSuchSectionException (sectionName);
-
-        Variable variable = null;
-
-        try
-        {
-            variable = section.getVariable (variableName);
-        }
-
-        catch (ConfigurationException ex)
-        {
-        }
-
-        if (variable == null)
-            throw new NoSuchVariableException (sectionName, variableName);
-
-        return variable.getRawValue();
+        return getVariable (sectionName, variableName).getRawValue();
     }
 
     /**
@@ -856,7 +1486,7 @@ public class Configuration
                                             String variableName)
         throws ConfigurationException
     {
-        Section section = sectionsByName.get (sectionName);
+        Section section = getSection (sectionName);
         if (section == null)
             throw new NoSuchSectionException (sectionName);
 
@@ -880,59 +1510,10 @@ public class Configuration
         if (variable == null)
             throw new NoSuchVariableException (sectionName, variableName);
 
-        // The "cooked" tokens are split into literal (i.e., quoted) and
-        // non-quoted pieces. This is almost never what a caller wants.
-        // Instead, the caller wants individual tokens, with quoted parts
-        // represented as a single token. For instance, given:
-        //
-        //      abc def ghi
-        //
-        // the caller wants:
-        //
-        //      abc
-        //      def
-        //      ghi
-        //
-        // Similarly, given:
-        //
-        //      abc "def ghi" jkl
-        //
-        // the caller wants:
-        //
-        //      abc
-        //      def ghi
-        //      jkl
-        //
-        // Fortunately, the parser keeps track of whether a segment was
-        // literal or not, so this is easy to manufacture.
-
-        ValueSegment[] cookedSegments = variable.getCookedSegments();
-        ArrayList<String> result = new ArrayList<String>();
-
-        if (cookedSegments != null)
-        {
-            for (ValueSegment segment : cookedSegments)
-            {
-                String cookedToken = segment.toString();
-                if (segment.isLiteral || segment.isWhiteSpaceEscaped)
-                {
-                    // Was quoted. Use it as is.
-
-                    result.add(cookedToken);
-                }
-
-                else
-                {
-                    // Break it into white space-delimited tokens.
-
-                    String[] tokens = TextUtil.split(cookedToken);
-                    for (String token : tokens)
-                        result.add(token);
-                }
-            }
-        }
+        if (instrumentation)
+            variable.recordAccess();
 
-        return result.toArray(new String[result.size()]);
+        return expand (variable).getValueTokens().clone();
     }
 
     /**
@@ -956,19 +1537,14 @@ public class Configuration
                                         int    defaultValue)
         throws ConfigurationException
     {
-        int result = defaultValue;
-
-        try
-        {
-            result = getRequiredIntegerValue(sectionName, variableName);
-        }
-
-        catch (NoSuchVariableException ex)
-        {
-            // Use default
-        }
+        Variable variable = expand (findVariable (sectionName,
+                                                  variableName));
+        if (variable == null)
+            return defaultValue;
 
-        return result;
+        return parseInteger (variable.getCookedValue(),
+                             sectionName,
+                             variableName);
     }
 
     /**
@@ -989,27 +1565,10 @@ public class Configuration
                                         String variableName)
         throws ConfigurationException
     {
-        String sNum = getConfigurationValue (sectionName, variableName);
-
-        try
-        {
-            return Integer.parseInt (sNum);
-        }
-
-        catch (NumberFormatException ex)
-        {
-            throw new ConfigurationException
-                (Package.BUNDLE_NAME,
-                 "Configuration.badNumericValue",
-                 "Bad numeric value \"{0}\" for variable \"{1}\" in section " +
-                 "\"{2}\"",
-                 new Object[]
-                 {
-                     sNum,
-                     variableName,
-                     sectionName
-                 });
-        }
+        return parseInteger (getRequiredStringValue (sectionName,
+                                                     variableName),
+                             sectionName,
+                             variableName);
     }
 
     /**
@@ -1035,19 +1594,15 @@ public class Configuration
         throws ConfigurationException
     {
         assert (defaultValue >= 0);
-        int result = defaultValue;
-
-        try
-        {
-            result = getRequiredCardinalValue(sectionName, variableName);
-        }
 
-        catch (NoSuchVariableException ex)
-        {
-            // Accept default
-        }
+        Variable variable = expand (findVariable (sectionName,
+                                                  variableName));
+        if (variable == null)
+            return defaultValue;
 
-        return result;
+        return parseCardinal (variable.getCookedValue(),
+                              sectionName,
+                              variableName);
     }
 
     /**
@@ -1067,24 +1622,10 @@ public class Configuration
                                          String variableName)
         throws ConfigurationException
     {
-        String sNum = getConfigurationValue (sectionName, variableName);
-        int i = getRequiredIntegerValue (sectionName, variableName);
-        if (i < 0)
-        {
-            throw new ConfigurationException
-                               (Package.BUNDLE_NAME,
-                                "Configuration.negativeCardinalValue",
-                                "Bad negative numeric value \"{0}\" " +
-                                "for variable \"{1}\" in section \"{2}\"",
-                                new Object[]
-                                {
-                                    sNum,
-                                    variableName,
-                                    sectionName
-                                });
-        }
-
-        return i;
+        return parseCardinal (getRequiredStringValue (sectionName,
+                                                      variableName),
+                              sectionName,
+                              variableName);
     }
 
     /**
@@ -1105,19 +1646,14 @@ public class Configuration
                                           double defaultValue)
         throws ConfigurationException
     {
-        double result = defaultValue;
-
-        try
-        {
-            result = getRequiredDoubleValue(sectionName, variableName);
-        }
-
-        catch (NoSuchVariableException ex)
-        {
-            // Accept default
-        }
+        Variable variable = expand (findVariable (sectionName,
+                                                  variableName));
+        if (variable == null)
+            return defaultValue;
 
-        return result;
+        return parseDouble (variable.getCookedValue(),
+                            sectionName,
+                            variableName);
     }
 
     /**
@@ -1135,27 +1671,10 @@ public class Configuration
                                           String variableName)
         throws ConfigurationException
     {
-        String sNum = getConfigurationValue (sectionName, variableName);
-
-        try
-        {
-            return Double.parseDouble (sNum);
-        }
-
-        catch (NumberFormatException ex)
-        {
-            throw new ConfigurationException (Package.BUNDLE_NAME,
-                                              "Configuration.badFloatValue",
-                                              "Bad floating point value " +
-                                              "\"{0}\" for variable \"{1}\" " +
-                                              "in section \"{2}\"",
-                                              new Object[]
-                                              {
-                                                  sNum,
-                                                  variableName,
-                                                  sectionName
-                                              });
-        }
+        return parseDouble (getRequiredStringValue (sectionName,
+                                                    variableName),
+                            sectionName,
+                            variableName);
     }
 
     /**
@@ -1176,29 +1695,24 @@ public class Configuration
                                             boolean defaultValue)
         throws ConfigurationException
     {
-        boolean result;
-
-        try
-        {
-            String s = getConfigurationValue (sectionName, variableName);
+        Variable variable = expand (findVariable (sectionName,
+                                                  variableName));
+        if (variable == null)
+            return defaultValue;
 
-            if (TextUtil.stringIsEmpty (s))
-                result = defaultValue;
-            else
-                result = TextUtil.booleanFromString (s);
-        }
+        String s = variable.getCookedValue();
+        if (TextUtil.stringIsEmpty (s))
+            return defaultValue;
 
-        catch (NoSuchVariableException ex)
+        try
         {
-            result = defaultValue;
+            return TextUtil.booleanFromString (s);
         }
 
         catch (IllegalArgumentException ex)
         {
             throw new ConfigurationException (ex.getMessage());
         }
-
-        return result;
     }
 
     /**
@@ -1216,7 +1730,7 @@ public class Configuration
         throws ConfigurationException
 
     {
-        String val = getConfigurationValue(sectionName, variableName);
+        String val = getRequiredStringValue (sectionName, variableName);
         try
         {
             return TextUtil.booleanFromString(val);
@@ -1234,6 +1748,32 @@ public class Configuration
 
     }
 
+    /**
+     * Convenience method to get a required string value. This method is
+     * equivalent to {@link #getConfigurationValue}, except that, with lazy
+     * substitution, an error expanding the value is reported as a
+     * <tt>ConfigurationException</tt>.
+     *
+     * @param sectionName   section name
+     * @param variableName  variable name
+     *
+     * @return the value (which may be the empty string)
+     *
+     * @throws NoSuchSectionException  the named section does not exist
+     * @throws NoSuchVariableException the section has no such variable
+     * @throws ConfigurationException  error expanding the value
+     *
+     * @see #getConfigurationValue
+     * @see #getOptionalStringValue
+     */
+    public String getRequiredStringValue (String sectionName,
+                                          String variableName)
+        throws ConfigurationException
+    {
+        return expand (getVariable (sectionName, variableName))
+               .getCookedValue();
+    }
+
     /**
      * Convenience method to get an optional string value. The default
      * value applies if the variable is missing or is there but has an
@@ -1252,21 +1792,13 @@ public class Configuration
                                           String defaultValue)
         throws ConfigurationException
     {
-        String result;
-
-        try
-        {
-            result = getConfigurationValue (sectionName, variableName);
-            if (TextUtil.stringIsEmpty (result))
-                result = defaultValue;
-        }
-
-        catch (NoSuchVariableException ex)
-        {
-            result = defaultValue;
-        }
+        Variable variable = expand (findVariable (sectionName,
+                                                  variableName));
+        if (variable == null)
+            return defaultValue;
 
-        return result;
+        String result = variable.getCookedValue();
+        return TextUtil.stringIsEmpty (result) ? defaultValue : result;
     }
 
     /**
@@ -1310,17 +1842,7 @@ public class Configuration
         }
 
         currentVariable = substContext.currentVariable;
-        if (currentVariable.getName().equals (varName))
-        {
-            throw new VariableSubstitutionException
-                                 (Package.BUNDLE_NAME,
-                                  "Configuration.recursiveSubst",
-                                  "Attempt to substitute value for variable " +
-                                  "\"{0}\" within itself.",
-                                  new Object[] {varName});
-        }
-
-        variableParentSection = substContext.currentVariable.getSection();
+        variableParentSection = currentVariable.getSection();
         i = varName.indexOf (':');
         if (i == -1)
         {
@@ -1335,18 +1857,7 @@ public class Configuration
         {
             sectionName = varName.substring (0, i);
             varName = varName.substring (i + 1);
-
-            if (sectionName.equals (SYSTEM_SECTION_NAME))
-                section = systemSection;
-
-            else if (sectionName.equals (PROGRAM_SECTION_NAME))
-                section = programSection;
-
-            else if (sectionName.equals (ENV_SECTION_NAME))
-                section = envSection;
-
-            else
-                section = sectionsByName.get (sectionName);
+            section = findReferencedSection (sectionName);
         }
 
         if (section == null)
@@ -1364,34 +1875,37 @@ public class Configuration
 
         else
         {
-            if (variableParentSection.getID() < section.getID())
-            {
-                String parentSectionName = variableParentSection.getName();
-                String thisSectionName = section.getName();
-
-                throw new VariableSubstitutionException
-                    (Package.BUNDLE_NAME,
-                     "Configuration.badSectionRef",
-                     "Variable \"{0}\" in section \"{1}\" cannot substitute " +
-                     "the value of variable \"{2}\" from section \"{3}\", " +
-                     "because section \"{3}\" appears after section \"{1}\" " +
-                     "in the configuration file.",
-                     new Object[]
-                     {
-                         substContext.currentVariable.getName(),
-                         parentSectionName,
-                         varName,
-                         thisSectionName,
-                         thisSectionName,
-                         parentSectionName
-                     });
-            }
-
             Variable varToSubst;
 
             try
             {
                 varToSubst = section.getVariable (varName);
+
+                // The current variable may not have been added to its
+                // section yet, or may be replacing the one that's there.
+
+                if ((varToSubst == currentVariable) ||
+                    ((section == variableParentSection) &&
+                     varName.equals (currentVariable.getName())))
+                {
+                    throw new VariableSubstitutionException
+                                 (Package.BUNDLE_NAME,
+                                  "Configuration.recursiveSubst",
+                                  "Attempt to substitute value for variable " +
+                                  "\"{0}\" within itself.",
+                                  new Object[] {varName});
+                }
+
+                // A reference that wasn't known in advance (e.g., one
+                // that came from a default value) may be to a variable
+                // that hasn't been expanded yet.
+
+                if ((varToSubst != null) &&
+                    (substContext.resolver != null) &&
+                    isConfigSection (section))
+                {
+                    substContext.resolver.resolve (varToSubst);
+                }
             }
 
             catch (ConfigurationException ex)
@@ -1400,9 +1914,10 @@ public class Configuration
             }
 
             if (varToSubst != null)
-             {
                 value = varToSubst.getCookedValue();
-            }
+
+            if (! isConfigSection (section))
+                pseudoReferences.put (sectionName + ":" + varName, value);
         }
 
         substContext.totalSubstitutions++;
@@ -1457,10 +1972,12 @@ public class Configuration
         throws IOException,
                ConfigurationException
     {
+        Map<String,Map<String,String>> before = getValuesForListeners();
         clear();
         URL url = file.toURI().toURL();
         parse (new FileInputStream(file), encoding, url);
         this.configURL = url;
+        fireChangeEvent (before);
     }
 
     /**
@@ -1496,10 +2013,12 @@ public class Configuration
         throws IOException,
                ConfigurationException
     {
+        Map<String,Map<String,String>> before = getValuesForListeners();
         clear();
         URL url = new File(path).toURI().toURL();
         parse(new FileInputStream(path), encoding, url);
         this.configURL = url;
+        fireChangeEvent (before);
     }
 
     /**
@@ -1530,14 +2049,134 @@ public class Configuration
         throws IOException,
                ConfigurationException
     {
-        clear();
-        parse(url.openStream(), encoding, url);
-        this.configURL = url;
+        Map<String,Map<String,String>> before = getValuesForListeners();
+        loadURL (url, encoding);
+        fireChangeEvent (before);
+    }
+
+    /**
+     * Load configuration from a <tt>File</tt>, using a binary snapshot of
+     * the parsed configuration when possible. If the snapshot exists,
+     * and none of the sources and pseudosection values it was built from
+     * have changed, the configuration is loaded from the snapshot, without
+     * being parsed. Otherwise, the file is parsed, and a new snapshot is
+     * written. Any existing data is discarded.
+     *
+     * @param file         the file
+     * @param encoding     the encoding to use, or null for the default
+     * @param snapshotFile the snapshot file, which needn't exist yet. A
+     *                     snapshot that can't be read is ignored, and a
+     *                     snapshot that can't be written is logged, but
+     *                     isn't an error.
+     *
+     * @return <tt>true</tt> if the configuration was loaded from the
+     *         snapshot, <tt>false</tt> if it was parsed
+     *
+     * @throws IOException            read error
+     * @throws ConfigurationException parse error
+     *
+     * @see #load(URL,String,File)
+     */
+    public boolean load (File file, String encoding, File snapshotFile)
+        throws IOException,
+               ConfigurationException
+    {
+        return load (file.toURI().toURL(), encoding, snapshotFile);
+    }
+
+    /**
+     * Load the configuration from a URL, using a binary snapshot of the
+     * parsed configuration when possible. If the snapshot exists, and
+     * none of the sources and pseudosection values it was built from have
+     * changed, the configuration is loaded from the snapshot, without
+     * being parsed. Otherwise, the URL is parsed, and a new snapshot is
+     * written. Any existing data is discarded.
+     *
+     * @param url          the URL
+     * @param encoding     the encoding, if known, or null
+     * @param snapshotFile the snapshot file, which needn't exist yet. A
+     *                     snapshot that can't be read is ignored, and a
+     *                     snapshot that can't be written is logged, but
+     *                     isn't an error.
+     *
+     * @return <tt>true</tt> if the configuration was loaded from the
+     *         snapshot, <tt>false</tt> if it was parsed
+     *
+     * @throws IOException            read error
+     * @throws ConfigurationException parse error
+     */
+    public boolean load (URL url, String encoding, File snapshotFile)
+        throws IOException,
+               ConfigurationException
+    {
+        checkWritable();
+        Map<String,Map<String,String>> before = getValuesForListeners();
+        if (snapshotFile.exists())
+        {
+            try
+            {
+                if (loadSnapshot (snapshotFile, url, encoding))
+                {
+                    fireChangeEvent (before);
+                    return true;
+                }
+
+                log.debug ("Configuration snapshot \"" +
+                           snapshotFile.getPath() + "\" is out of date.");
+            }
+
+            catch (IOException ex)
+            {
+                log.error ("Can't load configuration snapshot \"" +
+                           snapshotFile.getPath() + "\"",
+                           ex);
+            }
+
+            catch (ConfigurationException ex)
+            {
+                log.error ("Can't load configuration snapshot \"" +
+                           snapshotFile.getPath() + "\"",
+                           ex);
+            }
+
+            catch (RuntimeException ex)
+            {
+                // Anything else wrong with the data means it's corrupt.
+
+                log.error ("Corrupt configuration snapshot \"" +
+                           snapshotFile.getPath() + "\"",
+                           ex);
+            }
+        }
+
+        loadURL (url, encoding);
+
+        try
+        {
+            saveSnapshot (snapshotFile, encoding);
+        }
+
+        catch (IOException ex)
+        {
+            log.error ("Can't save configuration snapshot \"" +
+                       snapshotFile.getPath() + "\"",
+                       ex);
+        }
+
+        catch (ConfigurationException ex)
+        {
+            log.error ("Can't save configuration snapshot \"" +
+                       snapshotFile.getPath() + "\"",
+                       ex);
+        }
+
+        fireChangeEvent (before);
+        return false;
     }
 
     /**
      * Load configuration from an <tt>InputStream</tt>. Any existing data
-     * is discarded.
+     * is discarded. The stream is read to the end, and closed.
      *
      * @param iStream  the <tt>InputStream</tt>
      *
@@ -1553,7 +2192,7 @@ public class Configuration
 
     /**
      * Load configuration from an <tt>InputStream</tt>. Any existing data
-     * is discarded.
+     * is discarded. The stream is read to the end, and closed.
      *
      * @param iStream  the <tt>InputStream</tt>
      * @param encoding the encoding to use, or null for the default
@@ -1566,8 +2205,10 @@ public class Configuration
         throws IOException,
                ConfigurationException
     {
+        Map<String,Map<String,String>> before = getValuesForListeners();
         clear();
         parse(iStream, encoding, null);
+        fireChangeEvent (before);
     }
 
     /**
@@ -1585,29 +2226,40 @@ public class Configuration
      *                     references in the value, <tt>false</tt> to leave
      *                     the value untouched.
      *
+     * <p>This method may be called while other threads are reading the
+     * configuration. Readers see either the old value or the new,
+     * fully expanded one.</p>
+     *
      * @throws NoSuchSectionException        section does not exist
      * @throws VariableSubstitutionException variable substitution error
      */
-    public void setVariable (String  sectionName,
-                             String  variableName,
-                             String  value,
-                             boolean expand)
+    public synchronized void setVariable (String  sectionName,
+                                          String  variableName,
+                                          String  value,
+                                          boolean expand)
         throws NoSuchSectionException,
                VariableSubstitutionException
     {
-        Section section = sectionsByName.get (sectionName);
+        checkWritable();
+
+        Section section = getSection (sectionName);
         if (section == null)
             throw new NoSuchSectionException (sectionName);
 
+        // Readers don't lock, so an existing variable isn't changed in
+        // place. Instead, a new one is built and then swapped in.
+
         Variable variable;
 
         try
         {
-            variable = section.getVariable (variableName);
-            if (variable != null)
-                variable.setValue(value);
-            else
-                variable = section.addVariable(variableName, value);
+            Variable existing = section.getVariable (variableName);
+            variable = new Variable (variableName,
+                                     value,
+                                     section,
+                                     (existing == null)
+                                         ? 0
+                                         : existing.getLineWhereDefined());
         }
 
         catch (ConfigurationException ex)
@@ -1615,22 +2267,56 @@ public class Configuration
             throw new VariableSubstitutionException (ex.getMessage());
         }
 
+        // Segment the value now, so that readers never have to. A value
+        // that can't be segmented (e.g., because of an unmatched quote)
+        // is still set; the error is reported if it's expanded, or if its
+        // tokens are requested.
 
-        if (expand)
+        try
         {
-            try
-            {
-                substituteVariables(variable, varSubstituter, true);
-            }
+            variable.segmentValue();
+        }
 
-            catch (ConfigurationException ex)
-            {
-                throw new VariableSubstitutionException (ex.getMessage());
-            }
+        catch (ConfigurationException ex)
+        {
+            log.debug ("Can't segment value of \"" + variableName + "\": " +
+                       ex.getMessage());
         }
-    }
 
-    /**
+        try
+        {
+            if (expand)
+            {
+                VariableResolver resolver = lazyResolver;
+                if (resolver == null)
+                    substituteVariables (variable, varSubstituter, null, true);
+
+                else
+                {
+                    synchronized (resolver)
+                    {
+                        substituteVariables (variable, varSubstituter,
+                                             resolver, true);
+                    }
+                }
+            }
+        }
+
+        catch (ConfigurationException ex)
+        {
+            throw new VariableSubstitutionException (ex.getMessage());
+        }
+
+        finally
+        {
+            // As before, the value is set even if it can't be expanded.
+
+            section.addVariable (variable);
+            generation++;
+        }
+    }
+
+    /**
      * Get the value of the flag that controls whether the
      * <tt>Configuration</tt> object will abort when it encounters an
      * undefined variable. If this flag is clear, then an undefined variable
@@ -1666,93 +2352,1075 @@ public class Configuration
     }
 
     /**
-     * Writes the configuration data to a <tt>PrintWriter</tt>. The sections
-     * and variables within the sections are written in the order they were
-     * originally read from the file. Non-printable characters (and a few
-     * others) are encoded into metacharacter sequences. Comments are not
-     * propagated, since they are not retained when the data is parsed.
-     *
-     * @param out  where to write the configuration data
+     * Determine whether variable references are expanded lazily.
+     *
+     * @return <tt>true</tt> if lazy substitution is enabled, <tt>false</tt>
+     *         if it is disabled
+     *
+     * @see #setLazySubstitution
+     */
+    public boolean getLazySubstitution()
+    {
+        return lazySubstitution;
+    }
+
+    /**
+     * Enable or disable lazy substitution. Normally, every variable
+     * reference in a configuration is expanded when the configuration is
+     * loaded. With lazy substitution, a variable's references (and the
+     * references of the variables it refers to, and so on) are expanded
+     * when the variable is first read, and the result is kept for later
+     * reads. A program that reads only a few of the variables in a large
+     * configuration thus expands only those. Reads from multiple threads
+     * are safe; the first read of each variable is serialized. The flag
+     * defaults to <tt>false</tt>, and takes effect with the next load.
+     *
+     * <p>With lazy substitution, a substitution error, such as a reference
+     * to an undefined variable or a cycle, isn't reported by
+     * <tt>load()</tt>; it's reported each time an affected variable is
+     * read.</p>
+     *
+     * @param enable  <tt>true</tt> to enable lazy substitution,
+     *                <tt>false</tt> to disable it
+     *
+     * @see #getLazySubstitution
+     */
+    public void setLazySubstitution (boolean enable)
+    {
+        lazySubstitution = enable;
+    }
+
+    /**
+     * Add a listener to be told what changed whenever this object is
+     * loaded again (via any of the <tt>load()</tt> methods). The
+     * listener is called on the loading thread, after the load has
+     * completed, and only if something changed. Note that computing the
+     * differences means expanding every variable, even with lazy
+     * substitution.
+     *
+     * @param listener  the listener to add
+     *
+     * @see #removeChangeListener
+     * @see ConfigurationDiff
+     */
+    public void addChangeListener (ConfigurationChangeListener listener)
+    {
+        changeListeners.add (listener);
+    }
+
+    /**
+     * Remove a listener added via {@link #addChangeListener}.
+     *
+     * @param listener  the listener to remove
+     *
+     * @return <tt>true</tt> if the listener was registered and was
+     *         removed, <tt>false</tt> if it wasn't registered
+     */
+    public boolean removeChangeListener (ConfigurationChangeListener listener)
+    {
+        return changeListeners.remove (listener);
+    }
+
+    /**
+     * Determine whether instrumentation is enabled.
+     *
+     * @return <tt>true</tt> if instrumentation is enabled, <tt>false</tt>
+     *         if it is disabled
+     *
+     * @see #setInstrumentation
+     */
+    public boolean getInstrumentation()
+    {
+        return instrumentation;
+    }
+
+    /**
+     * Enable or disable instrumentation. While it's enabled, every read of
+     * a variable via {@link #getConfigurationValue}, {@link #getRawValue},
+     * {@link #getConfigurationTokens}, one of the typed getters or
+     * {@link ConfigKey#get ConfigKey.get()} (even when the key returns
+     * its cached value) is counted, and the time spent expanding variable
+     * references is measured. The counts start at zero with each load.
+     * The flag defaults to <tt>false</tt>; when it's off, the getters
+     * don't pay for it.
+     *
+     * <p>To instrument the snapshots of a {@link ReloadingConfiguration},
+     * enable instrumentation in its
+     * {@link ReloadingConfiguration#createConfiguration createConfiguration()}
+     * method.</p>
+     *
+     * @param enable  <tt>true</tt> to enable instrumentation,
+     *                <tt>false</tt> to disable it
+     *
+     * @see #getInstrumentation
+     * @see #getAccessCount
+     * @see #getSubstitutionTime
+     * @see #writeAccessReport
+     */
+    public void setInstrumentation (boolean enable)
+    {
+        instrumentation = enable;
+    }
+
+    /**
+     * Get the number of times a variable has been read while
+     * instrumentation was enabled.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     *
+     * @return the count
+     *
+     * @throws NoSuchSectionException  the named section does not exist
+     * @throws NoSuchVariableException the section has no such variable
+     *
+     * @see #setInstrumentation
+     */
+    public long getAccessCount (String sectionName, String variableName)
+        throws NoSuchSectionException,
+               NoSuchVariableException
+    {
+        Variable variable = lookupVariable (sectionName, variableName);
+        if (variable == null)
+            throw new NoSuchVariableException (sectionName, variableName);
+
+        return variable.getAccessCount();
+    }
+
+    /**
+     * Get the time spent expanding variable references, while
+     * instrumentation was enabled, since the configuration was last
+     * loaded. That includes the expansion done by the load itself and,
+     * with lazy substitution, the expansion done on first read.
+     *
+     * @return the time, in nanoseconds
+     *
+     * @see #setInstrumentation
+     */
+    public long getSubstitutionTime()
+    {
+        return substitutionTime.get();
+    }
+
+    /**
+     * Get the names of the variables that haven't been read while
+     * instrumentation was enabled.
+     *
+     * @return the names of the unread variables, by section name. Sections
+     *         and variables are in the order they were defined, and
+     *         sections with no unread variables are omitted.
+     *
+     * @see #setInstrumentation
+     * @see #writeAccessReport
+     */
+    public Map<String,List<String>> getUnreadVariables()
+    {
+        Map<String,List<String>> result =
+            new LinkedHashMap<String,List<String>>();
+
+        for (Section section : sectionsInOrder)
+        {
+            List<String> names = new ArrayList<String>();
+            for (String name : section.getVariableNames())
+            {
+                if (getAccessCount (section, name) == 0)
+                    names.add (name);
+            }
+
+            if (names.size() > 0)
+                result.put (section.getName(), names);
+        }
+
+        return result;
+    }
+
+    /**
+     * Write a report of the instrumentation data to a
+     * <tt>PrintWriter</tt>: the time spent expanding variable references,
+     * followed by each section's variables, in the order they were
+     * defined, with the number of times each was read. Each variable that
+     * was never read is preceded by a comment line saying so. The report
+     * is itself in configuration file syntax, with the counts as values.
+     *
+     * @param out  where to write the report
+     *
+     * @see #setInstrumentation
+     * @see #getUnreadVariables
+     */
+    public void writeAccessReport (PrintWriter out)
+    {
+        int total = 0;
+        int unread = 0;
+        for (Section section : sectionsInOrder)
+        {
+            for (String name : section.getVariableNames())
+            {
+                total++;
+                if (getAccessCount (section, name) == 0)
+                    unread++;
+            }
+        }
+
+        out.print (COMMENT_CHARS.charAt (0));
+        out.println (" Substitution time: " +
+                     (substitutionTime.get() / 1000) + " microseconds");
+        out.print (COMMENT_CHARS.charAt (0));
+        out.println (" Variables never read: " + unread + " of " + total);
+
+        for (Section section : sectionsInOrder)
+        {
+            out.println();
+            out.println (SECTION_START + section.getName() + SECTION_END);
+
+            for (String name : section.getVariableNames())
+            {
+                // A comment must be on a line by itself.
+
+                long count = getAccessCount (section, name);
+                if (count == 0)
+                {
+                    out.print (COMMENT_CHARS.charAt (0));
+                    out.println (" never read");
+                }
+
+                out.println (name + ": " + count);
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Writes the configuration data to a <tt>PrintWriter</tt>. The sections
+     * and variables within the sections are written in the order they were
+     * originally read from the file. Non-printable characters (and a few
+     * others) are encoded into metacharacter sequences. Comments are not
+     * propagated, since they are not retained when the data is parsed.
+     *
+     * @param out  where to write the configuration data
+     *
+     * @throws ConfigurationException on error
+     *
+     * @see XStringBuffer#encodeMetacharacters()
+     */
+    public void write (PrintWriter out)
+        throws ConfigurationException
+    {
+        XStringBuffer  value = new XStringBuffer();
+        boolean        firstSection = true;
+
+        out.print (COMMENT_CHARS.charAt (0));
+        out.print (" Written by ");
+        out.println (this.getClass().getName());
+        out.print (COMMENT_CHARS.charAt (0));
+        out.print (" on ");
+        out.println (new Date().toString());
+        out.println();
+
+        for (Section section : sectionsInOrder)
+        {
+            if (! firstSection)
+                out.println();
+
+            out.println (SECTION_START + section.getName() + SECTION_END);
+            firstSection = false;
+
+            for (String varName : section.getVariableNames())
+            {
+                Variable var = section.getVariable (varName);
+                value.setLength (0);
+                value.append (var.getRawValue());
+                //value.encodeMetacharacters();
+
+                out.println (varName + ": " + value.toString());
+            }
+        }
+    }
+
+    /**
+     * Writes the configuration data to a <tt>PrintStream</tt>. The sections
+     * and variables within the sections are written in the order they were
+     * originally read from the file. Non-printable characters (and a few
+     * others) are encoded into metacharacter sequences. Comments and
+     * variable references are not propagated, since they are not retained
+     * when the data is parsed.
+     *
+     * @param out  where to write the configuration data
+     *
+     * @throws ConfigurationException on error
+     *
+     * @see XStringBuffer#encodeMetacharacters()
+     */
+    public void write (PrintStream out)
+        throws ConfigurationException
+    {
+        PrintWriter w = new PrintWriter (out);
+        write (w);
+        w.flush();
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Make this object read-only. Any later attempt to modify it throws an
+     * <tt>IllegalStateException</tt>.
+     */
+    void setReadOnly()
+    {
+        readOnly = true;
+    }
+
+    /**
+     * Get the configuration's generation number, which changes whenever
+     * its data changes.
+     *
+     * @return the generation number
+     *
+     * @see ConfigKey
+     */
+    int getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Count a read of a variable that was satisfied without calling a
+     * getter (i.e., from a {@link ConfigKey}'s cache), if instrumentation
+     * is enabled.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     */
+    void recordAccess (String sectionName, String variableName)
+    {
+        if (instrumentation)
+        {
+            Variable variable = lookupVariable (sectionName, variableName);
+            if (variable != null)
+                variable.recordAccess();
+        }
+    }
+
+    /**
+     * Get a variable's value without counting the read, for internal
+     * consumers such as {@link ConfigurationDiff}. With lazy substitution,
+     * the value is expanded, if possible; a value that can't be expanded
+     * is returned raw.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     *
+     * @return the value, or null if there's no such section or variable
+     */
+    String peekValue (String sectionName, String variableName)
+    {
+        Variable variable = lookupVariable (sectionName, variableName);
+        if (variable == null)
+            return null;
+
+        try
+        {
+            return expand (variable).getCookedValue();
+        }
+
+        catch (ConfigurationException ex)
+        {
+            return variable.getRawValue();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Look up a variable on behalf of a getter, counting the read if
+     * instrumentation is enabled.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     *
+     * @return the variable, or null if the section has no such variable
+     *
+     * @throws NoSuchSectionException  no such section
+     */
+    private Variable findVariable (String sectionName, String variableName)
+        throws NoSuchSectionException
+    {
+        if (getSection (sectionName) == null)
+            throw new NoSuchSectionException (sectionName);
+
+        Variable variable = lookupVariable (sectionName, variableName);
+        if (instrumentation && (variable != null))
+            variable.recordAccess();
+
+        return variable;
+    }
+
+    /**
+     * Look up a variable, without counting the read.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     *
+     * @return the variable, or null if there's no such section or variable
+     */
+    private Variable lookupVariable (String sectionName, String variableName)
+    {
+        Section section = getSection (sectionName);
+        if (section == null)
+            return null;
+
+        try
+        {
+            return section.getVariable (variableName);
+        }
+
+        catch (ConfigurationException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of times a variable in a section has been read.
+     *
+     * @param section       the section
+     * @param variableName  the name of a variable in the section
+     *
+     * @return the count
+     */
+    private long getAccessCount (Section section, String variableName)
+    {
+        return lookupVariable (section.getName(), variableName)
+               .getAccessCount();
+    }
+
+    /**
+     * With lazy substitution, make sure a variable's references have been
+     * expanded.
+     *
+     * @param variable  the variable, or null
+     *
+     * @return <tt>variable</tt>
+     *
+     * @throws ConfigurationException can't expand the references
+     */
+    private Variable expand (Variable variable)
+        throws ConfigurationException
+    {
+        VariableResolver resolver = lazyResolver;
+        if ((resolver == null) ||
+            (variable == null) ||
+            (! variable.isSubstitutionPending()))
+        {
+            return variable;
+        }
+
+        synchronized (resolver)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                resolver.resolve (variable);
+            }
+
+            catch (VariableSubstitutionException ex)
+            {
+                throw new ConfigurationException (ex.getMessage());
+            }
+
+            finally
+            {
+                recordSubstitutionTime (start);
+            }
+        }
+
+        return variable;
+    }
+
+    /**
+     * Expand any variables that haven't been expanded yet.
+     *
+     * @throws ConfigurationException can't expand a variable
+     */
+    private void expandAll()
+        throws ConfigurationException
+    {
+        VariableResolver resolver = lazyResolver;
+        if (resolver != null)
+        {
+            synchronized (resolver)
+            {
+                long start = System.nanoTime();
+                try
+                {
+                    resolver.resolveAll();
+                }
+
+                finally
+                {
+                    recordSubstitutionTime (start);
+                }
+            }
+        }
+    }
+
+    /**
+     * With instrumentation, add the time since <tt>start</tt> to the time
+     * spent expanding variable references.
+     *
+     * @param start  the <tt>System.nanoTime()</tt> when the expansion
+     *               started
+     */
+    private void recordSubstitutionTime (long start)
+    {
+        if (instrumentation)
+            substitutionTime.addAndGet (System.nanoTime() - start);
+    }
+
+    /**
+     * Look up a variable that must exist.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     *
+     * @return the variable
+     *
+     * @throws NoSuchSectionException  no such section
+     * @throws NoSuchVariableException the section has no such variable
+     */
+    private Variable getVariable (String sectionName, String variableName)
+        throws NoSuchSectionException,
+               NoSuchVariableException
+    {
+        Variable variable = findVariable (sectionName, variableName);
+        if (variable == null)
+            throw new NoSuchVariableException (sectionName, variableName);
+
+        return variable;
+    }
+
+    private int parseInteger (String value,
+                              String sectionName,
+                              String variableName)
+        throws ConfigurationException
+    {
+        try
+        {
+            return Integer.parseInt (value);
+        }
+
+        catch (NumberFormatException ex)
+        {
+            throw new ConfigurationException
+                (Package.BUNDLE_NAME,
+                 "Configuration.badNumericValue",
+                 "Bad numeric value \"{0}\" for variable \"{1}\" in section " +
+                 "\"{2}\"",
+                 new Object[]
+                 {
+                     value,
+                     variableName,
+                     sectionName
+                 });
+        }
+    }
+
+    private int parseCardinal (String value,
+                               String sectionName,
+                               String variableName)
+        throws ConfigurationException
+    {
+        int i = parseInteger (value, sectionName, variableName);
+        if (i < 0)
+        {
+            throw new ConfigurationException
+                               (Package.BUNDLE_NAME,
+                                "Configuration.negativeCardinalValue",
+                                "Bad negative numeric value \"{0}\" " +
+                                "for variable \"{1}\" in section \"{2}\"",
+                                new Object[]
+                                {
+                                    value,
+                                    variableName,
+                                    sectionName
+                                });
+        }
+
+        return i;
+    }
+
+    private double parseDouble (String value,
+                                String sectionName,
+                                String variableName)
+        throws ConfigurationException
+    {
+        try
+        {
+            return Double.parseDouble (value);
+        }
+
+        catch (NumberFormatException ex)
+        {
+            throw new ConfigurationException (Package.BUNDLE_NAME,
+                                              "Configuration.badFloatValue",
+                                              "Bad floating point value " +
+                                              "\"{0}\" for variable \"{1}\" " +
+                                              "in section \"{2}\"",
+                                              new Object[]
+                                              {
+                                                  value,
+                                                  variableName,
+                                                  sectionName
+                                              });
+        }
+    }
+
+    /**
+     * Throw an exception if this object is read-only.
+     */
+    private void checkWritable()
+    {
+        if (readOnly)
+        {
+            throw new IllegalStateException
+                ("This Configuration is a read-only snapshot.");
+        }
+    }
+
+    /**
+     * Parse configuration data from the specified stream, and close the
+     * stream.
+     *
+     * @param in       the input stream
+     * @param encoding the encoding to use, or null for the default
+     * @param url      the URL associated with the stream, or null if not known
+     *
+     * @throws ConfigurationException       parse error
+     * @throws UnsupportedEncodingException bad encoding
+     */
+    private synchronized void parse (InputStream in, String encoding, URL url)
+        throws ConfigurationException,
+               UnsupportedEncodingException
+    {
+        ParseContext parseContext = new ParseContext (encoding);
+
+        // Read the whole file, so that the files it includes can be
+        // fetched while it's being parsed.
+
+        try
+        {
+            IncludeLoader.Source source =
+                IncludeLoader.readSource (in, encoding);
+            parseContext.includes.prefetch (url, source.text, 0);
+            loadConfiguration (source, url, parseContext);
+        }
+
+        catch (UnsupportedEncodingException ex)
+        {
+            throw ex;
+        }
+
+        catch (IOException ex)
+        {
+            throw new ConfigurationException (ex.toString());
+        }
+
+        finally
+        {
+            parseContext.includes.close();
+            try
+            {
+                in.close();
+            }
+
+            catch (IOException ex)
+            {
+                log.error ("Can't close configuration stream", ex);
+            }
+        }
+
+        VariableResolver resolver = new VariableResolver();
+        if (lazySubstitution)
+            lazyResolver = resolver;
+
+        else
+        {
+            long start = System.nanoTime();
+            try
+            {
+                resolver.resolveAll();
+            }
+
+            finally
+            {
+                recordSubstitutionTime (start);
+            }
+        }
+
+        sourceURLs = parseContext.sourceURLs;
+        sourceChecksums = parseContext.sourceChecksums;
+        generation++;
+    }
+
+    /**
+     * Load the configuration from a URL, without notifying any listeners.
+     *
+     * @param url      the URL
+     * @param encoding the encoding, if known, or null
+     *
+     * @throws IOException            on I/O error
+     * @throws ConfigurationException on configuration error
+     */
+    private void loadURL (URL url, String encoding)
+        throws IOException,
+               ConfigurationException
+    {
+        clear();
+        parse (url.openStream(), encoding, url);
+        this.configURL = url;
+    }
+
+    /**
+     * Capture the current values, for comparison with the values after
+     * a load, if there are any listeners to tell about the differences.
+     *
+     * @return the values, or null if there are no listeners
+     */
+    private Map<String,Map<String,String>> getValuesForListeners()
+    {
+        if (changeListeners.isEmpty())
+            return null;
+
+        return ConfigurationDiff.getValues (this);
+    }
+
+    /**
+     * Tell the listeners what a load changed, if anything. A listener
+     * that throws an exception doesn't prevent the others from being
+     * called.
+     *
+     * @param before  the values before the load, or null if there were no
+     *                listeners then
+     */
+    private void fireChangeEvent (Map<String,Map<String,String>> before)
+    {
+        if ((before == null) || changeListeners.isEmpty())
+            return;
+
+        ConfigurationDiff diff =
+            new ConfigurationDiff (before, ConfigurationDiff.getValues (this));
+        if (diff.isEmpty())
+            return;
+
+        for (ConfigurationChangeListener listener : changeListeners)
+        {
+            try
+            {
+                listener.configurationChanged (this, diff);
+            }
+
+            catch (RuntimeException ex)
+            {
+                log.error ("Configuration change listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Load the configuration from a snapshot, if it's still current.
+     *
+     * @param file     the snapshot file
+     * @param url      the URL of the configuration file
+     * @param encoding the encoding, or null for the default
+     *
+     * @return <tt>true</tt> if the configuration was loaded, or
+     *         <tt>false</tt> if the snapshot is out of date, in which case
+     *         this object's data may have been discarded
+     *
+     * @throws IOException            can't read the snapshot, or it's
+     *                                corrupt
+     * @throws ConfigurationException error restoring a value
+     */
+    private synchronized boolean loadSnapshot (File   file,
+                                               URL    url,
+                                               String encoding)
+        throws IOException,
+               ConfigurationException
+    {
+        // Read the whole snapshot up front, so that a corrupt length can
+        // be checked against the number of bytes that are actually left.
+
+        DataInputStream in = new DataInputStream
+            (new ByteArrayInputStream (Files.readAllBytes (file.toPath())));
+
+        try
+        {
+            if ((in.readInt() != SNAPSHOT_MAGIC) ||
+                (in.readInt() != SNAPSHOT_VERSION))
+            {
+                throw new IOException ("File \"" + file.getPath() +
+                                       "\" is not a configuration snapshot.");
+            }
+
+            String savedURL = readString (in);
+            String savedEncoding = in.readBoolean() ? readString (in) : null;
+            boolean savedAbort = in.readBoolean();
+            if ((! savedURL.equals (url.toExternalForm())) ||
+                (! sameValue (savedEncoding, encoding)) ||
+                (savedAbort != abortOnUndefinedVariable))
+            {
+                return false;
+            }
+
+            // Re-reading the sources is much cheaper than parsing them,
+            // and it's the only way to be sure they haven't changed.
+
+            List<URL> urls = new ArrayList<URL>();
+            List<Long> checksums = new ArrayList<Long>();
+            for (int i = readCount (in); i > 0; i--)
+            {
+                URL source = new URL (readString (in));
+                long checksum = in.readLong();
+
+                try
+                {
+                    if (IncludeLoader.fetch (source, encoding).checksum !=
+                        checksum)
+                    {
+                        return false;
+                    }
+                }
+
+                catch (IOException ex)
+                {
+                    // Let the parse report it.
+
+                    return false;
+                }
+
+                urls.add (source);
+                checksums.add (checksum);
+            }
+
+            createPseudoSections();
+            Map<String,String> references = new LinkedHashMap<String,String>();
+            for (int i = readCount (in); i > 0; i--)
+            {
+                String reference = readString (in);
+                String value = in.readBoolean() ? readString (in) : null;
+                if (! sameValue (value, getPseudoValue (reference)))
+                    return false;
+
+                references.put (reference, value);
+            }
+
+            clear();
+            for (int i = readCount (in); i > 0; i--)
+            {
+                Section section = makeNewSection (readString (in));
+                for (int j = readCount (in); j > 0; j--)
+                {
+                    String name = readString (in);
+                    String rawValue = readString (in);
+                    Variable var = new Variable (name, rawValue, section,
+                                                 in.readInt());
+
+                    ValueSegment[] segments = new ValueSegment[readCount (in)];
+                    for (int k = 0; k < segments.length; k++)
+                    {
+                        segments[k] = new ValueSegment();
+                        segments[k].segmentBuf.append (readString (in));
+                        segments[k].isLiteral = in.readBoolean();
+                        segments[k].isWhiteSpaceEscaped = in.readBoolean();
+                    }
+
+                    var.restoreCookedSegments (segments);
+                    section.addVariable (var);
+                }
+            }
+
+            configURL = url;
+            sourceURLs = urls;
+            sourceChecksums = checksums;
+            pseudoReferences = references;
+            generation++;
+            return true;
+        }
+
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the configuration to a snapshot. The snapshot is written to a
+     * temporary file, which is then renamed, so a reader never sees a
+     * partial snapshot.
      *
-     * @throws ConfigurationException on error
+     * @param file     the snapshot file
+     * @param encoding the encoding with which the configuration was read
      *
-     * @see XStringBuffer#encodeMetacharacters()
+     * @throws IOException            can't write the snapshot
+     * @throws ConfigurationException error getting a value
      */
-    public void write (PrintWriter out)
-        throws ConfigurationException
+    private synchronized void saveSnapshot (File file, String encoding)
+        throws IOException,
+               ConfigurationException
     {
-        XStringBuffer  value = new XStringBuffer();
-        boolean        firstSection = true;
+        // The snapshot records values, and the pseudosection values they
+        // came from, so everything has to be expanded first.
 
-        out.print (COMMENT_CHARS.charAt (0));
-        out.print (" Written by ");
-        out.println (this.getClass().getName());
-        out.print (COMMENT_CHARS.charAt (0));
-        out.print (" on ");
-        out.println (new Date().toString());
-        out.println();
+        expandAll();
 
-        for (Section section : sectionsInOrder)
-        {
-            if (! firstSection)
-                out.println();
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile ("cfgsnap", ".tmp", dir);
 
-            out.println (SECTION_START + section.getName() + SECTION_END);
-            firstSection = false;
+        try
+        {
+            DataOutputStream out = new DataOutputStream
+                (new BufferedOutputStream (new FileOutputStream (temp)));
 
-            for (String varName : section.getVariableNames())
+            try
             {
-                Variable var = section.getVariable (varName);
-                value.setLength (0);
-                value.append (var.getRawValue());
-                //value.encodeMetacharacters();
+                out.writeInt (SNAPSHOT_MAGIC);
+                out.writeInt (SNAPSHOT_VERSION);
+                writeString (out, configURL.toExternalForm());
+                out.writeBoolean (encoding != null);
+                if (encoding != null)
+                    writeString (out, encoding);
+                out.writeBoolean (abortOnUndefinedVariable);
+
+                out.writeInt (sourceURLs.size());
+                for (int i = 0; i < sourceURLs.size(); i++)
+                {
+                    writeString (out, sourceURLs.get (i).toExternalForm());
+                    out.writeLong (sourceChecksums.get (i));
+                }
 
-                out.println (varName + ": " + value.toString());
+                out.writeInt (pseudoReferences.size());
+                for (Map.Entry<String,String> entry :
+                         pseudoReferences.entrySet())
+                {
+                    writeString (out, entry.getKey());
+                    out.writeBoolean (entry.getValue() != null);
+                    if (entry.getValue() != null)
+                        writeString (out, entry.getValue());
+                }
+
+                out.writeInt (sectionsInOrder.size());
+                for (Section section : sectionsInOrder)
+                {
+                    Collection<String> names = section.getVariableNames();
+                    writeString (out, section.getName());
+                    out.writeInt (names.size());
+                    for (String name : names)
+                    {
+                        Variable var = section.getVariable (name);
+                        ValueSegment[] segments = var.getCookedSegments();
+                        writeString (out, name);
+                        writeString (out, var.getRawValue());
+                        out.writeInt (var.getLineWhereDefined());
+                        out.writeInt (segments.length);
+                        for (ValueSegment segment : segments)
+                        {
+                            writeString (out, segment.toString());
+                            out.writeBoolean (segment.isLiteral);
+                            out.writeBoolean (segment.isWhiteSpaceEscaped);
+                        }
+                    }
+                }
             }
+
+            finally
+            {
+                out.close();
+            }
+
+            Files.move (temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        finally
+        {
+            temp.delete();
         }
     }
 
     /**
-     * Writes the configuration data to a <tt>PrintStream</tt>. The sections
-     * and variables within the sections are written in the order they were
-     * originally read from the file. Non-printable characters (and a few
-     * others) are encoded into metacharacter sequences. Comments and
-     * variable references are not propagated, since they are not retained
-     * when the data is parsed.
+     * Get the current value of a pseudosection variable.
      *
-     * @param out  where to write the configuration data
+     * @param reference  the "section:variable" reference
      *
-     * @throws ConfigurationException on error
+     * @return the value, or null if the variable doesn't exist
      *
-     * @see XStringBuffer#encodeMetacharacters()
+     * @throws ConfigurationException on error
      */
-    public void write (PrintStream out)
+    private String getPseudoValue (String reference)
         throws ConfigurationException
     {
-        PrintWriter w = new PrintWriter (out);
-        write (w);
-        w.flush();
+        int i = reference.indexOf (':');
+        Section section = findReferencedSection (reference.substring (0, i));
+        if (section == null)
+            return null;
+
+        Variable var = section.getVariable (reference.substring (i + 1));
+        return (var == null) ? null : var.getCookedValue();
     }
 
-    /*----------------------------------------------------------------------*\
-                              Private Methods
-    \*----------------------------------------------------------------------*/
+    private static boolean sameValue (String s1, String s2)
+    {
+        return (s1 == null) ? (s2 == null) : s1.equals (s2);
+    }
+
+    /**
+     * Write a string of any length to a snapshot. (<tt>writeUTF()</tt>
+     * is limited to 64K bytes.)
+     */
+    private static void writeString (DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes (SNAPSHOT_CHARSET);
+        out.writeInt (bytes.length);
+        out.write (bytes);
+    }
+
+    private static String readString (DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = new byte[readCount (in)];
+        in.readFully (bytes);
+        return new String (bytes, SNAPSHOT_CHARSET);
+    }
 
     /**
-     * Parse configuration data from the specified stream.
+     * Read a length or an element count from a snapshot. Each byte or
+     * element takes up at least one byte of the snapshot, so a count that's
+     * negative, or larger than what's left of the snapshot, means the
+     * snapshot is corrupt.
      *
-     * @param in       the input stream
-     * @param encoding the encoding to use, or null for the default
-     * @param url      the URL associated with the stream, or null if not known
+     * @param in  the snapshot, which must be read from memory, so that
+     *            <tt>available()</tt> is exact
      *
-     * @throws ConfigurationException       parse error
-     * @throws UnsupportedEncodingException bad encoding
+     * @return the count
+     *
+     * @throws IOException the count is out of range, or can't be read
      */
-    private synchronized void parse (InputStream in, String encoding, URL url)
-        throws ConfigurationException,
-               UnsupportedEncodingException
+    private static int readCount (DataInputStream in)
+        throws IOException
     {
-        loadConfiguration (in, encoding, url, new ParseContext());
+        int count = in.readInt();
+        if ((count < 0) || (count > in.available()))
+        {
+            throw new IOException ("Corrupt configuration snapshot: bad " +
+                                   "length " + count);
+        }
+
+        return count;
     }
 
     /**
@@ -1760,22 +3428,18 @@ public class Configuration
      * metacharacters or variable substitution. Includes are processed,
      * though.
      *
-     * @param in           input stream
-     * @param encoding     the encoding to use, or null for the default
-     * @param url          URL associated with the stream, or null if not known
+     * @param source       the configuration data
+     * @param url          URL associated with the data, or null if not known
      * @param parseContext current parsing context
      *
-     * @throws ConfigurationException       parse error
-     * @throws UnsupportedEncodingException bad encoding
+     * @throws ConfigurationException parse error
      */
-    private void loadConfiguration(InputStream  in,
-                                   String       encoding,
-                                   URL          url,
-                                   ParseContext parseContext)
-        throws ConfigurationException,
-               UnsupportedEncodingException
+    private void loadConfiguration(IncludeLoader.Source source,
+                                   URL                  url,
+                                   ParseContext         parseContext)
+        throws ConfigurationException
     {
-        BufferedReader r;
+        LineLexer      lexer;
         Line           line = new Line();
         String         sURL = url.toExternalForm();
 
@@ -1783,11 +3447,7 @@ public class Configuration
         // MUST be created first, or other sections won't be able to
         // substitute from them. (i.e., They must have the lowest IDs.)
 
-        programSection = new ProgramSection (PROGRAM_SECTION_NAME,
-                                             PROGRAM_SECTION_ID);
-        systemSection  = new SystemSection (SYSTEM_SECTION_NAME,
-                                            SYSTEM_SECTION_ID);
-        envSection  = new EnvSection (ENV_SECTION_NAME, ENV_SECTION_ID);
+        createPseudoSections();
 
         if (parseContext.openURLs.contains (sURL))
         {
@@ -1805,18 +3465,15 @@ public class Configuration
         }
 
         parseContext.openURLs.add (sURL);
+        parseContext.sourceURLs.add (url);
+        parseContext.sourceChecksums.add (source.checksum);
 
         // Parse the entire file into memory before doing variable
         // substitution and metacharacter expansion.
 
-        InputStreamReader ir;
-        if (encoding == null)
-            ir = new InputStreamReader(in);
-        else
-            ir = new InputStreamReader(in, encoding);
-        r = new BufferedReader(ir);
+        lexer = new LineLexer (new StringReader (source.text));
 
-        while (readLogicalLine (r, line))
+        while (lexer.next (line))
         {
             try
             {
@@ -1827,7 +3484,7 @@ public class Configuration
                         break;
 
                     case INCLUDE:
-                        handleInclude (line, url, encoding, parseContext);
+                        handleInclude (line, url, parseContext);
                         break;
 
                     case SECTION:
@@ -1884,9 +3541,14 @@ public class Configuration
     private Section handleNewSection (Line line, URL url)
         throws ConfigurationException
     {
-        String s = line.buffer.toString().trim();
+        // Leading white space has already been stripped.
+
+        char[] s   = line.chars;
+        int    end = line.length;
+        while ((end > 0) && (s[end - 1] <= ' '))
+            end--;
 
-        if (s.charAt (0) != SECTION_START)
+        if (s[0] != SECTION_START)
         {
             throw new ConfigurationException
                         (Package.BUNDLE_NAME,
@@ -1900,7 +3562,7 @@ public class Configuration
                          });
         }
 
-        else if (s.charAt (s.length() - 1) != SECTION_END)
+        else if (s[end - 1] != SECTION_END)
         {
             throw new ConfigurationException
                         (Package.BUNDLE_NAME,
@@ -1914,7 +3576,7 @@ public class Configuration
                          });
         }
 
-        return makeNewSection (s.substring (1, s.length() - 1));
+        return makeNewSection (line.substring (1, end - 1));
     }
 
     /**
@@ -1931,16 +3593,10 @@ public class Configuration
                                  ParseContext parseContext)
         throws ConfigurationException
     {
-        char[] s = line.buffer.toString().toCharArray();
-        int    iSep;
-
-        for (iSep = 0; iSep < s.length; iSep++)
-        {
-            if ((s[iSep] == ':') || (s[iSep] == '='))
-                break;
-        }
+        char[] s    = line.chars;
+        int    iSep = line.separator;
 
-        if (iSep == s.length)
+        if (iSep < 0)
         {
             throw new ConfigurationException (Package.BUNDLE_NAME,
                                               "Configuration.missingAssignOp",
@@ -2007,11 +3663,10 @@ public class Configuration
 
         checkVariableName (varName);
 
-        i = skipWhitespace (s, iSep + 1);
-        j = s.length - i;
+        i = skipWhitespace (s, iSep + 1, line.length);
 
         Section currentSection = parseContext.currentSection;
-        String value = new String (s, i, j);
+        String value = line.substring (i, line.length);
         Variable existing = currentSection.getVariable (varName);
         if (existing != null)
         {
@@ -2032,24 +3687,28 @@ public class Configuration
                                });
         }
 
-        Variable newVar = currentSection.addVariable (varName,
-                                                      value,
-                                                      line.number);
+        Variable newVar = new Variable (varName,
+                                        value,
+                                        currentSection,
+                                        line.number);
 
-        // Expand the metacharacters and variable references in the variable.
+        // Expand the metacharacters in the variable. Variable references
+        // are expanded once the whole file has been read, since they may
+        // refer to variables that haven't been read yet.
 
         try
         {
             newVar.segmentValue();
             decodeMetacharacters (newVar);
-            substituteVariables (newVar, varSubstituter, false);
-            newVar.reassembleCookedValueFromSegments();
+            newVar.setSubstitutionPending (true);
         }
 
         catch (VariableSubstitutionException ex)
         {
             throw new ConfigurationException (ex.getMessage());
         }
+
+        currentSection.addVariable (newVar);
     }
 
     /**
@@ -2080,7 +3739,6 @@ public class Configuration
      * Handle an include directive.
      *
      * @param line         line buffer
-     * @param encoding     the encoding to use, or null for the default
      * @param url          URL currently being processed, or null if unknown
      * @param parseContext current parsing context
      *
@@ -2089,7 +3747,6 @@ public class Configuration
      */
     private void handleInclude (Line         line,
                                 URL          url,
-                                String       encoding,
                                 ParseContext parseContext)
         throws IOException,
                ConfigurationException
@@ -2111,18 +3768,11 @@ public class Configuration
 
         parseContext.includeFileNestingLevel++;
 
-        String s = line.buffer.toString();
+        // Parse the file name. Make sure double quotes surround the file
+        // or URL.
 
-        // Parse the file name.
-
-        String includeTarget = s.substring (INCLUDE.length() + 1).trim();
-        int len = includeTarget.length();
-
-        // Make sure double quotes surround the file or URL.
-
-        if ((len < 2) ||
-            (! includeTarget.startsWith ("\"")) ||
-            (! includeTarget.endsWith ("\"")))
+        String includeTarget = getIncludeTarget (line);
+        if (includeTarget == null)
         {
             throw new ConfigurationException
                                  (Package.BUNDLE_NAME,
@@ -2136,9 +3786,6 @@ public class Configuration
                                   });
         }
 
-        // Extract the file.
-
-        includeTarget = includeTarget.substring (1, len - 1);
         if (includeTarget.length() == 0)
         {
             throw new ConfigurationException
@@ -2156,199 +3803,160 @@ public class Configuration
 
         // Process the include
 
-        try
-        {
-            loadInclude (new URL (includeTarget), encoding, parseContext);
-        }
-
-        catch (MalformedURLException ex)
-        {
-            // Not obviously a URL. First, determine whether it has
-            // directory information or not. If not, try to use the
-            // parent's directory information.
-
-            if (FileUtil.isAbsolutePath (includeTarget))
-            {
-                loadInclude (new URL (url.getProtocol(),
-                                      url.getHost(),
-                                      url.getPort(),
-                                      includeTarget),
-                             encoding,
-                             parseContext);
-            }
-
-            else
-            {
-                // It's relative to the parent. If the parent URL is not
-                // specified, then we can't do anything except try to load
-                // the include as is. It'll probably fail...
-
-                if (url == null)
-                {
-                    loadInclude (new File (includeTarget).toURI().toURL(),
-                                 encoding,
-                                 parseContext);
-                }
-
-                else
-                {
-                    String parent = new File (url.getFile()).getParent();
-
-                    if (parent == null)
-                        parent = "";
-
-                    loadInclude (new URL (url.getProtocol(),
-                                          url.getHost(),
-                                          url.getPort(),
-                                          parent + "/" + includeTarget),
-                                 encoding,
-                                 parseContext);
-                }
-            }
-        }
+        loadInclude (resolveInclude (includeTarget, url), parseContext);
 
         parseContext.includeFileNestingLevel--;
     }
 
     /**
      * Actually attempts to load an include reference. This is basically just
-     * a simplified front-end to loadConfiguration().
+     * a simplified front-end to loadConfiguration(). The include's text
+     * comes from the parse context's include loader, which has usually
+     * fetched it already.
      *
      * @param url          the URL to be included
-     * @param encoding     the encoding to use, or null for the default
      * @param parseContext current parsing context
      *
      * @throws IOException  I/O error
      * @throws ConfigurationException configuration error
      */
-    private void loadInclude (URL url,
-                              String encoding,
-                              ParseContext parseContext)
+    private void loadInclude (URL url, ParseContext parseContext)
         throws IOException,
                ConfigurationException
     {
-        loadConfiguration (url.openStream(), encoding, url, parseContext);
+        loadConfiguration (parseContext.includes.read (url), url,
+                           parseContext);
     }
 
     /**
-     * Read the next logical line of input from a config file.
-     *
-     * @param r    the reader
-     * @param line where to store the line. The line number in this
-     *             object is incremented, the "buffer" field is updated,
-     *             and the "type" field is set appropriately.
+     * Extract the file name or URL from an include directive.
      *
-     * @return <tt>true</tt> if a line was read, <tt>false</tt> for EOF.
+     * @param line  the include directive
      *
-     * @throws ConfigurationException read error
+     * @return the file name or URL, which is empty if the directive has
+     *         an empty one, or null if the directive is malformed
      */
-    private boolean readLogicalLine (BufferedReader r, Line line)
-        throws ConfigurationException
+    private static String getIncludeTarget (Line line)
     {
-        boolean  continued    = false;
-        boolean  gotSomething = false;
-
-        line.newLine();
-        for (;;)
-        {
-            String s;
-
-            try
-            {
-                s = r.readLine();
-            }
+        char[] s     = line.chars;
+        int    start = INCLUDE.length();
+        int    end   = line.length;
 
-            catch (IOException ex)
-            {
-                throw new ConfigurationException (ex.toString());
-            }
+        while ((start < end) && (s[start] <= ' '))
+            start++;
 
-            if (s == null)
-                break;
+        while ((end > start) && (s[end - 1] <= ' '))
+            end--;
 
-            gotSomething = true;
-            line.number++;
+        if (((end - start) < 2) || (s[start] != '"') || (s[end - 1] != '"'))
+            return null;
 
-            // Strip leading white space on all lines.
+        return line.substring (start + 1, end - 1);
+    }
 
-            int i;
-            char[] chars = s.toCharArray();
+    /**
+     * Get the URL of an include.
+     *
+     * @param includeTarget  the file name or URL in the include directive
+     * @param url            the URL of the including file, or null if not
+     *                       known
+     *
+     * @return the URL of the include
+     *
+     * @throws IOException can't make a URL
+     */
+    private static URL resolveInclude (String includeTarget, URL url)
+        throws IOException
+    {
+        try
+        {
+            return new URL (includeTarget);
+        }
 
-            i = skipWhitespace (chars, 0);
-            if (i < chars.length)
-                s = s.substring (i);
-            else
-                s = "";
+        catch (MalformedURLException ex)
+        {
+            // Not obviously a URL. First, determine whether it has
+            // directory information or not. If not, try to use the
+            // parent's directory information.
 
-            if (! continued)
+            if (url == null)
             {
-                // First line. Determine what it is.
-
-                if (s.length() == 0)
-                    line.type = LineType.BLANK;
+                // If the parent URL is not specified, then we can't do
+                // anything except try to load the include as is. A
+                // relative one will probably fail...
 
-                else if (COMMENT_CHARS.indexOf (s.charAt (0)) != -1)
-                    line.type = LineType.COMMENT;
-
-                else if (s.charAt (0) == SECTION_START)
-                    line.type = LineType.SECTION;
-
-                else if (new StringTokenizer (s).nextToken().equals (INCLUDE))
-                    line.type = LineType.INCLUDE;
-
-                else
-                    line.type = LineType.VARIABLE;
+                return new File (includeTarget).toURI().toURL();
             }
 
-            if ((line.type == LineType.VARIABLE) && (hasContinuationMark (s)))
+            if (FileUtil.isAbsolutePath (includeTarget))
             {
-                continued = true;
-                line.buffer.append (s.substring (0, s.length() - 1));
+                return new URL (url.getProtocol(),
+                                url.getHost(),
+                                url.getPort(),
+                                includeTarget);
             }
 
-            else
-            {
-                line.buffer.append (s);
-                break;
-            }
-        }
+            // It's relative to the parent.
+
+            String parent = new File (url.getFile()).getParent();
 
-        return gotSomething;
+            if (parent == null)
+                parent = "";
+
+            return new URL (url.getProtocol(),
+                            url.getHost(),
+                            url.getPort(),
+                            parent + "/" + includeTarget);
+        }
     }
 
     /**
-     * Determine whether a line has a continuation mark or not.
+     * Find the includes in a configuration file's text, so that they can
+     * be fetched before the parser gets to them.
      *
-     * @param s  the line
+     * @param url   the file's URL, or null if not known
+     * @param text  the file's text
      *
-     * @return true if there's a continuation mark, false if not
+     * @return the URLs of the well-formed includes, in order
      */
-    private boolean hasContinuationMark (String s)
+    private static List<URL> findIncludes (URL url, String text)
     {
-        boolean has = false;
+        List<URL> result = new ArrayList<URL>();
+        if (text.indexOf (INCLUDE) < 0)
+            return result;
 
-        if (s.length() > 0)
-        {
-            char[] chars = s.toCharArray();
+        LineLexer lexer = new LineLexer (new StringReader (text));
+        Line line = new Line();
 
-            if (chars[chars.length-1] == '\\')
+        try
+        {
+            while (lexer.next (line))
             {
-                // Possibly. See if there are an odd number of them.
+                if (line.type != LineType.INCLUDE)
+                    continue;
 
-                int total = 0;
-                for (int i = chars.length - 1; i >= 0; i--)
-                {
-                    if (chars[i] != '\\')
-                        break;
+                String includeTarget = getIncludeTarget (line);
+                if ((includeTarget == null) || (includeTarget.length() == 0))
+                    continue;
 
-                    total++;
+                try
+                {
+                    result.add (resolveInclude (includeTarget, url));
                 }
 
-                has = ((total % 2) == 1);
+                catch (IOException ex)
+                {
+                    // Reported when the file is parsed.
+                }
             }
         }
 
-        return has;
+        catch (ConfigurationException ex)
+        {
+            // Can't happen, reading from a string.
+        }
+
+        return result;
     }
 
     /**
@@ -2408,6 +4016,9 @@ public class Configuration
      *
      * @param var            The current variable being processed
      * @param substituter    VariableSubstituter to use
+     * @param resolver       the resolver expanding the configuration, or
+     *                       null if the referenced variables have already
+     *                       been expanded
      * @param concatSegments Re-concatenate the segments
      *
      * @throws VariableSubstitutionException variable substitution error
@@ -2415,33 +4026,52 @@ public class Configuration
      */
     private void substituteVariables (Variable            var,
                                       VariableSubstituter substituter,
+                                      VariableResolver    resolver,
                                       boolean             concatSegments)
         throws VariableSubstitutionException,
                ConfigurationException
     {
         ValueSegment[] segments = var.getCookedSegments();
-        SubstitutionContext context = new SubstitutionContext (var);
+        SubstitutionContext context = new SubstitutionContext (var, resolver);
 
-        for (ValueSegment segment : segments)
+        // The segments are only updated once they've all been
+        // substituted, so that a failure leaves the variable as it was.
+
+        String[] substituted = new String[segments.length];
+        for (int i = 0; i < segments.length; i++)
         {
             // Keep substituting the current variable's value until there
             // no more substitutions are performed. This handles the case
             // where a dereferenced variable value contains its own
-            // variable references.
+            // variable references. A string without a "$" can't contain
+            // any references, so it needn't be (re)scanned.
 
+            ValueSegment segment = segments[i];
             if (segment.isLiteral)
                 continue;
 
             String s = segment.segmentBuf.toString();
+            if (s.indexOf (VAR_START) < 0)
+                continue;
+
             do
             {
                 context.totalSubstitutions = 0;
                 s = substituter.substitute (s, this, this, context);
             }
-            while (context.totalSubstitutions > 0);
+            while ((context.totalSubstitutions > 0) &&
+                   (s.indexOf (VAR_START) >= 0));
+
+            substituted[i] = s;
+        }
 
-            segment.segmentBuf.setLength (0);
-            segment.segmentBuf.append (s);
+        for (int i = 0; i < segments.length; i++)
+        {
+            if (substituted[i] != null)
+            {
+                segments[i].segmentBuf.setLength (0);
+                segments[i].segmentBuf.append (substituted[i]);
+            }
         }
 
         if (concatSegments)
@@ -2453,12 +4083,14 @@ public class Configuration
      *
      * @param chars character array to check
      * @param start starting point
+     * @param end   index just past the last character to check
      *
-     * @return index of first non-whitespace character past "start", or -1
+     * @return index of first non-whitespace character past "start", or
+     *         "end" if there isn't one
      */
-    private int skipWhitespace (char[] chars, int start)
+    private int skipWhitespace (char[] chars, int start, int end)
     {
-        while (start < chars.length)
+        while (start < end)
         {
             if (! Character.isWhitespace (chars[start]))
                 break;
@@ -2469,6 +4101,71 @@ public class Configuration
         return start;
     }
 
+    /**
+     * Find the section named in a variable reference.
+     *
+     * @param sectionName the section name
+     *
+     * @return the section, which may be one of the pseudosections, or null
+     *         if there's no such section
+     */
+    private Section findReferencedSection (String sectionName)
+    {
+        if (sectionName.equals (SYSTEM_SECTION_NAME))
+            return systemSection;
+
+        if (sectionName.equals (PROGRAM_SECTION_NAME))
+            return programSection;
+
+        if (sectionName.equals (ENV_SECTION_NAME))
+            return envSection;
+
+        return getSection (sectionName);
+    }
+
+    /**
+     * Look up a section by name. <tt>sectionsByName</tt> can't hold a
+     * null key, so a null name is simply not found, as it always was.
+     *
+     * @param sectionName  the section name, which may be null
+     *
+     * @return the section, or null if there's no such section
+     */
+    private Section getSection (String sectionName)
+    {
+        return (sectionName == null) ? null
+                                     : sectionsByName.get (sectionName);
+    }
+
+    /**
+     * Determine whether a section came from the configuration data, rather
+     * than being one of the pseudosections.
+     *
+     * @param section the section
+     *
+     * @return <tt>true</tt> for a configuration section, <tt>false</tt> for
+     *         a pseudosection
+     */
+    private boolean isConfigSection (Section section)
+    {
+        return section.getID() >= FIRST_CONFIG_SECTION_ID;
+    }
+
+    /**
+     * Create the program, env and system pseudosections.
+     *
+     * @throws ConfigurationException can't initialize a pseudosection
+     */
+    private void createPseudoSections()
+        throws ConfigurationException
+    {
+        programSection = new ProgramSection (PROGRAM_SECTION_NAME,
+                                             PROGRAM_SECTION_ID);
+        systemSection  = new SystemSection (SYSTEM_SECTION_NAME,
+                                            SYSTEM_SECTION_ID);
+        envSection  = new EnvSection (ENV_SECTION_NAME, ENV_SECTION_ID);
+    }
+
     /**
      * Create and save a new Section.
      *
@@ -2481,8 +4178,8 @@ public class Configuration
         int id = nextSectionID();
 
         Section section = new Section (sectionName, id);
-        sectionsInOrder.add (section);
         sectionsByName.put (sectionName, section);
+        sectionsInOrder.add (section);
 
         return section;
     }
@@ -0,0 +1,30 @@
+package org.clapper.util.config;
+
+import java.util.EventListener;
+
+/**
+ * <p>A <tt>ConfigurationChangeListener</tt> can be registered with a
+ * {@link Configuration} or a {@link ReloadingConfiguration} to be told
+ * what changed whenever a new version of the configuration is loaded.
+ * The listener is only called if something did change.</p>
+ *
+ * @see ConfigurationDiff
+ * @see Configuration#addChangeListener
+ * @see ReloadingConfiguration#addChangeListener
+ */
+public interface ConfigurationChangeListener extends EventListener
+{
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * This method gets called after a new version of a configuration has
+     * been loaded.
+     *
+     * @param config  the new configuration
+     * @param diff    the differences from the previous version
+     */
+    public void configurationChanged (Configuration     config,
+                                      ConfigurationDiff diff);
+}
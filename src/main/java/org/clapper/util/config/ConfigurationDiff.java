@@ -0,0 +1,397 @@
+package org.clapper.util.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A <tt>ConfigurationDiff</tt> describes the differences between two
+ * versions of a configuration: the sections that were added and removed,
+ * and, within each section, the variables that were added, removed and
+ * changed. Variables are compared by their fully substituted values, so a
+ * variable whose own definition didn't change, but which refers to one
+ * that did, is reported as changed, too.</p>
+ *
+ * <p>A diff is delivered to each {@link ConfigurationChangeListener}
+ * registered with a {@link Configuration} when it's loaded again, or with
+ * a {@link ReloadingConfiguration} when it swaps in a new snapshot; it
+ * can also be computed directly, via {@link #compute compute()}. A
+ * listener can use it to rebuild only what depends on the values that
+ * changed:</p>
+ *
+ * <blockquote><pre>
+ * public void configurationChanged (Configuration config,
+ *                                   ConfigurationDiff diff)
+ * {
+ *     if (diff.isChanged ("database", "pool.size"))
+ *         resizePool (diff.getNewValue ("database", "pool.size"));
+ * }
+ * </pre></blockquote>
+ *
+ * <p><tt>ConfigurationDiff</tt> objects are immutable.</p>
+ *
+ * @see ConfigurationChangeListener
+ */
+public final class ConfigurationDiff
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final Map<String,Map<String,String>> oldValues;
+    private final Map<String,Map<String,String>> newValues;
+
+    private final List<String> addedSections = new ArrayList<String>();
+    private final List<String> removedSections = new ArrayList<String>();
+    private final List<String> changedSections = new ArrayList<String>();
+
+    /**
+     * Per-section changes, by section name, for every section that was
+     * added, removed or changed
+     */
+    private final Map<String,SectionDiff> sectionDiffs =
+        new LinkedHashMap<String,SectionDiff>();
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compare two sets of values.
+     *
+     * @param oldValues  the old values, by section and variable name
+     * @param newValues  the new values, by section and variable name
+     */
+    ConfigurationDiff (Map<String,Map<String,String>> oldValues,
+                       Map<String,Map<String,String>> newValues)
+    {
+        this.oldValues = oldValues;
+        this.newValues = newValues;
+
+        Map<String,String> none = Collections.emptyMap();
+        for (Map.Entry<String,Map<String,String>> entry :
+                 oldValues.entrySet())
+        {
+            String sectionName = entry.getKey();
+            Map<String,String> newSection = newValues.get (sectionName);
+            if (newSection == null)
+            {
+                removedSections.add (sectionName);
+                sectionDiffs.put (sectionName,
+                                  new SectionDiff (entry.getValue(), none));
+            }
+
+            else
+            {
+                SectionDiff diff = new SectionDiff (entry.getValue(),
+                                                    newSection);
+                if (! diff.isEmpty())
+                {
+                    changedSections.add (sectionName);
+                    sectionDiffs.put (sectionName, diff);
+                }
+            }
+        }
+
+        for (Map.Entry<String,Map<String,String>> entry :
+                 newValues.entrySet())
+        {
+            String sectionName = entry.getKey();
+            if (! oldValues.containsKey (sectionName))
+            {
+                addedSections.add (sectionName);
+                sectionDiffs.put (sectionName,
+                                  new SectionDiff (none, entry.getValue()));
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compute the differences between two configurations. The
+     * configurations' variables are substituted, if they haven't been
+     * already (see {@link Configuration#setLazySubstitution}); a variable
+     * whose references can't be expanded is compared by its raw value.
+     *
+     * @param oldConfig  the old configuration
+     * @param newConfig  the new configuration
+     *
+     * @return the differences
+     */
+    public static ConfigurationDiff compute (Configuration oldConfig,
+                                             Configuration newConfig)
+    {
+        return new ConfigurationDiff (getValues (oldConfig),
+                                      getValues (newConfig));
+    }
+
+    /**
+     * Determine whether there are any differences.
+     *
+     * @return <tt>true</tt> if the configurations have the same sections,
+     *         with the same variables and values, <tt>false</tt> otherwise
+     */
+    public boolean isEmpty()
+    {
+        return sectionDiffs.isEmpty();
+    }
+
+    /**
+     * Get the names of the sections that are only in the new
+     * configuration.
+     *
+     * @return the names, in the order they appear in the new
+     *         configuration
+     */
+    public Collection<String> getAddedSections()
+    {
+        return Collections.unmodifiableList (addedSections);
+    }
+
+    /**
+     * Get the names of the sections that are only in the old
+     * configuration.
+     *
+     * @return the names, in the order they appear in the old
+     *         configuration
+     */
+    public Collection<String> getRemovedSections()
+    {
+        return Collections.unmodifiableList (removedSections);
+    }
+
+    /**
+     * Get the names of the sections that are in both configurations, but
+     * with different variables or values.
+     *
+     * @return the names, in the order they appear in the old
+     *         configuration
+     */
+    public Collection<String> getChangedSections()
+    {
+        return Collections.unmodifiableList (changedSections);
+    }
+
+    /**
+     * Get the names of the variables that are only in the new version of
+     * a section. For an added section, that's all its variables.
+     *
+     * @param sectionName  the section name
+     *
+     * @return the names, which are empty if the section wasn't changed
+     */
+    public Collection<String> getAddedVariables (String sectionName)
+    {
+        SectionDiff diff = sectionDiffs.get (sectionName);
+        return (diff == null) ? Collections.<String>emptyList()
+                              : Collections.unmodifiableList (diff.added);
+    }
+
+    /**
+     * Get the names of the variables that are only in the old version of
+     * a section. For a removed section, that's all its variables.
+     *
+     * @param sectionName  the section name
+     *
+     * @return the names, which are empty if the section wasn't changed
+     */
+    public Collection<String> getRemovedVariables (String sectionName)
+    {
+        SectionDiff diff = sectionDiffs.get (sectionName);
+        return (diff == null) ? Collections.<String>emptyList()
+                              : Collections.unmodifiableList (diff.removed);
+    }
+
+    /**
+     * Get the names of the variables that are in both versions of a
+     * section, but with different values.
+     *
+     * @param sectionName  the section name
+     *
+     * @return the names, which are empty if the section wasn't changed
+     */
+    public Collection<String> getChangedVariables (String sectionName)
+    {
+        SectionDiff diff = sectionDiffs.get (sectionName);
+        return (diff == null) ? Collections.<String>emptyList()
+                              : Collections.unmodifiableList (diff.changed);
+    }
+
+    /**
+     * Determine whether a variable was added, removed or changed.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     *
+     * @return <tt>true</tt> if the variable's value differs between the
+     *         two configurations (including being present in only one),
+     *         <tt>false</tt> if it's the same (or absent) in both
+     */
+    public boolean isChanged (String sectionName, String variableName)
+    {
+        SectionDiff diff = sectionDiffs.get (sectionName);
+        return (diff != null) &&
+               (diff.added.contains (variableName) ||
+                diff.removed.contains (variableName) ||
+                diff.changed.contains (variableName));
+    }
+
+    /**
+     * Get a variable's value in the old configuration.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     *
+     * @return the value, or null if the old configuration didn't have the
+     *         variable
+     */
+    public String getOldValue (String sectionName, String variableName)
+    {
+        return getValue (oldValues, sectionName, variableName);
+    }
+
+    /**
+     * Get a variable's value in the new configuration.
+     *
+     * @param sectionName   the section name
+     * @param variableName  the variable name
+     *
+     * @return the value, or null if the new configuration doesn't have
+     *         the variable
+     */
+    public String getNewValue (String sectionName, String variableName)
+    {
+        return getValue (newValues, sectionName, variableName);
+    }
+
+    /**
+     * Get a printable summary of the differences.
+     *
+     * @return the summary, one line per added, removed or changed section
+     *         and variable
+     */
+    public String toString()
+    {
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String,SectionDiff> entry : sectionDiffs.entrySet())
+        {
+            String sectionName = entry.getKey();
+            SectionDiff diff = entry.getValue();
+
+            if (addedSections.contains (sectionName))
+                buf.append ("+[" + sectionName + "]\n");
+            else if (removedSections.contains (sectionName))
+                buf.append ("-[" + sectionName + "]\n");
+            else
+                buf.append (" [" + sectionName + "]\n");
+
+            for (String name : diff.added)
+                buf.append ("+" + name + "\n");
+            for (String name : diff.removed)
+                buf.append ("-" + name + "\n");
+            for (String name : diff.changed)
+                buf.append ("~" + name + "\n");
+        }
+
+        return buf.toString();
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the substituted values of a configuration's variables, without
+     * counting them as reads.
+     *
+     * @param config  the configuration
+     *
+     * @return the values, by section and variable name, in order
+     */
+    static Map<String,Map<String,String>> getValues (Configuration config)
+    {
+        Map<String,Map<String,String>> result =
+            new LinkedHashMap<String,Map<String,String>>();
+
+        for (String sectionName : config.getSectionNames())
+        {
+            Map<String,String> values = new LinkedHashMap<String,String>();
+            try
+            {
+                for (String name : config.getVariableNames (sectionName))
+                    values.put (name, config.peekValue (sectionName, name));
+            }
+
+            catch (NoSuchSectionException ex)
+            {
+                throw new IllegalStateException ("Bug: " + ex.getMessage());
+            }
+
+            result.put (sectionName, values);
+        }
+
+        return result;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static String getValue (Map<String,Map<String,String>> values,
+                                    String sectionName,
+                                    String variableName)
+    {
+        Map<String,String> section = values.get (sectionName);
+        return (section == null) ? null : section.get (variableName);
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The differences between two versions of a section.
+     */
+    private static class SectionDiff
+    {
+        final List<String> added = new ArrayList<String>();
+        final List<String> removed = new ArrayList<String>();
+        final List<String> changed = new ArrayList<String>();
+
+        SectionDiff (Map<String,String> oldSection,
+                     Map<String,String> newSection)
+        {
+            for (Map.Entry<String,String> entry : oldSection.entrySet())
+            {
+                String name = entry.getKey();
+                if (! newSection.containsKey (name))
+                    removed.add (name);
+                else if (! sameValue (entry.getValue(),
+                                      newSection.get (name)))
+                    changed.add (name);
+            }
+
+            for (String name : newSection.keySet())
+            {
+                if (! oldSection.containsKey (name))
+                    added.add (name);
+            }
+        }
+
+        boolean isEmpty()
+        {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+
+        private static boolean sameValue (String s1, String s2)
+        {
+            return (s1 == null) ? (s2 == null) : s1.equals (s2);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package org.clapper.util.config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringWriter;
+
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.clapper.util.io.FileUtil;
+import org.clapper.util.misc.LRUMap;
+
+/**
+ * <p>Fetches the files and URLs a configuration file includes, for one
+ * load. As soon as a file's text has been read, the includes it contains
+ * are fetched concurrently, on a small pool of daemon threads, along with
+ * the includes they contain, and so on. The parser still processes the
+ * includes one at a time, in the order in which they appear, so sections
+ * are numbered, and variables defined, exactly as if the includes had
+ * been read as they were reached; the parser just doesn't wait for each
+ * include's I/O in turn.</p>
+ *
+ * <p>Fetched includes are also kept in a process-wide cache, along with
+ * validators: a file's last-modified time and size, or an HTTP
+ * resource's <tt>ETag</tt> and <tt>Last-Modified</tt> headers. A later
+ * load reuses a cached include if its validators show it hasn't changed;
+ * for HTTP, that costs a conditional <tt>GET</tt>, rather than a full
+ * one. Other kinds of URLs are always fetched afresh.</p>
+ *
+ * <p>Each source's text comes with a CRC-32 checksum of its bytes, which
+ * identifies the version of the file that was read.</p>
+ */
+final class IncludeLoader
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int MAX_FETCH_THREADS = 8;
+    private static final int MAX_CACHED_SOURCES = 128;
+
+    /**
+     * A file modified this recently (in milliseconds) isn't cached, since
+     * a second change within the file system's time stamp granularity
+     * could leave its last-modified time and size unchanged.
+     */
+    private static final long RACY_INTERVAL = 2000;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Validated sources, by encoding and URL.
+     */
+    private static final Map<String,CachedSource> cache =
+        Collections.synchronizedMap
+            (new LRUMap<String,CachedSource> (MAX_CACHED_SOURCES));
+
+    private final String  encoding;
+    private final int     maxDepth;
+    private final Scanner scanner;
+
+    /**
+     * Fetches started so far, by URL. Guarded by this object's lock, as
+     * is <tt>executor</tt>, which is created when first needed.
+     */
+    private final Map<String,Future<Source>> fetches =
+        new HashMap<String,Future<Source>>();
+    private ExecutorService executor = null;
+    private boolean         closed = false;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new <tt>IncludeLoader</tt>.
+     *
+     * @param encoding  the encoding of the included files, or null for
+     *                  the default
+     * @param maxDepth  the maximum include nesting level to prefetch
+     * @param scanner   finds the includes in a file's text
+     */
+    IncludeLoader (String encoding, int maxDepth, Scanner scanner)
+    {
+        this.encoding = encoding;
+        this.maxDepth = maxDepth;
+        this.scanner  = scanner;
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Start fetching the includes in a file's text, unless they're nested
+     * too deeply.
+     *
+     * @param url    the file's URL
+     * @param text   the file's text
+     * @param depth  the file's include nesting level: 0 for the top-level
+     *               configuration file
+     */
+    void prefetch (URL url, String text, int depth)
+    {
+        if (depth >= maxDepth)
+            return;
+
+        for (URL include : scanner.findIncludes (url, text))
+            submit (include, depth + 1);
+    }
+
+    /**
+     * Get the contents of an included file or URL. If a fetch was started
+     * by {@link #prefetch prefetch()}, this method waits for it to finish;
+     * otherwise, it fetches the include itself.
+     *
+     * @param url  the URL of the include
+     *
+     * @return the text and checksum
+     *
+     * @throws IOException  can't read the include
+     */
+    Source read (URL url)
+        throws IOException
+    {
+        Future<Source> fetch;
+        synchronized (this)
+        {
+            fetch = fetches.get (url.toExternalForm());
+        }
+
+        if (fetch == null)
+            return fetch (url, encoding);
+
+        try
+        {
+            return fetch.get();
+        }
+
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException ("Interrupted while reading \"" +
+                                              url.toExternalForm() + "\"");
+        }
+
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException (cause);
+        }
+    }
+
+    /**
+     * Stop any fetches still in progress, and release the threads.
+     */
+    synchronized void close()
+    {
+        closed = true;
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Read an entire stream as text, computing the checksum of its bytes
+     * along the way. The stream is not closed.
+     *
+     * @param in        the stream
+     * @param encoding  the encoding, or null for the default
+     *
+     * @return the text and checksum
+     *
+     * @throws IOException  read error, or bad encoding
+     */
+    static Source readSource (InputStream in, String encoding)
+        throws IOException
+    {
+        CheckedInputStream checked = new CheckedInputStream (in, new CRC32());
+        Reader r = (encoding == null)
+                       ? new InputStreamReader (checked)
+                       : new InputStreamReader (checked, encoding);
+        StringWriter w = new StringWriter();
+        FileUtil.copyReader (r, w);
+        return new Source (w.toString(), checked.getChecksum().getValue());
+    }
+
+    /**
+     * Fetch the contents of a file or URL, using the cached copy if it's
+     * still valid.
+     *
+     * @param url       the URL
+     * @param encoding  the encoding, or null for the default
+     *
+     * @return the text and checksum
+     *
+     * @throws IOException  can't read the URL
+     */
+    static Source fetch (URL url, String encoding)
+        throws IOException
+    {
+        String key = ((encoding == null) ? "" : encoding) + " " +
+                     url.toExternalForm();
+        CachedSource cached = cache.get (key);
+
+        if (url.getProtocol().equals ("file"))
+        {
+            File file = toFile (url);
+            long lastModified = file.lastModified();
+            long size = file.length();
+
+            if ((cached != null) &&
+                (lastModified != 0) &&
+                (cached.lastModified == lastModified) &&
+                (cached.size == size))
+            {
+                return cached.source;
+            }
+
+            Source source;
+            InputStream in = new FileInputStream (file);
+            try
+            {
+                source = readSource (in, encoding);
+            }
+
+            finally
+            {
+                in.close();
+            }
+
+            if ((lastModified != 0) &&
+                ((System.currentTimeMillis() - lastModified) > RACY_INTERVAL))
+            {
+                cache.put (key,
+                           new CachedSource (source, lastModified, size,
+                                             null));
+            }
+
+            return source;
+        }
+
+        URLConnection conn = url.openConnection();
+        HttpURLConnection http = null;
+        if (conn instanceof HttpURLConnection)
+        {
+            http = (HttpURLConnection) conn;
+            if (cached != null)
+            {
+                if (cached.etag != null)
+                    http.setRequestProperty ("If-None-Match", cached.etag);
+                if (cached.lastModified != 0)
+                    http.setIfModifiedSince (cached.lastModified);
+
+                int status = http.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED)
+                {
+                    http.disconnect();
+                    return cached.source;
+                }
+            }
+        }
+
+        Source source;
+        InputStream in = conn.getInputStream();
+        try
+        {
+            source = readSource (in, encoding);
+        }
+
+        finally
+        {
+            in.close();
+        }
+
+        if (http != null)
+        {
+            String etag = http.getHeaderField ("ETag");
+            long lastModified = http.getLastModified();
+            if ((etag != null) || (lastModified != 0))
+            {
+                cache.put (key,
+                           new CachedSource (source, lastModified, -1, etag));
+            }
+        }
+
+        return source;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Start fetching an include, unless it's already being fetched.
+     */
+    private synchronized void submit (final URL url, final int depth)
+    {
+        String key = url.toExternalForm();
+        if (closed || fetches.containsKey (key))
+            return;
+
+        if (executor == null)
+        {
+            executor = Executors.newFixedThreadPool
+                (MAX_FETCH_THREADS,
+                 new ThreadFactory()
+                 {
+                     public Thread newThread (Runnable r)
+                     {
+                         Thread thread = new Thread (r, "IncludeLoader");
+                         thread.setDaemon (true);
+                         return thread;
+                     }
+                 });
+        }
+
+        fetches.put (key, executor.submit (new Callable<Source>()
+        {
+            public Source call() throws IOException
+            {
+                Source source = fetch (url, encoding);
+                prefetch (url, source.text, depth);
+                return source;
+            }
+        }));
+    }
+
+    private static File toFile (URL url)
+    {
+        try
+        {
+            return new File (url.toURI());
+        }
+
+        catch (URISyntaxException ex)
+        {
+            return new File (url.getPath());
+        }
+
+        catch (IllegalArgumentException ex)
+        {
+            return new File (url.getPath());
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Finds the includes in a configuration file's text.
+     */
+    interface Scanner
+    {
+        /**
+         * Find the includes in a configuration file's text. Malformed
+         * include directives are ignored; they're reported when the file
+         * is parsed.
+         *
+         * @param url   the file's URL, against which relative includes are
+         *              resolved, or null if not known
+         * @param text  the file's text
+         *
+         * @return the URLs of the includes, in order
+         */
+        List<URL> findIncludes (URL url, String text);
+    }
+
+    /**
+     * The contents of a file or URL.
+     */
+    static final class Source
+    {
+        final String text;
+        final long   checksum;
+
+        Source (String text, long checksum)
+        {
+            this.text     = text;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * A cached include, with its validators.
+     */
+    private static class CachedSource
+    {
+        final Source source;
+        final long   lastModified;
+        final long   size;
+        final String etag;
+
+        CachedSource (Source source, long lastModified, long size, String etag)
+        {
+            this.source       = source;
+            this.lastModified = lastModified;
+            this.size         = size;
+            this.etag         = etag;
+        }
+    }
+}
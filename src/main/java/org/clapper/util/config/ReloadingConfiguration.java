@@ -0,0 +1,555 @@
+package org.clapper.util.config;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.util.zip.CRC32;
+
+import org.clapper.util.logging.Logger;
+
+/**
+ * <p>A <tt>ReloadingConfiguration</tt> is a handle to a configuration
+ * file that can change while the program is running. It holds the most
+ * recently loaded version of the file, as a read-only
+ * {@link Configuration} snapshot. When the file, or any file it
+ * <tt>%include</tt>s, changes, the handle parses the new version into a
+ * new <tt>Configuration</tt>, and then publishes it with a single
+ * volatile write. Readers never lock, and never see a partially loaded
+ * configuration; a reader that's still using the previous snapshot
+ * continues to see the previous values.</p>
+ *
+ * <p>Changes are detected by polling each source's last-modified time
+ * and size (or, for a URL that reports neither, a checksum of its
+ * contents). Polling is done either on demand, via
+ * {@link #checkForChanges}, or periodically on a background thread,
+ * after a call to {@link #start start()}. If a new version of the file
+ * can't be parsed, the current snapshot is kept, and the state of the
+ * top-level file and of the snapshot's sources is recorded; a background
+ * check logs the error once, and doesn't try again until one of those
+ * files changes.</p>
+ *
+ * <p>Typical use:</p>
+ *
+ * <blockquote><pre>
+ * ReloadingConfiguration handle = new ReloadingConfiguration (file);
+ * handle.start (30, TimeUnit.SECONDS);
+ * ...
+ * Configuration config = handle.getConfiguration();
+ * String host = config.getConfigurationValue ("server", "host");
+ * </pre></blockquote>
+ *
+ * <p>A caller that reads several related values should fetch the
+ * snapshot once, and read all the values from it, so that it sees them
+ * all from the same version of the file. A subsystem that caches values
+ * derived from the configuration can register a
+ * {@link ConfigurationChangeListener}, to be told which values changed
+ * when a new snapshot is swapped in.</p>
+ *
+ * @see Configuration
+ */
+public class ReloadingConfiguration implements Closeable
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final URL    url;
+    private final String encoding;
+
+    /**
+     * The current snapshot. Written only while holding this object's
+     * lock; read without it.
+     */
+    private volatile Snapshot current;
+
+    /**
+     * The state of the sources when a reload last failed, or null if the
+     * last reload succeeded. Guarded by this object's lock.
+     */
+    private List<SourceStamp> failedStamps = null;
+
+    /**
+     * The background checker, if started. Guarded by this object's lock.
+     */
+    private ScheduledExecutorService checker = null;
+
+    /**
+     * Listeners to be told about changes when a new snapshot is loaded
+     */
+    private final List<ConfigurationChangeListener> changeListeners =
+        new CopyOnWriteArrayList<ConfigurationChangeListener>();
+
+    /**
+     * For logging
+     */
+    private static final Logger log =
+        new Logger (ReloadingConfiguration.class);
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new <tt>ReloadingConfiguration</tt> for a file, and load
+     * it.
+     *
+     * @param file  the configuration file
+     *
+     * @throws IOException            can't read the file
+     * @throws ConfigurationException error in the configuration data
+     */
+    public ReloadingConfiguration (File file)
+        throws IOException,
+               ConfigurationException
+    {
+        this (file.toURI().toURL(), null);
+    }
+
+    /**
+     * Create a new <tt>ReloadingConfiguration</tt> for a URL, and load
+     * it.
+     *
+     * @param url       the URL of the configuration file
+     * @param encoding  the encoding to use, or null for the default
+     *
+     * @throws IOException            can't read the file
+     * @throws ConfigurationException error in the configuration data
+     */
+    public ReloadingConfiguration (URL url, String encoding)
+        throws IOException,
+               ConfigurationException
+    {
+        this.url = url;
+        this.encoding = encoding;
+        reload();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the current snapshot of the configuration. The snapshot is
+     * read-only: any attempt to modify it throws an
+     * <tt>IllegalStateException</tt>.
+     *
+     * @return the most recently loaded configuration
+     */
+    public Configuration getConfiguration()
+    {
+        return current.config;
+    }
+
+    /**
+     * Get the URL of the configuration file.
+     *
+     * @return the URL
+     */
+    public URL getURL()
+    {
+        return url;
+    }
+
+    /**
+     * Reload the configuration if the file, or any file it included, has
+     * changed since it was last loaded. If the last attempt to load it
+     * failed, it's reloaded only if a source has changed since that
+     * attempt, so the same bad version isn't parsed repeatedly.
+     *
+     * @return <tt>true</tt> if a new snapshot was loaded, <tt>false</tt>
+     *         if nothing changed
+     *
+     * @throws IOException            can't read the file. The current
+     *                                snapshot is unchanged.
+     * @throws ConfigurationException error in the new configuration data.
+     *                                The current snapshot is unchanged.
+     */
+    public synchronized boolean checkForChanges()
+        throws IOException,
+               ConfigurationException
+    {
+        List<SourceStamp> stamps = (failedStamps != null) ? failedStamps
+                                                          : current.stamps;
+        for (SourceStamp stamp : stamps)
+        {
+            if (! stamp.equals (SourceStamp.of (stamp.url)))
+            {
+                log.info ("\"" + stamp.url.toExternalForm() +
+                          "\" has changed.");
+                reload();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Unconditionally reload the configuration, and publish the result.
+     *
+     * @throws IOException            can't read the file. The current
+     *                                snapshot is unchanged.
+     * @throws ConfigurationException error in the new configuration data.
+     *                                The current snapshot is unchanged.
+     */
+    public synchronized void reload()
+        throws IOException,
+               ConfigurationException
+    {
+        // Stamp the sources before parsing them, so that a change made
+        // during the parse is picked up by the next check. The previous
+        // snapshot's sources are usually the new snapshot's sources;
+        // anything new is stamped once the parse has found it.
+
+        Map<String,SourceStamp> before = new HashMap<String,SourceStamp>();
+        before.put (url.toExternalForm(), SourceStamp.of (url));
+        if (current != null)
+        {
+            for (SourceStamp stamp : current.stamps)
+            {
+                String key = stamp.url.toExternalForm();
+                if (! before.containsKey (key))
+                    before.put (key, SourceStamp.of (stamp.url));
+            }
+        }
+
+        Configuration config = createConfiguration();
+        boolean loaded = false;
+        try
+        {
+            config.load (url, encoding);
+            loaded = true;
+        }
+
+        finally
+        {
+            // A bad version's own list of sources isn't available, so
+            // use the top-level file and the last good version's sources.
+
+            if (loaded)
+                failedStamps = null;
+            else
+                failedStamps = new ArrayList<SourceStamp> (before.values());
+        }
+
+        config.setReadOnly();
+
+        List<SourceStamp> stamps = new ArrayList<SourceStamp>();
+        for (URL source : config.getSourceURLs())
+        {
+            SourceStamp stamp = before.get (source.toExternalForm());
+            stamps.add ((stamp != null) ? stamp : SourceStamp.of (source));
+        }
+
+        Snapshot previous = current;
+        current = new Snapshot (config, stamps);
+
+        if ((previous != null) && (! changeListeners.isEmpty()))
+            fireChangeEvent (previous.config, config);
+    }
+
+    /**
+     * Add a listener to be told what changed whenever a new snapshot is
+     * loaded. The listener is called after the new snapshot has been
+     * published, on the thread that loaded it, and only if something
+     * changed.
+     *
+     * @param listener  the listener to add
+     *
+     * @see #removeChangeListener
+     * @see ConfigurationDiff
+     */
+    public void addChangeListener (ConfigurationChangeListener listener)
+    {
+        changeListeners.add (listener);
+    }
+
+    /**
+     * Remove a listener added via {@link #addChangeListener}.
+     *
+     * @param listener  the listener to remove
+     *
+     * @return <tt>true</tt> if the listener was registered and was
+     *         removed, <tt>false</tt> if it wasn't registered
+     */
+    public boolean removeChangeListener (ConfigurationChangeListener listener)
+    {
+        return changeListeners.remove (listener);
+    }
+
+    /**
+     * Start checking for changes periodically, on a background daemon
+     * thread.
+     *
+     * @param interval  the time between the end of one check and the
+     *                  start of the next
+     * @param unit      the unit of <tt>interval</tt>
+     *
+     * @throws IllegalStateException already started, or closed
+     *
+     * @see #close
+     */
+    public synchronized void start (long interval, TimeUnit unit)
+    {
+        if (checker != null)
+            throw new IllegalStateException ("Already started.");
+
+        final String name = "ReloadingConfiguration " + url.toExternalForm();
+        checker = Executors.newSingleThreadScheduledExecutor
+            (new ThreadFactory()
+             {
+                 public Thread newThread (Runnable r)
+                 {
+                     Thread thread = new Thread (r, name);
+                     thread.setDaemon (true);
+                     return thread;
+                 }
+             });
+
+        checker.scheduleWithFixedDelay (new Runnable()
+                                        {
+                                            public void run()
+                                            {
+                                                backgroundCheck();
+                                            }
+                                        },
+                                        interval, interval, unit);
+    }
+
+    /**
+     * Stop the background checks, if they were started. The current
+     * snapshot remains available.
+     */
+    public synchronized void close()
+    {
+        if (checker != null)
+            checker.shutdownNow();
+    }
+
+    /*----------------------------------------------------------------------*\
+                             Protected Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create the empty <tt>Configuration</tt> into which each version of
+     * the file is loaded. Subclasses can override this method to
+     * configure the object (e.g., with
+     * {@link Configuration#setAbortOnUndefinedVariable}) before it's
+     * loaded. Note that it's first called from this class's constructor.
+     *
+     * @return a new <tt>Configuration</tt>
+     */
+    protected Configuration createConfiguration()
+    {
+        return new Configuration();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Tell the listeners what changed between two snapshots, if anything.
+     * A listener that throws an exception doesn't prevent the others from
+     * being called, or the snapshot from being used.
+     */
+    private void fireChangeEvent (Configuration oldConfig,
+                                  Configuration newConfig)
+    {
+        ConfigurationDiff diff = ConfigurationDiff.compute (oldConfig,
+                                                            newConfig);
+        if (diff.isEmpty())
+            return;
+
+        for (ConfigurationChangeListener listener : changeListeners)
+        {
+            try
+            {
+                listener.configurationChanged (newConfig, diff);
+            }
+
+            catch (RuntimeException ex)
+            {
+                log.error ("Configuration change listener failed", ex);
+            }
+        }
+    }
+
+    private void backgroundCheck()
+    {
+        // An exception would cancel the scheduled task, so nothing may
+        // escape.
+
+        try
+        {
+            checkForChanges();
+        }
+
+        catch (Exception ex)
+        {
+            log.error ("Can't reload configuration \"" +
+                       url.toExternalForm() + "\". Keeping the current one.",
+                       ex);
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A loaded configuration, and the state of its sources when it was
+     * loaded.
+     */
+    private static class Snapshot
+    {
+        final Configuration     config;
+        final List<SourceStamp> stamps;
+
+        Snapshot (Configuration config, List<SourceStamp> stamps)
+        {
+            this.config = config;
+            this.stamps = stamps;
+        }
+    }
+
+    /**
+     * The state of one source file or URL.
+     */
+    private static class SourceStamp
+    {
+        final URL  url;
+        final long lastModified;
+        final long size;
+
+        private SourceStamp (URL url, long lastModified, long size)
+        {
+            this.url          = url;
+            this.lastModified = lastModified;
+            this.size         = size;
+        }
+
+        /**
+         * Get the current state of a source. A source that can't be read
+         * gets a stamp that matches no readable source, so it's reloaded
+         * (and the error reported) once it can be read again.
+         */
+        static SourceStamp of (URL url)
+        {
+            try
+            {
+                if (url.getProtocol().equals ("file"))
+                {
+                    File file = toFile (url);
+                    if (file.exists())
+                        return new SourceStamp (url, file.lastModified(),
+                                                file.length());
+                    return new SourceStamp (url, -1, -1);
+                }
+
+                URLConnection conn = url.openConnection();
+                conn.setUseCaches (false);
+                if (conn instanceof HttpURLConnection)
+                {
+                    HttpURLConnection http = (HttpURLConnection) conn;
+                    http.setRequestMethod ("HEAD");
+                    try
+                    {
+                        long lastModified = http.getLastModified();
+                        if (lastModified != 0)
+                            return new SourceStamp (url, lastModified,
+                                                    http.getContentLength());
+                    }
+
+                    finally
+                    {
+                        http.disconnect();
+                    }
+
+                    conn = url.openConnection();
+                    conn.setUseCaches (false);
+                }
+
+                // No usable last-modified time. Fall back to a checksum of
+                // the contents.
+
+                InputStream in = conn.getInputStream();
+                try
+                {
+                    CRC32 crc = new CRC32();
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = in.read (buf)) > 0)
+                        crc.update (buf, 0, n);
+
+                    return new SourceStamp (url, conn.getLastModified(),
+                                            crc.getValue());
+                }
+
+                finally
+                {
+                    in.close();
+                }
+            }
+
+            catch (IOException ex)
+            {
+                log.error ("Can't check \"" + url.toExternalForm() + "\"",
+                           ex);
+                return new SourceStamp (url, -1, -1);
+            }
+        }
+
+        public boolean equals (Object o)
+        {
+            if (! (o instanceof SourceStamp))
+                return false;
+
+            SourceStamp other = (SourceStamp) o;
+            return (lastModified == other.lastModified) &&
+                   (size == other.size) &&
+                   url.toExternalForm().equals (other.url.toExternalForm());
+        }
+
+        public int hashCode()
+        {
+            return url.toExternalForm().hashCode();
+        }
+
+        private static File toFile (URL url)
+        {
+            try
+            {
+                return new File (url.toURI());
+            }
+
+            catch (URISyntaxException ex)
+            {
+                return new File (url.getPath());
+            }
+
+            catch (IllegalArgumentException ex)
+            {
+                return new File (url.getPath());
+            }
+        }
+    }
+}
@@ -1,16 +1,21 @@
 package org.clapper.util.config;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.clapper.util.text.XStringBuilder;
 
 /**
- * Contains the contents of a section.
+ * Contains the contents of a section. Reads are safe without locking,
+ * even while variables are being added: a reader sees each variable
+ * either not at all or fully constructed, and a list of variable names
+ * never changes once it has been returned.
  */
 class Section
 {
@@ -21,22 +26,29 @@ class Section
     /**
      * Name of section
      */
-    private String name;
+    private final String name;
 
     /**
-     * Names of variables, in order encountered. Contains strings.
+     * Names of variables, in order encountered. Only the first
+     * variableCount entries are used. Names are only ever appended, and
+     * the array is replaced by a larger copy when it fills up, so a
+     * reader can take the first variableCount entries of whatever array
+     * it sees without locking. Writers synchronize on this object, and
+     * write variableCount last.
      */
-    private List<String> variableNames = new ArrayList<String>();
+    private volatile String[] variableNames = new String[8];
+    private volatile int variableCount = 0;
 
     /**
      * List of Variable objects, indexed by variable name
      */
-    private Map<String, Variable> valueMap = new HashMap<String, Variable>();
+    private final ConcurrentMap<String, Variable> valueMap =
+        new ConcurrentHashMap<String, Variable>();
 
     /**
      * The section's unique ID. This ID increases monotonically from 1.
      */
-    private int id = 0;
+    private final int id;
 
     /*----------------------------------------------------------------------*\
                                 Constructor
@@ -83,11 +95,15 @@ class Section
      * they were encountered in the file.
      *
      * @return an unmodifiable <tt>Collection</tt> of <tt>String</tt> variable
-     *         names
+     *         names, which doesn't reflect variables added later
      */
     Collection<String> getVariableNames()
     {
-        return Collections.unmodifiableList (variableNames);
+        // Read the count first. The array is at least as new.
+
+        int count = variableCount;
+        return Collections.unmodifiableList
+            (Arrays.asList (variableNames).subList (0, count));
     }
 
     /**
@@ -102,7 +118,9 @@ class Section
     Variable getVariable (String varName)
         throws ConfigurationException
     {
-        return valueMap.get (varName);
+        // The map can't hold a null key.
+
+        return (varName == null) ? null : valueMap.get (varName);
     }
 
     /**
@@ -115,24 +133,34 @@ class Section
     Variable addVariable (String varName, String value)
     {
         Variable variable = new Variable (varName, value, this);
-        valueMap.put (varName, variable);
-        variableNames.add (varName);
+        addVariable (variable);
         return variable;
     }
 
     /**
      * Add a variable to this section, replacing any existing instance
-     * of the variable.
+     * of the variable. Readers can see the variable as soon as it has
+     * been added, so it should be fully set up first; after that, only
+     * lazy substitution may modify it.
      *
-     * @param varName      the variable name
-     * @param value        its (presumably unexpanded) value
-     * @param lineDefined  line number in the file where it was defined
+     * @param variable  the variable, whose section must be this one
      */
-    Variable addVariable (String varName, String value, int lineDefined)
+    synchronized void addVariable (Variable variable)
     {
-        Variable variable = addVariable (varName, value);
-        variable.setLineWhereDefined (lineDefined);
-        return variable;
+        String varName = variable.getName();
+        if (valueMap.put (varName, variable) != null)
+            return;
+
+        String[] names = variableNames;
+        int count = variableCount;
+        if (count == names.length)
+        {
+            names = Arrays.copyOf (names, count * 2);
+            variableNames = names;
+        }
+
+        names[count] = varName;
+        variableCount = count + 1;
     }
 
     /**
@@ -1,10 +1,13 @@
 package org.clapper.util.config;
 
+import org.clapper.util.text.TextUtil;
 import org.clapper.util.text.XStringBufBase;
 
 import java.util.ArrayList;
 import java.util.Collection;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * Contents of a variable. Mostly exists to make replacing a variable
  * value easier while looping over a section.
@@ -18,6 +21,9 @@ class Variable
     private static final char LITERAL_QUOTE = '\'';
     private static final char SUBST_QUOTE   = '"';
 
+    private static final AtomicLongFieldUpdater<Variable> ACCESS_COUNT =
+        AtomicLongFieldUpdater.newUpdater (Variable.class, "accessCount");
+
     /*----------------------------------------------------------------------*\
                                Instance Data
     \*----------------------------------------------------------------------*/
@@ -31,6 +37,29 @@ class Variable
     private ValueSegment[] cookedSegments = null;
     private Section        parentSection;
 
+    /**
+     * The cooked value, split into tokens for
+     * Configuration.getConfigurationTokens(). Built on first use, and
+     * discarded whenever the cooked value changes. Volatile, so that
+     * readers on other threads see a complete array; two readers may
+     * both build it, which does no harm.
+     */
+    private volatile String[] valueTokens = null;
+
+    /**
+     * Whether the cooked value still contains unexpanded variable
+     * references. Volatile, so that a reader that sees it cleared also
+     * sees the cooked value.
+     */
+    private volatile boolean substitutionPending = false;
+
+    /**
+     * How many times the variable has been read through the
+     * Configuration getters, if access counting is enabled. Updated via
+     * ACCESS_COUNT, so that it doesn't cost an object per variable.
+     */
+    private volatile long accessCount = 0;
+
     /*----------------------------------------------------------------------*\
                                Constructors
     \*----------------------------------------------------------------------*/
@@ -142,6 +171,78 @@ class Variable
         return cookedTokens;
     }
 
+    /**
+     * Get the cooked value as a series of tokens, as returned by
+     * {@link Configuration#getConfigurationTokens}. The tokens are
+     * computed on the first call, and reused until the value changes.
+     *
+     * @return the tokens. The caller must not modify the array.
+     *
+     * @throws ConfigurationException on parsing error
+     */
+    String[] getValueTokens()
+        throws ConfigurationException
+    {
+        String[] tokens = valueTokens;
+        if (tokens != null)
+            return tokens;
+
+        // The "cooked" tokens are split into literal (i.e., quoted) and
+        // non-quoted pieces. This is almost never what a caller wants.
+        // Instead, the caller wants individual tokens, with quoted parts
+        // represented as a single token. For instance, given:
+        //
+        //      abc def ghi
+        //
+        // the caller wants:
+        //
+        //      abc
+        //      def
+        //      ghi
+        //
+        // Similarly, given:
+        //
+        //      abc "def ghi" jkl
+        //
+        // the caller wants:
+        //
+        //      abc
+        //      def ghi
+        //      jkl
+        //
+        // Fortunately, the parser keeps track of whether a segment was
+        // literal or not, so this is easy to manufacture.
+
+        ValueSegment[] segments = getCookedSegments();
+        ArrayList<String> result = new ArrayList<String>();
+
+        if (segments != null)
+        {
+            for (ValueSegment segment : segments)
+            {
+                String cookedToken = segment.toString();
+                if (segment.isLiteral || segment.isWhiteSpaceEscaped)
+                {
+                    // Was quoted. Use it as is.
+
+                    result.add (cookedToken);
+                }
+
+                else
+                {
+                    // Break it into white space-delimited tokens.
+
+                    for (String token : TextUtil.split (cookedToken))
+                        result.add (token);
+                }
+            }
+        }
+
+        tokens = result.toArray (new String[result.size()]);
+        valueTokens = tokens;
+        return tokens;
+    }
+
     /**
      * Set the cooked value to the specified string, leaving the raw value
      * unmodified.
@@ -156,6 +257,7 @@ class Variable
     void setCookedValue (String value)
     {
         this.cookedValue = value;
+        this.valueTokens = null;
     }
 
     /**
@@ -216,7 +318,30 @@ class Variable
     void segmentValue()
         throws ConfigurationException
     {
-        if (rawSegments == null)
+        if ((rawSegments == null) &&
+            (rawValue.indexOf (LITERAL_QUOTE) < 0) &&
+            (rawValue.indexOf (SUBST_QUOTE) < 0))
+        {
+            // Nothing is quoted, so the whole value (if any) is a single
+            // plain segment, and there's no need to scan it character by
+            // character.
+
+            if (rawValue.length() == 0)
+            {
+                rawSegments = new ValueSegment[0];
+                cookedSegments = new ValueSegment[0];
+            }
+
+            else
+            {
+                ValueSegment segment = new ValueSegment();
+                segment.segmentBuf.append (rawValue);
+                rawSegments = new ValueSegment[] {segment};
+                cookedSegments = new ValueSegment[] {segment.makeCopy()};
+            }
+        }
+
+        else if (rawSegments == null)
         {
             Collection<ValueSegment> segments = new ArrayList<ValueSegment>();
             char                     ch;
@@ -337,20 +462,18 @@ class Variable
             if (currentSegment.length() > 0)
                 segments.add (currentSegment);
 
-            if (segments.size() > 0)
-            {
-                // Initially, the raw and cooked segments are identical.
-                // The main parser will "cook" the cooked segments.
+            // Initially, the raw and cooked segments are identical. The
+            // main parser will "cook" the cooked segments. An empty value
+            // has no segments.
 
-                rawSegments = new ValueSegment[segments.size()];
-                cookedSegments = new ValueSegment[segments.size()];
-                i = 0;
-                for (ValueSegment vs : segments)
-                {
-                    rawSegments[i] = vs;
-                    cookedSegments[i] = vs.makeCopy();
-                    i++;
-                }
+            rawSegments = new ValueSegment[segments.size()];
+            cookedSegments = new ValueSegment[segments.size()];
+            i = 0;
+            for (ValueSegment vs : segments)
+            {
+                rawSegments[i] = vs;
+                cookedSegments[i] = vs.makeCopy();
+                i++;
             }
         }
     }
@@ -382,6 +505,26 @@ class Variable
             cookedValue = buf.toString();
 //            valueSegments = null;
         }
+
+        valueTokens = null;
+    }
+
+    /**
+     * Replace the cooked segments with segments cooked earlier (e.g., ones
+     * saved in a snapshot), and reassemble the cooked value from them.
+     *
+     * @param segments  the cooked segments
+     *
+     * @throws ConfigurationException on parsing error
+     *
+     * @see #getCookedSegments
+     */
+    void restoreCookedSegments (ValueSegment[] segments)
+        throws ConfigurationException
+    {
+        segmentValue();
+        cookedSegments = segments;
+        reassembleCookedValueFromSegments();
     }
 
     /**
@@ -397,6 +540,61 @@ class Variable
     {
         this.rawValue = value;
         this.cookedValue = value;
+
+        // The segments and tokens were derived from the old value.
+
+        this.rawSegments = null;
+        this.cookedSegments = null;
+        this.cookedTokens = null;
+        this.valueTokens = null;
+        this.substitutionPending = false;
+    }
+
+    /**
+     * Determine whether the cooked value still contains unexpanded
+     * variable references.
+     *
+     * @return <tt>true</tt> if the references have yet to be expanded
+     *
+     * @see #setSubstitutionPending
+     */
+    boolean isSubstitutionPending()
+    {
+        return substitutionPending;
+    }
+
+    /**
+     * Mark the cooked value as containing unexpanded variable references,
+     * or as fully expanded. The cooked value must be set first.
+     *
+     * @param pending  <tt>true</tt> if the references have yet to be
+     *                 expanded, <tt>false</tt> once they have been
+     *
+     * @see #isSubstitutionPending
+     */
+    void setSubstitutionPending (boolean pending)
+    {
+        this.substitutionPending = pending;
+    }
+
+    /**
+     * Count a read of the variable's value.
+     *
+     * @see #getAccessCount
+     */
+    void recordAccess()
+    {
+        ACCESS_COUNT.incrementAndGet (this);
+    }
+
+    /**
+     * Get the number of reads counted by {@link #recordAccess}.
+     *
+     * @return the count
+     */
+    long getAccessCount()
+    {
+        return accessCount;
     }
 
     /**
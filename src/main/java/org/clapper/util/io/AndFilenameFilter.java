@@ -1,6 +1,7 @@
 package org.clapper.util.io;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Iterator;
@@ -92,6 +93,16 @@ public final class AndFilenameFilter implements FilenameFilter
         filters.remove (filter);
     }
 
+    /**
+     * Get the contained filters, as an unmodifiable collection.
+     *
+     * @return the unmodifable <tt>Collection</tt>
+     */
+    public Collection<FilenameFilter> getFilters()
+    {
+        return Collections.unmodifiableCollection (filters);
+    }
+
     /**
      * <p>Determine whether a file is to be accepted or not, based on the
      * contained filters. The file is accepted if any one of the contained
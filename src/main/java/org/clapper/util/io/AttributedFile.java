@@ -0,0 +1,94 @@
+package org.clapper.util.io;
+
+import java.io.File;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A <tt>File</tt> that carries the <tt>BasicFileAttributes</tt> read
+ * for it during a directory walk. The common attribute queries are
+ * answered from those attributes, so filters that call
+ * <tt>isFile()</tt>, <tt>isDirectory()</tt> and the like don't issue
+ * another <tt>stat()</tt> for every file.
+ *
+ * <p>Since the answers don't change when the file does, an
+ * <tt>AttributedFile</tt> is only ever passed to a filter, while the
+ * file is being examined. It's never returned to a caller.</p>
+ *
+ * @see RecursiveFileFinder
+ * @see IncrementalFileScanner
+ */
+class AttributedFile extends File
+{
+    /*----------------------------------------------------------------------*\
+                         Private Static Variables
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * See JDK 1.5 version of java.io.Serializable
+     */
+    private static final long serialVersionUID = 1L;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final transient BasicFileAttributes attrs;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new <tt>AttributedFile</tt>.
+     *
+     * @param parent  the parent directory
+     * @param name    the file's name within the parent
+     * @param attrs   the file's attributes
+     */
+    AttributedFile (File parent, String name, BasicFileAttributes attrs)
+    {
+        super (parent, name);
+        this.attrs = attrs;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the attributes read for this file.
+     *
+     * @return the attributes
+     */
+    BasicFileAttributes getAttributes()
+    {
+        return attrs;
+    }
+
+    public boolean exists()
+    {
+        return (attrs != null) || super.exists();
+    }
+
+    public boolean isFile()
+    {
+        return (attrs != null) ? attrs.isRegularFile() : super.isFile();
+    }
+
+    public boolean isDirectory()
+    {
+        return (attrs != null) ? attrs.isDirectory() : super.isDirectory();
+    }
+
+    public long length()
+    {
+        return (attrs != null) ? attrs.size() : super.length();
+    }
+
+    public long lastModified()
+    {
+        return (attrs != null) ? attrs.lastModifiedTime().toMillis()
+                               : super.lastModified();
+    }
+}
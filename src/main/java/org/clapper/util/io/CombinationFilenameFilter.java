@@ -1,6 +1,7 @@
 package org.clapper.util.io;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Iterator;
@@ -152,6 +153,16 @@ public class CombinationFilenameFilter implements FilenameFilter
         filters.remove (filter);
     }
 
+    /**
+     * Get the contained filters, as an unmodifiable collection.
+     *
+     * @return the unmodifable <tt>Collection</tt>
+     */
+    public Collection<FilenameFilter> getFilters()
+    {
+        return Collections.unmodifiableCollection (filters);
+    }
+
     /**
      * Determine whether a file is to be accepted or not, based on the
      * contained filters and the mode. If this object's mode mode is set to
@@ -0,0 +1,93 @@
+package org.clapper.util.io;
+
+import java.io.File;
+import java.io.FileFilter;
+
+/**
+ * <p>A <tt>CompiledFileFilter</tt> is an optimized, read-only equivalent
+ * of a tree of <tt>FileFilter</tt> objects built from the combinators
+ * in this package ({@link AndFileFilter}, {@link OrFileFilter},
+ * {@link NotFileFilter}, {@link CombinationFileFilter}) and the filters
+ * they contain. The tree is compiled once, when the
+ * <tt>CompiledFileFilter</tt> is constructed:</p>
+ *
+ * <ul>
+ *   <li>Nested ANDs and ORs are flattened, double negations are removed,
+ *       and constant subtrees (such as empty ORs) are folded.
+ *   <li>The {@link RegexFileFilter} operands of an OR that apply to the
+ *       same part of the file (name or path) are merged into a single
+ *       regular expression, so a file name is scanned once, rather than
+ *       once per pattern. (Patterns that use back references, or the
+ *       <tt>LITERAL</tt> or <tt>COMMENTS</tt> flags, aren't merged.
+ *       Neither are patterns that are simple literal strings, such as
+ *       <tt>\.class$</tt>; those are matched without the regular
+ *       expression engine. See
+ *       {@link org.clapper.util.regex.OptimizedPattern}.)
+ *   <li>Within each AND and OR, the cheap tests (regular expressions on
+ *       the file name, then on the path) are evaluated before the tests
+ *       that might have to consult the file system, such as
+ *       {@link FileOnlyFilter} and {@link DirectoryFilter}. Filters that
+ *       the compiler doesn't recognize are treated as potentially
+ *       expensive, and they're evaluated in their original relative
+ *       order.
+ *   <li>The file's name and path are computed at most once per file, no
+ *       matter how many tests use them.
+ * </ul>
+ *
+ * <p>Since the operands of an AND or OR may be evaluated in a different
+ * order than in the original tree, the contained filters must not have
+ * side effects. Changes made to the original filters after the
+ * <tt>CompiledFileFilter</tt> is constructed have no effect on it.</p>
+ *
+ * @see CompiledFilenameFilter
+ * @see AndFileFilter
+ * @see OrFileFilter
+ * @see NotFileFilter
+ */
+public final class CompiledFileFilter implements FileFilter
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final FilterCompiler.Node root;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compile a filter tree.
+     *
+     * @param filter  the root of the tree to compile
+     */
+    public CompiledFileFilter (FileFilter filter)
+    {
+        this.root = FilterCompiler.compile (filter);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Determine whether a file is accepted by the compiled filter tree.
+     *
+     * @param file  the file to test
+     *
+     * @return <tt>true</tt> if the file matches, <tt>false</tt> if it doesn't
+     */
+    public boolean accept (File file)
+    {
+        return root.accept (new FilterCompiler.Candidate (file));
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    FilterCompiler.Node getRoot()
+    {
+        return root;
+    }
+}
@@ -0,0 +1,76 @@
+package org.clapper.util.io;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+/**
+ * <p>A <tt>CompiledFilenameFilter</tt> is an optimized, read-only
+ * equivalent of a tree of <tt>FilenameFilter</tt> objects built from the
+ * combinators in this package ({@link AndFilenameFilter},
+ * {@link OrFilenameFilter}, {@link NotFilenameFilter},
+ * {@link CombinationFilenameFilter}) and the filters they contain. It's
+ * the <tt>FilenameFilter</tt> counterpart of {@link CompiledFileFilter},
+ * and it applies the same optimizations. In addition, the accept and
+ * reject patterns of a {@link MultipleRegexFilenameFilter} are merged
+ * into one accept pattern and one reject pattern, and they're combined
+ * with any other regular expression filters in the same OR.</p>
+ *
+ * <p>Since the operands of an AND or OR may be evaluated in a different
+ * order than in the original tree, the contained filters must not have
+ * side effects. Changes made to the original filters after the
+ * <tt>CompiledFilenameFilter</tt> is constructed have no effect on
+ * it.</p>
+ *
+ * @see CompiledFileFilter
+ * @see AndFilenameFilter
+ * @see OrFilenameFilter
+ * @see NotFilenameFilter
+ */
+public final class CompiledFilenameFilter implements FilenameFilter
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final FilterCompiler.Node root;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compile a filter tree.
+     *
+     * @param filter  the root of the tree to compile
+     */
+    public CompiledFilenameFilter (FilenameFilter filter)
+    {
+        this.root = FilterCompiler.compile (filter);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Determine whether a file is accepted by the compiled filter tree.
+     *
+     * @param dir   the directory containing the file
+     * @param name  the file name
+     *
+     * @return <tt>true</tt> if the file matches, <tt>false</tt> if it doesn't
+     */
+    public boolean accept (File dir, String name)
+    {
+        return root.accept (new FilterCompiler.Candidate (dir, name));
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    FilterCompiler.Node getRoot()
+    {
+        return root;
+    }
+}
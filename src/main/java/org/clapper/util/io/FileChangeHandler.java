@@ -0,0 +1,35 @@
+package org.clapper.util.io;
+
+import java.io.File;
+
+/**
+ * A <tt>FileChangeHandler</tt> receives the changes detected by an
+ * {@link IncrementalFileScanner}, one call per changed file.
+ *
+ * @see IncrementalFileScanner
+ */
+public interface FileChangeHandler
+{
+    /**
+     * Called for a file that wasn't present in the previous snapshot.
+     *
+     * @param file  the new file
+     */
+    public void fileAdded (File file);
+
+    /**
+     * Called for a file whose size or last-modified time differs from
+     * the previous snapshot.
+     *
+     * @param file  the modified file
+     */
+    public void fileModified (File file);
+
+    /**
+     * Called for a file that was present in the previous snapshot, but
+     * no longer exists.
+     *
+     * @param file  the deleted file
+     */
+    public void fileDeleted (File file);
+}
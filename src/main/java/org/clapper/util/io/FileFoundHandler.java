@@ -0,0 +1,29 @@
+package org.clapper.util.io;
+
+import java.io.File;
+
+/**
+ * A <tt>FileFoundHandler</tt> receives the files found by a
+ * {@link RecursiveFileFinder}, as they are found, rather than after the
+ * entire tree has been walked. This interface is deliberately reminiscent
+ * of the <tt>java.io.FileFilter</tt> interface.
+ *
+ * @see RecursiveFileFinder
+ */
+public interface FileFoundHandler
+{
+    /**
+     * Called once for each file (or directory) that matches the finder's
+     * filter. If the {@link RecursiveFileFinder} is configured to use more
+     * than one thread, this method can be called concurrently from
+     * multiple threads, so implementations must be thread-safe.
+     *
+     * <p>The <tt>File</tt> objects passed to this method are plain
+     * <tt>java.io.File</tt> objects, so calls such as <tt>isFile()</tt>
+     * and <tt>length()</tt> query the file system, and reflect any change
+     * made since the file was found.</p>
+     *
+     * @param file  the matching file
+     */
+    public void fileFound (File file);
+}
@@ -0,0 +1,742 @@
+package org.clapper.util.io;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.clapper.util.regex.OptimizedPattern;
+
+/**
+ * Compiles trees of file and file name filters into flat evaluation
+ * trees. Used by {@link CompiledFileFilter} and
+ * {@link CompiledFilenameFilter}; see those classes for a description of
+ * the optimizations.
+ */
+final class FilterCompiler
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /*
+     * Relative evaluation costs, used to order the operands of AND and OR
+     * nodes.
+     */
+    private static final int COST_CONSTANT = 0;
+    private static final int COST_NAME     = 1;
+    private static final int COST_PATH     = 2;
+    private static final int COST_OPAQUE   = 3;
+    private static final int COST_STAT     = 4;
+
+    /**
+     * Flags that prevent patterns from being combined by concatenation.
+     */
+    private static final int UNMERGEABLE_FLAGS =
+        Pattern.LITERAL | Pattern.COMMENTS;
+
+    /**
+     * Matches back references, whose group numbers would change if the
+     * pattern were combined with another.
+     */
+    private static final Pattern BACK_REFERENCE =
+        Pattern.compile ("\\\\(?:[1-9]|k<)");
+
+    /**
+     * Matches named groups, which can't be combined with another pattern
+     * that defines a group with the same name.
+     */
+    private static final Pattern NAMED_GROUP =
+        Pattern.compile ("\\(\\?<[a-zA-Z]");
+
+    private static final Node TRUE = new ConstantNode (true);
+    private static final Node FALSE = new ConstantNode (false);
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    private FilterCompiler()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compile a <tt>FileFilter</tt> tree.
+     *
+     * @param filter  the filter
+     *
+     * @return the root of the compiled tree
+     */
+    static Node compile (FileFilter filter)
+    {
+        return optimize (translate (filter));
+    }
+
+    /**
+     * Compile a <tt>FilenameFilter</tt> tree.
+     *
+     * @param filter  the filter
+     *
+     * @return the root of the compiled tree
+     */
+    static Node compile (FilenameFilter filter)
+    {
+        return optimize (translate (filter));
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    @SuppressWarnings("deprecation")
+    private static Node translate (FileFilter filter)
+    {
+        Node result;
+
+        if (filter instanceof CompiledFileFilter)
+            result = ((CompiledFileFilter) filter).getRoot();
+
+        else if (filter instanceof AndFileFilter)
+            result = new AndNode (translateFiles
+                                     (((AndFileFilter) filter).getFilters()));
+
+        else if (filter instanceof OrFileFilter)
+        {
+            Collection<FileFilter> filters =
+                ((OrFileFilter) filter).getFilters();
+
+            // An empty OrFileFilter accepts everything.
+
+            if (filters.isEmpty())
+                result = TRUE;
+            else
+                result = new OrNode (translateFiles (filters));
+        }
+
+        else if (filter instanceof CombinationFileFilter)
+        {
+            CombinationFileFilter cf = (CombinationFileFilter) filter;
+            List<Node> operands = translateFiles (cf.getFilters());
+            if (cf.getMode() == CombinationFilterMode.AND_FILTERS)
+                result = new AndNode (operands);
+            else
+                result = new OrNode (operands);
+        }
+
+        else if (filter instanceof NotFileFilter)
+            result = new NotNode (translate
+                                     (((NotFileFilter) filter).getFilter()));
+
+        else if (filter instanceof RegexFileFilter)
+        {
+            RegexFileFilter rf = (RegexFileFilter) filter;
+            Target target = (rf.getMatchType() == FileFilterMatchType.PATH)
+                                ? Target.PATH : Target.NAME;
+            result = new RegexNode (rf.getPattern(), target, true);
+        }
+
+        else if (filter instanceof FileOnlyFilter)
+            result = new FileTypeNode (false);
+
+        else if (filter instanceof DirectoryFilter)
+            result = new FileTypeNode (true);
+
+        else
+            result = new OpaqueFileNode (filter);
+
+        return result;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Node translate (FilenameFilter filter)
+    {
+        Node result;
+
+        if (filter instanceof CompiledFilenameFilter)
+            result = ((CompiledFilenameFilter) filter).getRoot();
+
+        else if (filter instanceof AndFilenameFilter)
+        {
+            AndFilenameFilter af = (AndFilenameFilter) filter;
+            result = new AndNode (translateNames (af.getFilters()));
+        }
+
+        else if (filter instanceof OrFilenameFilter)
+        {
+            Collection<FilenameFilter> filters =
+                ((OrFilenameFilter) filter).getFilters();
+
+            // An empty OrFilenameFilter accepts everything.
+
+            if (filters.isEmpty())
+                result = TRUE;
+            else
+                result = new OrNode (translateNames (filters));
+        }
+
+        else if (filter instanceof CombinationFilenameFilter)
+        {
+            CombinationFilenameFilter cf = (CombinationFilenameFilter) filter;
+            List<Node> operands = translateNames (cf.getFilters());
+            if (cf.getMode() == CombinationFilterMode.AND_FILTERS)
+                result = new AndNode (operands);
+            else
+                result = new OrNode (operands);
+        }
+
+        else if (filter instanceof NotFilenameFilter)
+        {
+            NotFilenameFilter nf = (NotFilenameFilter) filter;
+            result = new NotNode (translate (nf.getFilter()));
+        }
+
+        else if (filter instanceof RegexFilenameFilter)
+        {
+            RegexFilenameFilter rf = (RegexFilenameFilter) filter;
+            Target target = (rf.getMatchType() == FileFilterMatchType.PATH)
+                                ? Target.PATH : Target.NAME;
+            result = new RegexNode (rf.getPattern(), target, true);
+        }
+
+        else if (filter instanceof MultipleRegexFilenameFilter)
+        {
+            // Rejected if any reject pattern matches; otherwise, accepted
+            // if there are no accept patterns, or if any of them matches.
+
+            MultipleRegexFilenameFilter mf =
+                (MultipleRegexFilenameFilter) filter;
+            boolean path = (mf.getMatchType() ==
+                            MultipleRegexFilenameFilter.MatchType.PATH);
+            Target target = path ? Target.JOINED_PATH : Target.NAME;
+
+            List<Node> rejects = new ArrayList<Node>();
+            for (Pattern p : mf.getRejectPatterns())
+                rejects.add (new RegexNode (p, target, false));
+
+            List<Node> accepts = new ArrayList<Node>();
+            for (Pattern p : mf.getAcceptPatterns())
+                accepts.add (new RegexNode (p, target, false));
+
+            List<Node> operands = new ArrayList<Node>();
+            if (! rejects.isEmpty())
+                operands.add (new NotNode (new OrNode (rejects)));
+            if (! accepts.isEmpty())
+                operands.add (new OrNode (accepts));
+
+            result = new AndNode (operands);
+        }
+
+        else
+            result = new OpaqueNameNode (filter);
+
+        return result;
+    }
+
+    private static List<Node> translateFiles (Collection<FileFilter> filters)
+    {
+        List<Node> result = new ArrayList<Node>();
+        for (FileFilter filter : filters)
+            result.add (translate (filter));
+        return result;
+    }
+
+    private static List<Node> translateNames
+        (Collection<FilenameFilter> filters)
+    {
+        List<Node> result = new ArrayList<Node>();
+        for (FilenameFilter filter : filters)
+            result.add (translate (filter));
+        return result;
+    }
+
+    /**
+     * Optimize a translated tree: flatten nested ANDs and ORs, eliminate
+     * double negation and constants, merge the regular expressions in
+     * each OR, and order the operands of each AND and OR by cost.
+     *
+     * @param node  the root of the tree
+     *
+     * @return the root of the optimized tree
+     */
+    private static Node optimize (Node node)
+    {
+        Node result = node;
+
+        if (node instanceof NotNode)
+        {
+            Node operand = optimize (((NotNode) node).operand);
+            if (operand instanceof NotNode)
+                result = ((NotNode) operand).operand;
+            else if (operand instanceof ConstantNode)
+                result = ((ConstantNode) operand).value ? FALSE : TRUE;
+            else
+                result = new NotNode (operand);
+        }
+
+        else if (node instanceof AndNode)
+        {
+            List<Node> operands = new ArrayList<Node>();
+            for (Node operand : ((AndNode) node).operands)
+            {
+                operand = optimize (operand);
+                if (operand == FALSE)
+                    return FALSE;
+                else if (operand instanceof AndNode)
+                {
+                    operands.addAll (Arrays.asList
+                                         (((AndNode) operand).operands));
+                }
+                else if (operand != TRUE)
+                    operands.add (operand);
+            }
+
+            result = makeAnd (sortByCost (operands));
+        }
+
+        else if (node instanceof OrNode)
+        {
+            List<Node> operands = new ArrayList<Node>();
+            for (Node operand : ((OrNode) node).operands)
+            {
+                operand = optimize (operand);
+                if (operand == TRUE)
+                    return TRUE;
+                else if (operand instanceof OrNode)
+                {
+                    operands.addAll (Arrays.asList
+                                         (((OrNode) operand).operands));
+                }
+                else if (operand != FALSE)
+                    operands.add (operand);
+            }
+
+            result = makeOr (sortByCost (mergeRegexes (operands)));
+        }
+
+        return result;
+    }
+
+    private static Node makeAnd (List<Node> operands)
+    {
+        if (operands.isEmpty())
+            return TRUE;
+        else if (operands.size() == 1)
+            return operands.get (0);
+        else
+            return new AndNode (operands);
+    }
+
+    private static Node makeOr (List<Node> operands)
+    {
+        if (operands.isEmpty())
+            return FALSE;
+        else if (operands.size() == 1)
+            return operands.get (0);
+        else
+            return new OrNode (operands);
+    }
+
+    /**
+     * Combine the regular expression operands of an OR that apply to the
+     * same target, in the same way, with the same flags, into single
+     * patterns of the form <tt>(?:a)|(?:b)|...</tt>.
+     *
+     * @param operands  the OR's operands
+     *
+     * @return the new operand list
+     */
+    private static List<Node> mergeRegexes (List<Node> operands)
+    {
+        Map<String,List<RegexNode>> groups =
+            new LinkedHashMap<String,List<RegexNode>>();
+        List<Node> result = new ArrayList<Node>();
+
+        for (Node operand : operands)
+        {
+            if ((operand instanceof RegexNode) &&
+                isMergeable ((RegexNode) operand))
+            {
+                RegexNode rn = (RegexNode) operand;
+                String key = rn.target + "/" + rn.find + "/" +
+                             rn.pattern.flags();
+                List<RegexNode> group = groups.get (key);
+                if (group == null)
+                {
+                    group = new ArrayList<RegexNode>();
+                    groups.put (key, group);
+                }
+
+                group.add (rn);
+            }
+
+            else
+            {
+                result.add (operand);
+            }
+        }
+
+        for (List<RegexNode> group : groups.values())
+        {
+            RegexNode first = group.get (0);
+            if (group.size() == 1)
+                result.add (first);
+
+            else
+            {
+                Pattern merged = merge (group);
+                if (merged == null)
+                    result.addAll (group);
+                else
+                    result.add (new RegexNode (merged, first.target,
+                                               first.find));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Combine a group of patterns into a single pattern of the form
+     * <tt>(?:a)|(?:b)|...</tt>.
+     *
+     * @param group  the patterns' nodes, which all have the same flags
+     *
+     * @return the combined pattern, or null if the patterns can't be
+     *         combined
+     */
+    private static Pattern merge (List<RegexNode> group)
+    {
+        StringBuilder buf = new StringBuilder();
+        String sep = "";
+        for (RegexNode rn : group)
+        {
+            buf.append (sep);
+            buf.append ("(?:");
+            buf.append (rn.pattern.pattern());
+            buf.append (')');
+            sep = "|";
+        }
+
+        try
+        {
+            return Pattern.compile (buf.toString(),
+                                    group.get (0).pattern.flags());
+        }
+
+        catch (PatternSyntaxException ex)
+        {
+            // Patterns that are valid on their own can still conflict
+            // with one another. Leave them separate.
+
+            return null;
+        }
+    }
+
+    private static boolean isMergeable (RegexNode node)
+    {
+        // Literal patterns are left alone: a few startsWith() or endsWith()
+        // calls are cheaper than one pass of the combined regular
+        // expression.
+
+        Pattern pattern = node.pattern;
+        return ((pattern.flags() & UNMERGEABLE_FLAGS) == 0) &&
+               (! node.optimized.isLiteral()) &&
+               (! BACK_REFERENCE.matcher (pattern.pattern()).find()) &&
+               (! NAMED_GROUP.matcher (pattern.pattern()).find());
+    }
+
+    /**
+     * Stable sort by cost, so that operands of equal cost (in particular,
+     * opaque filters) keep their relative order.
+     *
+     * @param nodes  the nodes to sort
+     *
+     * @return the sorted list
+     */
+    private static List<Node> sortByCost (List<Node> nodes)
+    {
+        Collections.sort (nodes, new Comparator<Node>()
+        {
+            public int compare (Node n1, Node n2)
+            {
+                return n1.cost - n2.cost;
+            }
+        });
+
+        return nodes;
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * What a regular expression is matched against.
+     */
+    enum Target
+    {
+        /**
+         * The file name
+         */
+        NAME,
+
+        /**
+         * The path, as returned by <tt>File.getPath()</tt>
+         */
+        PATH,
+
+        /**
+         * The directory's path, the file separator and the name, as
+         * built by {@link MultipleRegexFilenameFilter}
+         */
+        JOINED_PATH
+    }
+
+    /**
+     * The file being tested. Presents the file as a <tt>File</tt>, as a
+     * directory and name, and as a path, computing each view at most
+     * once, and only if some node asks for it.
+     */
+    static final class Candidate
+    {
+        private File   file;
+        private File   dir;
+        private String name;
+        private String path;
+
+        Candidate (File file)
+        {
+            this.file = file;
+        }
+
+        Candidate (File dir, String name)
+        {
+            this.dir = dir;
+            this.name = name;
+        }
+
+        File file()
+        {
+            if (file == null)
+                file = new File (dir, name);
+            return file;
+        }
+
+        File dir()
+        {
+            if (dir == null)
+                dir = file.getParentFile();
+            return dir;
+        }
+
+        String name()
+        {
+            if (name == null)
+                name = file.getName();
+            return name;
+        }
+
+        String get (Target target)
+        {
+            switch (target)
+            {
+                case NAME:
+                    return name();
+
+                case PATH:
+                    if (path == null)
+                        path = file().getPath();
+                    return path;
+
+                default:
+                    return dir().getPath() + File.separator + name();
+            }
+        }
+    }
+
+    /**
+     * A node in a compiled tree.
+     */
+    abstract static class Node
+    {
+        final int cost;
+
+        Node (int cost)
+        {
+            this.cost = cost;
+        }
+
+        abstract boolean accept (Candidate candidate);
+    }
+
+    private static final class ConstantNode extends Node
+    {
+        final boolean value;
+
+        ConstantNode (boolean value)
+        {
+            super (COST_CONSTANT);
+            this.value = value;
+        }
+
+        boolean accept (Candidate candidate)
+        {
+            return value;
+        }
+    }
+
+    private static final class AndNode extends Node
+    {
+        final Node[] operands;
+
+        AndNode (List<Node> operands)
+        {
+            super (maxCost (operands));
+            this.operands = operands.toArray (new Node[operands.size()]);
+        }
+
+        boolean accept (Candidate candidate)
+        {
+            for (Node operand : operands)
+            {
+                if (! operand.accept (candidate))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    private static final class OrNode extends Node
+    {
+        final Node[] operands;
+
+        OrNode (List<Node> operands)
+        {
+            super (maxCost (operands));
+            this.operands = operands.toArray (new Node[operands.size()]);
+        }
+
+        boolean accept (Candidate candidate)
+        {
+            for (Node operand : operands)
+            {
+                if (operand.accept (candidate))
+                    return true;
+            }
+
+            return false;
+        }
+    }
+
+    private static final class NotNode extends Node
+    {
+        final Node operand;
+
+        NotNode (Node operand)
+        {
+            super (operand.cost);
+            this.operand = operand;
+        }
+
+        boolean accept (Candidate candidate)
+        {
+            return ! operand.accept (candidate);
+        }
+    }
+
+    private static final class RegexNode extends Node
+    {
+        final Pattern          pattern;
+        final OptimizedPattern optimized;
+        final Target           target;
+        final boolean          find;
+
+        RegexNode (Pattern pattern, Target target, boolean find)
+        {
+            super ((target == Target.NAME) ? COST_NAME : COST_PATH);
+            this.pattern = pattern;
+            this.optimized = new OptimizedPattern (pattern);
+            this.target = target;
+            this.find = find;
+        }
+
+        boolean accept (Candidate candidate)
+        {
+            String s = candidate.get (target);
+            return find ? optimized.find (s) : optimized.matches (s);
+        }
+    }
+
+    private static final class FileTypeNode extends Node
+    {
+        final boolean directory;
+
+        FileTypeNode (boolean directory)
+        {
+            super (COST_STAT);
+            this.directory = directory;
+        }
+
+        boolean accept (Candidate candidate)
+        {
+            File file = candidate.file();
+            return directory ? file.isDirectory() : file.isFile();
+        }
+    }
+
+    private static final class OpaqueFileNode extends Node
+    {
+        final FileFilter filter;
+
+        OpaqueFileNode (FileFilter filter)
+        {
+            super (COST_OPAQUE);
+            this.filter = filter;
+        }
+
+        boolean accept (Candidate candidate)
+        {
+            return filter.accept (candidate.file());
+        }
+    }
+
+    private static final class OpaqueNameNode extends Node
+    {
+        final FilenameFilter filter;
+
+        OpaqueNameNode (FilenameFilter filter)
+        {
+            super (COST_OPAQUE);
+            this.filter = filter;
+        }
+
+        boolean accept (Candidate candidate)
+        {
+            return filter.accept (candidate.dir(), candidate.name());
+        }
+    }
+
+    private static int maxCost (List<Node> nodes)
+    {
+        int cost = COST_CONSTANT;
+        for (Node node : nodes)
+            cost = Math.max (cost, node.cost);
+        return cost;
+    }
+}
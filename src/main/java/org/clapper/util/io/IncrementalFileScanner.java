@@ -0,0 +1,773 @@
+package org.clapper.util.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>An <tt>IncrementalFileScanner</tt> repeatedly scans a directory tree
+ * and reports only what changed since the previous scan: the files that
+ * were added, modified (changed size or last-modified time) or deleted.
+ * It's intended for callers that would otherwise rescan the same large
+ * tree with a {@link RecursiveFileFinder} just to find the differences.
+ * The scanner keeps a snapshot of each directory it has seen, which can
+ * be saved to disk and reloaded, so that change detection survives
+ * restarts.</p>
+ *
+ * <p>A directory's last-modified time changes whenever an entry is added
+ * to it, removed from it or renamed within it. If a directory's time
+ * hasn't changed since the previous scan, the scanner doesn't read the
+ * directory again; it reuses the listing from the snapshot, and only
+ * checks the attributes of the entries. If
+ * {@link #setSkipUnchangedDirectories skipping of unchanged directories}
+ * is enabled, the scanner doesn't even check the files in an unchanged
+ * directory; it only descends into the subdirectories. That's much
+ * faster, but it's only safe for trees where files are replaced (e.g.,
+ * written to a temporary name and renamed), rather than modified in
+ * place, since modifying a file in place doesn't change its directory's
+ * time.</p>
+ *
+ * <p>Time stamps that are too close to the time of the previous scan
+ * aren't trusted, since a change made within the file system's time stamp
+ * granularity wouldn't be visible. Files with such time stamps are
+ * conservatively reported as modified, and such directories are read
+ * again.</p>
+ *
+ * <p>The filter is applied to files, but not to directories; all
+ * directories are descended. Symbolic links to files are tracked by the
+ * attributes of their targets, but symbolic links to directories are not
+ * followed.</p>
+ *
+ * <p><b>WARNING: This class is not thread-safe.</b></p>
+ *
+ * @see RecursiveFileFinder
+ * @see FileChangeHandler
+ */
+public class IncrementalFileScanner
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int SNAPSHOT_MAGIC   = 0x4a555346;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * How close (in milliseconds) a time stamp can be to the time of
+     * the previous scan before it's considered untrustworthy. Two seconds
+     * covers the coarsest common granularity (FAT).
+     */
+    private static final long TIMESTAMP_GRANULARITY = 2000;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final File       root;
+    private final FileFilter filter;
+    private boolean          skipUnchangedDirectories = false;
+
+    /**
+     * The directories seen by the previous scan, indexed by path relative
+     * to the root. The root itself is "".
+     */
+    private Map<String,DirectoryState> snapshot =
+        new HashMap<String,DirectoryState>();
+
+    /**
+     * When the previous scan started, or 0 if there wasn't one.
+     */
+    private long snapshotTime = 0;
+
+    /*----------------------------------------------------------------------*\
+                                Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new <tt>IncrementalFileScanner</tt> that tracks all files
+     * beneath a directory.
+     *
+     * @param root  the directory to scan
+     */
+    public IncrementalFileScanner (File root)
+    {
+        this (root, null);
+    }
+
+    /**
+     * Create a new <tt>IncrementalFileScanner</tt> that tracks the files
+     * beneath a directory that are accepted by a filter.
+     *
+     * @param root    the directory to scan
+     * @param filter  the filter to apply to files, or null to track all
+     *                files
+     */
+    public IncrementalFileScanner (File root, FileFilter filter)
+    {
+        this.root = root;
+        this.filter = filter;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the directory being scanned.
+     *
+     * @return the directory
+     */
+    public File getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Determine whether files in unchanged directories are skipped.
+     *
+     * @return <tt>true</tt> if they're skipped, <tt>false</tt> if not
+     *
+     * @see #setSkipUnchangedDirectories
+     */
+    public boolean getSkipUnchangedDirectories()
+    {
+        return skipUnchangedDirectories;
+    }
+
+    /**
+     * Set whether files in unchanged directories are skipped. See the
+     * class documentation for when this is safe. The default is
+     * <tt>false</tt>.
+     *
+     * @param skip  <tt>true</tt> to skip them, <tt>false</tt> to check them
+     */
+    public void setSkipUnchangedDirectories (boolean skip)
+    {
+        this.skipUnchangedDirectories = skip;
+    }
+
+    /**
+     * Discard the current snapshot. The next scan will report every file
+     * as added.
+     */
+    public void clearSnapshot()
+    {
+        snapshot = new HashMap<String,DirectoryState>();
+        snapshotTime = 0;
+    }
+
+    /**
+     * Scan the tree, reporting every change since the previous scan (or
+     * since the loaded snapshot) to a handler, and replace the snapshot
+     * with the results of this scan. If there's no previous snapshot,
+     * every file is reported as added.
+     *
+     * @param handler  the handler to receive the changes
+     *
+     * @return the total number of changes reported
+     */
+    public int scan (FileChangeHandler handler)
+    {
+        long scanTime = System.currentTimeMillis();
+        Scan scan = new Scan (handler);
+
+        BasicFileAttributes attrs = null;
+        try
+        {
+            attrs = Files.readAttributes (root.toPath(),
+                                          BasicFileAttributes.class);
+        }
+
+        catch (IOException ex)
+        {
+        }
+
+        if ((attrs != null) && attrs.isDirectory())
+        {
+            scanDirectory (scan, "", root,
+                           attrs.lastModifiedTime().toMillis());
+        }
+
+        else
+        {
+            reportDeletedTree (scan, "", root);
+        }
+
+        snapshot = scan.current;
+        snapshotTime = scanTime;
+        return scan.total;
+    }
+
+    /**
+     * Load a snapshot saved by {@link #saveSnapshot}, replacing the
+     * current one.
+     *
+     * @param file  the snapshot file
+     *
+     * @throws IOException  on I/O error, if the file isn't a snapshot, or
+     *                      if it's a snapshot of a different directory
+     */
+    public void loadSnapshot (File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream (new FileInputStream (file)));
+
+        try
+        {
+            if ((in.readInt() != SNAPSHOT_MAGIC) ||
+                (in.readInt() != SNAPSHOT_VERSION))
+            {
+                throw new IOException ("File \"" + file.getPath() +
+                                       "\" is not a file scanner snapshot.");
+            }
+
+            String rootPath = in.readUTF();
+            if (! rootPath.equals (root.getAbsolutePath()))
+            {
+                throw new IOException ("Snapshot \"" + file.getPath() +
+                                       "\" is of directory \"" + rootPath +
+                                       "\", not \"" +
+                                       root.getAbsolutePath() + "\".");
+            }
+
+            long time = in.readLong();
+            int totalDirs = in.readInt();
+            Map<String,DirectoryState> dirs =
+                new HashMap<String,DirectoryState> (((totalDirs * 4) / 3) + 1);
+
+            for (int i = 0; i < totalDirs; i++)
+            {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                int n = in.readInt();
+                DirectoryState state = new DirectoryState (mtime, n);
+                for (int j = 0; j < n; j++)
+                {
+                    state.names[j] = in.readUTF();
+                    state.dirs[j] = in.readBoolean();
+                    state.sizes[j] = in.readLong();
+                    state.mtimes[j] = in.readLong();
+                }
+
+                dirs.put (path, state);
+            }
+
+            snapshot = dirs;
+            snapshotTime = time;
+        }
+
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the current snapshot to a file. The snapshot is written to a
+     * temporary file, which then replaces the target, so a reader never
+     * sees a partially written snapshot.
+     *
+     * @param file  the snapshot file
+     *
+     * @throws IOException  on I/O error
+     */
+    public void saveSnapshot (File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile (file.getName(), ".tmp", dir);
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream
+                (new BufferedOutputStream (new FileOutputStream (temp)));
+
+            try
+            {
+                out.writeInt (SNAPSHOT_MAGIC);
+                out.writeInt (SNAPSHOT_VERSION);
+                out.writeUTF (root.getAbsolutePath());
+                out.writeLong (snapshotTime);
+                out.writeInt (snapshot.size());
+
+                for (Map.Entry<String,DirectoryState> entry :
+                         snapshot.entrySet())
+                {
+                    DirectoryState state = entry.getValue();
+                    out.writeUTF (entry.getKey());
+                    out.writeLong (state.mtime);
+                    out.writeInt (state.names.length);
+                    for (int j = 0; j < state.names.length; j++)
+                    {
+                        out.writeUTF (state.names[j]);
+                        out.writeBoolean (state.dirs[j]);
+                        out.writeLong (state.sizes[j]);
+                        out.writeLong (state.mtimes[j]);
+                    }
+                }
+            }
+
+            finally
+            {
+                out.close();
+            }
+
+            Files.move (temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Scan one directory, report the changes to its files, and descend
+     * into its subdirectories.
+     *
+     * @param scan   the scan state
+     * @param path   the directory's path relative to the root
+     * @param dir    the directory
+     * @param mtime  the directory's last-modified time
+     */
+    private void scanDirectory (Scan   scan,
+                                String path,
+                                File   dir,
+                                long   mtime)
+    {
+        DirectoryState old = snapshot.get (path);
+        boolean unchanged = (old != null) &&
+                            (old.mtime == mtime) &&
+                            isSettled (mtime);
+
+        DirectoryState state;
+        if (unchanged)
+            state = rescan (old, dir, mtime);
+
+        else
+        {
+            state = read (dir, mtime);
+            if (state == null)
+            {
+                // Unreadable. Assume nothing beneath it changed.
+
+                if (old != null)
+                    keepTree (scan, path);
+                return;
+            }
+        }
+
+        scan.current.put (path, state);
+
+        // Both listings are sorted, so they can be merged.
+
+        int oldN = (old == null) ? 0 : old.names.length;
+        int newN = state.names.length;
+        int i = 0;
+        int j = 0;
+
+        while ((i < oldN) || (j < newN))
+        {
+            int cmp;
+            if (i >= oldN)
+                cmp = 1;
+            else if (j >= newN)
+                cmp = -1;
+            else
+                cmp = old.names[i].compareTo (state.names[j]);
+
+            if ((cmp == 0) && (old.dirs[i] != state.dirs[j]))
+            {
+                // Replaced by something of a different type.
+
+                reportDeleted (scan, path, dir, old, i);
+                reportAdded (scan, dir, state, j);
+                i++;
+                j++;
+            }
+
+            else if (cmp == 0)
+            {
+                if ((! state.dirs[j]) &&
+                    ((old.sizes[i] != state.sizes[j]) ||
+                     (old.mtimes[i] != state.mtimes[j]) ||
+                     (! isSettled (old.mtimes[i]))))
+                {
+                    scan.total++;
+                    scan.handler.fileModified (new File (dir, state.names[j]));
+                }
+
+                i++;
+                j++;
+            }
+
+            else if (cmp < 0)
+            {
+                reportDeleted (scan, path, dir, old, i);
+                i++;
+            }
+
+            else
+            {
+                reportAdded (scan, dir, state, j);
+                j++;
+            }
+        }
+
+        // Now, descend.
+
+        for (j = 0; j < newN; j++)
+        {
+            if (state.dirs[j])
+            {
+                scanDirectory (scan,
+                               childPath (path, state.names[j]),
+                               new File (dir, state.names[j]),
+                               state.mtimes[j]);
+            }
+        }
+    }
+
+    /**
+     * Read a directory that has changed (or wasn't seen before).
+     *
+     * @param dir    the directory
+     * @param mtime  its last-modified time
+     *
+     * @return its state, or null if it can't be read
+     */
+    private DirectoryState read (File dir, long mtime)
+    {
+        List<String> names = new ArrayList<String>();
+        DirectoryStream<Path> stream = null;
+
+        try
+        {
+            stream = Files.newDirectoryStream (dir.toPath());
+            for (Path entry : stream)
+                names.add (entry.getFileName().toString());
+        }
+
+        catch (IOException ex)
+        {
+            return null;
+        }
+
+        finally
+        {
+            if (stream != null)
+            {
+                try
+                {
+                    stream.close();
+                }
+
+                catch (IOException ex)
+                {
+                }
+            }
+        }
+
+        String[] sorted = names.toArray (new String[names.size()]);
+        Arrays.sort (sorted);
+
+        DirectoryState state = new DirectoryState (mtime, sorted.length);
+        int n = 0;
+        for (String name : sorted)
+        {
+            if (addEntry (state, n, dir, name, null))
+                n++;
+        }
+
+        return state.truncate (n);
+    }
+
+    /**
+     * Recheck an unchanged directory, reusing its listing.
+     *
+     * @param old    the directory's previous state
+     * @param dir    the directory
+     * @param mtime  its last-modified time
+     *
+     * @return its new state
+     */
+    private DirectoryState rescan (DirectoryState old, File dir, long mtime)
+    {
+        DirectoryState state = new DirectoryState (mtime, old.names.length);
+        int n = 0;
+
+        for (int i = 0; i < old.names.length; i++)
+        {
+            if (skipUnchangedDirectories && (! old.dirs[i]))
+            {
+                state.names[n]  = old.names[i];
+                state.sizes[n]  = old.sizes[i];
+                state.mtimes[n] = old.mtimes[i];
+                n++;
+            }
+
+            else if (addEntry (state, n, dir, old.names[i],
+                               Boolean.valueOf (old.dirs[i])))
+            {
+                n++;
+            }
+        }
+
+        return state.truncate (n);
+    }
+
+    /**
+     * Read the attributes of a directory entry and, if it's to be
+     * tracked, add it to a directory state.
+     *
+     * @param state    the state to fill
+     * @param n        the slot to fill
+     * @param dir      the directory
+     * @param name     the entry's name
+     * @param knownDir whether the entry is known to be a directory, from
+     *                 the listing being reused, or null if not known
+     *
+     * @return <tt>true</tt> if the entry was added, <tt>false</tt> if
+     *         it's gone, is a link to a directory, or was rejected by
+     *         the filter
+     */
+    private boolean addEntry (DirectoryState state,
+                              int            n,
+                              File           dir,
+                              String         name,
+                              Boolean        knownDir)
+    {
+        Path path = new File (dir, name).toPath();
+        BasicFileAttributes attrs;
+
+        try
+        {
+            attrs = Files.readAttributes (path, BasicFileAttributes.class,
+                                          LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isSymbolicLink())
+            {
+                try
+                {
+                    attrs = Files.readAttributes (path,
+                                                  BasicFileAttributes.class);
+                    if (attrs.isDirectory())
+                        return false;
+                }
+
+                catch (IOException ex)
+                {
+                    // Dangling link. Track the link itself.
+                }
+            }
+        }
+
+        catch (IOException ex)
+        {
+            // Deleted since it was listed.
+
+            return false;
+        }
+
+        boolean isDir = attrs.isDirectory();
+
+        // A reused listing only holds files that passed the filter, so
+        // only entries that changed type need to be filtered again.
+
+        if ((! isDir) &&
+            (filter != null) &&
+            ((knownDir == null) || knownDir.booleanValue()) &&
+            (! filter.accept (new AttributedFile (dir, name, attrs))))
+        {
+            return false;
+        }
+
+        state.names[n]  = name;
+        state.dirs[n]   = isDir;
+        state.sizes[n]  = isDir ? 0 : attrs.size();
+        state.mtimes[n] = attrs.lastModifiedTime().toMillis();
+        return true;
+    }
+
+    /**
+     * Report an entry that's gone. If it's a directory, all the files
+     * beneath it are reported.
+     *
+     * @param scan   the scan state
+     * @param path   the relative path of the entry's directory
+     * @param dir    the entry's directory
+     * @param old    the directory's previous state
+     * @param i      the entry's index in the previous state
+     */
+    private void reportDeleted (Scan           scan,
+                                String         path,
+                                File           dir,
+                                DirectoryState old,
+                                int            i)
+    {
+        File file = new File (dir, old.names[i]);
+
+        if (old.dirs[i])
+            reportDeletedTree (scan, childPath (path, old.names[i]), file);
+
+        else
+        {
+            scan.total++;
+            scan.handler.fileDeleted (file);
+        }
+    }
+
+    /**
+     * Report all files beneath a directory that's gone.
+     *
+     * @param scan  the scan state
+     * @param path  the directory's path relative to the root
+     * @param dir   the directory
+     */
+    private void reportDeletedTree (Scan scan, String path, File dir)
+    {
+        DirectoryState old = snapshot.get (path);
+        if (old != null)
+        {
+            for (int i = 0; i < old.names.length; i++)
+                reportDeleted (scan, path, dir, old, i);
+        }
+    }
+
+    /**
+     * Report a new entry. New directories are reported when they're
+     * scanned.
+     *
+     * @param scan   the scan state
+     * @param dir    the entry's directory
+     * @param state  the directory's new state
+     * @param j      the entry's index in the new state
+     */
+    private void reportAdded (Scan           scan,
+                              File           dir,
+                              DirectoryState state,
+                              int            j)
+    {
+        if (! state.dirs[j])
+        {
+            scan.total++;
+            scan.handler.fileAdded (new File (dir, state.names[j]));
+        }
+    }
+
+    /**
+     * Carry a directory's previous state, and that of its subdirectories,
+     * forward into the new snapshot.
+     *
+     * @param scan  the scan state
+     * @param path  the directory's path relative to the root
+     */
+    private void keepTree (Scan scan, String path)
+    {
+        DirectoryState old = snapshot.get (path);
+        if (old != null)
+        {
+            scan.current.put (path, old);
+            for (int i = 0; i < old.names.length; i++)
+            {
+                if (old.dirs[i])
+                    keepTree (scan, childPath (path, old.names[i]));
+            }
+        }
+    }
+
+    /**
+     * Determine whether a time stamp is old enough, relative to the
+     * previous scan, to be trusted.
+     *
+     * @param time  the time stamp
+     *
+     * @return <tt>true</tt> if it can be trusted, <tt>false</tt> if not
+     */
+    private boolean isSettled (long time)
+    {
+        return time < (snapshotTime - TIMESTAMP_GRANULARITY);
+    }
+
+    private static String childPath (String path, String name)
+    {
+        return (path.length() == 0) ? name : (path + "/" + name);
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The state of one scan in progress.
+     */
+    private static class Scan
+    {
+        final FileChangeHandler handler;
+        final Map<String,DirectoryState> current =
+            new HashMap<String,DirectoryState>();
+        int total = 0;
+
+        Scan (FileChangeHandler handler)
+        {
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * The recorded state of one directory: its time stamp, and the sorted
+     * names and attributes of its tracked entries, in parallel arrays.
+     */
+    private static class DirectoryState
+    {
+        final long      mtime;
+        final String[]  names;
+        final boolean[] dirs;
+        final long[]    sizes;
+        final long[]    mtimes;
+
+        DirectoryState (long mtime, int size)
+        {
+            this.mtime  = mtime;
+            this.names  = new String[size];
+            this.dirs   = new boolean[size];
+            this.sizes  = new long[size];
+            this.mtimes = new long[size];
+        }
+
+        DirectoryState truncate (int n)
+        {
+            if (n == names.length)
+                return this;
+
+            DirectoryState result = new DirectoryState (mtime, n);
+            System.arraycopy (names, 0, result.names, 0, n);
+            System.arraycopy (dirs, 0, result.dirs, 0, n);
+            System.arraycopy (sizes, 0, result.sizes, 0, n);
+            System.arraycopy (mtimes, 0, result.mtimes, 0, n);
+            return result;
+        }
+    }
+}
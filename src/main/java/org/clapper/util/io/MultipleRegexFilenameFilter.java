@@ -7,10 +7,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import org.clapper.util.regex.OptimizedPattern;
+
 /**
  * <p><tt>MultipleRegexFilenameFilter</tt> implements a
  * <tt>java.io.FilenameFilter</tt> that matches file names and path names
@@ -51,10 +52,10 @@ public class MultipleRegexFilenameFilter implements FilenameFilter
                             Private Data Items
     \*----------------------------------------------------------------------*/
 
-    private Collection<Pattern>  acceptPatterns = null;
-    private Collection<Pattern>  rejectPatterns = null;
-    private int                  regexOptions;
-    private MatchType            matchType = MatchType.FILENAME;
+    private Collection<OptimizedPattern> acceptPatterns = null;
+    private Collection<OptimizedPattern> rejectPatterns = null;
+    private int                          regexOptions;
+    private MatchType                    matchType = MatchType.FILENAME;
 
     /*----------------------------------------------------------------------*\
                             Constructor
@@ -70,8 +71,8 @@ public class MultipleRegexFilenameFilter implements FilenameFilter
     {
         this.matchType = matchType;
         regexOptions   = Pattern.CASE_INSENSITIVE;
-        acceptPatterns = new ArrayList<Pattern>();
-        rejectPatterns = new ArrayList<Pattern>();
+        acceptPatterns = new ArrayList<OptimizedPattern>();
+        rejectPatterns = new ArrayList<OptimizedPattern>();
     }
 
     /*----------------------------------------------------------------------*\
@@ -96,7 +97,7 @@ public class MultipleRegexFilenameFilter implements FilenameFilter
     public void addAcceptPattern (String pattern)
         throws PatternSyntaxException
     {
-        acceptPatterns.add (Pattern.compile (pattern, regexOptions));
+        acceptPatterns.add (compile (pattern));
     }
 
     /**
@@ -117,7 +118,7 @@ public class MultipleRegexFilenameFilter implements FilenameFilter
     public void addRejectPattern (String pattern)
         throws PatternSyntaxException
     {
-        rejectPatterns.add (Pattern.compile (pattern, regexOptions));
+        rejectPatterns.add (compile (pattern));
     }
 
     /**
@@ -147,11 +148,9 @@ public class MultipleRegexFilenameFilter implements FilenameFilter
 
         // Check for rejects first.
 
-        for (Pattern pattern : rejectPatterns)
+        for (OptimizedPattern pattern : rejectPatterns)
         {
-            Matcher matcher = pattern.matcher (name);
-
-            if (matcher.matches())
+            if (pattern.matches (name))
             {
                 match = false;
                 found = true;
@@ -168,11 +167,9 @@ public class MultipleRegexFilenameFilter implements FilenameFilter
 
             else
             {
-                for (Pattern pattern : acceptPatterns)
+                for (OptimizedPattern pattern : acceptPatterns)
                 {
-                    Matcher matcher = pattern.matcher (name);
-
-                    if (matcher.matches())
+                    if (pattern.matches (name))
                     {
                         match = true;
                         break;
@@ -183,4 +180,57 @@ public class MultipleRegexFilenameFilter implements FilenameFilter
 
         return match;
     }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the compiled accept patterns.
+     *
+     * @return the accept patterns
+     */
+    Collection<Pattern> getAcceptPatterns()
+    {
+        return toPatterns (acceptPatterns);
+    }
+
+    /**
+     * Get the compiled reject patterns.
+     *
+     * @return the reject patterns
+     */
+    Collection<Pattern> getRejectPatterns()
+    {
+        return toPatterns (rejectPatterns);
+    }
+
+    /**
+     * Get the match type.
+     *
+     * @return whether the patterns are applied to the name or the path
+     */
+    MatchType getMatchType()
+    {
+        return matchType;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private OptimizedPattern compile (String pattern)
+        throws PatternSyntaxException
+    {
+        return new OptimizedPattern (Pattern.compile (pattern, regexOptions));
+    }
+
+    private static Collection<Pattern>
+    toPatterns (Collection<OptimizedPattern> patterns)
+    {
+        Collection<Pattern> result = new ArrayList<Pattern>();
+        for (OptimizedPattern pattern : patterns)
+            result.add (pattern.getPattern());
+        return result;
+    }
 }
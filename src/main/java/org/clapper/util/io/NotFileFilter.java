@@ -44,9 +44,19 @@ public class NotFileFilter implements FileFilter
     }
 
     /*----------------------------------------------------------------------*\
-                            Constructor
+                              Public Methods
     \*----------------------------------------------------------------------*/
 
+    /**
+     * Get the filter being negated.
+     *
+     * @return the contained filter
+     */
+    public FileFilter getFilter()
+    {
+        return filter;
+    }
+
     /**
      * Tests whether a file should be included in a file list.
      *
@@ -43,9 +43,19 @@ public class NotFilenameFilter implements FilenameFilter
     }
 
     /*----------------------------------------------------------------------*\
-                            Constructor
+                              Public Methods
     \*----------------------------------------------------------------------*/
 
+    /**
+     * Get the filter being negated.
+     *
+     * @return the contained filter
+     */
+    public FilenameFilter getFilter()
+    {
+        return filter;
+    }
+
     /**
      * Tests whether a file should be included in a file list.
      *
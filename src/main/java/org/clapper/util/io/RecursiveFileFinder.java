@@ -3,33 +3,182 @@ package org.clapper.util.io;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FilenameFilter;
+import java.io.IOException;
 
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A <tt>RecursiveFileFinder</tt> walks a directory tree and finds all
+ * <p>A <tt>RecursiveFileFinder</tt> walks a directory tree and finds all
  * files (or directories) that satisfy caller-supplied criteria. The
  * match criteria are specified via either a <tt>FileFilter</tt> or
- * <tt>FilenameFilter</tt> object.
+ * <tt>FilenameFilter</tt> object.</p>
+ *
+ * <p>Each directory is read exactly once, via
+ * <tt>java.nio.file.Files.newDirectoryStream()</tt>, and the attributes of
+ * each entry are read exactly once. The <tt>File</tt> objects passed to
+ * a <tt>FileFilter</tt> carry those attributes, so filters such as
+ * {@link FileOnlyFilter} and {@link DirectoryFilter} don't have to
+ * consult the file system again. The <tt>File</tt> objects returned to
+ * the caller are ordinary ones, which always query the file system.</p>
+ *
+ * <p>Matches can be collected into a <tt>Collection</tt>, or pushed to a
+ * {@link FileFoundHandler} as they're found, which avoids holding the
+ * entire result set in memory. By default, the finder walks the tree on
+ * the calling thread, in directory order. If it's configured to use more
+ * than one thread, it walks the tree on a fork-join pool, one task per
+ * directory; in that case, matches arrive in no particular order, and
+ * the handler (or collection) must be thread-safe.</p>
+ *
+ * <p>The walk can also be limited to a maximum depth, and symbolic links
+ * to directories can be followed or not. When links are followed, the
+ * finder detects and skips directory cycles.</p>
  */
 public class RecursiveFileFinder
 {
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Number of threads to use. 1 means "walk on the calling thread."
+     */
+    private int threads = 1;
+
+    /**
+     * Maximum depth to descend. The entries in the starting directory
+     * are at depth 1.
+     */
+    private int maxDepth = Integer.MAX_VALUE;
+
+    /**
+     * Whether to follow symbolic links.
+     */
+    private boolean followLinks = true;
+
     /*----------------------------------------------------------------------*\
                                Constructors
     \*----------------------------------------------------------------------*/
 
     /**
-     * Construct a new <tt>RecursiveFileFinder</tt> object. The various
-     * <tt>find()</tt> methods actually provide the searching capabilities.
+     * Construct a new <tt>RecursiveFileFinder</tt> object that walks
+     * the tree on the calling thread. The various <tt>find()</tt> methods
+     * actually provide the searching capabilities.
      */
     public RecursiveFileFinder()
     {
     }
 
+    /**
+     * Construct a new <tt>RecursiveFileFinder</tt> object that walks the
+     * tree using the specified number of threads.
+     *
+     * @param threads  the number of threads. A value of 1 walks the tree
+     *                 on the calling thread.
+     *
+     * @see #setThreads
+     */
+    public RecursiveFileFinder (int threads)
+    {
+        setThreads (threads);
+    }
+
     /*----------------------------------------------------------------------*\
                               Public Methods
     \*----------------------------------------------------------------------*/
 
+    /**
+     * Get the number of threads used to walk the tree.
+     *
+     * @return the number of threads
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads used to walk the tree. A value of 1
+     * (the default) walks the tree on the calling thread, in directory
+     * order.
+     *
+     * @param threads  the number of threads, which must be positive
+     */
+    public void setThreads (int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException ("Thread count must be " +
+                                                "positive, not " + threads);
+        }
+
+        this.threads = threads;
+    }
+
+    /**
+     * Get the maximum depth to which the finder will descend.
+     *
+     * @return the maximum depth
+     */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * Set the maximum depth to which the finder will descend. The entries
+     * in the starting directory are at depth 1, the entries in its
+     * subdirectories are at depth 2, and so on. The default is
+     * <tt>Integer.MAX_VALUE</tt>, i.e., unlimited.
+     *
+     * @param maxDepth  the maximum depth, which must be positive
+     */
+    public void setMaxDepth (int maxDepth)
+    {
+        if (maxDepth < 1)
+        {
+            throw new IllegalArgumentException ("Maximum depth must be " +
+                                                "positive, not " + maxDepth);
+        }
+
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Determine whether the finder follows symbolic links.
+     *
+     * @return <tt>true</tt> if links are followed, <tt>false</tt> if not
+     */
+    public boolean getFollowLinks()
+    {
+        return followLinks;
+    }
+
+    /**
+     * Set whether the finder follows symbolic links. If links are followed
+     * (the default), a link to a directory is descended like any other
+     * directory, and directory cycles are detected and skipped. If links
+     * are not followed, a link is reported as itself, and it's neither a
+     * file nor a directory.
+     *
+     * @param followLinks  <tt>true</tt> to follow links, <tt>false</tt> not to
+     */
+    public void setFollowLinks (boolean followLinks)
+    {
+        this.followLinks = followLinks;
+    }
+
     /**
      * Find all files beneath a given directory. This version of
      * <tt>find()</tt> takes no filter, so every file and directory is
@@ -60,64 +209,390 @@ public class RecursiveFileFinder
                           FilenameFilter   filter,
                           Collection<File> collection)
     {
-        int    total = 0;
-        File[] files = directory.listFiles (filter);
-
-        if (files != null)
-        {
-            for (int i = 0; i < files.length; i++)
-                collection.add (files[i]);
+        return findFiles (directory, filter,
+                          new CollectionHandler (collection));
+    }
 
-            total = files.length;
-        }
+    /**
+     * Find all files beneath a given directory, filtered by the specified
+     * <tt>FileFilter</tt>.
+     *
+     * @param directory  the starting directory
+     * @param filter     the <tt>FileFilter</tt> to use to filter the
+     *                   files, or null to accept all files
+     * @param collection where to store the found <tt>File</tt> objects
+     *
+     * @return the number of <tt>File</tt> objects found
+     */
+    public int findFiles (File             directory,
+                          FileFilter       filter,
+                          Collection<File> collection)
+    {
+        return findFiles (directory, filter,
+                          new CollectionHandler (collection));
+    }
 
-        File[] dirs = directory.listFiles (new DirectoryFilter());
-        if (dirs != null)
+    /**
+     * Find all files beneath a given directory, filtered by the specified
+     * <tt>FilenameFilter</tt>, passing each match to a handler as soon as
+     * it's found.
+     *
+     * @param directory  the starting directory
+     * @param filter     the <tt>FilenameFilter</tt> to use to filter the
+     *                   file names, or null to accept all files
+     * @param handler    the handler to receive the matches
+     *
+     * @return the number of <tt>File</tt> objects found
+     */
+    public int findFiles (File                 directory,
+                          final FilenameFilter filter,
+                          FileFoundHandler     handler)
+    {
+        EntryFilter entryFilter = null;
+        if (filter != null)
         {
-            for (int i = 0; i < dirs.length; i++)
-                total += findFiles (dirs[i], filter, collection);
+            entryFilter = new EntryFilter()
+            {
+                public boolean accept (File dir, File file)
+                {
+                    return filter.accept (dir, file.getName());
+                }
+            };
         }
 
-        return total;
+        return walk (directory, entryFilter, handler);
     }
 
     /**
      * Find all files beneath a given directory, filtered by the specified
-     * <tt>FilenameFilter</tt>.
+     * <tt>FileFilter</tt>, passing each match to a handler as soon as
+     * it's found.
      *
      * @param directory  the starting directory
-     * @param filter     the <tt>FilenameFilter</tt> to use to filter the
-     *                   file names, or null to accept all files
-     * @param collection where to store the found <tt>File</tt> objects
+     * @param filter     the <tt>FileFilter</tt> to use to filter the
+     *                   files, or null to accept all files
+     * @param handler    the handler to receive the matches
      *
      * @return the number of <tt>File</tt> objects found
      */
     public int findFiles (File             directory,
-                          FileFilter       filter,
-                          Collection<File> collection)
+                          final FileFilter filter,
+                          FileFoundHandler handler)
     {
-        int    total = 0;
-        File[] files = directory.listFiles (filter);
+        EntryFilter entryFilter = null;
+        if (filter != null)
+        {
+            entryFilter = new EntryFilter()
+            {
+                public boolean accept (File dir, File file)
+                {
+                    return filter.accept (file);
+                }
+            };
+        }
+
+        return walk (directory, entryFilter, handler);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Walk the tree, either on the calling thread or on a pool.
+     *
+     * @param directory  the starting directory
+     * @param filter     the filter, or null
+     * @param handler    the handler
+     *
+     * @return the number of matches
+     */
+    private int walk (File             directory,
+                      EntryFilter      filter,
+                      FileFoundHandler handler)
+    {
+        Walk walk = new Walk (filter, handler, threads > 1);
+        Ancestor ancestors = null;
+        if (followLinks)
+        {
+            try
+            {
+                Path path = directory.toPath();
+                Object key = directoryKey (path,
+                                           Files.readAttributes
+                                               (path,
+                                                BasicFileAttributes.class));
+                if (key != null)
+                    ancestors = new Ancestor (null, key);
+            }
 
-        if (files != null)
+            catch (IOException ex)
+            {
+                // Nonexistent or unreadable. The walk will find nothing.
+            }
+        }
+
+        DirectoryTask root = new DirectoryTask (walk, directory, 1, ancestors);
+        if (walk.parallel)
         {
-            for (int i = 0; i < files.length; i++)
-                collection.add (files[i]);
+            ForkJoinPool pool = new ForkJoinPool (threads);
+            try
+            {
+                pool.invoke (root);
+            }
+
+            finally
+            {
+                pool.shutdown();
+            }
+        }
 
-            total = files.length;
+        else
+        {
+            root.compute();
         }
 
-        File[] dirs = directory.listFiles (new DirectoryFilter());
-        if (dirs != null)
+        return walk.total.get();
+    }
+
+    /**
+     * Get the key that identifies a directory, for cycle detection.
+     *
+     * @param path   the directory
+     * @param attrs  its attributes
+     *
+     * @return the file key if the file system supports one, the real path
+     *         otherwise, or null if neither can be determined
+     */
+    private static Object directoryKey (Path path, BasicFileAttributes attrs)
+    {
+        Object key = attrs.fileKey();
+        if (key == null)
         {
-            for (int i = 0; i < dirs.length; i++)
-                total += findFiles (dirs[i], filter, collection);
+            try
+            {
+                key = path.toRealPath().toString();
+            }
+
+            catch (IOException ex)
+            {
+            }
         }
 
-        return total;
+        return key;
     }
 
     /*----------------------------------------------------------------------*\
-                              Private Methods
+                               Inner Classes
     \*----------------------------------------------------------------------*/
+
+    /**
+     * Internal filter abstraction that covers both <tt>FileFilter</tt>
+     * and <tt>FilenameFilter</tt>.
+     */
+    private interface EntryFilter
+    {
+        boolean accept (File dir, File file);
+    }
+
+    /**
+     * Handler that stores matches in a collection.
+     */
+    private static class CollectionHandler implements FileFoundHandler
+    {
+        private final Collection<File> collection;
+
+        CollectionHandler (Collection<File> collection)
+        {
+            this.collection = collection;
+        }
+
+        public void fileFound (File file)
+        {
+            collection.add (file);
+        }
+    }
+
+    /**
+     * State shared by all tasks in a single walk.
+     */
+    private class Walk
+    {
+        final EntryFilter      filter;
+        final FileFoundHandler handler;
+        final boolean          parallel;
+        final AtomicInteger    total = new AtomicInteger (0);
+        final LinkOption[]     linkOptions;
+
+        Walk (EntryFilter filter, FileFoundHandler handler, boolean parallel)
+        {
+            this.filter = filter;
+            this.handler = handler;
+            this.parallel = parallel;
+            this.linkOptions = followLinks
+                ? new LinkOption[0]
+                : new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+        }
+    }
+
+    /**
+     * Immutable chain of the directories above a task, used to detect
+     * cycles when following symbolic links. Each directory is identified
+     * by its file key where the file system supports one, and by its real
+     * path otherwise.
+     */
+    private static class Ancestor
+    {
+        final Ancestor parent;
+        final Object   key;
+
+        Ancestor (Ancestor parent, Object key)
+        {
+            this.parent = parent;
+            this.key = key;
+        }
+
+        boolean contains (Object key)
+        {
+            for (Ancestor a = this; a != null; a = a.parent)
+            {
+                if (a.key.equals (key))
+                    return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Reads one directory, reports its matches, and descends into its
+     * subdirectories.
+     */
+    private class DirectoryTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Walk     walk;
+        private final File     directory;
+        private final int      depth;
+        private final Ancestor ancestors;
+
+        DirectoryTask (Walk walk, File directory, int depth, Ancestor ancestors)
+        {
+            this.walk = walk;
+            this.directory = directory;
+            this.depth = depth;
+            this.ancestors = ancestors;
+        }
+
+        protected void compute()
+        {
+            List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+
+            DirectoryStream<Path> stream = null;
+            try
+            {
+                stream = Files.newDirectoryStream (directory.toPath());
+                for (Path path : stream)
+                {
+                    BasicFileAttributes attrs = readAttributes (path);
+                    String name = path.getFileName().toString();
+
+                    // The attributes are only current during the walk, so
+                    // only the filter sees them.
+
+                    File file = new File (directory, name);
+                    if ((walk.filter == null) ||
+                        walk.filter.accept (directory,
+                                            new AttributedFile (directory,
+                                                                name,
+                                                                attrs)))
+                    {
+                        walk.total.incrementAndGet();
+                        walk.handler.fileFound (file);
+                    }
+
+                    if ((attrs != null) &&
+                        attrs.isDirectory() &&
+                        (depth < maxDepth))
+                    {
+                        Ancestor chain = ancestors;
+                        if (followLinks)
+                        {
+                            Object key = directoryKey (path, attrs);
+                            if ((key == null) ||
+                                ((ancestors != null) &&
+                                 ancestors.contains (key)))
+                            {
+                                continue;
+                            }
+
+                            chain = new Ancestor (ancestors, key);
+                        }
+
+                        subtasks.add (new DirectoryTask (walk, file,
+                                                         depth + 1, chain));
+                    }
+                }
+            }
+
+            catch (IOException ex)
+            {
+                // Unreadable directory. Skip it, as File.listFiles() would.
+            }
+
+            finally
+            {
+                if (stream != null)
+                {
+                    try
+                    {
+                        stream.close();
+                    }
+
+                    catch (IOException ex)
+                    {
+                    }
+                }
+            }
+
+            if (walk.parallel)
+                invokeAll (subtasks);
+
+            else
+            {
+                for (DirectoryTask task : subtasks)
+                    task.compute();
+            }
+        }
+
+        private BasicFileAttributes readAttributes (Path path)
+        {
+            BasicFileAttributes attrs = null;
+
+            try
+            {
+                attrs = Files.readAttributes (path, BasicFileAttributes.class,
+                                              walk.linkOptions);
+            }
+
+            catch (IOException ex)
+            {
+                // Probably a dangling link. Fall back to the link itself.
+
+                try
+                {
+                    attrs = Files.readAttributes (path,
+                                                  BasicFileAttributes.class,
+                                                  LinkOption.NOFOLLOW_LINKS);
+                }
+
+                catch (IOException ex2)
+                {
+                }
+            }
+
+            return attrs;
+        }
+    }
 }
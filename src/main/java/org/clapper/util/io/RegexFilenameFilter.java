@@ -3,10 +3,11 @@ package org.clapper.util.io;
 import java.io.FilenameFilter;
 import java.io.File;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import org.clapper.util.regex.OptimizedPattern;
+
 /**
  * <p><tt>RegexFilenameFilter</tt> implements a <tt>java.io.FilenameFilter</tt>
  * class that matches files using a regular expression. Multiple regular
@@ -19,6 +20,10 @@ import java.util.regex.PatternSyntaxException;
  * <p><tt>RegexFilenameFilter</tt> uses the <tt>java.util.regex</tt>
  * regular expression classes.</p>
  *
+ * <p>Simple patterns that amount to a literal prefix, suffix or
+ * substring (e.g., <tt>\.class$</tt>) are matched with plain string
+ * comparisons; see {@link org.clapper.util.regex.OptimizedPattern}.</p>
+ *
  * @see AndFilenameFilter
  * @see OrFilenameFilter
  * @see NotFilenameFilter
@@ -32,7 +37,7 @@ public class RegexFilenameFilter
     \*----------------------------------------------------------------------*/
 
     private FileFilterMatchType matchType = FileFilterMatchType.PATH;
-    private Pattern pattern;
+    private OptimizedPattern pattern;
 
     /*----------------------------------------------------------------------*\
                             Constructor
@@ -68,7 +73,7 @@ public class RegexFilenameFilter
         throws PatternSyntaxException
     {
         this.matchType = matchType;
-        pattern = Pattern.compile (regex);
+        pattern = new OptimizedPattern (Pattern.compile (regex));
     }
 
     /**
@@ -92,7 +97,7 @@ public class RegexFilenameFilter
         throws PatternSyntaxException
     {
         this.matchType = matchType;
-        pattern = Pattern.compile (regex, regexFlags);
+        pattern = new OptimizedPattern (Pattern.compile (regex, regexFlags));
     }
 
     /*----------------------------------------------------------------------*\
@@ -116,6 +121,30 @@ public class RegexFilenameFilter
         if (matchType == FileFilterMatchType.PATH)
             name = new File (dir, name).getPath();
 
-        return pattern.matcher (name).find();
+        return pattern.find (name);
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the compiled regular expression.
+     *
+     * @return the pattern
+     */
+    Pattern getPattern()
+    {
+        return pattern.getPattern();
+    }
+
+    /**
+     * Get the match type.
+     *
+     * @return whether the pattern is applied to the name or the path
+     */
+    FileFilterMatchType getMatchType()
+    {
+        return matchType;
     }
 }
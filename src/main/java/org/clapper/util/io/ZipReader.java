@@ -0,0 +1,959 @@
+package org.clapper.util.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.Charset;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * <p>The <tt>ZipReader</tt> class is the random-access, read-only
+ * companion to {@link Zipper}. When a <tt>ZipReader</tt> is opened, it
+ * parses the archive's central directory exactly once, building a compact
+ * index that maps each entry name to the location of the entry's data.
+ * Subsequent lookups are constant-time hash lookups, and entry contents
+ * are served via positional reads, so no sequential scan of the archive
+ * is ever necessary.</p>
+ *
+ * <p>Archives that fit in a single mapping (i.e., that are smaller than
+ * 2 GB) are memory-mapped in their entirety; larger archives are read
+ * via positional <tt>FileChannel</tt> reads. ZIP64 archives are
+ * supported. Only the "stored" and "deflated" compression methods are
+ * supported, which covers every archive written by {@link Zipper} and by
+ * the JDK's zip and jar classes.</p>
+ *
+ * <p>Once constructed, a <tt>ZipReader</tt> is immutable, and it is safe
+ * for any number of threads to look up entries and read entry streams
+ * concurrently, without external synchronization. Each stream returned by
+ * {@link #getInputStream(String)} is, however, meant to be consumed by a
+ * single thread. For bulk reads, {@link #readEntry} reads a whole entry
+ * into a caller-supplied array, without allocating a stream or an
+ * inflater per entry.</p>
+ *
+ * <h2>Example</h2>
+ *
+ * <blockquote>
+ * <pre>
+ * ZipReader reader = new ZipReader ("assets.zip");
+ * try
+ * {
+ *     InputStream is = reader.getInputStream ("images/logo.png");
+ *     if (is != null)
+ *         copy (is, out);
+ * }
+ *
+ * finally
+ * {
+ *     reader.close();
+ * }
+ * </pre>
+ * </blockquote>
+ *
+ * @see Zipper
+ */
+public class ZipReader implements Closeable
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int  LOCAL_HEADER_SIG     = 0x04034b50;
+    private static final int  CENTRAL_HEADER_SIG   = 0x02014b50;
+    private static final int  END_HEADER_SIG       = 0x06054b50;
+    private static final int  ZIP64_END_HEADER_SIG = 0x06064b50;
+    private static final int  ZIP64_LOCATOR_SIG    = 0x07064b50;
+
+    private static final int  LOCAL_HEADER_SIZE    = 30;
+    private static final int  CENTRAL_HEADER_SIZE  = 46;
+    private static final int  END_HEADER_SIZE      = 22;
+    private static final int  ZIP64_LOCATOR_SIZE   = 20;
+    private static final int  ZIP64_END_SIZE       = 56;
+    private static final int  ZIP64_EXTRA_ID       = 0x0001;
+    private static final int  MAX_COMMENT_SIZE     = 0xffff;
+    private static final long ZIP64_MAGIC          = 0xffffffffL;
+
+    /**
+     * Input buffer size used by the inflating entry streams, in bytes.
+     */
+    private static final int INPUT_BUF_SIZE = 8192;
+
+    /**
+     * Largest per-thread input buffer {@link #readEntry} keeps for reuse,
+     * in bytes. Anything bigger is allocated for the one read.
+     */
+    private static final int MAX_RETAINED_BUF_SIZE = 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The zip or jar file being read.
+     */
+    private final File zipFile;
+
+    /**
+     * The open channel on the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The mapped archive, or null if the archive is too large to map.
+     * Readers never use this buffer directly; they use duplicates of it,
+     * so that concurrent readers don't share a position.
+     */
+    private final ByteBuffer mapped;
+
+    /**
+     * Name-to-ordinal index. The ordinal indexes the parallel arrays,
+     * below.
+     */
+    private final Map<String,Integer> index;
+
+    /**
+     * Entry names, in central directory order.
+     */
+    private final String[] names;
+
+    /*
+     * Per-entry data, indexed by ordinal. Parallel arrays keep the index
+     * compact: there's no per-entry object other than the name.
+     */
+    private final long[]  localHeaderOffsets;
+    private final long[]  compressedSizes;
+    private final long[]  sizes;
+    private final int[]   crcs;
+    private final int[]   dosTimes;
+    private final short[] methods;
+
+    /**
+     * Whether the reader has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /*
+     * Per-thread state for readEntry(): a "nowrap" inflater and a buffer
+     * for the compressed bytes, both reused from one entry to the next.
+     * (Inflater can't read from a ByteBuffer before Java 11, so the
+     * compressed bytes have to be copied into an array.) They're shared
+     * by all readers, so a thread holds at most one of each.
+     */
+    private static final ThreadLocal<Inflater> inflaters =
+        new ThreadLocal<Inflater>()
+        {
+            protected Inflater initialValue()
+            {
+                return new Inflater (true);
+            }
+        };
+
+    private static final ThreadLocal<byte[]> inputBuffers =
+        new ThreadLocal<byte[]>()
+        {
+            protected byte[] initialValue()
+            {
+                return new byte[INPUT_BUF_SIZE];
+            }
+        };
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Open the specified zip or jar file and index its central directory.
+     *
+     * @param path  the pathname of the zip or jar file to read
+     *
+     * @throws IOException  the file can't be opened, or it isn't a valid
+     *                      zip file
+     *
+     * @see #ZipReader(File)
+     */
+    public ZipReader (String path) throws IOException
+    {
+        this (new File (path));
+    }
+
+    /**
+     * Open the specified zip or jar file and index its central directory.
+     *
+     * @param file  the zip or jar file to read
+     *
+     * @throws IOException  the file can't be opened, or it isn't a valid
+     *                      zip file
+     *
+     * @see #ZipReader(String)
+     */
+    public ZipReader (File file) throws IOException
+    {
+        if (file.isDirectory())
+        {
+            throw new IOException ("File \"" + file.getPath() +
+                                   "\" is a directory.");
+        }
+
+        this.zipFile = file;
+        this.channel = new RandomAccessFile (file, "r").getChannel();
+
+        try
+        {
+            long length = channel.size();
+            if (length <= Integer.MAX_VALUE)
+            {
+                MappedByteBuffer buf =
+                    channel.map (FileChannel.MapMode.READ_ONLY, 0, length);
+                buf.order (ByteOrder.LITTLE_ENDIAN);
+                mapped = buf;
+            }
+
+            else
+            {
+                mapped = null;
+            }
+
+            // Locate and read the central directory.
+
+            long[] dirInfo = findCentralDirectory (length);
+            int totalEntries = (int) dirInfo[0];
+            ByteBuffer dir = read (dirInfo[1], (int) dirInfo[2]);
+
+            names              = new String[totalEntries];
+            localHeaderOffsets = new long[totalEntries];
+            compressedSizes    = new long[totalEntries];
+            sizes              = new long[totalEntries];
+            crcs               = new int[totalEntries];
+            dosTimes           = new int[totalEntries];
+            methods            = new short[totalEntries];
+            index              = new HashMap<String,Integer>
+                                     (((totalEntries * 4) / 3) + 1);
+
+            for (int i = 0; i < totalEntries; i++)
+                readCentralDirectoryEntry (dir, i);
+        }
+
+        catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+
+        catch (RuntimeException ex)
+        {
+            // Buffer underflows and the like mean a corrupt directory.
+
+            channel.close();
+            throw new ZipException ("Malformed central directory in \"" +
+                                    file.getPath() + "\": " + ex);
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Close the <tt>ZipReader</tt>. Streams obtained from the reader
+     * become unusable.
+     *
+     * @throws IOException on error
+     */
+    public void close() throws IOException
+    {
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * Get the <tt>File</tt> object that describes the underlying jar or
+     * zip file. It is legal to call this method even after the reader
+     * has been closed.
+     *
+     * @return the underlying zip or jar file
+     */
+    public File getFile()
+    {
+        return zipFile;
+    }
+
+    /**
+     * Get the total number of entries in the archive.
+     *
+     * @return the total number of entries
+     */
+    public int getTotalEntries()
+    {
+        return names.length;
+    }
+
+    /**
+     * Get the names of all entries in the archive, in central directory
+     * order.
+     *
+     * @return an unmodifiable list of entry names
+     */
+    public List<String> getEntryNames()
+    {
+        return Collections.unmodifiableList (Arrays.asList (names));
+    }
+
+    /**
+     * Determine whether the archive contains an entry with the specified
+     * name.
+     *
+     * @param name  the entry name
+     *
+     * @return <tt>true</tt> if the entry exists, <tt>false</tt> if not
+     */
+    public boolean containsEntry (String name)
+    {
+        return index.containsKey (name);
+    }
+
+    /**
+     * Get a <tt>ZipEntry</tt> describing a named entry.
+     *
+     * @param name  the entry name
+     *
+     * @return a new <tt>ZipEntry</tt> object, or null if there's no such
+     *         entry
+     */
+    public ZipEntry getEntry (String name)
+    {
+        Integer i = index.get (name);
+        if (i == null)
+            return null;
+
+        ZipEntry entry = new ZipEntry (name);
+        entry.setMethod (methods[i]);
+        entry.setSize (sizes[i]);
+        entry.setCompressedSize (compressedSizes[i]);
+        entry.setCrc (crcs[i] & 0xffffffffL);
+        entry.setTime (dosToJavaTime (dosTimes[i]));
+        return entry;
+    }
+
+    /**
+     * Open a stream on the (uncompressed) contents of a named entry.
+     *
+     * @param name  the entry name
+     *
+     * @return the stream, or null if there's no such entry
+     *
+     * @throws IOException on I/O error, or if the entry uses an
+     *                     unsupported compression method
+     */
+    public InputStream getInputStream (String name) throws IOException
+    {
+        Integer i = index.get (name);
+        if (i == null)
+            return null;
+
+        InputStream is = new EntryInputStream (dataOffset (i),
+                                               compressedSizes[i]);
+        switch (methods[i])
+        {
+            case ZipEntry.STORED:
+                break;
+
+            case ZipEntry.DEFLATED:
+                is = new EntryInflaterInputStream (is, sizes[i]);
+                break;
+
+            default:
+                throw new ZipException ("Entry \"" + name + "\" in \"" +
+                                        zipFile.getPath() + "\" uses " +
+                                        "unsupported compression method " +
+                                        methods[i]);
+        }
+
+        return is;
+    }
+
+    /**
+     * Get the uncompressed size of a named entry, e.g., to size the
+     * buffer for {@link #readEntry}.
+     *
+     * @param name  the entry name
+     *
+     * @return the size, in bytes, or -1 if there's no such entry
+     */
+    public long getSize (String name)
+    {
+        Integer i = index.get (name);
+        return (i == null) ? -1 : sizes[i];
+    }
+
+    /**
+     * Read the entire (uncompressed) contents of a named entry into a
+     * caller-supplied array. Unlike {@link #getInputStream}, this method
+     * allocates nothing per entry: a stored entry is copied straight from
+     * the mapped archive into the array, and a deflated entry is inflated
+     * straight into it, using an inflater that's reused by the calling
+     * thread. Callers reading many entries (e.g., scanning the classes in
+     * a jar) can reuse one array for all of them.
+     *
+     * @param name  the entry name
+     * @param b     the array into which to read the entry
+     * @param off   where to put the first byte
+     *
+     * @return the number of bytes read (i.e., the size of the entry), or
+     *         -1 if there's no such entry
+     *
+     * @throws IndexOutOfBoundsException if the entry doesn't fit in the
+     *                                   array
+     * @throws IOException on I/O error, if the entry is corrupt, or if it
+     *                     uses an unsupported compression method
+     *
+     * @see #getSize
+     */
+    public int readEntry (String name, byte[] b, int off) throws IOException
+    {
+        Integer i = index.get (name);
+        if (i == null)
+            return -1;
+
+        ensureOpen();
+
+        long size = sizes[i];
+        long compressedSize = compressedSizes[i];
+        if ((size > Integer.MAX_VALUE) ||
+            (compressedSize >= Integer.MAX_VALUE))
+        {
+            throw new ZipException ("Entry \"" + name + "\" in \"" +
+                                    zipFile.getPath() + "\" is too large " +
+                                    "to read into an array");
+        }
+
+        int len = (int) size;
+        if ((off < 0) || (len > b.length - off))
+        {
+            throw new IndexOutOfBoundsException
+                ("Entry \"" + name + "\" (" + len + " bytes) doesn't fit " +
+                 "in " + (b.length - off) + " bytes");
+        }
+
+        switch (methods[i])
+        {
+            case ZipEntry.STORED:
+                if (compressedSize != size)
+                    throw badEntry (name);
+                readFully (dataOffset (i), ByteBuffer.wrap (b, off, len));
+                break;
+
+            case ZipEntry.DEFLATED:
+                inflate (i, (int) compressedSize, b, off, len);
+                break;
+
+            default:
+                throw new ZipException ("Entry \"" + name + "\" in \"" +
+                                        zipFile.getPath() + "\" uses " +
+                                        "unsupported compression method " +
+                                        methods[i]);
+        }
+
+        return len;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Inflate a deflated entry into an array, using the calling thread's
+     * inflater and input buffer.
+     *
+     * @param i               the entry ordinal
+     * @param compressedSize  the entry's compressed size
+     * @param b               the array to fill
+     * @param off             where to put the first byte
+     * @param len             the entry's uncompressed size
+     *
+     * @throws IOException on I/O error or bad data
+     */
+    private void inflate (int    i,
+                          int    compressedSize,
+                          byte[] b,
+                          int    off,
+                          int    len)
+        throws IOException
+    {
+        // Like EntryInflaterInputStream, supply a dummy trailing byte.
+
+        byte[] in = inputBuffers.get();
+        if (in.length < compressedSize + 1)
+        {
+            in = new byte[compressedSize + 1];
+            if (in.length <= MAX_RETAINED_BUF_SIZE)
+                inputBuffers.set (in);
+        }
+
+        readFully (dataOffset (i), ByteBuffer.wrap (in, 0, compressedSize));
+        in[compressedSize] = 0;
+
+        Inflater inf = inflaters.get();
+        inf.reset();
+        inf.setInput (in, 0, compressedSize + 1);
+
+        try
+        {
+            int total = 0;
+            while (total < len)
+            {
+                int n = inf.inflate (b, off + total, len - total);
+                if ((n == 0) &&
+                    (inf.finished() || inf.needsInput() ||
+                     inf.needsDictionary()))
+                {
+                    throw badEntry (names[i]);
+                }
+
+                total += n;
+            }
+        }
+
+        catch (DataFormatException ex)
+        {
+            ZipException zex = badEntry (names[i]);
+            zex.initCause (ex);
+            throw zex;
+        }
+
+        finally
+        {
+            inf.reset();
+        }
+    }
+
+    /**
+     * Find the central directory.
+     *
+     * @param length  the length of the file
+     *
+     * @return a three-element array containing the total number of
+     *         entries, the offset of the directory, and its size.
+     *
+     * @throws IOException on I/O error or bad format
+     */
+    private long[] findCentralDirectory (long length) throws IOException
+    {
+        // The end-of-central-directory record is at the end of the file,
+        // followed only by an optional comment of up to 64K.
+
+        int tailSize = (int) Math.min (length,
+                                       END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        if (tailSize < END_HEADER_SIZE)
+            throw notAZipFile();
+
+        long tailStart = length - tailSize;
+        ByteBuffer tail = read (tailStart, tailSize);
+
+        int end = -1;
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--)
+        {
+            if ((tail.getInt (i) == END_HEADER_SIG) &&
+                ((i + END_HEADER_SIZE + (tail.getShort (i + 20) & 0xffff))
+                 == tailSize))
+            {
+                end = i;
+                break;
+            }
+        }
+
+        if (end < 0)
+            throw notAZipFile();
+
+        long totalEntries = tail.getShort (end + 10) & 0xffff;
+        long dirSize      = tail.getInt (end + 12) & 0xffffffffL;
+        long dirOffset    = tail.getInt (end + 16) & 0xffffffffL;
+
+        // A ZIP64 archive has a locator immediately before the end record.
+
+        long locatorPos = tailStart + end - ZIP64_LOCATOR_SIZE;
+        if (locatorPos >= 0)
+        {
+            ByteBuffer locator = read (locatorPos, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt (0) == ZIP64_LOCATOR_SIG)
+            {
+                ByteBuffer end64 = read (locator.getLong (8), ZIP64_END_SIZE);
+                if (end64.getInt (0) != ZIP64_END_HEADER_SIG)
+                    throw notAZipFile();
+
+                totalEntries = end64.getLong (32);
+                dirSize      = end64.getLong (40);
+                dirOffset    = end64.getLong (48);
+            }
+        }
+
+        if ((totalEntries > Integer.MAX_VALUE) ||
+            (dirSize > Integer.MAX_VALUE) ||
+            (dirOffset + dirSize > length))
+        {
+            throw notAZipFile();
+        }
+
+        return new long[] {totalEntries, dirOffset, dirSize};
+    }
+
+    /**
+     * Read one central directory entry into the index.
+     *
+     * @param dir  the central directory, positioned at the entry
+     * @param i    the entry's ordinal
+     *
+     * @throws IOException bad format
+     */
+    private void readCentralDirectoryEntry (ByteBuffer dir, int i)
+        throws IOException
+    {
+        int pos = dir.position();
+        if (dir.getInt (pos) != CENTRAL_HEADER_SIG)
+        {
+            throw new ZipException ("Bad central directory header in \"" +
+                                    zipFile.getPath() + "\"");
+        }
+
+        methods[i]            = dir.getShort (pos + 10);
+        dosTimes[i]           = dir.getInt (pos + 12);
+        crcs[i]               = dir.getInt (pos + 16);
+        compressedSizes[i]    = dir.getInt (pos + 20) & 0xffffffffL;
+        sizes[i]              = dir.getInt (pos + 24) & 0xffffffffL;
+        int nameLen           = dir.getShort (pos + 28) & 0xffff;
+        int extraLen          = dir.getShort (pos + 30) & 0xffff;
+        int commentLen        = dir.getShort (pos + 32) & 0xffff;
+        localHeaderOffsets[i] = dir.getInt (pos + 42) & 0xffffffffL;
+
+        byte[] nameBytes = new byte[nameLen];
+        dir.position (pos + CENTRAL_HEADER_SIZE);
+        dir.get (nameBytes);
+        String name = new String (nameBytes, UTF8);
+        names[i] = name;
+
+        // ZIP64 sizes and offsets live in an extra field, in this order,
+        // but only for those values that overflowed in the fixed header.
+
+        int extraStart = dir.position();
+        int extraEnd = extraStart + extraLen;
+        for (int p = extraStart; p + 4 <= extraEnd; )
+        {
+            int id = dir.getShort (p) & 0xffff;
+            int size = dir.getShort (p + 2) & 0xffff;
+            int q = p + 4;
+
+            if (id == ZIP64_EXTRA_ID)
+            {
+                if ((sizes[i] == ZIP64_MAGIC) && (q + 8 <= p + 4 + size))
+                {
+                    sizes[i] = dir.getLong (q);
+                    q += 8;
+                }
+
+                if ((compressedSizes[i] == ZIP64_MAGIC) &&
+                    (q + 8 <= p + 4 + size))
+                {
+                    compressedSizes[i] = dir.getLong (q);
+                    q += 8;
+                }
+
+                if ((localHeaderOffsets[i] == ZIP64_MAGIC) &&
+                    (q + 8 <= p + 4 + size))
+                {
+                    localHeaderOffsets[i] = dir.getLong (q);
+                }
+
+                break;
+            }
+
+            p += 4 + size;
+        }
+
+        dir.position (extraEnd + commentLen);
+
+        // If a name appears more than once, the first one wins, as with
+        // java.util.zip.ZipFile.
+
+        if (! index.containsKey (name))
+            index.put (name, i);
+    }
+
+    /**
+     * Get the offset of an entry's data, by reading the entry's local
+     * file header. The local header's name and extra field lengths can
+     * differ from those in the central directory, so they have to be
+     * read from the local header itself.
+     *
+     * @param i  the entry ordinal
+     *
+     * @return the offset of the first byte of entry data
+     *
+     * @throws IOException on I/O error or bad format
+     */
+    private long dataOffset (int i) throws IOException
+    {
+        long offset = localHeaderOffsets[i];
+        ByteBuffer header = read (offset, LOCAL_HEADER_SIZE);
+        if (header.getInt (0) != LOCAL_HEADER_SIG)
+        {
+            throw new ZipException ("Bad local header for entry \"" +
+                                    names[i] + "\" in \"" +
+                                    zipFile.getPath() + "\"");
+        }
+
+        return offset + LOCAL_HEADER_SIZE +
+               (header.getShort (26) & 0xffff) +
+               (header.getShort (28) & 0xffff);
+    }
+
+    /**
+     * Read a region of the file into a little-endian buffer. For a mapped
+     * file, the returned buffer is a slice of the mapping, and nothing is
+     * copied.
+     *
+     * @param pos  starting file position
+     * @param len  number of bytes
+     *
+     * @return the buffer, positioned at 0
+     *
+     * @throws IOException on I/O error or premature EOF
+     */
+    private ByteBuffer read (long pos, int len) throws IOException
+    {
+        ByteBuffer buf;
+
+        if (mapped != null)
+        {
+            if ((pos < 0) || (pos + len > mapped.capacity()))
+                throw new EOFException();
+
+            ByteBuffer dup = mapped.duplicate();
+            dup.position ((int) pos);
+            dup.limit ((int) pos + len);
+            buf = dup.slice();
+        }
+
+        else
+        {
+            buf = ByteBuffer.allocate (len);
+            readFully (pos, buf);
+            buf.flip();
+        }
+
+        buf.order (ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    /**
+     * Fill a buffer from the file, starting at a given position.
+     *
+     * @param pos  starting file position
+     * @param buf  the buffer to fill, up to its limit
+     *
+     * @throws IOException on I/O error or premature EOF
+     */
+    private void readFully (long pos, ByteBuffer buf) throws IOException
+    {
+        if (mapped != null)
+        {
+            ByteBuffer dup = mapped.duplicate();
+            int len = buf.remaining();
+            if ((pos < 0) || (pos + len > dup.capacity()))
+                throw new EOFException();
+
+            dup.position ((int) pos);
+            dup.limit ((int) pos + len);
+            buf.put (dup);
+        }
+
+        else
+        {
+            while (buf.hasRemaining())
+            {
+                int n = channel.read (buf, pos);
+                if (n < 0)
+                    throw new EOFException();
+                pos += n;
+            }
+        }
+    }
+
+    /**
+     * Convert an MS-DOS date/time value to a Java time value.
+     *
+     * @param dosTime  the DOS time
+     *
+     * @return the Java time, in milliseconds since the epoch
+     */
+    @SuppressWarnings("deprecation")
+    private static long dosToJavaTime (int dosTime)
+    {
+        java.util.Date d = new java.util.Date (((dosTime >> 25) & 0x7f) + 80,
+                                               ((dosTime >> 21) & 0x0f) - 1,
+                                               (dosTime >> 16) & 0x1f,
+                                               (dosTime >> 11) & 0x1f,
+                                               (dosTime >> 5) & 0x3f,
+                                               (dosTime << 1) & 0x3e);
+        return d.getTime();
+    }
+
+    private ZipException notAZipFile()
+    {
+        return new ZipException ("File \"" + zipFile.getPath() +
+                                 "\" is not a zip file.");
+    }
+
+    private ZipException badEntry (String name)
+    {
+        return new ZipException ("Corrupt entry \"" + name + "\" in \"" +
+                                 zipFile.getPath() + "\"");
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException ("ZipReader for \"" + zipFile.getPath() +
+                                   "\" is closed.");
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Reads the raw (possibly compressed) bytes of one entry via
+     * positional reads. Each stream has its own position, so streams
+     * don't interfere with one another.
+     */
+    private class EntryInputStream extends InputStream
+    {
+        private long pos;
+        private long remaining;
+
+        EntryInputStream (long start, long length)
+        {
+            this.pos = start;
+            this.remaining = length;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read (b, 0, 1) == 1) ? (b[0] & 0xff) : -1;
+        }
+
+        public int read (byte[] b, int off, int len) throws IOException
+        {
+            ensureOpen();
+            if (remaining <= 0)
+                return -1;
+
+            len = (int) Math.min (len, remaining);
+            if (len == 0)
+                return 0;
+
+            ByteBuffer buf = ByteBuffer.wrap (b, off, len);
+            readFully (pos, buf);
+            pos += len;
+            remaining -= len;
+            return len;
+        }
+
+        public long skip (long n)
+        {
+            n = Math.max (0, Math.min (n, remaining));
+            pos += n;
+            remaining -= n;
+            return n;
+        }
+
+        public int available()
+        {
+            return (int) Math.min (remaining, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Inflates a deflated entry. Like the JDK's own zip stream, it
+     * supplies a dummy trailing byte to the "nowrap" inflater, which may
+     * need one to detect the end of the compressed data, and it releases
+     * the inflater's native resources on close.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream
+    {
+        private long    remaining;
+        private boolean eof = false;
+        private boolean closed = false;
+
+        EntryInflaterInputStream (InputStream in, long size)
+        {
+            super (in,
+                   new Inflater (true),
+                   (int) Math.max (1, Math.min (size, INPUT_BUF_SIZE)));
+            this.remaining = size;
+        }
+
+        public int read (byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read (b, off, len);
+            if (n > 0)
+                remaining -= n;
+            return n;
+        }
+
+        public int available() throws IOException
+        {
+            if (closed)
+                return 0;
+            return (int) Math.min (Math.max (remaining, 0), Integer.MAX_VALUE);
+        }
+
+        public void close() throws IOException
+        {
+            if (! closed)
+            {
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+
+        protected void fill() throws IOException
+        {
+            if (eof)
+                throw new EOFException ("Unexpected end of zip entry");
+
+            len = in.read (buf, 0, buf.length);
+            if (len == -1)
+            {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+
+            inf.setInput (buf, 0, len);
+        }
+    }
+}
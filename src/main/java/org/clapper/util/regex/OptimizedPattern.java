@@ -0,0 +1,366 @@
+package org.clapper.util.regex;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>An <tt>OptimizedPattern</tt> wraps a compiled
+ * <tt>java.util.regex.Pattern</tt> and answers <tt>find()</tt> and
+ * <tt>matches()</tt> questions about it, the same way a <tt>Matcher</tt>
+ * would, but faster for the simple patterns that make up most file
+ * name filters.</p>
+ *
+ * <p>When the <tt>OptimizedPattern</tt> is created, it analyzes the
+ * pattern. If the pattern is just a literal string, optionally anchored
+ * with <tt>^</tt> or <tt>$</tt>, or padded with <tt>.*</tt> (e.g.,
+ * <tt>\.class$</tt>, <tt>^foo</tt>, <tt>.*\.jar</tt>, <tt>CVS</tt>), then
+ * matching is done with <tt>String.startsWith()</tt>,
+ * <tt>String.endsWith()</tt>, <tt>String.indexOf()</tt> or
+ * <tt>String.equals()</tt>, and no <tt>Matcher</tt> is ever created.
+ * Case-insensitive patterns are handled, too, as long as they use the
+ * default (US-ASCII) case folding. Any other pattern falls back to the
+ * regular expression engine, reusing one <tt>Matcher</tt> per thread
+ * instead of allocating one per call.</p>
+ *
+ * <p>The results are always identical to those of the underlying
+ * <tt>Pattern</tt>. In particular, since <tt>.</tt> and <tt>$</tt>
+ * treat line terminators specially, strings that contain line
+ * terminators are always handed to the regular expression engine.</p>
+ *
+ * <p><tt>OptimizedPattern</tt> objects are immutable and thread-safe.</p>
+ */
+public final class OptimizedPattern
+{
+    /*----------------------------------------------------------------------*\
+                            Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The characters that have special meaning in a regular expression,
+     * outside a character class.
+     */
+    private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    /**
+     * The only flags for which literal matching is known to be exact.
+     */
+    private static final int SUPPORTED_FLAGS = Pattern.CASE_INSENSITIVE;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final Pattern pattern;
+
+    /**
+     * The literal part of the pattern, or null if the pattern can't be
+     * matched literally.
+     */
+    private final String literal;
+
+    /*
+     * Whether the literal is anchored at the start and end of the input,
+     * for find() and for matches().
+     */
+    private final boolean findAtStart;
+    private final boolean findAtEnd;
+    private final boolean matchAtStart;
+    private final boolean matchAtEnd;
+
+    private final boolean ignoreCase;
+
+    /**
+     * One reusable matcher per thread, for the fallback path.
+     */
+    private final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>()
+    {
+        protected Matcher initialValue()
+        {
+            return pattern.matcher ("");
+        }
+    };
+
+    /*----------------------------------------------------------------------*\
+                                Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compile and analyze a regular expression.
+     *
+     * @param regex  the regular expression
+     */
+    public OptimizedPattern (String regex)
+    {
+        this (Pattern.compile (regex));
+    }
+
+    /**
+     * Analyze a compiled regular expression.
+     *
+     * @param pattern  the compiled pattern
+     */
+    public OptimizedPattern (Pattern pattern)
+    {
+        this.pattern = pattern;
+        this.ignoreCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+
+        String  regex = pattern.pattern();
+        String  lit = null;
+        boolean caret = false;
+        boolean dollar = false;
+        boolean leadingAny = false;
+        boolean trailingAny = false;
+
+        if ((pattern.flags() & ~SUPPORTED_FLAGS) == 0)
+        {
+            int start = 0;
+            int end = regex.length();
+
+            if (regex.startsWith ("^"))
+            {
+                caret = true;
+                start++;
+            }
+
+            if ((end > start) &&
+                regex.endsWith ("$") &&
+                (! isEscaped (regex, end - 1)))
+            {
+                dollar = true;
+                end--;
+            }
+
+            if (regex.startsWith (".*", start))
+            {
+                leadingAny = true;
+                start += 2;
+            }
+
+            if ((end - 2 >= start) &&
+                regex.startsWith (".*", end - 2) &&
+                (! isEscaped (regex, end - 2)))
+            {
+                trailingAny = true;
+                end -= 2;
+            }
+
+            lit = parseLiteral (regex, start, end);
+        }
+
+        this.literal = lit;
+        this.findAtStart = caret && (! leadingAny);
+        this.findAtEnd = dollar && (! trailingAny);
+        this.matchAtStart = ! leadingAny;
+        this.matchAtEnd = ! trailingAny;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the underlying pattern.
+     *
+     * @return the pattern
+     */
+    public Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    /**
+     * Determine whether the pattern was reduced to a literal string
+     * match.
+     *
+     * @return <tt>true</tt> if it's matched literally, <tt>false</tt> if
+     *         it's matched by the regular expression engine
+     */
+    public boolean isLiteral()
+    {
+        return literal != null;
+    }
+
+    /**
+     * Equivalent to <tt>getPattern().matcher(s).find()</tt>.
+     *
+     * @param s  the string to search
+     *
+     * @return <tt>true</tt> if the pattern is found in the string,
+     *         <tt>false</tt> otherwise
+     */
+    public boolean find (String s)
+    {
+        if ((literal == null) || hasLineTerminator (s))
+            return matcher (s).find();
+
+        return literalMatch (s, findAtStart, findAtEnd);
+    }
+
+    /**
+     * Equivalent to <tt>getPattern().matcher(s).matches()</tt>.
+     *
+     * @param s  the string to match
+     *
+     * @return <tt>true</tt> if the pattern matches the entire string,
+     *         <tt>false</tt> otherwise
+     */
+    public boolean matches (String s)
+    {
+        if ((literal == null) || hasLineTerminator (s))
+            return matcher (s).matches();
+
+        return literalMatch (s, matchAtStart, matchAtEnd);
+    }
+
+    /**
+     * Get a string representation of this object.
+     *
+     * @return the pattern's string representation
+     */
+    public String toString()
+    {
+        return pattern.toString();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private Matcher matcher (String s)
+    {
+        Matcher m = matchers.get();
+        m.reset (s);
+        return m;
+    }
+
+    private boolean literalMatch (String s, boolean atStart, boolean atEnd)
+    {
+        int sLen = s.length();
+        int lLen = literal.length();
+
+        if (atStart && atEnd)
+            return (sLen == lLen) && regionMatches (s, 0);
+
+        else if (atStart)
+            return (sLen >= lLen) && regionMatches (s, 0);
+
+        else if (atEnd)
+            return (sLen >= lLen) && regionMatches (s, sLen - lLen);
+
+        else if (! ignoreCase)
+            return s.indexOf (literal) >= 0;
+
+        else
+        {
+            for (int i = 0; i <= sLen - lLen; i++)
+            {
+                if (regionMatches (s, i))
+                    return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Compare the literal against a region of a string, folding case the
+     * way <tt>Pattern.CASE_INSENSITIVE</tt> does without
+     * <tt>Pattern.UNICODE_CASE</tt>: US-ASCII letters only.
+     *
+     * @param s      the string
+     * @param start  the start of the region
+     *
+     * @return whether the region matches
+     */
+    private boolean regionMatches (String s, int start)
+    {
+        if (! ignoreCase)
+            return s.startsWith (literal, start);
+
+        for (int i = 0; i < literal.length(); i++)
+        {
+            char c1 = s.charAt (start + i);
+            char c2 = literal.charAt (i);
+            if ((c1 != c2) && (asciiLower (c1) != asciiLower (c2)))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static char asciiLower (char c)
+    {
+        return ((c >= 'A') && (c <= 'Z')) ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean hasLineTerminator (String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt (i);
+            if ((c == '\n') || (c == '\r') || (c == '\u0085') ||
+                (c == '\u2028') || (c == '\u2029'))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Determine whether the character at a given position is escaped by
+     * an odd number of preceding backslashes.
+     *
+     * @param regex  the regular expression
+     * @param i      the position
+     *
+     * @return <tt>true</tt> if it's escaped
+     */
+    private static boolean isEscaped (String regex, int i)
+    {
+        int backslashes = 0;
+        while ((--i >= 0) && (regex.charAt (i) == '\\'))
+            backslashes++;
+        return (backslashes % 2) == 1;
+    }
+
+    /**
+     * Attempt to parse a region of a regular expression as a literal
+     * string. Only unescaped non-metacharacters, and backslash-escaped
+     * punctuation, are considered literal.
+     *
+     * @param regex  the regular expression
+     * @param start  start of the region
+     * @param end    end of the region
+     *
+     * @return the literal string, or null if the region isn't literal
+     */
+    private static String parseLiteral (String regex, int start, int end)
+    {
+        StringBuilder buf = new StringBuilder (end - start);
+
+        for (int i = start; i < end; i++)
+        {
+            char c = regex.charAt (i);
+            if (c == '\\')
+            {
+                if (++i >= end)
+                    return null;
+
+                c = regex.charAt (i);
+                if (Character.isLetterOrDigit (c) || (c > 0x7f))
+                    return null;
+            }
+
+            else if (META_CHARACTERS.indexOf (c) >= 0)
+            {
+                return null;
+            }
+
+            buf.append (c);
+        }
+
+        return buf.toString();
+    }
+}
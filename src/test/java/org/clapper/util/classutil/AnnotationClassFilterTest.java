@@ -0,0 +1,180 @@
+package org.clapper.util.classutil;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the AnnotationClassFilter class.
+ */
+public class AnnotationClassFilterTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private File dir;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        dir = File.createTempFile("AnnotationClassFilterTest", "");
+        dir.delete();
+        dir.mkdir();
+        ClassFiles.copyClasses(dir, InheritedMarker.class, PlainMarker.class,
+                               Base.class, Child.class, GrandChild.class,
+                               Unrelated.class);
+    }
+
+    @After public void tearDown()
+    {
+        ClassFiles.delete(dir);
+    }
+
+    @Test public void annotatedClass()
+    {
+        ClassInfo c = classInfo("a/B");
+        c.visitAnnotation("Ljava/lang/Deprecated;", true);
+        c.visitAnnotation("La/b/Marker$Inner;", false);
+
+        ClassFinder finder = new ClassFinder();
+        assertTrue(new AnnotationClassFilter(Deprecated.class)
+                       .accept(c, finder));
+        assertTrue(new AnnotationClassFilter("a.b.Marker$Inner")
+                       .accept(c, finder));
+        assertFalse(new AnnotationClassFilter(Override.class)
+                        .accept(c, finder));
+    }
+
+    @Test public void unannotatedClass()
+    {
+        ClassInfo c = classInfo("a/C");
+        assertTrue(c.getAnnotations().isEmpty());
+        assertFalse(new AnnotationClassFilter(Deprecated.class)
+                        .accept(c, new ClassFinder()));
+    }
+
+    @Test public void parsedAnnotationsAreRecorded()
+    {
+        for (ClassFinder.ParseDepth depth : ClassFinder.ParseDepth.values())
+        {
+            ClassFinder finder = new ClassFinder();
+            finder.setParseDepth(depth);
+            finder.add(dir);
+
+            List<ClassInfo> classes = new ArrayList<ClassInfo>();
+            finder.findClasses(classes, new RegexClassFilter("\\$Base$"));
+            assertEquals(1, classes.size());
+
+            ClassInfo base = classes.get(0);
+            assertEquals(Base.class.getName(), base.getClassName());
+            assertEquals(2, base.getAnnotations().size());
+            assertTrue(base.getAnnotations()
+                           .contains(InheritedMarker.class.getName()));
+            assertTrue(base.getAnnotations()
+                           .contains(PlainMarker.class.getName()));
+
+            classes.clear();
+            finder.findClasses(classes, new RegexClassFilter("\\$Child$"));
+            assertEquals(1, classes.size());
+            assertTrue(classes.get(0).getAnnotations().isEmpty());
+        }
+    }
+
+    @Test public void inheritedAnnotationMatchesSubclasses()
+    {
+        ClassFinder finder = new ClassFinder();
+        finder.add(dir);
+
+        // The subclasses are found via the superclass walk...
+
+        assertEquals(names(Base.class, Child.class, GrandChild.class),
+                     find(finder,
+                          new AnnotationClassFilter(InheritedMarker.class)));
+
+        // ...but not for an annotation that isn't @Inherited, or that's
+        // given by name.
+
+        assertEquals(names(Base.class),
+                     find(finder, new AnnotationClassFilter
+                                      (PlainMarker.class)));
+        assertEquals(names(Base.class),
+                     find(finder, new AnnotationClassFilter
+                                      (InheritedMarker.class.getName())));
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static List<String> find(ClassFinder finder, ClassFilter filter)
+    {
+        List<ClassInfo> classes = new ArrayList<ClassInfo>();
+        finder.findClasses(classes, filter);
+
+        List<String> result = new ArrayList<String>();
+        for (ClassInfo classInfo : classes)
+            result.add(classInfo.getClassName());
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<String> names(Class<?>... classes)
+    {
+        List<String> result = new ArrayList<String>();
+        for (Class<?> cls : classes)
+            result.add(cls.getName());
+        Collections.sort(result);
+        return result;
+    }
+
+    private static ClassInfo classInfo(String name)
+    {
+        return new ClassInfo(name, null, new String[0], 0, new File("x"));
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    @Inherited
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface InheritedMarker
+    {
+    }
+
+    @Retention(RetentionPolicy.CLASS)
+    @interface PlainMarker
+    {
+    }
+
+    @InheritedMarker @PlainMarker
+    static class Base
+    {
+    }
+
+    static class Child extends Base
+    {
+    }
+
+    static class GrandChild extends Child
+    {
+    }
+
+    static class Unrelated
+    {
+    }
+}
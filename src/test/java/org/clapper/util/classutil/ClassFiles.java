@@ -0,0 +1,196 @@
+package org.clapper.util.classutil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import java.util.Arrays;
+
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assume;
+
+/**
+ * Copies real, compiled class files into temporary directories and jars,
+ * for tests that need ClassFinder to parse them.
+ */
+class ClassFiles
+{
+    private ClassFiles()
+    {
+    }
+
+    /**
+     * Get the directory holding the compiled classes of a package. Skips
+     * the calling test if the classes aren't in a directory.
+     */
+    static File packageDirectory(Class<?> cls)
+    {
+        return classFile(cls).getParentFile();
+    }
+
+    /**
+     * Copy the class files of specific classes (which may be nested
+     * classes) into a directory, under their package's path.
+     */
+    static void copyClasses(File root, Class<?>... classes)
+        throws IOException
+    {
+        for (Class<?> cls : classes)
+        {
+            File from = classFile(cls);
+            File to = new File(root, packagePath(cls));
+            to.mkdirs();
+            copy(from, new File(to, from.getName()));
+        }
+    }
+
+    /**
+     * Copy the top-level class files of a package (i.e., not the inner
+     * classes) into a directory, under the package's path.
+     *
+     * @return the number of classes copied
+     */
+    static int copyPackage(Class<?> cls, File root) throws IOException
+    {
+        File from = packageDirectory(cls);
+        File to = new File(root, packagePath(cls));
+        to.mkdirs();
+
+        int total = 0;
+        for (File file : sortedClassFiles(from))
+        {
+            copy(file, new File(to, file.getName()));
+            total++;
+        }
+
+        return total;
+    }
+
+    /**
+     * Write the top-level class files of a package into a new jar, in
+     * name order.
+     *
+     * @return the number of classes written
+     */
+    static int writeJar(Class<?> cls, File jar) throws IOException
+    {
+        File from = packageDirectory(cls);
+        String path = packagePath(cls);
+
+        int total = 0;
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try
+        {
+            for (File file : sortedClassFiles(from))
+            {
+                out.putNextEntry(new ZipEntry(path + "/" + file.getName()));
+                copy(file, out);
+                out.closeEntry();
+                total++;
+            }
+        }
+
+        finally
+        {
+            out.close();
+        }
+
+        return total;
+    }
+
+    /**
+     * Delete a directory tree.
+     */
+    static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Get the compiled class file of a class. Skips the calling test if
+     * the class isn't in a directory.
+     */
+    private static File classFile(Class<?> cls)
+    {
+        String name = cls.getName();
+        URL url = cls.getResource(name.substring(name.lastIndexOf('.') + 1) +
+                                  ".class");
+        Assume.assumeTrue(url != null && url.getProtocol().equals("file"));
+        try
+        {
+            return new File(url.toURI());
+        }
+
+        catch (URISyntaxException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String packagePath(Class<?> cls)
+    {
+        return cls.getPackage().getName().replace('.', '/');
+    }
+
+    private static File[] sortedClassFiles(File dir)
+    {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+
+        int n = 0;
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.endsWith(".class") && (name.indexOf('$') < 0))
+                files[n++] = file;
+        }
+
+        return Arrays.copyOf(files, n);
+    }
+
+    private static void copy(File from, File to) throws IOException
+    {
+        OutputStream out = new FileOutputStream(to);
+        try
+        {
+            copy(from, out);
+        }
+
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void copy(File from, OutputStream out) throws IOException
+    {
+        InputStream in = new FileInputStream(from);
+        try
+        {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+        }
+
+        finally
+        {
+            in.close();
+        }
+    }
+}
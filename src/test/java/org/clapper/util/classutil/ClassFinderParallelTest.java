@@ -0,0 +1,90 @@
+package org.clapper.util.classutil;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.clapper.util.io.FileUtil;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a parallel ClassFinder scan finds the same classes, in the
+ * same order, as a sequential one.
+ */
+public class ClassFinderParallelTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private File dir;
+    private File jar;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        dir = File.createTempFile("ClassFinderParallelTest", "");
+        dir.delete();
+        dir.mkdir();
+        jar = File.createTempFile("ClassFinderParallelTest", ".jar");
+
+        // The jar and the directory hold different packages, so each
+        // class is found in exactly one place.
+
+        assertTrue(ClassFiles.writeJar(ClassFinder.class, jar) > 20);
+        assertTrue(ClassFiles.copyPackage(FileUtil.class, dir) > 20);
+    }
+
+    @After public void tearDown()
+    {
+        jar.delete();
+        ClassFiles.delete(dir);
+    }
+
+    @Test public void sameClassesInSameOrder()
+    {
+        List<String> expected = scan(1, jar, dir);
+        assertTrue(expected.contains("org.clapper.util.classutil.ClassFinder"));
+        assertTrue(expected.contains("org.clapper.util.io.FileUtil"));
+
+        // Every jar class comes before every directory class.
+
+        String jarPackage = "org.clapper.util.classutil.";
+        int n = 0;
+        while (expected.get(n).startsWith(jarPackage))
+            n++;
+        assertTrue(n > 0);
+        for (String name : expected.subList(n, expected.size()))
+            assertFalse(name, name.startsWith(jarPackage));
+
+        assertEquals(expected, scan(4, jar, dir));
+        assertEquals(scan(1, dir, jar), scan(4, dir, jar));
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static List<String> scan(int threads, File... places)
+    {
+        ClassFinder finder = new ClassFinder(threads);
+        for (File place : places)
+            finder.add(place);
+
+        List<ClassInfo> classes = new ArrayList<ClassInfo>();
+        finder.findClasses(classes);
+
+        List<String> names = new ArrayList<String>();
+        for (ClassInfo classInfo : classes)
+            names.add(classInfo.getClassName());
+
+        return names;
+    }
+}
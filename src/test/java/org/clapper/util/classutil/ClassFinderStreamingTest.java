@@ -0,0 +1,194 @@
+package org.clapper.util.classutil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.clapper.util.io.FileUtil;
+import org.clapper.util.io.ZipReader;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests streaming scans with ClassFinder, both with classes that come
+ * from the index cache and with real class files parsed via ASM.
+ */
+public class ClassFinderStreamingTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private File jar;
+    private ClassFinder finder;
+
+    private File classJar;
+    private File classDir;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        jar = File.createTempFile("ClassFinderStreamingTest", ".jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        out.putNextEntry(new ZipEntry("a/A.class"));
+        out.write(new byte[] {(byte) 0xca, (byte) 0xfe});
+        out.closeEntry();
+        out.close();
+
+        List<ClassInfo> classes = new ArrayList<ClassInfo>();
+        for (String name : new String[] {"a/A", "a/B", "b/C", "a/D"})
+            classes.add(new ClassInfo(name, null, new String[0], 0, jar));
+
+        ClassIndexCache cache = new ClassIndexCache();
+        ZipReader zip = new ZipReader(jar);
+        try
+        {
+            cache.store(jar, zip, classes);
+        }
+
+        finally
+        {
+            zip.close();
+        }
+
+        finder = new ClassFinder();
+        finder.setIndexCache(cache);
+        finder.add(jar);
+
+        classJar = File.createTempFile("ClassFinderStreamingTest", ".jar");
+        classDir = File.createTempFile("ClassFinderStreamingTest", "");
+        classDir.delete();
+        classDir.mkdir();
+    }
+
+    @After public void tearDown()
+    {
+        jar.delete();
+        classJar.delete();
+        ClassFiles.delete(classDir);
+    }
+
+    @Test public void filtered()
+    {
+        List<String> names = new ArrayList<String>();
+        assertEquals(3, finder.findClasses(new RegexClassFilter("^a\\."),
+                                           collect(names, 10)));
+        assertEquals("[a.A, a.B, a.D]", names.toString());
+    }
+
+    @Test public void stopsEarly()
+    {
+        List<String> names = new ArrayList<String>();
+        assertEquals(2, finder.findClasses(null, collect(names, 2)));
+        assertEquals("[a.A, a.B]", names.toString());
+    }
+
+    @Test public void parsesClassFiles() throws IOException
+    {
+        int jarClasses = ClassFiles.writeJar(ClassFinder.class, classJar);
+        int dirClasses = ClassFiles.copyPackage(FileUtil.class, classDir);
+
+        ClassFinder finder = new ClassFinder();
+        finder.add(classJar);
+        finder.add(classDir);
+
+        List<String> names = new ArrayList<String>();
+        assertEquals(jarClasses + dirClasses,
+                     finder.findClasses(null, collect(names, 1000)));
+
+        // Same classes, in the same order, as a regular scan.
+
+        List<ClassInfo> classes = new ArrayList<ClassInfo>();
+        finder.findClasses(classes);
+        List<String> expected = new ArrayList<String>();
+        for (ClassInfo classInfo : classes)
+            expected.add(classInfo.getClassName());
+        assertEquals(expected, names);
+
+        // And the details really come from the class files.
+
+        final List<ClassInfo> found = new ArrayList<ClassInfo>();
+        ClassFilter filter =
+            new RegexClassFilter("\\.(ClassFinder|AttributedFile)$");
+        finder.findClasses(filter, new ClassHandler()
+        {
+            public boolean handleClass(ClassInfo classInfo)
+            {
+                found.add(classInfo);
+                return true;
+            }
+        });
+        assertEquals(2, found.size());
+
+        ClassInfo classFinder = found.get(0);
+        assertEquals(ClassFinder.class.getName(), classFinder.getClassName());
+        assertNull(classFinder.getSuperClassName());
+        assertEquals(classJar, classFinder.getClassLocation());
+        assertTrue(classFinder.getMethods().size() > 10);
+
+        ClassInfo attributedFile = found.get(1);
+        assertEquals("org.clapper.util.io.AttributedFile",
+                     attributedFile.getClassName());
+        assertEquals("java.io.File", attributedFile.getSuperClassName());
+        assertEquals(classDir, attributedFile.getClassLocation());
+    }
+
+    @Test public void stopsPartwayThroughJar() throws IOException
+    {
+        int jarClasses = ClassFiles.writeJar(ClassFinder.class, classJar);
+        ClassFiles.copyPackage(FileUtil.class, classDir);
+        assertTrue(jarClasses > 10);
+
+        ClassFinder finder = new ClassFinder();
+        finder.add(classJar);
+        finder.add(classDir);
+
+        List<String> all = new ArrayList<String>();
+        finder.findClasses(null, collect(all, 1000));
+
+        // The filter sees every class that's parsed, so it shows where
+        // the scan stopped.
+
+        final List<String> parsed = new ArrayList<String>();
+        ClassFilter counter = new ClassFilter()
+        {
+            public boolean accept(ClassInfo classInfo, ClassFinder finder)
+            {
+                parsed.add(classInfo.getClassName());
+                return true;
+            }
+        };
+
+        List<String> names = new ArrayList<String>();
+        assertEquals(3, finder.findClasses(counter, collect(names, 3)));
+        assertEquals(all.subList(0, 3), names);
+        assertEquals(names, parsed);
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static ClassHandler collect(final List<String> names,
+                                        final int          max)
+    {
+        return new ClassHandler()
+        {
+            public boolean handleClass(ClassInfo classInfo)
+            {
+                names.add(classInfo.getClassName());
+                return names.size() < max;
+            }
+        };
+    }
+}
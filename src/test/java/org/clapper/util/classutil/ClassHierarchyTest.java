@@ -0,0 +1,137 @@
+package org.clapper.util.classutil;
+
+import java.io.File;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ClassHierarchy class.
+ */
+public class ClassHierarchyTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private static final File LOCATION = new File("test.jar");
+
+    private Map<String,ClassInfo> classes;
+    private ClassHierarchy hierarchy;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp()
+    {
+        // I1 <- I2, I1 <- I3, (I2, I3) <- I4: a diamond.
+        // A implements I4; B extends A; C extends B implements I2.
+        // D extends Missing, which isn't loaded; Missing implements I1.
+        // X extends Y extends X: a cycle.
+
+        classes = new LinkedHashMap<String,ClassInfo>();
+        add("I1", null);
+        add("I2", null, "I1");
+        add("I3", null, "I1");
+        add("I4", null, "I2", "I3");
+        add("A", null, "I4");
+        add("B", "A");
+        add("C", "B", "I2");
+        add("D", "Missing");
+        add("X", "Y");
+        add("Y", "X");
+        hierarchy = new ClassHierarchy(classes);
+    }
+
+    @Test public void superClasses()
+    {
+        assertEquals(keys("A", "B"), superClasses("C"));
+        assertEquals(keys(), superClasses("A"));
+        assertEquals(keys(), superClasses("D"));
+        assertTrue(hierarchy.isSubclassOf(classes.get("C"), "A"));
+        assertFalse(hierarchy.isSubclassOf(classes.get("A"), "C"));
+        assertFalse(hierarchy.isSubclassOf(classes.get("C"), "Missing"));
+    }
+
+    @Test public void interfaces()
+    {
+        assertEquals(keys("I1", "I2", "I3", "I4"), interfaces("C"));
+        assertEquals(keys("I1", "I2", "I3", "I4"), interfaces("B"));
+        assertEquals(keys("I1"), interfaces("I3"));
+        assertEquals(keys(), interfaces("D"));
+        assertTrue(hierarchy.implementsInterface(classes.get("B"), "I1"));
+        assertFalse(hierarchy.implementsInterface(classes.get("D"), "I1"));
+    }
+
+    @Test public void subtypes()
+    {
+        Map<String,ClassInfo> result = new HashMap<String,ClassInfo>();
+        assertEquals(6, hierarchy.findAllSubtypes("I1", result));
+        assertEquals(keys("I2", "I3", "I4", "A", "B", "C"), result.keySet());
+
+        result.clear();
+        hierarchy.findAllSubtypes("A", result);
+        assertEquals(keys("B", "C"), result.keySet());
+
+        result.clear();
+        assertEquals(0, hierarchy.findAllSubtypes("Missing", result));
+    }
+
+    @Test public void cyclesAreIgnored()
+    {
+        assertFalse(hierarchy.isSubclassOf(classes.get("X"), "X"));
+        superClasses("X");
+        superClasses("Y");
+    }
+
+    @Test public void sameNamedClassFromElsewhere()
+    {
+        ClassInfo other = new ClassInfo("B", "C", null, 0, new File("x"));
+        assertEquals(keys("A", "B", "C"), keySet(other, true));
+        assertEquals(keys("I1", "I2", "I3", "I4"), keySet(other, false));
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void add(String name, String superClass, String... interfaces)
+    {
+        classes.put(name,
+                    new ClassInfo(name, superClass, interfaces, 0, LOCATION));
+    }
+
+    private Set<String> superClasses(String name)
+    {
+        return keySet(classes.get(name), true);
+    }
+
+    private Set<String> interfaces(String name)
+    {
+        return keySet(classes.get(name), false);
+    }
+
+    private Set<String> keySet(ClassInfo classInfo,
+                             boolean superClasses)
+    {
+        Map<String,ClassInfo> result = new HashMap<String,ClassInfo>();
+        if (superClasses)
+            hierarchy.findAllSuperClasses(classInfo, result);
+        else
+            hierarchy.findAllInterfaces(classInfo, result);
+        return result.keySet();
+    }
+
+    private static Set<String> keys(String... names)
+    {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+}
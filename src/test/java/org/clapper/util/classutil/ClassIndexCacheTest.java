@@ -0,0 +1,175 @@
+package org.clapper.util.classutil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.lang.reflect.Modifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.clapper.util.io.ZipReader;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ClassIndexCache class.
+ */
+public class ClassIndexCacheTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private File jar;
+    private File cacheFile;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        jar = File.createTempFile("ClassIndexCacheTest", ".jar");
+        cacheFile = File.createTempFile("ClassIndexCacheTest", ".idx");
+        writeJar("a/B.class");
+    }
+
+    @After public void tearDown()
+    {
+        jar.delete();
+        cacheFile.delete();
+    }
+
+    @Test public void roundTrip() throws IOException
+    {
+        ClassIndexCache cache = new ClassIndexCache();
+        assertNull(cache.lookup(jar));
+        store(cache);
+
+        ClassIndexCache loaded = new ClassIndexCache();
+        cache.save(cacheFile);
+        loaded.load(cacheFile);
+        assertEquals(1, loaded.size());
+
+        List<ClassInfo> classes = loaded.lookup(jar);
+        assertNotNull(classes);
+        assertEquals(1, classes.size());
+
+        ClassInfo c = classes.get(0);
+        assertEquals("a.B", c.getClassName());
+        assertEquals("a.Base", c.getSuperClassName());
+        assertArrayEquals(new String[] {"java.io.Serializable"},
+                          c.getInterfaces());
+        assertEquals(Modifier.PUBLIC | Modifier.FINAL, c.getModifier());
+        assertEquals(jar, c.getClassLocation());
+
+        assertEquals(1, c.getFields().size());
+        FieldInfo field = c.getFields().iterator().next();
+        assertEquals("SIZE", field.getName());
+        assertEquals(42, field.getValue());
+
+        assertEquals(1, c.getMethods().size());
+        MethodInfo method = c.getMethods().iterator().next();
+        assertEquals("run", method.getName());
+        assertArrayEquals(new String[] {"java/io/IOException"},
+                          method.getExceptions());
+
+        assertEquals(1, c.getAnnotations().size());
+        assertTrue(c.getAnnotations().contains("java.lang.Deprecated"));
+    }
+
+    @Test public void touchedButUnchanged() throws IOException
+    {
+        ClassIndexCache cache = new ClassIndexCache();
+        store(cache);
+        assertTrue(jar.setLastModified(jar.lastModified() - 60000));
+        assertNotNull(cache.lookup(jar));
+    }
+
+    @Test public void changed() throws IOException
+    {
+        ClassIndexCache cache = new ClassIndexCache();
+        store(cache);
+        long mtime = jar.lastModified();
+        writeJar("a/C.class");
+        assertTrue(jar.setLastModified(mtime - 60000));
+        assertNull(cache.lookup(jar));
+    }
+
+    @Test public void deferredMembersStayDeferred() throws IOException
+    {
+        ClassInfo c = new ClassInfo("a/B", null, new String[0], 0, jar);
+        c.setMemberSource("a/B.class");
+        List<ClassInfo> classes = new ArrayList<ClassInfo>();
+        classes.add(c);
+
+        ClassIndexCache cache = new ClassIndexCache();
+        ZipReader zip = new ZipReader(jar);
+        try
+        {
+            cache.store(jar, zip, classes);
+        }
+
+        finally
+        {
+            zip.close();
+        }
+
+        assertEquals("a/B.class", c.getMemberSource());
+        ClassInfo cached = cache.lookup(jar).get(0);
+        assertEquals("a.B", cached.getClassName());
+        assertEquals("a/B.class", cached.getMemberSource());
+    }
+
+    @Test(expected=IOException.class) public void notACache()
+        throws IOException
+    {
+        new ClassIndexCache().load(jar);
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void writeJar(String entryName) throws IOException
+    {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        out.putNextEntry(new ZipEntry(entryName));
+        out.write(new byte[] {(byte) 0xca, (byte) 0xfe});
+        out.closeEntry();
+        out.close();
+    }
+
+    private void store(ClassIndexCache cache) throws IOException
+    {
+        ClassInfo c = new ClassInfo("a/B",
+                                    "a/Base",
+                                    new String[] {"java/io/Serializable"},
+                                    Modifier.PUBLIC | Modifier.FINAL,
+                                    jar);
+        c.visitField(Modifier.STATIC, "SIZE", "I", "I SIZE", 42);
+        c.visitMethod(Modifier.PUBLIC, "run", "()V", "run()V",
+                      new String[] {"java/io/IOException"});
+        c.visitAnnotation("Ljava/lang/Deprecated;", true);
+
+        List<ClassInfo> classes = new ArrayList<ClassInfo>();
+        classes.add(c);
+
+        ZipReader zip = new ZipReader(jar);
+        try
+        {
+            cache.store(jar, zip, classes);
+        }
+
+        finally
+        {
+            zip.close();
+        }
+    }
+}
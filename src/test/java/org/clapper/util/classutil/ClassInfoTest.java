@@ -0,0 +1,73 @@
+package org.clapper.util.classutil;
+
+import java.io.File;
+
+import java.util.Iterator;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ClassInfo class's member storage.
+ */
+public class ClassInfoTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private static final File LOCATION = new File("test.jar");
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void stringsAreShared()
+    {
+        StringPool pool = new StringPool();
+        ClassInfo a = classInfo("a/A", pool);
+        ClassInfo b = classInfo("a/B", pool);
+        a.visitMethod(0, "run", "()V", new String("run()V"), null);
+        b.visitMethod(0, "run", "()V", new String("run()V"), null);
+
+        assertSame(a.getInterfaces()[0], b.getInterfaces()[0]);
+        assertSame(a.getMethods().iterator().next().getSignature(),
+                   b.getMethods().iterator().next().getSignature());
+    }
+
+    @Test public void duplicatesAreDropped()
+    {
+        ClassInfo c = classInfo("a/C", null);
+        c.visitField(0, "x", "I", "I x", null);
+        c.visitField(0, "y", "I", "I y", null);
+        c.visitField(0, "x", "I", "I x", null);
+        assertEquals(2, c.getFields().size());
+
+        c.visitField(0, "z", "I", "I z", null);
+        assertEquals(3, c.getFields().size());
+
+        Iterator<FieldInfo> it = c.getFields().iterator();
+        assertEquals("x", it.next().getName());
+        assertEquals("y", it.next().getName());
+        assertEquals("z", it.next().getName());
+        assertFalse(it.hasNext());
+        assertTrue(c.getMethods().isEmpty());
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void membersAreReadOnly()
+    {
+        classInfo("a/D", null).getFields().add(new FieldInfo());
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static ClassInfo classInfo(String name, StringPool pool)
+    {
+        return new ClassInfo(name, null,
+                             new String[] {new String("java/io/Serializable")},
+                             0, LOCATION, pool);
+    }
+}
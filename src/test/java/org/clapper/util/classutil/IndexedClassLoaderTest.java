@@ -0,0 +1,208 @@
+package org.clapper.util.classutil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+
+import java.util.Collections;
+
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests indexed class loaders, as created by ClassLoaderBuilder.
+ */
+public class IndexedClassLoaderTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private static final String CLASS_NAME =
+        "org.clapper.util.classutil.StringPool";
+    private static final String CLASS_FILE =
+        CLASS_NAME.replace('.', '/') + ".class";
+
+    private File jar;
+    private File dir;
+    private File indexFile;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        jar = File.createTempFile("IndexedClassLoaderTest", ".jar");
+        writeJar("a/b/jar.txt");
+
+        dir = File.createTempFile("IndexedClassLoaderTest", ".dir");
+        dir.delete();
+        new File(dir, "a/c").mkdirs();
+        FileOutputStream out =
+            new FileOutputStream(new File(dir, "a/c/d.txt"));
+        out.write('d');
+        out.close();
+
+        indexFile = File.createTempFile("IndexedClassLoaderTest", ".idx");
+        indexFile.delete();
+    }
+
+    @After public void tearDown()
+    {
+        jar.delete();
+        new File(dir, "a/c/d.txt").delete();
+        new File(dir, "a/c").delete();
+        new File(dir, "a").delete();
+        dir.delete();
+        indexFile.delete();
+    }
+
+    @Test public void findsClassesAndResources() throws Exception
+    {
+        URLClassLoader loader = create(2);
+        try
+        {
+            Class<?> cls = loader.loadClass(CLASS_NAME);
+            assertSame(loader, cls.getClassLoader());
+            assertNotNull(cls.getPackage());
+
+            assertNotNull(loader.getResource("a/b/jar.txt"));
+            assertNotNull(loader.getResource("a/c/d.txt"));
+            assertNull(loader.getResource("a/b/missing.txt"));
+            assertNull(loader.getResource("x/y.txt"));
+            assertEquals(1, Collections.list
+                                (loader.getResources("a/c/d.txt")).size());
+
+            InputStream is = loader.getResourceAsStream("a/b/jar.txt");
+            assertEquals('j', is.read());
+            is.close();
+        }
+
+        finally
+        {
+            loader.close();
+        }
+
+        try
+        {
+            loader.loadClass("a.b.Missing");
+            fail("Loaded a missing class");
+        }
+
+        catch (ClassNotFoundException ex)
+        {
+            // Expected
+        }
+    }
+
+    @Test public void savedIndex() throws Exception
+    {
+        create(1).close();
+        assertTrue(indexFile.exists());
+
+        // The saved index is used while the jar's unchanged...
+
+        URLClassLoader loader = create(1);
+        assertNotNull(loader.getResource("a/b/jar.txt"));
+        loader.close();
+
+        // ...and not once it has changed.
+
+        long mtime = jar.lastModified();
+        writeJar("a/e/new.txt");
+        assertTrue(jar.setLastModified(mtime - 60000));
+        loader = create(1);
+        assertNotNull(loader.getResource("a/e/new.txt"));
+        assertNull(loader.getResource("a/b/jar.txt"));
+        loader.close();
+    }
+
+    @Test public void resourceURLsAreEncoded() throws Exception
+    {
+        String[] names = {"a/b/100%.txt", "a/b/x#1.txt", "a/b/sp ace.txt",
+                          "a/b/caf\u00e9.txt"};
+        writeJar(names);
+
+        URLClassLoader loader = create(1);
+        URLClassLoader plain = new URLClassLoader(new URL[]
+                                                  {
+                                                      jar.toURI().toURL()
+                                                  },
+                                                  null);
+        try
+        {
+            for (String name : names)
+            {
+                URL url = loader.getResource(name);
+                assertNotNull(name, url);
+                assertEquals(plain.getResource(name), url);
+                assertNull(name, url.getRef());
+
+                URLConnection conn = url.openConnection();
+                conn.setUseCaches(false);
+                InputStream is = conn.getInputStream();
+                assertEquals(name, 'j', is.read());
+                is.close();
+            }
+        }
+
+        finally
+        {
+            loader.close();
+            plain.close();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private URLClassLoader create(int threads)
+    {
+        ClassLoaderBuilder builder = new ClassLoaderBuilder();
+        builder.setIndexed(true);
+        builder.setThreads(threads);
+        builder.setIndexFile(indexFile);
+        builder.add(jar);
+        builder.add(dir);
+        return (URLClassLoader) builder.createClassLoader(null);
+    }
+
+    private void writeJar(String... resourceNames) throws IOException
+    {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        out.putNextEntry(new ZipEntry(CLASS_FILE));
+        out.write(classBytes());
+        out.closeEntry();
+        for (String name : resourceNames)
+        {
+            out.putNextEntry(new ZipEntry(name));
+            out.write('j');
+            out.closeEntry();
+        }
+        out.close();
+    }
+
+    private static byte[] classBytes() throws IOException
+    {
+        InputStream is = IndexedClassLoaderTest.class.getClassLoader()
+                             .getResourceAsStream(CLASS_FILE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+            out.write(buf, 0, n);
+        is.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,62 @@
+package org.clapper.util.config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes configuration files for tests, and loads them.
+ */
+class ConfigFiles
+{
+    private ConfigFiles()
+    {
+    }
+
+    /**
+     * Write a string to a file, in UTF-8, replacing its contents.
+     */
+    static void write(File file, String contents) throws IOException
+    {
+        Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            w.write(contents);
+        }
+
+        finally
+        {
+            w.close();
+        }
+    }
+
+    /**
+     * Write a string to a file, and load a new configuration from it.
+     */
+    static Configuration load(File file, String contents) throws Exception
+    {
+        write(file, contents);
+        Configuration config = new Configuration();
+        config.load(file, "UTF-8");
+        return config;
+    }
+
+    /**
+     * Load a new configuration from a string, via a temporary file.
+     */
+    static Configuration load(String contents) throws Exception
+    {
+        File file = File.createTempFile("ConfigFiles", ".cfg");
+        try
+        {
+            return load(file, contents);
+        }
+
+        finally
+        {
+            file.delete();
+        }
+    }
+}
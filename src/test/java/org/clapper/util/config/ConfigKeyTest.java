@@ -0,0 +1,116 @@
+package org.clapper.util.config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ConfigKey class.
+ */
+public class ConfigKeyTest
+{
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void convertsValues() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[s]\n" +
+                                                "n: 42\n" +
+                                                "d: 2.5\n" +
+                                                "b: yes\n" +
+                                                "t: one \"two three\"\n");
+
+        assertEquals(Integer.valueOf(42),
+                     ConfigKey.forInteger("s", "n").get(config));
+        assertEquals(Integer.valueOf(42),
+                     ConfigKey.forCardinal("s", "n").get(config));
+        assertEquals(Double.valueOf(2.5),
+                     ConfigKey.forDouble("s", "d").get(config));
+        assertEquals(Boolean.TRUE,
+                     ConfigKey.forBoolean("s", "b").get(config));
+        assertEquals(Arrays.asList("one", "two three"),
+                     ConfigKey.forTokens("s", "t").get(config));
+    }
+
+    @Test public void optionalValuesDefault() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[s]\nempty:\n");
+
+        assertEquals(Integer.valueOf(7),
+                     ConfigKey.forInteger("s", "x", 7).get(config));
+        assertEquals(Double.valueOf(1.5),
+                     ConfigKey.forDouble("s", "x", 1.5).get(config));
+        assertEquals(Boolean.TRUE,
+                     ConfigKey.forBoolean("s", "empty", true).get(config));
+        assertEquals("dflt",
+                     ConfigKey.forString("s", "empty", "dflt").get(config));
+    }
+
+    @Test public void reusesCachedValue() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[s]\nt: a b c\n");
+        ConfigKey<List<String>> key = ConfigKey.forTokens("s", "t");
+
+        List<String> first = key.get(config);
+        assertSame(first, key.get(config));
+    }
+
+    @Test public void cachedReadsAreCounted() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[s]\nn: 1\n");
+        ConfigKey<Integer> key = ConfigKey.forInteger("s", "n");
+
+        key.get(config);
+        config.setInstrumentation(true);
+        for (int i = 0; i < 3; i++)
+            key.get(config);
+        assertEquals(3, config.getAccessCount("s", "n"));
+
+        config.setInstrumentation(false);
+        key.get(config);
+        assertEquals(3, config.getAccessCount("s", "n"));
+    }
+
+    @Test public void changesInvalidateCachedValue() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[s]\nn: 1\n");
+        ConfigKey<Integer> key = ConfigKey.forInteger("s", "n");
+
+        assertEquals(Integer.valueOf(1), key.get(config));
+        config.setVariable("s", "n", "2", false);
+        assertEquals(Integer.valueOf(2), key.get(config));
+
+        Configuration other = ConfigFiles.load("[s]\nn: 3\n");
+        assertEquals(Integer.valueOf(3), key.get(other));
+        assertEquals(Integer.valueOf(2), key.get(config));
+    }
+
+    @Test public void missingRequiredValueIsNotCached() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[s]\n");
+        ConfigKey<String> key = ConfigKey.forString("s", "v");
+
+        try
+        {
+            key.get(config);
+            fail("Expected NoSuchVariableException");
+        }
+
+        catch (NoSuchVariableException ex)
+        {
+        }
+
+        config.setVariable("s", "v", "now set", false);
+        assertEquals("now set", key.get(config));
+    }
+
+    @Test(expected=ConfigurationException.class)
+    public void badNumberFails() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[s]\nn: many\n");
+        ConfigKey.forInteger("s", "n", 1).get(config);
+    }
+}
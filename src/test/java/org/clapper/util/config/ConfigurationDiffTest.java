@@ -0,0 +1,155 @@
+package org.clapper.util.config;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ConfigurationDiff class, and change notification by
+ * Configuration.
+ */
+public class ConfigurationDiffTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private File file;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        file = File.createTempFile("ConfigurationDiffTest", ".cfg");
+    }
+
+    @After public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Test public void findsAddedRemovedAndChangedValues() throws Exception
+    {
+        Configuration before = ConfigFiles.load(file, "[a]\n" +
+                                                      "x: 1\n" +
+                                                      "y: ${x} two\n" +
+                                                      "gone: 3\n" +
+                                                      "[same]\n" +
+                                                      "s: 1\n" +
+                                                      "[old]\n" +
+                                                      "o: 1\n");
+        Configuration after = ConfigFiles.load(file, "[a]\n" +
+                                                     "x: 2\n" +
+                                                     "y: ${x} two\n" +
+                                                     "new: 4\n" +
+                                                     "[same]\n" +
+                                                     "s: 1\n" +
+                                                     "[fresh]\n" +
+                                                     "f: 1\n");
+
+        ConfigurationDiff diff = ConfigurationDiff.compute(before, after);
+        assertFalse(diff.isEmpty());
+        assertEquals(Arrays.asList("fresh"), list(diff.getAddedSections()));
+        assertEquals(Arrays.asList("old"), list(diff.getRemovedSections()));
+        assertEquals(Arrays.asList("a"), list(diff.getChangedSections()));
+
+        // y's definition didn't change, but its value did.
+
+        assertEquals(Arrays.asList("x", "y"),
+                     list(diff.getChangedVariables("a")));
+        assertEquals(Arrays.asList("new"), list(diff.getAddedVariables("a")));
+        assertEquals(Arrays.asList("gone"),
+                     list(diff.getRemovedVariables("a")));
+        assertEquals(Arrays.asList("f"),
+                     list(diff.getAddedVariables("fresh")));
+        assertEquals(Arrays.asList("o"), list(diff.getRemovedVariables("old")));
+        assertTrue(diff.getChangedVariables("same").isEmpty());
+
+        assertEquals("1 two", diff.getOldValue("a", "y"));
+        assertEquals("2 two", diff.getNewValue("a", "y"));
+        assertNull(diff.getNewValue("a", "gone"));
+        assertTrue(diff.isChanged("a", "new"));
+        assertFalse(diff.isChanged("same", "s"));
+    }
+
+    @Test public void identicalConfigurationsHaveNoDifferences()
+        throws Exception
+    {
+        String contents = "[a]\nx: 1\ny: ${x}\n";
+        ConfigurationDiff diff =
+            ConfigurationDiff.compute(ConfigFiles.load(file, contents),
+                                      ConfigFiles.load(file, contents));
+        assertTrue(diff.isEmpty());
+        assertEquals("", diff.toString());
+    }
+
+    @Test public void listenersAreToldAboutChangedLoads() throws Exception
+    {
+        final List<ConfigurationDiff> diffs =
+            new ArrayList<ConfigurationDiff>();
+        Configuration config = ConfigFiles.load(file, "[a]\nx: 1\n");
+        config.addChangeListener(new ConfigurationChangeListener()
+        {
+            public void configurationChanged(Configuration     config,
+                                             ConfigurationDiff diff)
+            {
+                diffs.add(diff);
+            }
+        });
+
+        ConfigFiles.write(file, "[a]\nx: 1\n");
+        config.load(file, "UTF-8");
+        assertEquals(0, diffs.size());
+
+        ConfigFiles.write(file, "[a]\nx: 2\n");
+        config.load(file, "UTF-8");
+        assertEquals(1, diffs.size());
+        assertEquals(Collections.singletonList("x"),
+                     list(diffs.get(0).getChangedVariables("a")));
+    }
+
+    @Test public void failingListenerDoesNotStopOthers() throws Exception
+    {
+        final int[] calls = new int[1];
+        Configuration config = ConfigFiles.load(file, "[a]\nx: 1\n");
+        config.addChangeListener(new ConfigurationChangeListener()
+        {
+            public void configurationChanged(Configuration     config,
+                                             ConfigurationDiff diff)
+            {
+                throw new RuntimeException("Intentional");
+            }
+        });
+        config.addChangeListener(new ConfigurationChangeListener()
+        {
+            public void configurationChanged(Configuration     config,
+                                             ConfigurationDiff diff)
+            {
+                calls[0]++;
+            }
+        });
+
+        ConfigFiles.write(file, "[a]\nx: 2\n");
+        config.load(file, "UTF-8");
+        assertEquals(1, calls[0]);
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static List<String> list(Collection<String> names)
+    {
+        return new ArrayList<String>(names);
+    }
+}
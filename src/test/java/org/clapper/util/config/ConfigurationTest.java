@@ -0,0 +1,787 @@
+package org.clapper.util.config;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.clapper.util.text.VariableSubstitutionException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the Configuration class.
+ */
+public class ConfigurationTest
+{
+    /*----------------------------------------------------------------------*\
+                             Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private File dir;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws Exception
+    {
+        dir = File.createTempFile("ConfigurationTest", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After public void tearDown()
+    {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test public void substitutesEarlierVariables() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[a]\n" +
+                                                "x: one\n" +
+                                                "[b]\n" +
+                                                "y: ${a:x} two\n" +
+                                                "z: ${y} three\n");
+
+        assertEquals("one two three", config.getConfigurationValue("b", "z"));
+    }
+
+    @Test public void substitutesLaterVariables() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[a]\n" +
+                                                "x: ${y} ${b:z}\n" +
+                                                "y: one\n" +
+                                                "[b]\n" +
+                                                "z: ${a:y} two\n");
+
+        assertEquals("one one two", config.getConfigurationValue("a", "x"));
+    }
+
+    @Test public void expandsDefaultsAndLiterals() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[a]\n" +
+                                                "x: ${missing?$y}\n" +
+                                                "y: one\n" +
+                                                "q: '$y'\n" +
+                                                "r: ${q}\n");
+
+        assertEquals("one", config.getConfigurationValue("a", "x"));
+        assertEquals("$y", config.getConfigurationValue("a", "q"));
+        assertEquals("one", config.getConfigurationValue("a", "r"));
+    }
+
+    @Test public void sameNameInAnotherSectionIsNotRecursive()
+        throws Exception
+    {
+        Configuration config = ConfigFiles.load("[a]\n" +
+                                                "x: one\n" +
+                                                "[b]\n" +
+                                                "x: ${a:x} two\n");
+
+        assertEquals("one two", config.getConfigurationValue("b", "x"));
+    }
+
+    @Test public void resolvesLongChains() throws Exception
+    {
+        StringBuilder buf = new StringBuilder("[a]\nv0: end\n");
+        for (int i = 1; i <= 20000; i++)
+            buf.append("v" + i + ": ${v" + (i - 1) + "}\n");
+
+        Configuration config = ConfigFiles.load(buf.toString());
+        assertEquals("end", config.getConfigurationValue("a", "v20000"));
+    }
+
+    @Test public void detectsSelfReference() throws Exception
+    {
+        try
+        {
+            ConfigFiles.load("[a]\nx: ${x}\n");
+            fail("Expected ConfigurationException");
+        }
+
+        catch (ConfigurationException ex)
+        {
+        }
+    }
+
+    @Test public void detectsCycles() throws Exception
+    {
+        try
+        {
+            ConfigFiles.load("[a]\n" +
+                             "x: ${b:y}\n" +
+                             "[b]\n" +
+                             "y: ${z}\n" +
+                             "z: ${a:x}\n");
+            fail("Expected ConfigurationException");
+        }
+
+        catch (ConfigurationException ex)
+        {
+            assertTrue(ex.getMessage(),
+                       ex.getMessage().contains("a:x -> b:y -> b:z -> a:x"));
+        }
+    }
+
+    @Test public void detectsCyclesThroughDefaults() throws Exception
+    {
+        try
+        {
+            ConfigFiles.load("[a]\n" +
+                             "x: ${y}\n" +
+                             "y: ${missing?$x}\n");
+            fail("Expected ConfigurationException");
+        }
+
+        catch (ConfigurationException ex)
+        {
+            assertTrue(ex.getMessage(),
+                       ex.getMessage().contains("a:x -> a:y -> a:x"));
+        }
+    }
+
+    @Test public void loadsFromCurrentSnapshot() throws Exception
+    {
+        File main = new File(dir, "main.cfg");
+        File snapshot = new File(dir, "main.snap");
+        ConfigFiles.write(new File(dir, "inc.cfg"),
+                          "[b]\nz: ${a:x} 'lit $x' \"p q\"\n");
+        ConfigFiles.write(main, "[a]\nx: one\\ttwo\n%include \"inc.cfg\"\n" +
+                                "[c]\nempty:\n");
+
+        Configuration parsed = new Configuration();
+        assertFalse(parsed.load(main, "UTF-8", snapshot));
+        assertTrue(snapshot.exists());
+
+        Configuration restored = new Configuration();
+        assertTrue(restored.load(main, "UTF-8", snapshot));
+
+        assertEquals(parsed.getSectionNames(), restored.getSectionNames());
+        assertEquals(parsed.getSourceURLs(), restored.getSourceURLs());
+        assertEquals(parsed.getConfigurationFileURL(),
+                     restored.getConfigurationFileURL());
+        assertEquals("one\ttwo", restored.getConfigurationValue("a", "x"));
+        assertEquals(parsed.getConfigurationValue("b", "z"),
+                     restored.getConfigurationValue("b", "z"));
+        assertEquals(parsed.getRawValue("b", "z"),
+                     restored.getRawValue("b", "z"));
+        assertEquals(Arrays.asList(parsed.getConfigurationTokens("b", "z")),
+                     Arrays.asList(restored.getConfigurationTokens("b", "z")));
+        assertEquals("", restored.getConfigurationValue("c", "empty"));
+    }
+
+    @Test public void reparsesWhenSourceChanges() throws Exception
+    {
+        File main = new File(dir, "main.cfg");
+        File inc = new File(dir, "inc.cfg");
+        File snapshot = new File(dir, "main.snap");
+        ConfigFiles.write(inc, "[b]\ny: 1\n");
+        ConfigFiles.write(main, "[a]\nx: ${b:y}\n%include \"inc.cfg\"\n");
+
+        assertFalse(new Configuration().load(main, null, snapshot));
+
+        // Same size, and possibly the same time stamp.
+
+        ConfigFiles.write(inc, "[b]\ny: 2\n");
+        Configuration config = new Configuration();
+        assertFalse(config.load(main, null, snapshot));
+        assertEquals("2", config.getConfigurationValue("a", "x"));
+        assertTrue(new Configuration().load(main, null, snapshot));
+    }
+
+    @Test public void reparsesWhenPseudosectionValueChanges()
+        throws Exception
+    {
+        File main = new File(dir, "main.cfg");
+        File snapshot = new File(dir, "main.snap");
+        ConfigFiles.write(main,
+                          "[a]\nx: ${system:config.snapshot.test?unset}\n");
+
+        System.setProperty("config.snapshot.test", "one");
+        try
+        {
+            assertFalse(new Configuration().load(main, null, snapshot));
+            assertTrue(new Configuration().load(main, null, snapshot));
+
+            System.setProperty("config.snapshot.test", "two");
+            Configuration config = new Configuration();
+            assertFalse(config.load(main, null, snapshot));
+            assertEquals("two", config.getConfigurationValue("a", "x"));
+
+            System.clearProperty("config.snapshot.test");
+            config = new Configuration();
+            assertFalse(config.load(main, null, snapshot));
+            assertEquals("unset", config.getConfigurationValue("a", "x"));
+        }
+
+        finally
+        {
+            System.clearProperty("config.snapshot.test");
+        }
+    }
+
+    @Test public void ignoresCorruptSnapshot() throws Exception
+    {
+        File main = new File(dir, "main.cfg");
+        File snapshot = new File(dir, "main.snap");
+        ConfigFiles.write(main, "[a]\nx: 1\n");
+        ConfigFiles.write(snapshot, "not a snapshot");
+
+        Configuration config = new Configuration();
+        assertFalse(config.load(main, null, snapshot));
+        assertEquals("1", config.getConfigurationValue("a", "x"));
+        assertTrue(new Configuration().load(main, null, snapshot));
+    }
+
+    @Test public void ignoresSnapshotWithCorruptLength() throws Exception
+    {
+        File main = new File(dir, "main.cfg");
+        File snapshot = new File(dir, "main.snap");
+        ConfigFiles.write(main, "[a]\nx: 1\n");
+
+        // A valid header, followed by a negative or a huge string length.
+
+        for (int length : new int[] {-5, Integer.MAX_VALUE})
+        {
+            DataOutputStream out =
+                new DataOutputStream(new FileOutputStream(snapshot));
+            try
+            {
+                out.writeInt(0x4a434653);
+                out.writeInt(1);
+                out.writeInt(length);
+            }
+
+            finally
+            {
+                out.close();
+            }
+
+            Configuration config = new Configuration();
+            assertFalse(config.load(main, null, snapshot));
+            assertEquals("1", config.getConfigurationValue("a", "x"));
+        }
+    }
+
+    @Test public void closesInputStream() throws Exception
+    {
+        boolean[] closed = new boolean[1];
+        Configuration config = new Configuration();
+        config.load(trackingURL("[a]\nx: 1\n", closed));
+        assertTrue(closed[0]);
+        assertEquals("1", config.getConfigurationValue("a", "x"));
+
+        closed[0] = false;
+        try
+        {
+            config.load(trackingURL("x: no section\n", closed));
+            fail("Expected a ConfigurationException");
+        }
+
+        catch (ConfigurationException ex)
+        {
+        }
+
+        assertTrue(closed[0]);
+    }
+
+    @Test public void lazySubstitutionExpandsOnRead() throws Exception
+    {
+        File main = new File(dir, "lazy.cfg");
+        ConfigFiles.write(main, "[a]\n" +
+                                "x: ${b:y} 'lit $x' \"p q\"\n" +
+                                "bad: ${nosuch:y}\n" +
+                                "[b]\n" +
+                                "y: ${z}\n" +
+                                "z: one\n");
+
+        Configuration config = new Configuration();
+        config.setLazySubstitution(true);
+        config.load(main, "UTF-8");
+
+        assertEquals("one lit $x p q", config.getConfigurationValue("a", "x"));
+        assertEquals(Arrays.asList("one", "lit $x", "p q"),
+                     Arrays.asList(config.getConfigurationTokens("a", "x")));
+        assertEquals("one", config.getRequiredStringValue("b", "y"));
+
+        try
+        {
+            config.getRequiredStringValue("a", "bad");
+            fail("Expected ConfigurationException");
+        }
+
+        catch (ConfigurationException ex)
+        {
+            assertFalse(ex instanceof NoSuchVariableException);
+        }
+
+        try
+        {
+            config.getConfigurationValue("a", "bad");
+            fail("Expected IllegalStateException");
+        }
+
+        catch (IllegalStateException ex)
+        {
+            assertTrue(ex.getCause() instanceof ConfigurationException);
+        }
+    }
+
+    @Test public void lazySubstitutionReportsCyclesOnEveryRead()
+        throws Exception
+    {
+        File main = new File(dir, "lazy.cfg");
+        ConfigFiles.write(main, "[a]\nx: ${y}\ny: ${x}\nok: 1\n");
+
+        Configuration config = new Configuration();
+        config.setLazySubstitution(true);
+        config.load(main, "UTF-8");
+        assertEquals("1", config.getConfigurationValue("a", "ok"));
+
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                config.getRequiredStringValue("a", "x");
+                fail("Expected ConfigurationException");
+            }
+
+            catch (ConfigurationException ex)
+            {
+                assertTrue(ex.getMessage(),
+                           ex.getMessage().contains("a:x -> a:y -> a:x"));
+            }
+        }
+    }
+
+    @Test public void lazySubstitutionIsThreadSafe() throws Exception
+    {
+        final int total = 2000;
+        StringBuilder buf = new StringBuilder("[a]\nv0: x\n");
+        for (int i = 1; i < total; i++)
+            buf.append("v" + i + ": ${v" + (i - 1) + "}\n");
+        File main = new File(dir, "lazy.cfg");
+        ConfigFiles.write(main, buf.toString());
+
+        final Configuration config = new Configuration();
+        config.setLazySubstitution(true);
+        config.load(main, "UTF-8");
+
+        final List<Throwable> errors =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int offset = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = offset; i < total; i += 7)
+                        {
+                            assertEquals("x", config.getRequiredStringValue
+                                                  ("a", "v" + i));
+                        }
+                    }
+
+                    catch (Throwable ex)
+                    {
+                        errors.add(ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    @Test public void instrumentationCountsReads() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[a]\n" +
+                                                "x: 1\n" +
+                                                "y: ${x}\n" +
+                                                "z: 3\n" +
+                                                "[b]\n" +
+                                                "w: one two\n");
+
+        // Not counted until enabled.
+
+        config.getConfigurationValue("a", "z");
+        config.setInstrumentation(true);
+
+        config.getConfigurationValue("a", "x");
+        config.getRequiredStringValue("a", "x");
+        assertEquals(1, config.getOptionalIntegerValue("a", "y", 0));
+        config.getConfigurationTokens("b", "w");
+
+        // Internal reads aren't counted, either.
+
+        ConfigurationDiff.compute(config, config);
+
+        assertEquals(2, config.getAccessCount("a", "x"));
+        assertEquals(1, config.getAccessCount("a", "y"));
+        assertEquals(0, config.getAccessCount("a", "z"));
+        assertEquals(1, config.getAccessCount("b", "w"));
+        assertEquals(Collections.singletonMap("a", Arrays.asList("z")),
+                     config.getUnreadVariables());
+
+        StringWriter report = new StringWriter();
+        config.writeAccessReport(new PrintWriter(report));
+        String text = report.toString();
+        assertTrue(text, text.contains("# Variables never read: 1 of 4\n"));
+        assertTrue(text,
+                   text.contains("[a]\nx: 2\ny: 1\n# never read\nz: 0\n"));
+
+        // The report is itself a configuration file.
+
+        Configuration counts = ConfigFiles.load(text);
+        assertEquals(0, counts.getRequiredIntegerValue("a", "z"));
+        assertEquals(1, counts.getRequiredIntegerValue("b", "w"));
+    }
+
+    @Test public void instrumentationTimesSubstitution() throws Exception
+    {
+        StringBuilder buf = new StringBuilder("[a]\nv0: x\n");
+        for (int i = 1; i < 500; i++)
+            buf.append("v" + i + ": ${v" + (i - 1) + "}\n");
+        File main = new File(dir, "timed.cfg");
+        ConfigFiles.write(main, buf.toString());
+
+        Configuration config = new Configuration();
+        config.load(main, "UTF-8");
+        assertEquals(0, config.getSubstitutionTime());
+
+        config.setInstrumentation(true);
+        config.load(main, "UTF-8");
+        assertTrue(config.getSubstitutionTime() > 0);
+        assertEquals(500, config.getUnreadVariables().get("a").size());
+    }
+
+    @Test public void setVariableDetectsSelfReference() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[a]\nx: 1\n");
+        try
+        {
+            config.setVariable("a", "x", "${x} 2", true);
+            fail("Expected a VariableSubstitutionException");
+        }
+
+        catch (VariableSubstitutionException ex)
+        {
+        }
+
+        // The value is set anyway, as it always has been.
+
+        assertEquals("${x} 2", config.getRawValue("a", "x"));
+
+        config.setVariable("a", "x", "1", false);
+        config.setVariable("a", "y", "${x} 2", true);
+        assertEquals("1 2", config.getConfigurationValue("a", "y"));
+        config.setVariable("a", "q", "it's", false);
+        assertEquals("it's", config.getConfigurationValue("a", "q"));
+        assertEquals(Arrays.asList("x", "y", "q"),
+                     new ArrayList<String>(config.getVariableNames("a")));
+    }
+
+    @Test public void nullNamesAreNotFound() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[a]\nx: 1\n");
+        assertFalse(config.containsSection(null));
+        assertEquals("dflt",
+                     config.getOptionalStringValue("a", null, "dflt"));
+
+        try
+        {
+            config.getConfigurationValue(null, "x");
+            fail("Expected a NoSuchSectionException");
+        }
+
+        catch (NoSuchSectionException ex)
+        {
+        }
+
+        try
+        {
+            config.getVariableNames(null);
+            fail("Expected a NoSuchSectionException");
+        }
+
+        catch (NoSuchSectionException ex)
+        {
+        }
+
+        try
+        {
+            config.getConfigurationValue("a", null);
+            fail("Expected a NoSuchVariableException");
+        }
+
+        catch (NoSuchVariableException ex)
+        {
+        }
+    }
+
+    @Test public void readsAreSafeDuringSetVariable() throws Exception
+    {
+        final Configuration config =
+            ConfigFiles.load("[a]\nbase: x\nv: \"x 0\"\n");
+        final int total = 2000;
+        final List<Throwable> errors =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread writer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    for (int i = 1; i <= total; i++)
+                    {
+                        config.setVariable("a", "v", "\"${base} " + i + "\"",
+                                           true);
+                        config.setVariable("a", "n" + i, "${base}", true);
+                        if ((i % 100) == 0)
+                            config.addSection("s" + i);
+                    }
+                }
+
+                catch (Throwable ex)
+                {
+                    errors.add(ex);
+                }
+            }
+        };
+
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++)
+        {
+            readers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        while ((! config.containsSection("s" + total)) &&
+                               errors.isEmpty())
+                        {
+                            String v = config.getConfigurationValue("a", "v");
+                            assertTrue(v, v.matches("x \\d+"));
+                            String[] tokens =
+                                config.getConfigurationTokens("a", "v");
+                            assertEquals(1, tokens.length);
+                            assertTrue(tokens[0].startsWith("x "));
+
+                            for (String name : config.getVariableNames("a"))
+                            {
+                                assertNotNull(name,
+                                              config.getRawValue("a", name));
+                            }
+
+                            for (String name : config.getSectionNames())
+                                config.getVariableNames(name);
+                        }
+                    }
+
+                    catch (Throwable ex)
+                    {
+                        errors.add(ex);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+
+        writer.start();
+        writer.join();
+        for (Thread reader : readers)
+            reader.join();
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals("x " + total, config.getConfigurationValue("a", "v"));
+        assertEquals(total + 2, config.getVariableNames("a").size());
+    }
+
+    @Test public void lexerHandlesLineEndings() throws Exception
+    {
+        for (String eol : new String[] {"\n", "\r\n", "\r"})
+        {
+            Configuration config = ConfigFiles.load("[a]" + eol + eol +
+                                                    "x: 1" + eol +
+                                                    "y: 2" + eol);
+            assertEquals(eol, Arrays.asList("x", "y"),
+                         config.getVariableNames("a"));
+            assertEquals(eol, "1", config.getConfigurationValue("a", "x"));
+            assertEquals(eol, "2", config.getConfigurationValue("a", "y"));
+
+            // A blank line is still a line.
+
+            assertLoadFails("[a]" + eol + eol + "bad" + eol, "line 3");
+        }
+
+        // CR CR is two line ends; CR LF is one.
+
+        assertLoadFails("[a]\r\r\nbad\r\n", "line 3");
+    }
+
+    @Test public void lexerJoinsContinuedLines() throws Exception
+    {
+        // An odd number of trailing backslashes continues the line, and
+        // the next line's leading white space is dropped.
+
+        Configuration config = ConfigFiles.load("[a]\nx: one \\\n" +
+                                                "   two \\\r\n" +
+                                                "\tthree\n" +
+                                                "y: a \\\\\\\n b\n");
+        assertEquals("one two three", config.getConfigurationValue("a", "x"));
+        assertEquals("a \\b", config.getConfigurationValue("a", "y"));
+
+        // An even number doesn't.
+
+        config = ConfigFiles.load("[a]\nx: two \\\\\ny: 2\nz: four \\\\\\\\\n");
+        assertEquals("two \\", config.getConfigurationValue("a", "x"));
+        assertEquals("2", config.getConfigurationValue("a", "y"));
+        assertEquals("four \\\\", config.getConfigurationValue("a", "z"));
+
+        // Only variable definitions can be continued.
+
+        config = ConfigFiles.load("[a]\n# comment \\\nx: 1\n");
+        assertEquals("1", config.getConfigurationValue("a", "x"));
+    }
+
+    @Test public void lexerHandlesLineEndAtBufferBoundary() throws Exception
+    {
+        // Put the CR of a CR LF pair at the end of the lexer's 8K buffer,
+        // and the LF at the start of the next fill.
+
+        String prefix = "[a]\r\nx: ";
+        StringBuilder value = new StringBuilder();
+        while (prefix.length() + value.length() < 8191)
+            value.append((char) ('a' + (value.length() % 26)));
+
+        String contents = prefix + value + "\r\ny: 2\r\n";
+        assertEquals('\r', contents.charAt(8191));
+        assertEquals('\n', contents.charAt(8192));
+
+        Configuration config = ConfigFiles.load(contents);
+        assertEquals(value.toString(), config.getConfigurationValue("a", "x"));
+        assertEquals("2", config.getConfigurationValue("a", "y"));
+        assertEquals(Arrays.asList("x", "y"), config.getVariableNames("a"));
+
+        assertLoadFails(contents + "bad\r\n", "line 4");
+    }
+
+    @Test public void includeLookalikesAreVariables() throws Exception
+    {
+        Configuration config = ConfigFiles.load("[a]\n%includex: 1\n" +
+                                                "%include_me = 2\n");
+        assertEquals("1", config.getConfigurationValue("a", "%includex"));
+        assertEquals("2", config.getConfigurationValue("a", "%include_me"));
+    }
+
+    @Test public void bareIncludeIsAnError() throws Exception
+    {
+        assertLoadFails("[a]\n%include\n", "line 2");
+        assertLoadFails("[a]\n%include   \r\n", "line 2");
+    }
+
+    @Test public void unquotedValuesAreSegmented() throws Exception
+    {
+        Configuration config =
+            ConfigFiles.load("[a]\nempty:\nplain: one  two\n" +
+                             "ref: <${plain}>\nmeta: a\\tb\n" +
+                             "quoted: 'x  ${plain}' \"y  z\"\n");
+
+        // No quotes: a single segment, expanded as usual.
+
+        assertEquals("", config.getConfigurationValue("a", "empty"));
+        assertEquals(0, config.getConfigurationTokens("a", "empty").length);
+        assertEquals("one  two", config.getConfigurationValue("a", "plain"));
+        assertArrayEquals(new String[] {"one", "two"},
+                          config.getConfigurationTokens("a", "plain"));
+        assertEquals("<one  two>", config.getConfigurationValue("a", "ref"));
+        assertEquals("a\tb", config.getConfigurationValue("a", "meta"));
+
+        // Quotes take the full scan.
+
+        assertEquals("x  ${plain} y  z",
+                     config.getConfigurationValue("a", "quoted"));
+        assertArrayEquals(new String[] {"x  ${plain}", "y  z"},
+                          config.getConfigurationTokens("a", "quoted"));
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get a URL whose stream records whether it was closed.
+     */
+    private static URL trackingURL(final String    contents,
+                                   final boolean[] closed)
+        throws IOException
+    {
+        return new URL(null, "tracking:test.cfg", new URLStreamHandler()
+        {
+            protected URLConnection openConnection(URL url)
+            {
+                return new URLConnection(url)
+                {
+                    public void connect()
+                    {
+                    }
+
+                    public InputStream getInputStream() throws IOException
+                    {
+                        byte[] bytes = contents.getBytes("UTF-8");
+                        return new ByteArrayInputStream(bytes)
+                        {
+                            public void close()
+                            {
+                                closed[0] = true;
+                            }
+                        };
+                    }
+                };
+            }
+        });
+    }
+
+    private void assertLoadFails(String contents, String expected)
+        throws Exception
+    {
+        try
+        {
+            ConfigFiles.load(contents);
+            fail("Expected a ConfigurationException");
+        }
+
+        catch (ConfigurationException ex)
+        {
+            assertTrue(ex.getMessage(),
+                       ex.getMessage().contains(", " + expected + ":"));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.clapper.util.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the IncludeLoader class, and include processing in Configuration.
+ */
+public class IncludeLoaderTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A time safely in the past, so that files are cacheable.
+     */
+    private static final long PAST = System.currentTimeMillis() - 3600000;
+
+    private File dir;
+    private List<File> files = new ArrayList<File>();
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        dir = File.createTempFile("IncludeLoaderTest", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After public void tearDown()
+    {
+        for (File f : files)
+            f.delete();
+        dir.delete();
+    }
+
+    @Test public void includesAreParsedInOrder() throws Exception
+    {
+        StringBuilder main = new StringBuilder("[main]\nfirst: 1\n");
+        for (int i = 0; i < 12; i++)
+        {
+            main.append("%include \"inc" + i + ".cfg\"\n");
+            write("inc" + i + ".cfg",
+                  "[s" + i + "]\nv: ${main:first} " + i + "\n" +
+                  ((i % 3 == 0) ? "%include \"nested" + i + ".cfg\"\n" : ""));
+            if (i % 3 == 0)
+                write("nested" + i + ".cfg", "[n" + i + "]\nv: nested\n");
+        }
+        main.append("[last]\nv: ${s11:v}\n");
+
+        Configuration config = new Configuration();
+        config.load(write("main.cfg", main.toString()));
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("main");
+        for (int i = 0; i < 12; i++)
+        {
+            expected.add("s" + i);
+            if (i % 3 == 0)
+                expected.add("n" + i);
+        }
+        expected.add("last");
+
+        assertEquals(expected,
+                     new ArrayList<String>(config.getSectionNames()));
+        assertEquals("1 11", config.getConfigurationValue("last", "v"));
+        assertEquals(17, config.getSourceURLs().size());
+    }
+
+    @Test public void missingIncludeFails() throws Exception
+    {
+        File main = write("main.cfg", "[main]\n%include \"missing.cfg\"\n");
+        try
+        {
+            new Configuration().load(main);
+            fail("Expected ConfigurationException");
+        }
+
+        catch (ConfigurationException ex)
+        {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("line 2"));
+        }
+    }
+
+    @Test public void unchangedFileIsCached() throws Exception
+    {
+        File f = write("cached.cfg", "[a]\nx: 1\n");
+        f.setLastModified(PAST);
+        URL url = f.toURI().toURL();
+
+        IncludeLoader.Source first = IncludeLoader.fetch(url, "UTF-8");
+        assertSame(first, IncludeLoader.fetch(url, "UTF-8"));
+
+        write("cached.cfg", "[a]\nx: 22\n");
+        f.setLastModified(PAST);
+        IncludeLoader.Source second = IncludeLoader.fetch(url, "UTF-8");
+        assertEquals("[a]\nx: 22\n", second.text);
+        assertTrue(first.checksum != second.checksum);
+    }
+
+    @Test public void recentlyModifiedFileIsNotCached() throws Exception
+    {
+        File f = write("recent.cfg", "[a]\nx: 1\n");
+        URL url = f.toURI().toURL();
+
+        IncludeLoader.Source first = IncludeLoader.fetch(url, "UTF-8");
+        assertEquals(first.text, IncludeLoader.fetch(url, "UTF-8").text);
+        assertNotSame(first, IncludeLoader.fetch(url, "UTF-8"));
+    }
+
+    @Test public void httpIncludeIsRevalidated() throws Exception
+    {
+        final int[] counts = new int[2]; // full responses, 304s
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/inc.cfg", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String tag = exchange.getRequestHeaders()
+                                     .getFirst("If-None-Match");
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                if ("\"v1\"".equals(tag))
+                {
+                    counts[1]++;
+                    exchange.sendResponseHeaders(304, -1);
+                }
+
+                else
+                {
+                    counts[0]++;
+                    byte[] body = "[remote]\nx: 1\n".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                }
+
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try
+        {
+            URL url = new URL("http://localhost:" +
+                              server.getAddress().getPort() + "/inc.cfg");
+            IncludeLoader.Source first = IncludeLoader.fetch(url, "UTF-8");
+            IncludeLoader.Source second = IncludeLoader.fetch(url, "UTF-8");
+
+            assertEquals("[remote]\nx: 1\n", first.text);
+            assertSame(first, second);
+            assertEquals(1, counts[0]);
+            assertEquals(1, counts[1]);
+        }
+
+        finally
+        {
+            server.stop(0);
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private File write(String name, String contents) throws IOException
+    {
+        File f = new File(dir, name);
+        ConfigFiles.write(f, contents);
+
+        if (! files.contains(f))
+            files.add(f);
+        return f;
+    }
+}
@@ -0,0 +1,268 @@
+package org.clapper.util.config;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ReloadingConfiguration class.
+ */
+public class ReloadingConfigurationTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The most recently assigned file time stamp. Stamps count up from a
+     * time safely in the past, so that every rewrite changes the stamp.
+     */
+    private static final AtomicLong stamps =
+        new AtomicLong(System.currentTimeMillis() - 3600000);
+
+    private File dir;
+    private File main;
+    private File included;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        dir = File.createTempFile("ReloadingConfigurationTest", "");
+        dir.delete();
+        dir.mkdir();
+
+        main = new File(dir, "main.cfg");
+        included = new File(dir, "included.cfg");
+        write(main, "[main]\na: one\n%include \"included.cfg\"\n");
+        write(included, "b: ${a} two\n");
+    }
+
+    @After public void tearDown()
+    {
+        included.delete();
+        main.delete();
+        dir.delete();
+    }
+
+    @Test public void loadsOnConstruction() throws Exception
+    {
+        ReloadingConfiguration handle = new ReloadingConfiguration(main);
+        Configuration config = handle.getConfiguration();
+        assertEquals("one two", config.getConfigurationValue("main", "b"));
+        assertEquals(2, config.getSourceURLs().size());
+    }
+
+    @Test public void unchangedSourcesAreNotReloaded() throws Exception
+    {
+        ReloadingConfiguration handle = new ReloadingConfiguration(main);
+        Configuration config = handle.getConfiguration();
+        assertFalse(handle.checkForChanges());
+        assertSame(config, handle.getConfiguration());
+    }
+
+    @Test public void changedIncludeIsReloaded() throws Exception
+    {
+        ReloadingConfiguration handle = new ReloadingConfiguration(main);
+        Configuration before = handle.getConfiguration();
+
+        write(included, "b: ${a} three\n");
+        assertTrue(handle.checkForChanges());
+
+        Configuration after = handle.getConfiguration();
+        assertNotSame(before, after);
+        assertEquals("one three", after.getConfigurationValue("main", "b"));
+        assertEquals("one two", before.getConfigurationValue("main", "b"));
+    }
+
+    @Test public void listenersAreToldAboutSwaps() throws Exception
+    {
+        final List<ConfigurationDiff> diffs =
+            new ArrayList<ConfigurationDiff>();
+        final ReloadingConfiguration handle =
+            new ReloadingConfiguration(main);
+        handle.addChangeListener(new ConfigurationChangeListener()
+        {
+            public void configurationChanged(Configuration     config,
+                                             ConfigurationDiff diff)
+            {
+                assertSame(handle.getConfiguration(), config);
+                diffs.add(diff);
+            }
+        });
+
+        // Reloaded, but with the same values.
+
+        write(main, "# A\n[main]\na: one\n%include \"included.cfg\"\n");
+        assertTrue(handle.checkForChanges());
+        assertEquals(0, diffs.size());
+
+        write(main, "[main]\na: uno\n%include \"included.cfg\"\n");
+        assertTrue(handle.checkForChanges());
+        assertEquals(1, diffs.size());
+        assertEquals("one two", diffs.get(0).getOldValue("main", "b"));
+        assertEquals("uno two", diffs.get(0).getNewValue("main", "b"));
+    }
+
+    @Test public void badReloadKeepsSnapshot() throws Exception
+    {
+        ReloadingConfiguration handle = new ReloadingConfiguration(main);
+        Configuration before = handle.getConfiguration();
+
+        write(main, "a: before any section\n");
+        try
+        {
+            handle.checkForChanges();
+            fail("Expected a ConfigurationException");
+        }
+
+        catch (ConfigurationException ex)
+        {
+        }
+
+        assertSame(before, handle.getConfiguration());
+
+        // The bad version isn't parsed again until it changes.
+
+        assertFalse(handle.checkForChanges());
+        write(main, "[main]\na: fixed\n");
+        assertTrue(handle.checkForChanges());
+        assertEquals("fixed",
+                     handle.getConfiguration().getConfigurationValue("main",
+                                                                     "a"));
+    }
+
+    @Test public void backgroundChecksReload() throws Exception
+    {
+        CountingConfiguration handle = new CountingConfiguration(main);
+        handle.start(5, TimeUnit.MILLISECONDS);
+        try
+        {
+            handle.start(5, TimeUnit.MILLISECONDS);
+            fail("Expected an IllegalStateException");
+        }
+
+        catch (IllegalStateException ex)
+        {
+        }
+
+        try
+        {
+            write(included, "b: ${a} three\n");
+            awaitValue(handle, "one three");
+
+            // A bad version is parsed once, and the snapshot is kept.
+
+            int loads = handle.loads.get();
+            write(main, "a: before any section\n");
+            awaitLoads(handle, loads + 1);
+            Thread.sleep(100);
+            assertEquals(loads + 1, handle.loads.get());
+            assertEquals("one three",
+                         handle.getConfiguration()
+                               .getConfigurationValue("main", "b"));
+
+            write(main, "[main]\na: uno\n%include \"included.cfg\"\n");
+            awaitValue(handle, "uno three");
+        }
+
+        finally
+        {
+            handle.close();
+        }
+
+        // No more checks once closed.
+
+        int loads = handle.loads.get();
+        write(included, "b: ${a} four\n");
+        Thread.sleep(100);
+        assertEquals(loads, handle.loads.get());
+        assertEquals("uno three",
+                     handle.getConfiguration().getConfigurationValue("main",
+                                                                     "b"));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void snapshotIsReadOnly() throws Exception
+    {
+        ReloadingConfiguration handle = new ReloadingConfiguration(main);
+        handle.getConfiguration().setVariable("main", "a", "x", false);
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static void awaitValue(ReloadingConfiguration handle,
+                                   String                 expected)
+        throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (! expected.equals(handle.getConfiguration()
+                                       .getConfigurationValue("main", "b")))
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitLoads(CountingConfiguration handle, int loads)
+        throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (handle.loads.get() < loads)
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException
+    {
+        ConfigFiles.write(file, contents);
+
+        // Each write gets a distinct time stamp, regardless of the file
+        // system's resolution or how quickly the writes follow each other.
+
+        file.setLastModified(stamps.addAndGet(2000));
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Counts the attempts to load the file.
+     */
+    private static class CountingConfiguration extends ReloadingConfiguration
+    {
+        AtomicInteger loads;
+
+        CountingConfiguration(File file) throws Exception
+        {
+            super(file);
+        }
+
+        protected Configuration createConfiguration()
+        {
+            // Called from the superclass constructor, before the field
+            // is initialized.
+
+            if (loads == null)
+                loads = new AtomicInteger();
+            loads.incrementAndGet();
+            return super.createConfiguration();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.clapper.util.io;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import java.util.regex.Pattern;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the CompiledFileFilter and CompiledFilenameFilter classes, by
+ * checking that they agree with the filter trees they were compiled from.
+ */
+public class CompiledFileFilterTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private static final String[] NAMES =
+    {
+        "Foo.class", "foo.java", "bar.txt", "README", "a.b.class", "x.jar",
+        "aa", "abab", "CVS", ".svn", "build.xml", "notes.TXT"
+    };
+
+    private File dir;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        dir = File.createTempFile("CompiledFileFilterTest", "");
+        dir.delete();
+        dir.mkdir();
+        new File(dir, "CVS").mkdir();
+        for (String name : NAMES)
+            new File(dir, name).createNewFile();
+    }
+
+    @After public void tearDown()
+    {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test public void fileFilterTrees()
+    {
+        FileFilter[] trees =
+        {
+            new OrFileFilter(),
+            new AndFileFilter(),
+            new CombinationFileFilter(CombinationFilterMode.OR_FILTERS),
+            new AndFileFilter(new FileOnlyFilter(),
+                              new OrFileFilter(regex("\\.class$"),
+                                               regex("\\.java$"),
+                                               regex("^(a)\\1$"),
+                                               path("CVS"))),
+            new NotFileFilter(new NotFileFilter(new DirectoryFilter())),
+            new OrFileFilter(new NotFileFilter(regex("\\.")),
+                             new AndFileFilter(new OrFileFilter(regex("^a"),
+                                                                regex("b$")),
+                                               new FileOnlyFilter())),
+            new OrFileFilter(new RegexFileFilter("\\.txt$",
+                                                 Pattern.CASE_INSENSITIVE,
+                                                 FileFilterMatchType.FILENAME),
+                             regex("\\.xml$"),
+                             new FileFilter()
+                             {
+                                 public boolean accept(File f)
+                                 {
+                                     return f.getName().length() == 2;
+                                 }
+                             })
+        };
+
+        for (FileFilter tree : trees)
+        {
+            FileFilter compiled = new CompiledFileFilter(tree);
+            for (String name : NAMES)
+            {
+                File f = new File(dir, name);
+                assertEquals("Compiled filter disagrees on " + name,
+                             tree.accept(f), compiled.accept(f));
+            }
+        }
+    }
+
+    @Test public void filenameFilterTrees()
+    {
+        MultipleRegexFilenameFilter multiple =
+            new MultipleRegexFilenameFilter
+                (MultipleRegexFilenameFilter.MatchType.FILENAME);
+        multiple.addAcceptPattern(".*\\.class");
+        multiple.addAcceptPattern(".*\\.java");
+        multiple.addRejectPattern("a\\..*");
+        multiple.addRejectPattern("foo.*");
+
+        MultipleRegexFilenameFilter paths =
+            new MultipleRegexFilenameFilter
+                (MultipleRegexFilenameFilter.MatchType.PATH);
+        paths.addRejectPattern(".*CVS");
+
+        FilenameFilter[] trees =
+        {
+            multiple,
+            paths,
+            new OrFilenameFilter(multiple, new RegexFilenameFilter("^R")),
+            new AndFilenameFilter(new NotFilenameFilter(multiple), paths),
+            new CombinationFilenameFilter(CombinationFilterMode.OR_FILTERS)
+        };
+
+        for (FilenameFilter tree : trees)
+        {
+            FilenameFilter compiled = new CompiledFilenameFilter(tree);
+            for (String name : NAMES)
+            {
+                assertEquals("Compiled filter disagrees on " + name,
+                             tree.accept(dir, name),
+                             compiled.accept(dir, name));
+            }
+        }
+    }
+
+    @Test public void sameNamedGroupInOrOperands()
+    {
+        FileFilter tree = new OrFileFilter(regex("(?<ext>\\.java)$"),
+                                           regex("(?<ext>\\.class)$"));
+        FileFilter compiled = new CompiledFileFilter(tree);
+        for (String name : NAMES)
+        {
+            File f = new File(dir, name);
+            assertEquals("Compiled filter disagrees on " + name,
+                         tree.accept(f), compiled.accept(f));
+        }
+
+        FilenameFilter names =
+            new OrFilenameFilter(new RegexFilenameFilter("(?<ext>\\.java)$"),
+                                 new RegexFilenameFilter("(?<ext>\\.txt)$"));
+        FilenameFilter compiledNames = new CompiledFilenameFilter(names);
+        for (String name : NAMES)
+        {
+            assertEquals("Compiled filter disagrees on " + name,
+                         names.accept(dir, name),
+                         compiledNames.accept(dir, name));
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static RegexFileFilter regex(String regex)
+    {
+        return new RegexFileFilter(regex, FileFilterMatchType.FILENAME);
+    }
+
+    private static RegexFileFilter path(String regex)
+    {
+        return new RegexFileFilter(regex, FileFilterMatchType.PATH);
+    }
+}
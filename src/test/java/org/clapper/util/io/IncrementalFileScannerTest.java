@@ -0,0 +1,208 @@
+package org.clapper.util.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the IncrementalFileScanner class.
+ */
+public class IncrementalFileScannerTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A time safely in the past, so that time stamps are trusted.
+     */
+    private static final long PAST = System.currentTimeMillis() - 3600000;
+
+    private File root;
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    class Changes implements FileChangeHandler
+    {
+        Set<String> added = new TreeSet<String>();
+        Set<String> modified = new TreeSet<String>();
+        Set<String> deleted = new TreeSet<String>();
+
+        public void fileAdded(File file)
+        {
+            added.add(relative(file));
+        }
+
+        public void fileModified(File file)
+        {
+            modified.add(relative(file));
+        }
+
+        public void fileDeleted(File file)
+        {
+            deleted.add(relative(file));
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        root = File.createTempFile("IncrementalFileScannerTest", "");
+        root.delete();
+        root.mkdir();
+
+        write("a.txt", 10);
+        write("sub/b.txt", 20);
+        write("sub/deeper/c.txt", 30);
+        write("sub/deeper/skip.bin", 30);
+        settle(root);
+    }
+
+    @After public void tearDown()
+    {
+        delete(root);
+    }
+
+    @Test public void firstScanReportsEverything()
+    {
+        IncrementalFileScanner scanner =
+            new IncrementalFileScanner(root, txtFilter());
+        Changes changes = new Changes();
+        assertEquals("Wrong total", 3, scanner.scan(changes));
+        assertEquals("Wrong additions",
+                     set("a.txt", "sub/b.txt", "sub/deeper/c.txt"),
+                     changes.added);
+    }
+
+    @Test public void noChanges()
+    {
+        IncrementalFileScanner scanner =
+            new IncrementalFileScanner(root, txtFilter());
+        scanner.scan(new Changes());
+        assertEquals("Unexpected changes", 0, scanner.scan(new Changes()));
+    }
+
+    @Test public void changes() throws Exception
+    {
+        IncrementalFileScanner scanner =
+            new IncrementalFileScanner(root, txtFilter());
+        scanner.scan(new Changes());
+
+        write("sub/b.txt", 25);
+        write("sub/new.txt", 1);
+        write("sub/new.bin", 1);
+        new File(root, "a.txt").delete();
+        delete(new File(root, "sub/deeper"));
+        settle(root);
+
+        File snapshot = File.createTempFile("snapshot", ".bin");
+        snapshot.deleteOnExit();
+        scanner.saveSnapshot(snapshot);
+
+        IncrementalFileScanner reloaded =
+            new IncrementalFileScanner(root, txtFilter());
+        reloaded.loadSnapshot(snapshot);
+        snapshot.delete();
+
+        Changes changes = new Changes();
+        assertEquals("Wrong total", 4, reloaded.scan(changes));
+        assertEquals("Wrong additions", set("sub/new.txt"), changes.added);
+        assertEquals("Wrong modifications", set("sub/b.txt"),
+                     changes.modified);
+        assertEquals("Wrong deletions", set("a.txt", "sub/deeper/c.txt"),
+                     changes.deleted);
+    }
+
+    @Test public void skipUnchangedDirectories() throws Exception
+    {
+        IncrementalFileScanner scanner =
+            new IncrementalFileScanner(root, txtFilter());
+        scanner.setSkipUnchangedDirectories(true);
+        scanner.scan(new Changes());
+
+        // Modifying in place doesn't touch the directory, so it's missed.
+        // Adding a file does, so that's seen.
+
+        write("sub/b.txt", 25);
+        write("sub/deeper/new.txt", 1);
+        settle(root);
+
+        Changes changes = new Changes();
+        scanner.scan(changes);
+        assertEquals("Wrong modifications", set(), changes.modified);
+        assertEquals("Wrong additions", set("sub/deeper/new.txt"),
+                     changes.added);
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void write(String path, int size) throws IOException
+    {
+        File f = new File(root, path);
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[size]);
+        out.close();
+    }
+
+    /**
+     * Give everything in the tree an old time stamp. A file's time stamp
+     * depends on its size, and a directory's on its number of entries,
+     * so that changes to either still change the time stamp.
+     */
+    private void settle(File dir)
+    {
+        for (File f : dir.listFiles())
+        {
+            if (f.isDirectory())
+                settle(f);
+            else
+                f.setLastModified(PAST + f.length());
+        }
+
+        dir.setLastModified(PAST + dir.list().length * 1000);
+    }
+
+    private void delete(File f)
+    {
+        if (f.isDirectory())
+        {
+            for (File child : f.listFiles())
+                delete(child);
+        }
+
+        f.delete();
+    }
+
+    private String relative(File file)
+    {
+        String path = file.getPath().substring(root.getPath().length() + 1);
+        return path.replace(File.separatorChar, '/');
+    }
+
+    private static Set<String> set(String... strings)
+    {
+        Set<String> result = new TreeSet<String>();
+        for (String s : strings)
+            result.add(s);
+        return result;
+    }
+
+    private static RegexFileFilter txtFilter()
+    {
+        return new RegexFileFilter("\\.txt$", FileFilterMatchType.FILENAME);
+    }
+}
@@ -0,0 +1,192 @@
+package org.clapper.util.io;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the RecursiveFileFinder class.
+ */
+public class RecursiveFileFinderTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private File root;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        root = File.createTempFile("RecursiveFileFinderTest", "");
+        root.delete();
+        root.mkdir();
+
+        create("a.txt");
+        create("d1/b.txt");
+        create("d1/d2/c.txt");
+        create("d1/d2/d3/e.txt");
+        for (int i = 0; i < 20; i++)
+            create("wide/w" + i + "/f.txt");
+    }
+
+    @After public void tearDown()
+    {
+        delete(root);
+    }
+
+    @Test public void parallelWalkFindsSameFiles()
+    {
+        RecursiveFileFinder sequential = new RecursiveFileFinder();
+        List<File> expected = new ArrayList<File>();
+        sequential.findFiles(root, new FileOnlyFilter(), expected);
+
+        RecursiveFileFinder parallel = new RecursiveFileFinder(4);
+        Collection<File> found =
+            Collections.synchronizedList(new ArrayList<File>());
+        int total = parallel.findFiles(root, new FileOnlyFilter(), found);
+
+        assertEquals(24, expected.size());
+        assertEquals(expected.size(), total);
+        assertEquals(relative(expected), relative(found));
+
+        // Same with a FilenameFilter and a handler.
+
+        final Collection<File> handled =
+            Collections.synchronizedList(new ArrayList<File>());
+        parallel.findFiles(root,
+                           new RegexFilenameFilter("\\.txt$"),
+                           new FileFoundHandler()
+                           {
+                               public void fileFound(File file)
+                               {
+                                   handled.add(file);
+                               }
+                           });
+        assertEquals(relative(expected), relative(handled));
+    }
+
+    @Test public void depthIsLimited()
+    {
+        RecursiveFileFinder finder = new RecursiveFileFinder();
+        finder.setMaxDepth(2);
+        List<File> found = new ArrayList<File>();
+        finder.findFiles(root, new RegexFilenameFilter("^[a-z]\\.txt$|^d"),
+                         found);
+
+        Set<String> expected = new TreeSet<String>();
+        Collections.addAll(expected, "a.txt", "d1", "d1/b.txt", "d1/d2");
+        assertEquals(expected, relative(found));
+    }
+
+    @Test public void symbolicLinkCycleIsNotFollowed() throws IOException
+    {
+        File link = new File(root, "d1/loop");
+        try
+        {
+            Files.createSymbolicLink(link.toPath(), root.toPath());
+        }
+
+        catch (UnsupportedOperationException ex)
+        {
+            Assume.assumeNoException(ex);
+        }
+
+        catch (IOException ex)
+        {
+            Assume.assumeNoException(ex);
+        }
+
+        for (boolean follow : new boolean[] {true, false})
+        {
+            for (int threads : new int[] {1, 4})
+            {
+                RecursiveFileFinder finder = new RecursiveFileFinder(threads);
+                finder.setFollowLinks(follow);
+                Collection<File> found =
+                    Collections.synchronizedList(new ArrayList<File>());
+                finder.findFiles(root, found);
+
+                Set<String> names = relative(found);
+                assertTrue(names.contains("d1/loop"));
+                assertTrue(names.contains("d1/d2/d3/e.txt"));
+                for (String name : names)
+                    assertFalse(name, name.startsWith("d1/loop/"));
+            }
+        }
+    }
+
+    @Test public void returnedFilesAreNotCached()
+    {
+        RecursiveFileFinder finder = new RecursiveFileFinder();
+        List<File> found = new ArrayList<File>();
+        finder.findFiles(root, new FileOnlyFilter(), found);
+
+        File first = found.get(0);
+        assertSame(File.class, first.getClass());
+        assertTrue(first.isFile());
+        first.delete();
+        assertFalse(first.exists());
+        assertFalse(first.isFile());
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void create(String path) throws IOException
+    {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+    }
+
+    private void delete(File file)
+    {
+        // Don't descend into a link.
+
+        if (! Files.isSymbolicLink(file.toPath()))
+        {
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                for (File child : children)
+                    delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private Set<String> relative(Collection<File> files)
+    {
+        String prefix = root.getPath() + File.separator;
+        Set<String> result = new TreeSet<String>();
+        synchronized (files)
+        {
+            for (File file : files)
+            {
+                String path = file.getPath();
+                assertTrue(path, path.startsWith(prefix));
+                result.add(path.substring(prefix.length())
+                               .replace(File.separatorChar, '/'));
+            }
+        }
+
+        return result;
+    }
+}
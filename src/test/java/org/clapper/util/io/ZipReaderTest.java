@@ -0,0 +1,239 @@
+package org.clapper.util.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ZipReader class.
+ */
+public class ZipReaderTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private File zip;
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Before public void setUp() throws IOException
+    {
+        zip = File.createTempFile("ZipReaderTest", ".zip");
+        zip.deleteOnExit();
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+
+        out.putNextEntry(new ZipEntry("dir/"));
+        out.closeEntry();
+
+        out.putNextEntry(new ZipEntry("dir/deflated.txt"));
+        out.write(content(100000));
+        out.closeEntry();
+
+        byte[] stored = content(1000);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        ZipEntry entry = new ZipEntry("stored.bin");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(stored.length);
+        entry.setCompressedSize(stored.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(stored);
+        out.closeEntry();
+
+        out.putNextEntry(new ZipEntry("empty.txt"));
+        out.closeEntry();
+
+        out.close();
+    }
+
+    @After public void tearDown()
+    {
+        zip.delete();
+    }
+
+    @Test public void index() throws IOException
+    {
+        ZipReader reader = new ZipReader(zip);
+        try
+        {
+            assertEquals("Wrong number of entries", 4,
+                         reader.getTotalEntries());
+            assertTrue(reader.containsEntry("dir/"));
+            assertTrue(reader.containsEntry("stored.bin"));
+            assertFalse(reader.containsEntry("missing"));
+            assertNull(reader.getInputStream("missing"));
+            assertEquals("Wrong first entry", "dir/",
+                         reader.getEntryNames().get(0));
+
+            ZipEntry entry = reader.getEntry("dir/deflated.txt");
+            assertEquals("Wrong size", 100000, entry.getSize());
+            assertEquals("Wrong method", ZipEntry.DEFLATED,
+                         entry.getMethod());
+        }
+
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test public void readEntries() throws IOException
+    {
+        ZipReader reader = new ZipReader(zip);
+        try
+        {
+            assertArrayEquals("Deflated entry mismatch",
+                              content(100000),
+                              readAll(reader.getInputStream("dir/deflated.txt")));
+            assertArrayEquals("Stored entry mismatch",
+                              content(1000),
+                              readAll(reader.getInputStream("stored.bin")));
+            assertEquals("Empty entry not empty", 0,
+                         readAll(reader.getInputStream("empty.txt")).length);
+        }
+
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test public void readIntoArray() throws IOException
+    {
+        ZipReader reader = new ZipReader(zip);
+        try
+        {
+            byte[] buf = new byte[100010];
+            assertEquals(100000, reader.getSize("dir/deflated.txt"));
+            assertEquals(100000,
+                         reader.readEntry("dir/deflated.txt", buf, 10));
+            assertArrayEquals("Deflated entry mismatch",
+                              content(100000),
+                              Arrays.copyOfRange(buf, 10, 100010));
+
+            assertEquals(1000, reader.readEntry("stored.bin", buf, 0));
+            assertArrayEquals("Stored entry mismatch",
+                              content(1000),
+                              Arrays.copyOf(buf, 1000));
+
+            assertEquals(0, reader.readEntry("empty.txt", buf, 0));
+            assertEquals(-1, reader.readEntry("missing", buf, 0));
+            assertEquals(-1, reader.getSize("missing"));
+        }
+
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test(expected=IndexOutOfBoundsException.class)
+    public void readIntoSmallArray() throws IOException
+    {
+        ZipReader reader = new ZipReader(zip);
+        try
+        {
+            reader.readEntry("stored.bin", new byte[999], 0);
+        }
+
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test public void concurrentReaders() throws Exception
+    {
+        final ZipReader reader = new ZipReader(zip);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 8; i++)
+        {
+            Thread t = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < 20; j++)
+                        {
+                            byte[] b = readAll(reader.getInputStream
+                                                   ("dir/deflated.txt"));
+                            assertArrayEquals(content(100000), b);
+                        }
+                    }
+
+                    catch (Throwable ex)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(ex);
+                        }
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        reader.close();
+        assertTrue("Concurrent reads failed: " + errors, errors.isEmpty());
+    }
+
+    @Test(expected=IOException.class)
+    public void notAZipFile() throws IOException
+    {
+        File f = File.createTempFile("ZipReaderTest", ".txt");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(content(100));
+        out.close();
+
+        new ZipReader(f);
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static byte[] content(int size)
+    {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++)
+            b[i] = (byte) ("abcdefghij".charAt(i % 10) + (i / 1000) % 7);
+        return b;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+            out.write(buf, 0, n);
+        is.close();
+        return out.toByteArray();
+    }
+}
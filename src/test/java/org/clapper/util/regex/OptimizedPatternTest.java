@@ -0,0 +1,87 @@
+package org.clapper.util.regex;
+
+import java.util.regex.Pattern;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the OptimizedPattern class, by checking that it always agrees
+ * with java.util.regex.
+ */
+public class OptimizedPatternTest
+{
+    /*----------------------------------------------------------------------*\
+                            Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    private static final String[] REGEXES =
+    {
+        "\\.class$", "^foo", "^README$", "CVS", ".*\\.jar", "a\\..*",
+        ".*CVS.*", "^.*\\.txt$", "", "^$", "\\\\$", "a\\$", "foo\\.*",
+        "^(a)\\1$", "[a-z]+\\.java", "b|c", "\\d"
+    };
+
+    private static final String[] INPUTS =
+    {
+        "", "Foo.class", "foo.CLASS", "foo.java", "README", "readme",
+        "x.jar", "X.JAR", "a.b", "A.B", "CVS", "xcvsx", "notes.txt",
+        "a$", "a\\", "foo.", "foo..", "aa", "x.class\n", "CVS\nx",
+        "\u212A.class", "\u0131nfo.txt", "12"
+    };
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void caseSensitive()
+    {
+        checkAll(0);
+    }
+
+    @Test public void caseInsensitive()
+    {
+        checkAll(Pattern.CASE_INSENSITIVE);
+    }
+
+    @Test public void unicodeCaseFallsBack()
+    {
+        checkAll(Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        assertFalse(new OptimizedPattern(Pattern.compile
+                                             ("foo", Pattern.MULTILINE))
+                        .isLiteral());
+    }
+
+    @Test public void literalDetection()
+    {
+        assertTrue(new OptimizedPattern("\\.class$").isLiteral());
+        assertTrue(new OptimizedPattern(".*\\.jar").isLiteral());
+        assertTrue(new OptimizedPattern("^foo").isLiteral());
+        assertFalse(new OptimizedPattern("[a-z]+\\.java").isLiteral());
+        assertFalse(new OptimizedPattern("\\d").isLiteral());
+        assertFalse(new OptimizedPattern("b|c").isLiteral());
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static void checkAll(int flags)
+    {
+        for (String regex : REGEXES)
+        {
+            Pattern pattern = Pattern.compile(regex, flags);
+            OptimizedPattern optimized = new OptimizedPattern(pattern);
+
+            for (String input : INPUTS)
+            {
+                assertEquals("find(\"" + regex + "\") on \"" + input + "\"",
+                             pattern.matcher(input).find(),
+                             optimized.find(input));
+                assertEquals("matches(\"" + regex + "\") on \"" + input + "\"",
+                             pattern.matcher(input).matches(),
+                             optimized.matches(input));
+            }
+        }
+    }
+}